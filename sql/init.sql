@@ -18,31 +18,70 @@ CREATE TABLE chat_conversation (
                                    id BIGINT AUTO_INCREMENT PRIMARY KEY COMMENT '主键ID',
                                    conversation_id VARCHAR(255) NOT NULL UNIQUE COMMENT '对话ID',
                                    user_id VARCHAR(255) DEFAULT NULL COMMENT '用户ID',
+                                   summary TEXT DEFAULT NULL COMMENT '滚动摘要（概括顺序号小于 summary_order 的消息）',
+                                   summary_order INT NOT NULL DEFAULT 0 COMMENT '摘要覆盖到的消息顺序号（不包含）',
+                                   title VARCHAR(64) DEFAULT NULL COMMENT '会话标题（第一条用户消息）',
+                                   last_message_preview VARCHAR(255) DEFAULT NULL COMMENT '最后一条消息预览',
+                                   last_message_time DATETIME DEFAULT NULL COMMENT '最后一条消息时间',
+                                   message_count INT NOT NULL DEFAULT 0 COMMENT '有效消息数',
+                                   storage_tier TINYINT NOT NULL DEFAULT 0 COMMENT '消息存储层级：0 chat_message，1 冷存储',
+                                   version BIGINT NOT NULL DEFAULT 0 COMMENT '内容版本号，每次写入或删除消息加 1',
+                                   rewrite_count INT NOT NULL DEFAULT 0 COMMENT '历史改写次数，截断或替换已有消息、删除对话时加 1',
                                    create_time DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
                                    update_time DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
                                    deleted TINYINT DEFAULT 0 COMMENT '逻辑删除标志',
 
                                    INDEX idx_conversation_id (conversation_id),
                                    INDEX idx_user_id (user_id),
-                                   INDEX idx_create_time (create_time)
+                                   INDEX idx_create_time (create_time),
+                                   INDEX idx_update_time (update_time),
+                                   INDEX idx_deleted_last_message_time (deleted, last_message_time, id, message_count),
+                                   INDEX idx_deleted_tier_last_message_time (deleted, storage_tier, last_message_time, id)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='聊天对话表';
 
--- 5. 创建聊天消息表
+-- 5. 创建聊天消息表（按 create_time 分区，月分区由 ChatMessagePartitionJob 维护）
 CREATE TABLE chat_message (
-                              id BIGINT AUTO_INCREMENT PRIMARY KEY COMMENT '主键ID',
+                              id BIGINT AUTO_INCREMENT COMMENT '主键ID',
                               conversation_id VARCHAR(255) NOT NULL COMMENT '对话ID',
                               message_type VARCHAR(50) NOT NULL COMMENT '消息类型：USER/ASSISTANT/SYSTEM',
                               content TEXT NOT NULL COMMENT '消息内容',
+                              content_codec TINYINT NOT NULL DEFAULT 0 COMMENT '内容压缩算法：0 未压缩，1 LZ4，2 Deflate',
+                              content_blob MEDIUMBLOB DEFAULT NULL COMMENT '压缩后的消息内容，content_codec 非 0 时有效',
                               message_order INT NOT NULL COMMENT '消息顺序',
-                              create_time DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+                              content_hash BIGINT DEFAULT NULL COMMENT '内容哈希（消息类型 + 内容）',
+                              request_id VARCHAR(64) DEFAULT NULL COMMENT '写入该消息的请求ID，按版本号追加冲突时据此识别重复写入',
+                              create_time DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
                               deleted TINYINT DEFAULT 0 COMMENT '逻辑删除标志',
 
+                              PRIMARY KEY (id, create_time),
                               INDEX idx_conversation_id (conversation_id),
                               INDEX idx_message_order (conversation_id, message_order),
-                              INDEX idx_create_time (create_time)
-) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='聊天消息表';
+                              INDEX idx_create_time (create_time),
+                              INDEX idx_deleted_create_time (deleted, create_time)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='聊天消息表'
+PARTITION BY RANGE COLUMNS (create_time) (
+    PARTITION p_history VALUES LESS THAN ('2026-11-01'),
+    PARTITION pmax VALUES LESS THAN (MAXVALUE)
+);
+
+-- 6. 创建聊天消息归档表
+CREATE TABLE chat_message_archive (
+                              id BIGINT NOT NULL PRIMARY KEY COMMENT '原消息主键',
+                              conversation_id VARCHAR(255) NOT NULL COMMENT '对话ID',
+                              message_type VARCHAR(50) NOT NULL COMMENT '消息类型：USER/ASSISTANT/SYSTEM',
+                              content TEXT NOT NULL COMMENT '消息内容',
+                              content_codec TINYINT NOT NULL DEFAULT 0 COMMENT '内容压缩算法：0 未压缩，1 LZ4，2 Deflate',
+                              content_blob MEDIUMBLOB DEFAULT NULL COMMENT '压缩后的消息内容，content_codec 非 0 时有效',
+                              message_order INT NOT NULL COMMENT '消息顺序',
+                              content_hash BIGINT DEFAULT NULL COMMENT '内容哈希（消息类型 + 内容）',
+                              create_time DATETIME DEFAULT NULL COMMENT '创建时间',
+                              archive_time DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '归档时间',
+
+                              INDEX idx_conversation_id (conversation_id),
+                              INDEX idx_archive_time (archive_time)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='聊天消息归档表（清理的逻辑删除消息）';
 
--- 6. 插入测试数据
+-- 7. 插入测试数据
 INSERT INTO chat_conversation (conversation_id, user_id) VALUES
                                                              ('test_conversation_1', 'user_001'),
                                                              ('test_conversation_2', 'user_002');
@@ -53,7 +92,7 @@ INSERT INTO chat_message (conversation_id, message_type, content, message_order)
                                                                                      ('test_conversation_1', 'USER', '我和女朋友经常吵架，不知道怎么办', 2),
                                                                                      ('test_conversation_1', 'ASSISTANT', '吵架是情侣关系中常见的问题。首先，我想了解一下你们通常因为什么事情吵架？', 3);
 
--- 7. 验证表结构和数据
+-- 8. 验证表结构和数据
 SELECT 'Database created successfully' AS status;
 
 SELECT 'Tables created:' AS info;
@@ -62,6 +101,7 @@ SHOW TABLES;
 SELECT 'Table structures:' AS info;
 DESCRIBE chat_conversation;
 DESCRIBE chat_message;
+DESCRIBE chat_message_archive;
 
 SELECT 'Sample data in chat_conversation:' AS info;
 SELECT * FROM chat_conversation;
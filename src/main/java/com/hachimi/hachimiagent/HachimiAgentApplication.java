@@ -5,9 +5,11 @@ import com.alibaba.cloud.ai.autoconfigure.dashscope.DashScopeEmbeddingAutoConfig
 import org.springframework.ai.model.ollama.autoconfigure.OllamaEmbeddingAutoConfiguration;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 
 
+@EnableScheduling
 @SpringBootApplication(scanBasePackages = "com.hachimi.hachimiagent",exclude = {DashScopeEmbeddingAutoConfiguration.class, OllamaEmbeddingAutoConfiguration.class})
 public class HachimiAgentApplication {
 
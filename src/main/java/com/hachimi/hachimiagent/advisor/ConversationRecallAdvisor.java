@@ -0,0 +1,242 @@
+package com.hachimi.hachimiagent.advisor;
+
+import com.hachimi.hachimiagent.common.MessageConverter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClientMessageAggregator;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.Advisor;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisor;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisor;
+import org.springframework.ai.chat.client.advisor.api.StreamAdvisorChain;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.ai.vectorstore.filter.FilterExpressionBuilder;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Flux;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 长期记忆召回顾问
+ * <p>
+ * 每轮对话结束后，把"用户问题 + 助手回答"作为一个文档异步写入独立的向量表；
+ * 请求时按当前问题在同一 chatId 的历史轮次中检索 top-k 条相关片段，追加到系统提示中。
+ * 配合只保留最近几条消息的短窗口记忆使用，长会话不必每轮重放全部历史。
+ * <p>
+ * 顺序排在 MessageChatMemoryAdvisor 之后，已出现在短窗口中的轮次不会重复注入。
+ * 对话被删除或清理后调用 {@link #forget}，按 conversationId 元数据删除它的全部向量。
+ */
+@Slf4j
+public class ConversationRecallAdvisor implements CallAdvisor, StreamAdvisor {
+
+    static final String CONVERSATION_ID_KEY = "conversationId";
+    static final String QUESTION_HASH_KEY = "questionHash";
+    static final String CREATE_TIME_KEY = "createTime";
+
+    private static final String RECALL_TEMPLATE = """
+
+
+            以下是本次会话中与当前问题相关的早期对话片段，仅供参考，请结合最近的对话作答：
+            ---------------------
+            %s
+            ---------------------
+            """;
+
+    // 等待写入向量表的轮次上限，超过后丢弃，只影响以后的召回
+    private static final int EMBEDDING_QUEUE_CAPACITY = 1000;
+
+    // 删除向量时每个 IN 过滤条件包含的对话数
+    private static final int FORGET_CHUNK_SIZE = 500;
+
+    private final VectorStore vectorStore;
+    private final int topK;
+    private final double similarityThreshold;
+    private final Executor embeddingExecutor;
+
+    public ConversationRecallAdvisor(VectorStore vectorStore, int topK, double similarityThreshold) {
+        this(vectorStore, topK, similarityThreshold, new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(EMBEDDING_QUEUE_CAPACITY), r -> {
+                    Thread thread = new Thread(r, "conversation-recall-embedding");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+    }
+
+    ConversationRecallAdvisor(VectorStore vectorStore, int topK, double similarityThreshold, Executor embeddingExecutor) {
+        Assert.notNull(vectorStore, "vectorStore cannot be null");
+        Assert.isTrue(topK > 0, "topK must be positive");
+        this.vectorStore = vectorStore;
+        this.topK = topK;
+        this.similarityThreshold = similarityThreshold;
+        this.embeddingExecutor = embeddingExecutor;
+    }
+
+    @Override
+    public String getName() {
+        return this.getClass().getSimpleName();
+    }
+
+    @Override
+    public int getOrder() {
+        // 在 MessageChatMemoryAdvisor 之后执行，此时 prompt 中已有短窗口历史
+        return Advisor.DEFAULT_CHAT_MEMORY_PRECEDENCE_ORDER + 100;
+    }
+
+    @Override
+    public ChatClientResponse adviseCall(ChatClientRequest chatClientRequest, CallAdvisorChain chain) {
+        ChatClientRequest request = before(chatClientRequest);
+        ChatClientResponse response = chain.nextCall(request);
+        after(request, response);
+        return response;
+    }
+
+    @Override
+    public Flux<ChatClientResponse> adviseStream(ChatClientRequest chatClientRequest, StreamAdvisorChain chain) {
+        ChatClientRequest request = before(chatClientRequest);
+        return new ChatClientMessageAggregator().aggregateChatClientResponse(chain.nextStream(request),
+                response -> after(request, response));
+    }
+
+    /**
+     * 检索相关的历史轮次并追加到系统提示
+     */
+    private ChatClientRequest before(ChatClientRequest request) {
+        String conversationId = conversationId(request);
+        UserMessage userMessage = request.prompt().getUserMessage();
+        if (conversationId == null || userMessage == null || userMessage.getText() == null || userMessage.getText().isBlank()) {
+            return request;
+        }
+
+        try {
+            // 多取一些，去掉短窗口中已有的轮次后再截取 topK
+            List<Document> documents = vectorStore.similaritySearch(SearchRequest.builder()
+                    .query(userMessage.getText())
+                    .topK(topK * 2)
+                    .similarityThreshold(similarityThreshold)
+                    .filterExpression(new FilterExpressionBuilder().eq(CONVERSATION_ID_KEY, conversationId).build())
+                    .build());
+
+            Set<String> recentQuestions = request.prompt().getInstructions().stream()
+                    .filter(message -> message.getMessageType() == MessageType.USER)
+                    .map(ConversationRecallAdvisor::questionHash)
+                    .collect(Collectors.toSet());
+            List<String> recalled = documents.stream()
+                    .filter(document -> !recentQuestions.contains(String.valueOf(document.getMetadata().get(QUESTION_HASH_KEY))))
+                    .limit(topK)
+                    .map(Document::getText)
+                    .toList();
+            if (recalled.isEmpty()) {
+                return request;
+            }
+
+            log.debug("召回历史轮次: conversationId={}, candidates={}, recalled={}",
+                    conversationId, documents.size(), recalled.size());
+            Prompt prompt = request.prompt();
+            String systemText = prompt.getSystemMessage().getText();
+            String augmented = (systemText != null ? systemText : "")
+                    + RECALL_TEMPLATE.formatted(String.join("\n\n", recalled));
+            return request.mutate()
+                    .prompt(prompt.augmentSystemMessage(augmented))
+                    .build();
+        } catch (Exception e) {
+            // 召回只是补充上下文，失败时按原请求继续
+            log.warn("召回历史轮次失败: conversationId={}", conversationId, e);
+            return request;
+        }
+    }
+
+    /**
+     * 异步把完成的轮次写入向量表，不阻塞响应
+     */
+    private void after(ChatClientRequest request, ChatClientResponse response) {
+        String conversationId = conversationId(request);
+        UserMessage userMessage = request.prompt().getUserMessage();
+        if (conversationId == null || userMessage == null || response.chatResponse() == null
+                || response.chatResponse().getResult() == null) {
+            return;
+        }
+        String answer = response.chatResponse().getResult().getOutput().getText();
+        if (answer == null || answer.isBlank()) {
+            return;
+        }
+
+        Document turn = new Document("用户：" + userMessage.getText() + "\n助手：" + answer, Map.of(
+                CONVERSATION_ID_KEY, conversationId,
+                QUESTION_HASH_KEY, questionHash(userMessage),
+                CREATE_TIME_KEY, System.currentTimeMillis()));
+        try {
+            embeddingExecutor.execute(() -> {
+                try {
+                    vectorStore.add(List.of(turn));
+                } catch (Exception e) {
+                    log.warn("写入对话向量失败: conversationId={}", conversationId, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("对话向量写入队列已满，丢弃本轮: conversationId={}", conversationId);
+        }
+    }
+
+    /**
+     * 删除对话的全部向量
+     * 在写入线程上执行，排在这些对话已排队的轮次之后，不会在删除后又被写回；队列已满或已关闭时在调用线程上删除
+     */
+    public void forget(Collection<String> conversationIds) {
+        List<String> ids = List.copyOf(conversationIds);
+        if (ids.isEmpty()) {
+            return;
+        }
+        Runnable forget = () -> {
+            for (int from = 0; from < ids.size(); from += FORGET_CHUNK_SIZE) {
+                List<String> chunk = ids.subList(from, Math.min(from + FORGET_CHUNK_SIZE, ids.size()));
+                try {
+                    vectorStore.delete(new FilterExpressionBuilder().in(CONVERSATION_ID_KEY, chunk.toArray()).build());
+                } catch (Exception e) {
+                    log.warn("删除对话向量失败: conversations={}", chunk.size(), e);
+                }
+            }
+            log.debug("已删除对话向量: conversations={}", ids.size());
+        };
+        try {
+            embeddingExecutor.execute(forget);
+        } catch (RejectedExecutionException e) {
+            forget.run();
+        }
+    }
+
+    private static String conversationId(ChatClientRequest request) {
+        Object conversationId = request.context().get(ChatMemory.CONVERSATION_ID);
+        return conversationId != null ? conversationId.toString() : null;
+    }
+
+    private static String questionHash(Message message) {
+        return String.valueOf(MessageConverter.contentHash(message));
+    }
+
+    /**
+     * 停止写入线程，未写入的轮次直接丢弃
+     */
+    public void shutdown() {
+        if (embeddingExecutor instanceof ExecutorService executorService) {
+            executorService.shutdown();
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package com.hachimi.hachimiagent.app;
 
 import com.hachimi.hachimiagent.advisor.BanWordAdvisor;
+import com.hachimi.hachimiagent.advisor.ConversationRecallAdvisor;
 import com.hachimi.hachimiagent.advisor.SelfLogAdvisor;
+import com.hachimi.hachimiagent.chatmemory.ConversationSummarizer;
 import com.hachimi.hachimiagent.chatmemory.MysqlBasedChatMemoryRepository;
+import com.hachimi.hachimiagent.chatmemory.MysqlChatMemoryProperties;
+import com.hachimi.hachimiagent.chatmemory.TailWindowChatMemory;
+import com.hachimi.hachimiagent.chatmemory.TokenBudgetChatMemory;
 import com.hachimi.hachimiagent.rag.QueryTransformer;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
@@ -18,9 +24,11 @@ import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.ai.model.tool.DefaultToolCallingManager;
 import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
 import org.springframework.ai.tool.ToolCallbackProvider;
 import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 
@@ -35,6 +43,7 @@ public class LoveApp {
     private final ChatClient normalChatClient;
     private final ChatClient ragChatClient;
     private final ChatClient cloudRagClient;
+    private final ChatClient recallChatClient;
     private final ChatMemory dbChatMemory;
     private final SelfLogAdvisor selfLogAdvisor;
     private final ChatMemory baseChatMemory;
@@ -55,18 +64,27 @@ public class LoveApp {
      * @param dashscopeChatModel 核心聊天模型
      * @param mysqlBasedChatMemoryRepository 数据库聊天记录仓库
      * @param loveAppRagCloudAdvisor 阿里云知识库顾问 (使用 @Qualifier 精确指定Bean名称)
+     * @param conversationSummarizer 对话滚动摘要生成器
+     * @param conversationRecallAdvisor 对话长期记忆召回顾问
+     * @param recallRecentMessages 召回模式下保留的最近消息数
      */
     public LoveApp(ChatModel dashscopeChatModel,
                    MysqlBasedChatMemoryRepository mysqlBasedChatMemoryRepository,
+                   ConversationSummarizer conversationSummarizer,
+                   MysqlChatMemoryProperties chatMemoryProperties,
+                   MeterRegistry meterRegistry,
 //                   VectorStore loveAppVectorStore, // 暂时移除
                    VectorStore pgVectorVectorStore,
-                   @Qualifier("loveAppRagCloudAdvisor") Advisor loveAppRagCloudAdvisor, QueryTransformer queryTransformer) {
+                   @Qualifier("loveAppRagCloudAdvisor") Advisor loveAppRagCloudAdvisor, QueryTransformer queryTransformer,
+                   ConversationRecallAdvisor conversationRecallAdvisor,
+                   @Value("${chat.memory.recall.recent-messages:6}") int recallRecentMessages) {
 
         // 1. 初始化内部组件
-        this.dbChatMemory = MessageWindowChatMemory.builder()
-                .chatMemoryRepository(mysqlBasedChatMemoryRepository)
-                .maxMessages(20)
-                .build();
+        // 按 token 预算裁剪历史，超出预算的较早消息在后台折叠成摘要；只追加新消息
+        MysqlChatMemoryProperties.TokenBudget tokenBudget = chatMemoryProperties.getTokenBudget();
+        this.dbChatMemory = new TokenBudgetChatMemory(mysqlBasedChatMemoryRepository, conversationSummarizer,
+                new JTokkitTokenCountEstimator(), meterRegistry,
+                tokenBudget.getMaxTokens(), tokenBudget.getMaxCandidates(), tokenBudget.getBaselineMessages());
         this.queryTransformer = queryTransformer;
         this.selfLogAdvisor = new SelfLogAdvisor();
         this.banWordAdvisor = new BanWordAdvisor();
@@ -107,6 +125,16 @@ public class LoveApp {
                         MessageChatMemoryAdvisor.builder(dbChatMemory).build(),
                         selfLogAdvisor
                 ).build();
+
+        // 只保留最近几条消息，更早的相关轮次由向量召回补充
+        this.recallChatClient = ChatClient.builder(dashscopeChatModel)
+                .defaultSystem(SYSTEM_PROMPT)
+                .defaultAdvisors(
+                        MessageChatMemoryAdvisor.builder(
+                                new TailWindowChatMemory(mysqlBasedChatMemoryRepository, recallRecentMessages)).build(),
+                        conversationRecallAdvisor,
+                        selfLogAdvisor
+                ).build();
     }
 
     // ... (doChat, doChatWithRAG 等其他方法保持不变)
@@ -199,6 +227,27 @@ public class LoveApp {
         return result;
     }
 
+    /**
+     * 长期记忆对话：短窗口 + 按当前问题召回本会话中相关的早期轮次
+     * @param message 用户消息
+     * @param chatId 对话ID，同时用于过滤召回范围
+     * @return 助手回复的消息内容
+     */
+    public String doChatWithRecall(String message, String chatId) {
+        ChatResponse chatResponse = recallChatClient.prompt()
+                .user(message)
+                .advisors(a -> a.param(ChatMemory.CONVERSATION_ID, chatId))
+                .call()
+                .chatResponse();
+
+        if (chatResponse == null || chatResponse.getResult() == null) {
+            log.error("Recall chat response is null for chatId: {}", chatId);
+            return "抱歉，系统暂时无法回复，请稍后再试。";
+        }
+
+        return chatResponse.getResult().getOutput().getText();
+    }
+
     //基于百炼平台云知识库的rag调用
     public String doChatWithCloudRAG(String message, String chatId) {
         // 使用预配置的RAG专用客户端，所有advisors已经配置好
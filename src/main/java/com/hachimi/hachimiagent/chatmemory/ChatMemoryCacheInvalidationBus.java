@@ -0,0 +1,29 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 聊天记忆缓存失效通知
+ * <p>
+ * 多节点部署时，一个节点修改对话后需要让其他节点丢弃本地缓存。
+ * 单节点使用 {@link LocalChatMemoryCacheInvalidationBus}，多节点可使用 {@link JdbcPollingChatMemoryCacheInvalidationBus}
+ * 或接入消息中间件的实现。
+ */
+public interface ChatMemoryCacheInvalidationBus {
+
+    /**
+     * 通知其他节点对话已变更
+     *
+     * @param conversationId     对话ID
+     * @param insertedMessageIds 本次写入的消息主键，基于消息表轮询的实现据此跳过本节点自己的写入
+     */
+    void publish(String conversationId, List<Long> insertedMessageIds);
+
+    /**
+     * 注册收到其他节点变更时的回调
+     *
+     * @param listener 参数为需要失效的对话ID
+     */
+    void subscribe(Consumer<String> listener);
+}
@@ -0,0 +1,413 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import lombok.extern.slf4j.Slf4j;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.content.Media;
+import org.springframework.util.MimeType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 聊天消息的 Kryo 编解码器
+ * <p>
+ * 新格式以 魔数 + 版本号 + 标志位 作为文件头，使用显式注册的紧凑序列化器，
+ * 不再为每条记录写入完整类名；没有文件头的数据按旧格式（动态注册）读取，保证历史文件仍可加载。
+ * Kryo 实例非线程安全，通过对象池复用。
+ */
+@Slf4j
+public final class ChatMessageKryoCodec {
+
+    // 文件头魔数 "HCMK"
+    static final int MAGIC = 0x48434D4B;
+
+    // 当前格式版本，旧格式（无文件头）视为版本 1
+    static final byte FORMAT_VERSION = 2;
+
+    // 文件头长度：魔数(4) + 版本(1) + 标志位(1)
+    static final int HEADER_SIZE = 6;
+
+    // 注册ID，一经发布不可修改
+    private static final int USER_MESSAGE_ID = 100;
+    private static final int ASSISTANT_MESSAGE_ID = 101;
+    private static final int SYSTEM_MESSAGE_ID = 102;
+    private static final int TOOL_RESPONSE_MESSAGE_ID = 103;
+
+    // 元数据值类型标记
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_INT = 2;
+    private static final byte VALUE_LONG = 3;
+    private static final byte VALUE_DOUBLE = 4;
+    private static final byte VALUE_BOOLEAN = 5;
+
+    // 媒体数据类型标记
+    private static final byte MEDIA_BYTES = 0;
+    private static final byte MEDIA_STRING = 1;
+
+    // AbstractMessage 构造时自动写入的元数据键，无需重复存储
+    private static final String MESSAGE_TYPE_KEY = "messageType";
+
+    private static final int POOL_CAPACITY = 32;
+
+    // 新格式 Kryo 池：显式注册，禁止写入类名
+    private static final Pool<Kryo> KRYO_POOL = new Pool<>(true, false, POOL_CAPACITY) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            kryo.setRegistrationRequired(true);
+            kryo.setReferences(false);
+            kryo.register(UserMessage.class, new UserMessageSerializer(), USER_MESSAGE_ID);
+            kryo.register(AssistantMessage.class, new AssistantMessageSerializer(), ASSISTANT_MESSAGE_ID);
+            kryo.register(SystemMessage.class, new SystemMessageSerializer(), SYSTEM_MESSAGE_ID);
+            kryo.register(ToolResponseMessage.class, new ToolResponseMessageSerializer(), TOOL_RESPONSE_MESSAGE_ID);
+            return kryo;
+        }
+    };
+
+    // 旧格式 Kryo 池：动态注册 + StdInstantiatorStrategy，仅用于读取历史数据
+    private static final Pool<Kryo> LEGACY_KRYO_POOL = new Pool<>(true, false, POOL_CAPACITY) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            kryo.setRegistrationRequired(false);
+            kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+            return kryo;
+        }
+    };
+
+    private ChatMessageKryoCodec() {
+    }
+
+    /**
+     * 序列化消息列表（带文件头）
+     */
+    public static byte[] serializeMessages(List<Message> messages) {
+        Kryo kryo = KRYO_POOL.obtain();
+        try (Output output = new Output(1024, -1)) {
+            output.writeInt(MAGIC);
+            output.writeByte(FORMAT_VERSION);
+            output.writeByte(0);
+            output.writeVarInt(messages.size(), true);
+            for (Message message : messages) {
+                kryo.writeClassAndObject(output, normalize(message));
+            }
+            return output.toBytes();
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    /**
+     * 反序列化消息列表，自动识别新旧格式
+     */
+    public static List<Message> deserializeMessages(byte[] bytes) {
+        if (bytes.length == 0) {
+            return new ArrayList<>();
+        }
+        if (!hasHeader(bytes)) {
+            return deserializeLegacyMessages(bytes);
+        }
+
+        Kryo kryo = KRYO_POOL.obtain();
+        try (Input input = new Input(bytes)) {
+            input.readInt();
+            byte version = input.readByte();
+            if (version > FORMAT_VERSION) {
+                throw new IllegalStateException("Unsupported chat memory format version: " + version);
+            }
+            input.readByte();
+            int size = input.readVarInt(true);
+            List<Message> messages = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                messages.add((Message) kryo.readClassAndObject(input));
+            }
+            return messages;
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    /**
+     * 序列化单条消息（不带文件头，用于追加日志记录）
+     */
+    public static byte[] serializeMessage(Message message) {
+        Kryo kryo = KRYO_POOL.obtain();
+        try (Output output = new Output(256, -1)) {
+            kryo.writeClassAndObject(output, normalize(message));
+            return output.toBytes();
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    /**
+     * 反序列化单条消息
+     */
+    public static Message deserializeMessage(byte[] bytes) {
+        Kryo kryo = KRYO_POOL.obtain();
+        try (Input input = new Input(bytes)) {
+            return (Message) kryo.readClassAndObject(input);
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    /**
+     * 按旧格式反序列化单条消息（动态注册写入的日志记录）
+     */
+    public static Message deserializeLegacyMessage(byte[] bytes) {
+        Kryo kryo = LEGACY_KRYO_POOL.obtain();
+        try (Input input = new Input(bytes)) {
+            return (Message) kryo.readClassAndObject(input);
+        } finally {
+            LEGACY_KRYO_POOL.free(kryo);
+        }
+    }
+
+    /**
+     * 按旧格式序列化消息列表，仅用于兼容性测试和基准对比
+     */
+    static byte[] serializeLegacyMessages(List<Message> messages) {
+        Kryo kryo = LEGACY_KRYO_POOL.obtain();
+        try (Output output = new Output(1024, -1)) {
+            kryo.writeObject(output, new ArrayList<>(messages));
+            return output.toBytes();
+        } finally {
+            LEGACY_KRYO_POOL.free(kryo);
+        }
+    }
+
+    private static List<Message> deserializeLegacyMessages(byte[] bytes) {
+        Kryo kryo = LEGACY_KRYO_POOL.obtain();
+        try (Input input = new Input(bytes)) {
+            @SuppressWarnings("unchecked")
+            List<Message> messages = kryo.readObject(input, ArrayList.class);
+            return messages != null ? messages : new ArrayList<>();
+        } finally {
+            LEGACY_KRYO_POOL.free(kryo);
+        }
+    }
+
+    private static boolean hasHeader(byte[] bytes) {
+        if (bytes.length < HEADER_SIZE) {
+            return false;
+        }
+        int magic = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        return magic == MAGIC;
+    }
+
+    /**
+     * 未注册的消息类型按用户消息保存，与 MessageConverter 的处理方式一致
+     */
+    private static Message normalize(Message message) {
+        if (message instanceof UserMessage || message instanceof AssistantMessage
+                || message instanceof SystemMessage || message instanceof ToolResponseMessage) {
+            return message;
+        }
+        log.warn("Unsupported message type {}, saving as user message", message.getClass().getName());
+        return new UserMessage(message.getText());
+    }
+
+    // ========== 公共读写方法 ==========
+
+    private static void writeMetadata(Output output, Map<String, Object> metadata) {
+        Map<String, Object> entries = new HashMap<>(metadata);
+        entries.remove(MESSAGE_TYPE_KEY);
+        output.writeVarInt(entries.size(), true);
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            output.writeString(entry.getKey());
+            writeValue(output, entry.getValue());
+        }
+    }
+
+    private static Map<String, Object> readMetadata(Input input) {
+        int size = input.readVarInt(true);
+        Map<String, Object> metadata = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            String key = input.readString();
+            Object value = readValue(input);
+            if (value != null) {
+                metadata.put(key, value);
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * 元数据值只保留基础类型，其他类型按字符串保存
+     */
+    private static void writeValue(Output output, Object value) {
+        if (value == null) {
+            output.writeByte(VALUE_NULL);
+        } else if (value instanceof Integer intValue) {
+            output.writeByte(VALUE_INT);
+            output.writeVarInt(intValue, false);
+        } else if (value instanceof Long longValue) {
+            output.writeByte(VALUE_LONG);
+            output.writeVarLong(longValue, false);
+        } else if (value instanceof Double doubleValue) {
+            output.writeByte(VALUE_DOUBLE);
+            output.writeDouble(doubleValue);
+        } else if (value instanceof Boolean booleanValue) {
+            output.writeByte(VALUE_BOOLEAN);
+            output.writeBoolean(booleanValue);
+        } else {
+            output.writeByte(VALUE_STRING);
+            output.writeString(value.toString());
+        }
+    }
+
+    private static Object readValue(Input input) {
+        byte type = input.readByte();
+        return switch (type) {
+            case VALUE_NULL -> null;
+            case VALUE_STRING -> input.readString();
+            case VALUE_INT -> input.readVarInt(false);
+            case VALUE_LONG -> input.readVarLong(false);
+            case VALUE_DOUBLE -> input.readDouble();
+            case VALUE_BOOLEAN -> input.readBoolean();
+            default -> throw new IllegalStateException("Unknown metadata value type: " + type);
+        };
+    }
+
+    private static void writeMedia(Output output, List<Media> media) {
+        output.writeVarInt(media.size(), true);
+        for (Media item : media) {
+            output.writeString(item.getId());
+            output.writeString(item.getName());
+            output.writeString(item.getMimeType().toString());
+            Object data = item.getData();
+            if (data instanceof byte[] bytes) {
+                output.writeByte(MEDIA_BYTES);
+                output.writeVarInt(bytes.length, true);
+                output.writeBytes(bytes);
+            } else {
+                output.writeByte(MEDIA_STRING);
+                output.writeString(String.valueOf(data));
+            }
+        }
+    }
+
+    private static List<Media> readMedia(Input input) {
+        int size = input.readVarInt(true);
+        List<Media> media = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String id = input.readString();
+            String name = input.readString();
+            MimeType mimeType = MimeType.valueOf(input.readString());
+            Object data = input.readByte() == MEDIA_BYTES
+                    ? input.readBytes(input.readVarInt(true))
+                    : input.readString();
+            media.add(Media.builder().id(id).name(name).mimeType(mimeType).data(data).build());
+        }
+        return media;
+    }
+
+    // ========== 消息序列化器 ==========
+
+    private static class UserMessageSerializer extends Serializer<UserMessage> {
+
+        @Override
+        public void write(Kryo kryo, Output output, UserMessage message) {
+            output.writeString(message.getText());
+            writeMedia(output, message.getMedia());
+            writeMetadata(output, message.getMetadata());
+        }
+
+        @Override
+        public UserMessage read(Kryo kryo, Input input, Class<? extends UserMessage> type) {
+            String text = input.readString();
+            List<Media> media = readMedia(input);
+            Map<String, Object> metadata = readMetadata(input);
+            return UserMessage.builder().text(text).media(media).metadata(metadata).build();
+        }
+    }
+
+    private static class AssistantMessageSerializer extends Serializer<AssistantMessage> {
+
+        @Override
+        public void write(Kryo kryo, Output output, AssistantMessage message) {
+            output.writeString(message.getText());
+            List<AssistantMessage.ToolCall> toolCalls = message.getToolCalls();
+            output.writeVarInt(toolCalls.size(), true);
+            for (AssistantMessage.ToolCall toolCall : toolCalls) {
+                output.writeString(toolCall.id());
+                output.writeString(toolCall.type());
+                output.writeString(toolCall.name());
+                output.writeString(toolCall.arguments());
+            }
+            writeMedia(output, message.getMedia());
+            writeMetadata(output, message.getMetadata());
+        }
+
+        @Override
+        public AssistantMessage read(Kryo kryo, Input input, Class<? extends AssistantMessage> type) {
+            String text = input.readString();
+            int toolCallCount = input.readVarInt(true);
+            List<AssistantMessage.ToolCall> toolCalls = new ArrayList<>(toolCallCount);
+            for (int i = 0; i < toolCallCount; i++) {
+                toolCalls.add(new AssistantMessage.ToolCall(
+                        input.readString(), input.readString(), input.readString(), input.readString()));
+            }
+            List<Media> media = readMedia(input);
+            Map<String, Object> metadata = readMetadata(input);
+            return new AssistantMessage(text, metadata, toolCalls, media);
+        }
+    }
+
+    private static class SystemMessageSerializer extends Serializer<SystemMessage> {
+
+        @Override
+        public void write(Kryo kryo, Output output, SystemMessage message) {
+            output.writeString(message.getText());
+            writeMetadata(output, message.getMetadata());
+        }
+
+        @Override
+        public SystemMessage read(Kryo kryo, Input input, Class<? extends SystemMessage> type) {
+            String text = input.readString();
+            Map<String, Object> metadata = readMetadata(input);
+            return SystemMessage.builder().text(text).metadata(metadata).build();
+        }
+    }
+
+    private static class ToolResponseMessageSerializer extends Serializer<ToolResponseMessage> {
+
+        @Override
+        public void write(Kryo kryo, Output output, ToolResponseMessage message) {
+            List<ToolResponseMessage.ToolResponse> responses = message.getResponses();
+            output.writeVarInt(responses.size(), true);
+            for (ToolResponseMessage.ToolResponse response : responses) {
+                output.writeString(response.id());
+                output.writeString(response.name());
+                output.writeString(response.responseData());
+            }
+            writeMetadata(output, message.getMetadata());
+        }
+
+        @Override
+        public ToolResponseMessage read(Kryo kryo, Input input, Class<? extends ToolResponseMessage> type) {
+            int size = input.readVarInt(true);
+            List<ToolResponseMessage.ToolResponse> responses = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                responses.add(new ToolResponseMessage.ToolResponse(
+                        input.readString(), input.readString(), input.readString()));
+            }
+            Map<String, Object> metadata = readMetadata(input);
+            return new ToolResponseMessage(responses, metadata);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import com.hachimi.hachimiagent.common.MessageContentCodec;
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 聊天消息冷存储
+ * <p>
+ * 长期不活跃的对话从 chat_message 移出后保存为文件，一个对话一个文件：
+ * 内容是 {@link ChatMessageKryoCodec#serializeMessages} 的输出（与 FileBasedChatMemoryRepository 的快照格式相同）再做 gzip 压缩。
+ * 行上的顺序号、原始类型、内容哈希和创建时间放在保留的元数据键中，回迁时按原值写回 chat_message，
+ * 顺序号和分区键都不变。
+ * <p>
+ * 文件名是对话ID的 Base64url 编码，按编码哈希分到两级子目录，避免单目录文件过多。
+ * 多节点部署时 coldStoragePath 需要是共享存储。
+ */
+@Slf4j
+class ColdChatMessageStore {
+
+    static final String FILE_EXTENSION = ".kryo.gz";
+
+    // 行字段在消息元数据中的保留键，读回时还原为行字段
+    static final String ORDER_KEY = "_coldOrder";
+    static final String TYPE_KEY = "_coldType";
+    static final String HASH_KEY = "_coldHash";
+    static final String REQUEST_ID_KEY = "_coldRequestId";
+    static final String CREATE_TIME_KEY = "_coldCreateTime";
+
+    private final Path root;
+
+    // 目录在第一次写入时创建，未开启分层的节点不会产生空目录
+    ColdChatMessageStore(String storagePath) {
+        this.root = Paths.get(storagePath);
+    }
+
+    /**
+     * 写入对话的全部消息，已有文件时整体替换
+     * 先写临时文件并刷盘，再原子替换，调用方随后删除数据库行
+     */
+    void write(String conversationId, List<ChatMessage> rows) {
+        List<Message> messages = new ArrayList<>(rows.size());
+        for (ChatMessage row : rows) {
+            messages.add(toColdMessage(row));
+        }
+
+        Path file = path(conversationId);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                // 不关闭 gzip 流，finish 后由 channel 刷盘并关闭
+                GZIPOutputStream out = new GZIPOutputStream(Channels.newOutputStream(channel), 8192);
+                out.write(ChatMessageKryoCodec.serializeMessages(messages));
+                out.finish();
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("写入冷存储失败: " + conversationId, e);
+        }
+        log.debug("写入冷存储: conversationId={}, messages={}, file={}", conversationId, rows.size(), file);
+    }
+
+    /**
+     * 读取对话的全部消息行（按顺序号排列），主键为 null
+     *
+     * @throws IllegalStateException 文件不存在
+     */
+    List<ChatMessage> read(String conversationId) {
+        Path file = path(conversationId);
+        byte[] bytes;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 8192)) {
+            bytes = in.readAllBytes();
+        } catch (NoSuchFileException e) {
+            throw new IllegalStateException("冷存储文件不存在: " + conversationId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取冷存储失败: " + conversationId, e);
+        }
+
+        List<Message> messages = ChatMessageKryoCodec.deserializeMessages(bytes);
+        List<ChatMessage> rows = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            rows.add(toRow(conversationId, message));
+        }
+        return rows;
+    }
+
+    /**
+     * 删除对话的冷存储文件，文件不存在时忽略
+     */
+    void delete(String conversationId) {
+        try {
+            Files.deleteIfExists(path(conversationId));
+        } catch (IOException e) {
+            // 残留文件不影响正确性：存储层级以 chat_conversation.storage_tier 为准，再次移出时会覆盖
+            log.warn("删除冷存储文件失败: conversationId={}", conversationId, e);
+        }
+    }
+
+    /**
+     * 对话ID可能包含路径分隔符等字符，编码后作为文件名
+     */
+    Path path(String conversationId) {
+        String name = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(conversationId.getBytes(StandardCharsets.UTF_8));
+        int hash = name.hashCode();
+        String first = String.format("%02x", hash & 0xFF);
+        String second = String.format("%02x", (hash >>> 8) & 0xFF);
+        return root.resolve(first).resolve(second).resolve(name + FILE_EXTENSION);
+    }
+
+    private static Message toColdMessage(ChatMessage row) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(ORDER_KEY, row.getMessageOrder());
+        metadata.put(TYPE_KEY, row.getMessageType());
+        if (row.getContentHash() != null) {
+            metadata.put(HASH_KEY, row.getContentHash());
+        }
+        if (row.getRequestId() != null) {
+            metadata.put(REQUEST_ID_KEY, row.getRequestId());
+        }
+        if (row.getCreateTime() != null) {
+            metadata.put(CREATE_TIME_KEY, row.getCreateTime().toString());
+        }
+        // 文件整体 gzip 压缩，行内压缩的内容先解压
+        String content = MessageContentCodec.decode(row);
+        return switch (row.getMessageType()) {
+            case "ASSISTANT" -> new AssistantMessage(content, metadata);
+            case "SYSTEM" -> SystemMessage.builder().text(content).metadata(metadata).build();
+            default -> UserMessage.builder().text(content).metadata(metadata).build();
+        };
+    }
+
+    private static ChatMessage toRow(String conversationId, Message message) {
+        Map<String, Object> metadata = message.getMetadata();
+        ChatMessage row = new ChatMessage();
+        row.setConversationId(conversationId);
+        row.setMessageOrder(((Number) metadata.get(ORDER_KEY)).intValue());
+        row.setMessageType((String) metadata.get(TYPE_KEY));
+        row.setContent(message.getText());
+        Object hash = metadata.get(HASH_KEY);
+        row.setContentHash(hash != null ? ((Number) hash).longValue() : null);
+        row.setRequestId((String) metadata.get(REQUEST_ID_KEY));
+        Object createTime = metadata.get(CREATE_TIME_KEY);
+        row.setCreateTime(createTime != null ? LocalDateTime.parse((String) createTime) : null);
+        row.setDeleted(0);
+        return row;
+    }
+}
@@ -0,0 +1,72 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import java.util.Arrays;
+
+/**
+ * 对话指纹
+ * <p>
+ * 记录最近一次保存后库中有效消息的逐条 64 位内容哈希，以及第一条消息的顺序号。
+ * 有效消息的顺序号连续，因此第 i 条的顺序号为 baseOrder + i，增量保存时可直接据此比对而无需查询数据库。
+ * maxOrder 是该对话用过的最大顺序号（包括已逻辑删除的行），新消息的顺序号接在它之后。
+ * combined 为逐条哈希的多项式滚动组合，用于快速排除不相同的窗口；判定相同时仍逐条比较，
+ * 只有某条消息发生 64 位哈希碰撞才会误判。
+ */
+final class ConversationFingerprint {
+
+    // 奇数乘子，保证滚动组合对每条哈希都可逆
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final long[] hashes;
+    private final int baseOrder;
+    private final int maxOrder;
+    private final long combined;
+
+    private ConversationFingerprint(long[] hashes, int baseOrder, int maxOrder, long combined) {
+        this.hashes = hashes;
+        this.baseOrder = baseOrder;
+        this.maxOrder = maxOrder;
+        this.combined = combined;
+    }
+
+    static ConversationFingerprint of(long[] hashes, int baseOrder, int maxOrder) {
+        return new ConversationFingerprint(hashes.clone(), baseOrder, maxOrder, combine(hashes));
+    }
+
+    /**
+     * 逐条滚动组合：combined = combined * M + hash
+     */
+    static long combine(long[] hashes) {
+        long combined = 0;
+        for (long hash : hashes) {
+            combined = combined * MULTIPLIER + hash;
+        }
+        return combined;
+    }
+
+    /**
+     * 判断给定窗口是否与指纹完全相同
+     */
+    boolean matches(long[] otherHashes, long otherCombined) {
+        return combined == otherCombined && Arrays.equals(hashes, otherHashes);
+    }
+
+    int size() {
+        return hashes.length;
+    }
+
+    long hashAt(int index) {
+        return hashes[index];
+    }
+
+    int orderAt(int index) {
+        return baseOrder + index;
+    }
+
+    int maxOrder() {
+        return maxOrder;
+    }
+
+    long combined() {
+        return combined;
+    }
+}
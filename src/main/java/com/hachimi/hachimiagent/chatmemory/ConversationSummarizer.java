@@ -0,0 +1,128 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 对话滚动摘要生成器
+ * <p>
+ * 在后台线程中把超出 token 预算的较早消息连同旧摘要一起交给模型，生成新的摘要并写回 chat_conversation。
+ * 同一对话同一时间只有一个生成任务；队列已满时直接放弃，下一轮对话会再次提交，不阻塞请求线程。
+ */
+@Component
+@Slf4j
+public class ConversationSummarizer {
+
+    private static final String SUMMARY_PROMPT = "你负责压缩对话历史。请把已有摘要和新增的对话内容合并成一份新的摘要，" +
+            "保留用户的身份背景、写作目标、已经讨论过的问题、给出的关键建议和尚未解决的事项，" +
+            "省略寒暄和重复内容。使用第三人称陈述，不超过 300 字，只输出摘要正文。";
+
+    private final ChatClient chatClient;
+    private final MysqlBasedChatMemoryRepository repository;
+    private final int maxFoldMessages;
+    private final ThreadPoolExecutor executor;
+
+    // 正在生成摘要的对话
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    public ConversationSummarizer(ChatModel dashscopeChatModel,
+                                  MysqlBasedChatMemoryRepository repository,
+                                  MysqlChatMemoryProperties properties) {
+        MysqlChatMemoryProperties.TokenBudget tokenBudget = properties.getTokenBudget();
+        this.chatClient = ChatClient.builder(dashscopeChatModel)
+                .defaultSystem(SUMMARY_PROMPT)
+                .build();
+        this.repository = repository;
+        this.maxFoldMessages = tokenBudget.getMaxFoldMessages();
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(tokenBudget.getSummaryThreads(), tokenBudget.getSummaryThreads(),
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(tokenBudget.getSummaryQueueCapacity()), r -> {
+                    Thread thread = new Thread(r, "chat-memory-summarizer-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * 提交摘要任务：把顺序号在 [current.coveredOrder, upToOrder) 内的消息折叠进摘要
+     *
+     * @return 是否提交成功；已有进行中的任务或队列已满时返回 false
+     */
+    public boolean requestSummary(String conversationId, ConversationSummary current, int upToOrder) {
+        if (!running.add(conversationId)) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    summarize(conversationId, current, upToOrder);
+                } catch (Exception e) {
+                    log.warn("生成对话摘要失败: conversationId={}", conversationId, e);
+                } finally {
+                    running.remove(conversationId);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            running.remove(conversationId);
+            log.debug("摘要队列已满，本轮跳过: conversationId={}", conversationId);
+            return false;
+        }
+    }
+
+    /**
+     * 生成并保存摘要，一次最多折叠 maxFoldMessages 条，剩余部分留给下一轮
+     */
+    void summarize(String conversationId, ConversationSummary current, int upToOrder) {
+        List<ChatMessage> rows = repository.findMessageRowsBetween(conversationId, current.coveredOrder(), upToOrder, maxFoldMessages);
+        int coveredOrder = rows.size() == maxFoldMessages
+                ? rows.get(rows.size() - 1).getMessageOrder() + 1
+                : upToOrder;
+
+        long begin = System.currentTimeMillis();
+        String summary = rows.isEmpty() ? current.text() : chatClient.prompt()
+                .user(buildPrompt(current, rows))
+                .call()
+                .content();
+
+        if (repository.saveSummary(conversationId, current.coveredOrder(), summary, coveredOrder)) {
+            log.info("对话摘要已更新: conversationId={}, folded={}, coveredOrder={}, cost={}ms",
+                    conversationId, rows.size(), coveredOrder, System.currentTimeMillis() - begin);
+        } else {
+            log.debug("摘要已被并发更新，丢弃本次结果: conversationId={}", conversationId);
+        }
+    }
+
+    private static String buildPrompt(ConversationSummary current, List<ChatMessage> rows) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("已有摘要：\n").append(current.isEmpty() ? "（无）" : current.text()).append("\n\n新增对话：\n");
+        for (ChatMessage row : rows) {
+            String role = switch (row.getMessageType()) {
+                case "ASSISTANT" -> "助手";
+                case "SYSTEM" -> "系统";
+                default -> "用户";
+            };
+            prompt.append(role).append("：").append(row.getContent()).append('\n');
+        }
+        return prompt.toString();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
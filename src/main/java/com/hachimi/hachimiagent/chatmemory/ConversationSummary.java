@@ -0,0 +1,16 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+/**
+ * 对话滚动摘要
+ *
+ * @param text         摘要内容，没有摘要时为 null
+ * @param coveredOrder 摘要覆盖到的消息顺序号（不包含），顺序号更小的消息不再直接发送给模型
+ */
+record ConversationSummary(String text, int coveredOrder) {
+
+    static final ConversationSummary EMPTY = new ConversationSummary(null, 0);
+
+    boolean isEmpty() {
+        return text == null || text.isBlank();
+    }
+}
@@ -1,10 +1,10 @@
 package com.hachimi.hachimiagent.chatmemory;
 
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
-import org.objenesis.strategy.StdInstantiatorStrategy;
 import org.springframework.ai.chat.memory.ChatMemoryRepository;
 import org.springframework.ai.chat.messages.Message;
 
@@ -12,43 +12,108 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 /**
  * 基于文件的聊天记忆存储库实现
  * 参照 InMemoryChatMemoryRepository 的设计，将数据持久化到文件系统
+ * <p>
+ * 支持两种存储模式：
+ * <ul>
+ *     <li>{@link StorageMode#SNAPSHOT}：每次保存整体重写 .chat 快照文件（默认）</li>
+ *     <li>{@link StorageMode#APPEND_LOG}：快照 + 追加日志，每轮只写入新增的尾部消息，后台压缩合并为快照</li>
+ * </ul>
+ * 缓存按需加载，使用 W-TinyLFU 淘汰策略并按估算字节数限制容量，启动时不再扫描和反序列化全部对话
  */
 @Slf4j
 public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
 
+    /**
+     * 存储模式
+     */
+    public enum StorageMode {
+        /**
+         * 整体快照：每次 saveAll 重写整个文件
+         */
+        SNAPSHOT,
+        /**
+         * 追加日志：快照 + 帧化的消息记录日志
+         */
+        APPEND_LOG
+    }
+
     // 存储位置
     private final String storagePath;
 
     // 文件扩展名
     private static final String FILE_EXTENSION = ".chat";
 
-    // Kryo 序列化工具
-    private static final Kryo kryo = new Kryo();
+    // 追加日志文件扩展名
+    private static final String LOG_EXTENSION = ".chatlog";
+
+    // 日志记录类型：追加一条消息（旧格式，动态注册的 Kryo 编码，只读）
+    private static final byte RECORD_APPEND_LEGACY = 1;
+
+    // 日志记录类型：丢弃头部 N 条消息（窗口滑动）
+    private static final byte RECORD_DROP_HEAD = 2;
+
+    // 日志记录类型：追加一条消息（ChatMessageKryoCodec 紧凑编码）
+    private static final byte RECORD_APPEND = 3;
+
+    // 记录帧头长度：类型(1) + 负载长度(4)
+    private static final int RECORD_HEADER_SIZE = 5;
+
+    // 日志记录数超过该阈值时触发后台压缩
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    // 关闭时等待排队压缩完成的最长时间
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    // 默认缓存容量上限（估算字节数）
+    public static final long DEFAULT_CACHE_MAX_WEIGHT_BYTES = 64L * 1024 * 1024;
+
+    // 每条消息的固定开销估算（对象头、元数据等）
+    private static final int MESSAGE_OVERHEAD_BYTES = 64;
 
-    // 内存缓存，提高读取性能
-    private final ConcurrentHashMap<String, List<Message>> cache = new ConcurrentHashMap<>();
+    // 内存缓存，按需加载，容量受估算字节数限制
+    private final Cache<String, List<Message>> cache;
 
-    // 读写锁，保证线程安全
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // 锁分段数
+    private static final int LOCK_STRIPES = 64;
+
+    // 按对话ID分段的读写锁，不同对话的读写互不阻塞
+    private final StripedReadWriteLock locks = new StripedReadWriteLock(LOCK_STRIPES);
 
     // 是否启用缓存
     private final boolean enableCache;
 
-    // 静态初始化 Kryo
-    static {
-        kryo.setRegistrationRequired(false); // 开启动态注册
-        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy()); // 设置实例化策略
-    }
+    // 存储模式
+    private final StorageMode storageMode;
+
+    // 每个对话当前日志中的记录数，用于判断是否需要压缩
+    private final ConcurrentHashMap<String, Integer> logRecordCounts = new ConcurrentHashMap<>();
+
+    // 日志尾部损坏的对话，下次写入时直接重写快照
+    private final Set<String> corruptedLogs = ConcurrentHashMap.newKeySet();
+
+    // 正在排队压缩的对话，避免重复提交
+    private final Set<String> pendingCompactions = ConcurrentHashMap.newKeySet();
+
+    // 后台压缩线程
+    private final ExecutorService compactionExecutor;
 
     /**
      * 构造函数，默认启用缓存
@@ -61,8 +126,36 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
      * 构造函数，可控制是否启用缓存
      */
     public FileBasedChatMemoryRepository(String storagePath, boolean enableCache) {
+        this(storagePath, enableCache, StorageMode.SNAPSHOT);
+    }
+
+    /**
+     * 构造函数，可控制是否启用缓存以及存储模式
+     */
+    public FileBasedChatMemoryRepository(String storagePath, boolean enableCache, StorageMode storageMode) {
+        this(storagePath, enableCache, storageMode, DEFAULT_CACHE_MAX_WEIGHT_BYTES);
+    }
+
+    /**
+     * 构造函数，可控制缓存、存储模式以及缓存容量上限（估算字节数）
+     */
+    public FileBasedChatMemoryRepository(String storagePath, boolean enableCache, StorageMode storageMode,
+                                         long cacheMaxWeightBytes) {
         this.storagePath = storagePath;
         this.enableCache = enableCache;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(cacheMaxWeightBytes)
+                .weigher((String conversationId, List<Message> messages) -> estimateWeight(messages))
+                .recordStats()
+                .build();
+        this.storageMode = storageMode != null ? storageMode : StorageMode.SNAPSHOT;
+        this.compactionExecutor = this.storageMode == StorageMode.APPEND_LOG
+                ? Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "chat-memory-compaction");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
 
         // 确保存储目录存在
         File storageDir = new File(storagePath);
@@ -74,29 +167,15 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
             }
         }
 
-        // 如果启用缓存，预加载所有对话到内存
-        if (enableCache) {
-            preloadCache();
-        }
-
-        log.info("FileBasedChatMemoryRepository initialized with storage path: {}, cache enabled: {}",
-                storagePath, enableCache);
+        log.info("FileBasedChatMemoryRepository initialized with storage path: {}, cache enabled: {}, storage mode: {}",
+                storagePath, enableCache, this.storageMode);
     }
 
     @Override
     public List<String> findConversationIds() {
-        lock.readLock().lock();
-        try {
-            if (enableCache) {
-                // 从缓存获取
-                return new ArrayList<>(cache.keySet());
-            } else {
-                // 直接从文件系统扫描
-                return scanConversationIdsFromFileSystem();
-            }
-        } finally {
-            lock.readLock().unlock();
-        }
+        // 缓存只保存部分对话，始终以文件系统为准
+        // 跨对话的只读操作不加锁，返回弱一致的快照，避免被任意一个对话的写入阻塞
+        return scanConversationIdsFromFileSystem();
     }
 
     @Override
@@ -105,12 +184,19 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
             return new ArrayList<>();
         }
 
+        ReadWriteLock lock = locks.get(conversationId);
         lock.readLock().lock();
         try {
             if (enableCache) {
-                // 从缓存获取
-                List<Message> messages = cache.get(conversationId);
-                return messages != null ? new ArrayList<>(messages) : new ArrayList<>();
+                // 优先从缓存获取，未命中时从文件加载并放入缓存
+                List<Message> messages = cache.getIfPresent(conversationId);
+                if (messages == null) {
+                    messages = loadMessagesFromFile(conversationId);
+                    if (!messages.isEmpty()) {
+                        cache.put(conversationId, messages);
+                    }
+                }
+                return new ArrayList<>(messages);
             } else {
                 // 直接从文件读取
                 return loadMessagesFromFile(conversationId);
@@ -126,15 +212,20 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
             throw new IllegalArgumentException("Conversation ID cannot be null or empty");
         }
 
+        ReadWriteLock lock = locks.get(conversationId);
         lock.writeLock().lock();
         try {
             // 保存到文件
-            saveMessagesToFile(conversationId, messages);
+            if (storageMode == StorageMode.APPEND_LOG) {
+                appendMessagesToLog(conversationId, messages);
+            } else {
+                saveMessagesToFile(conversationId, messages);
+            }
 
             // 更新缓存
             if (enableCache) {
                 if (messages == null || messages.isEmpty()) {
-                    cache.remove(conversationId);
+                    cache.invalidate(conversationId);
                 } else {
                     cache.put(conversationId, new ArrayList<>(messages));
                 }
@@ -153,6 +244,7 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
             return;
         }
 
+        ReadWriteLock lock = locks.get(conversationId);
         lock.writeLock().lock();
         try {
             // 删除文件
@@ -164,10 +256,11 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
                     log.warn("Failed to delete conversation file: {}", conversationId);
                 }
             }
+            deleteLogFile(conversationId);
 
             // 从缓存移除
             if (enableCache) {
-                cache.remove(conversationId);
+                cache.invalidate(conversationId);
             }
         } finally {
             lock.writeLock().unlock();
@@ -175,21 +268,15 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
     }
 
     /**
-     * 预加载所有对话到缓存
+     * 估算对话在缓存中占用的字节数
      */
-    private void preloadCache() {
-        try {
-            List<String> conversationIds = scanConversationIdsFromFileSystem();
-            for (String conversationId : conversationIds) {
-                List<Message> messages = loadMessagesFromFile(conversationId);
-                if (!messages.isEmpty()) {
-                    cache.put(conversationId, messages);
-                }
-            }
-            log.info("Preloaded {} conversations into cache", cache.size());
-        } catch (Exception e) {
-            log.error("Failed to preload cache", e);
+    private static int estimateWeight(List<Message> messages) {
+        long weight = 0;
+        for (Message message : messages) {
+            String text = message.getText();
+            weight += MESSAGE_OVERHEAD_BYTES + (text != null ? text.length() * 2L : 0);
         }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, weight));
     }
 
     /**
@@ -197,14 +284,18 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
      */
     private List<String> scanConversationIdsFromFileSystem() {
         try (Stream<Path> paths = Files.walk(Paths.get(storagePath))) {
-            return paths
-                    .filter(Files::isRegularFile)
-                    .filter(path -> path.toString().endsWith(FILE_EXTENSION))
-                    .map(path -> {
-                        String fileName = path.getFileName().toString();
-                        return fileName.substring(0, fileName.length() - FILE_EXTENSION.length());
-                    })
-                    .toList();
+            Set<String> ids = new LinkedHashSet<>();
+            paths.filter(Files::isRegularFile)
+                    .map(path -> path.getFileName().toString())
+                    .forEach(fileName -> {
+                        // 追加日志模式下，新对话可能只有日志文件而没有快照
+                        if (fileName.endsWith(FILE_EXTENSION)) {
+                            ids.add(fileName.substring(0, fileName.length() - FILE_EXTENSION.length()));
+                        } else if (fileName.endsWith(LOG_EXTENSION)) {
+                            ids.add(fileName.substring(0, fileName.length() - LOG_EXTENSION.length()));
+                        }
+                    });
+            return new ArrayList<>(ids);
         } catch (IOException e) {
             log.error("Failed to scan conversation IDs from file system", e);
             return new ArrayList<>();
@@ -215,21 +306,94 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
      * 从文件加载消息
      */
     private List<Message> loadMessagesFromFile(String conversationId) {
+        List<Message> messages = loadSnapshot(conversationId);
+        if (storageMode == StorageMode.APPEND_LOG) {
+            replayLog(conversationId, messages);
+        }
+        return messages;
+    }
+
+    /**
+     * 读取快照文件
+     */
+    private List<Message> loadSnapshot(String conversationId) {
         File file = new File(storagePath, conversationId + FILE_EXTENSION);
         if (!file.exists()) {
             return new ArrayList<>();
         }
 
-        try (Input input = new Input(new FileInputStream(file))) {
-            @SuppressWarnings("unchecked")
-            List<Message> messages = kryo.readObject(input, ArrayList.class);
-            return messages != null ? messages : new ArrayList<>();
+        try {
+            // 自动识别带版本头的新格式和旧格式
+            return ChatMessageKryoCodec.deserializeMessages(Files.readAllBytes(file.toPath()));
         } catch (Exception e) {
             log.error("Failed to load messages from file for conversation: {}", conversationId, e);
             return new ArrayList<>();
         }
     }
 
+    /**
+     * 在快照基础上重放追加日志
+     * 遇到不完整或校验失败的尾部记录（例如写入过程中进程崩溃）时停止重放，
+     * 并标记该对话，下次写入时重写快照以丢弃损坏的尾部
+     */
+    private void replayLog(String conversationId, List<Message> messages) {
+        File logFile = new File(storagePath, conversationId + LOG_EXTENSION);
+        if (!logFile.exists()) {
+            logRecordCounts.remove(conversationId);
+            return;
+        }
+
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            long remaining = logFile.length();
+            while (remaining > 0) {
+                if (remaining < RECORD_HEADER_SIZE) {
+                    markCorrupted(conversationId, "truncated record header");
+                    break;
+                }
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || remaining < RECORD_HEADER_SIZE + (long) length + Integer.BYTES) {
+                    markCorrupted(conversationId, "truncated record payload");
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int checksum = in.readInt();
+                if (checksum != checksum(type, payload)) {
+                    markCorrupted(conversationId, "checksum mismatch");
+                    break;
+                }
+                applyRecord(type, payload, messages);
+                remaining -= RECORD_HEADER_SIZE + length + Integer.BYTES;
+                records++;
+            }
+        } catch (Exception e) {
+            markCorrupted(conversationId, e.getMessage());
+        }
+        logRecordCounts.put(conversationId, records);
+    }
+
+    /**
+     * 将一条日志记录应用到消息列表
+     */
+    private void applyRecord(byte type, byte[] payload, List<Message> messages) {
+        switch (type) {
+            case RECORD_APPEND -> messages.add(ChatMessageKryoCodec.deserializeMessage(payload));
+            case RECORD_APPEND_LEGACY -> messages.add(ChatMessageKryoCodec.deserializeLegacyMessage(payload));
+            case RECORD_DROP_HEAD -> {
+                int count = Math.min(readInt(payload), messages.size());
+                messages.subList(0, count).clear();
+            }
+            default -> throw new IllegalStateException("Unknown log record type: " + type);
+        }
+    }
+
+    private void markCorrupted(String conversationId, String reason) {
+        corruptedLogs.add(conversationId);
+        log.warn("Ignoring corrupted tail of chat log for conversation: {}, reason: {}", conversationId, reason);
+    }
+
     /**
      * 保存消息到文件
      */
@@ -244,29 +408,231 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
             return;
         }
 
-        try (Output output = new Output(new FileOutputStream(file))) {
-            kryo.writeObject(output, messages);
+        try {
+            Files.write(file.toPath(), ChatMessageKryoCodec.serializeMessages(messages));
         } catch (Exception e) {
             log.error("Failed to save messages to file for conversation: {}", conversationId, e);
             throw new RuntimeException("Failed to save conversation: " + conversationId, e);
         }
     }
 
+    /**
+     * 追加日志模式下保存消息
+     * 将新列表与当前列表对齐，只写入被丢弃的头部数量和新增的尾部消息；
+     * 无法对齐（例如历史被改写）时退化为重写快照
+     */
+    private void appendMessagesToLog(String conversationId, List<Message> messages) {
+        if (messages == null || messages.isEmpty()) {
+            saveMessagesToFile(conversationId, messages);
+            deleteLogFile(conversationId);
+            return;
+        }
+
+        List<Message> current = enableCache ? cache.getIfPresent(conversationId) : null;
+        if (current == null) {
+            current = loadMessagesFromFile(conversationId);
+        }
+
+        int dropped = corruptedLogs.contains(conversationId) ? -1 : findDroppedHead(current, messages);
+        if (dropped < 0) {
+            rewriteSnapshot(conversationId, messages);
+            return;
+        }
+
+        int retained = current.size() - dropped;
+        if (dropped == 0 && retained == messages.size()) {
+            return;
+        }
+
+        // 先在内存中编码完整批记录，序列化失败时日志文件保持不变
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        int written = 0;
+        try (DataOutputStream out = new DataOutputStream(batch)) {
+            if (dropped > 0) {
+                writeRecord(out, RECORD_DROP_HEAD, intToBytes(dropped));
+                written++;
+            }
+            for (int i = retained; i < messages.size(); i++) {
+                writeRecord(out, RECORD_APPEND, ChatMessageKryoCodec.serializeMessage(messages.get(i)));
+                written++;
+            }
+        } catch (Exception e) {
+            log.error("Failed to encode log records for conversation: {}", conversationId, e);
+            throw new RuntimeException("Failed to save conversation: " + conversationId, e);
+        }
+
+        File logFile = new File(storagePath, conversationId + LOG_EXTENSION);
+        long originalLength = logFile.length();
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            out.write(batch.toByteArray());
+        } catch (IOException e) {
+            log.error("Failed to append messages to log for conversation: {}", conversationId, e);
+            truncateLog(conversationId, logFile, originalLength);
+            throw new RuntimeException("Failed to save conversation: " + conversationId, e);
+        }
+
+        int records = logRecordCounts.merge(conversationId, written, Integer::sum);
+        if (records >= COMPACTION_THRESHOLD) {
+            scheduleCompaction(conversationId);
+        }
+    }
+
+    /**
+     * 写入失败后把日志截断回写入前的长度，去掉写了一半的记录；
+     * 截断也失败时标记日志损坏，下次写入重写快照，避免新记录接在损坏的尾部之后而在重放时丢失
+     */
+    private void truncateLog(String conversationId, File logFile, long length) {
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.setLength(length);
+        } catch (IOException e) {
+            markCorrupted(conversationId, "failed to truncate after write error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 计算当前列表需要丢弃多少条头部消息，才能使剩余部分成为新列表的前缀
+     *
+     * @return 丢弃的头部消息数；无法对齐时返回 -1
+     */
+    private static int findDroppedHead(List<Message> current, List<Message> incoming) {
+        if (current.isEmpty()) {
+            return 0;
+        }
+        // 全部丢弃等同于重写，交给快照处理
+        for (int dropped = 0; dropped < current.size(); dropped++) {
+            int retained = current.size() - dropped;
+            if (retained > incoming.size()) {
+                continue;
+            }
+            boolean aligned = true;
+            for (int i = 0; i < retained; i++) {
+                if (!Objects.equals(current.get(dropped + i), incoming.get(i))) {
+                    aligned = false;
+                    break;
+                }
+            }
+            if (aligned) {
+                return dropped;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 重写快照并清空日志
+     * 先写临时文件再原子替换，避免崩溃时留下半个快照
+     */
+    private void rewriteSnapshot(String conversationId, List<Message> messages) {
+        Path snapshot = Paths.get(storagePath, conversationId + FILE_EXTENSION);
+        Path temp = Paths.get(storagePath, conversationId + FILE_EXTENSION + ".tmp");
+        try {
+            Files.write(temp, ChatMessageKryoCodec.serializeMessages(messages));
+        } catch (Exception e) {
+            log.error("Failed to write snapshot for conversation: {}", conversationId, e);
+            throw new RuntimeException("Failed to save conversation: " + conversationId, e);
+        }
+        try {
+            Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to replace snapshot for conversation: {}", conversationId, e);
+            throw new RuntimeException("Failed to save conversation: " + conversationId, e);
+        }
+        deleteLogFile(conversationId);
+        corruptedLogs.remove(conversationId);
+    }
+
+    /**
+     * 提交后台压缩任务
+     */
+    private void scheduleCompaction(String conversationId) {
+        // 关闭后不再提交，日志留待下次启动后压缩
+        if (compactionExecutor == null || compactionExecutor.isShutdown() || !pendingCompactions.add(conversationId)) {
+            return;
+        }
+        try {
+            compactionExecutor.execute(() -> {
+                pendingCompactions.remove(conversationId);
+                compact(conversationId);
+            });
+        } catch (RejectedExecutionException e) {
+            pendingCompactions.remove(conversationId);
+        }
+    }
+
+    /**
+     * 将快照和日志合并为新的快照
+     */
+    private void compact(String conversationId) {
+        ReadWriteLock lock = locks.get(conversationId);
+        lock.writeLock().lock();
+        try {
+            File logFile = new File(storagePath, conversationId + LOG_EXTENSION);
+            if (!logFile.exists()) {
+                return;
+            }
+            List<Message> messages = loadMessagesFromFile(conversationId);
+            if (messages.isEmpty()) {
+                saveMessagesToFile(conversationId, messages);
+                deleteLogFile(conversationId);
+            } else {
+                rewriteSnapshot(conversationId, messages);
+            }
+            log.debug("Compacted chat log for conversation: {}, messages: {}", conversationId, messages.size());
+        } catch (Exception e) {
+            log.warn("Failed to compact chat log for conversation: {}", conversationId, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void deleteLogFile(String conversationId) {
+        logRecordCounts.remove(conversationId);
+        File logFile = new File(storagePath, conversationId + LOG_EXTENSION);
+        if (logFile.exists() && !logFile.delete()) {
+            log.warn("Failed to delete conversation log file: {}", conversationId);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt(checksum(type, payload));
+    }
+
+    private static int checksum(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] intToBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static int readInt(byte[] bytes) {
+        return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+    }
+
     // ========== 扩展功能方法 ==========
 
     /**
      * 清空所有对话数据
      */
     public void clearAll() {
-        lock.writeLock().lock();
+        locks.lockAll();
         try {
             // 清空缓存
-            cache.clear();
+            cache.invalidateAll();
+            logRecordCounts.clear();
+            corruptedLogs.clear();
 
             // 删除所有文件
             try (Stream<Path> paths = Files.walk(Paths.get(storagePath))) {
                 paths.filter(Files::isRegularFile)
-                      .filter(path -> path.toString().endsWith(FILE_EXTENSION))
+                      .filter(path -> path.toString().endsWith(FILE_EXTENSION)
+                              || path.toString().endsWith(LOG_EXTENSION))
                       .forEach(path -> {
                           try {
                               Files.delete(path);
@@ -280,7 +646,7 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
 
             log.info("Cleared all conversation data");
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockAll();
         }
     }
 
@@ -292,35 +658,32 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
             return "Cache disabled";
         }
 
-        lock.readLock().lock();
-        try {
-            int totalConversations = cache.size();
-            int totalMessages = cache.values().stream()
-                    .mapToInt(List::size)
-                    .sum();
+        // 缓存支持并发访问，统计信息无需加锁
+        CacheStats stats = cache.stats();
+        long weightedSize = cache.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0L))
+                .orElse(0L);
 
-            return String.format("Cache: %d conversations, %d messages",
-                    totalConversations, totalMessages);
-        } finally {
-            lock.readLock().unlock();
-        }
+        return String.format("Cache: %d conversations, %d bytes (estimated), hits: %d, misses: %d, hit rate: %.2f%%, evictions: %d",
+                cache.estimatedSize(), weightedSize, stats.hitCount(), stats.missCount(),
+                stats.hitRate() * 100, stats.evictionCount());
     }
 
     /**
      * 强制刷新缓存
+     * 清空后按需重新加载
      */
     public void refreshCache() {
         if (!enableCache) {
             return;
         }
 
-        lock.writeLock().lock();
+        locks.lockAll();
         try {
-            cache.clear();
-            preloadCache();
+            cache.invalidateAll();
             log.info("Cache refreshed");
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockAll();
         }
     }
 
@@ -337,4 +700,40 @@ public class FileBasedChatMemoryRepository implements ChatMemoryRepository {
     public boolean isCacheEnabled() {
         return enableCache;
     }
+
+    /**
+     * 获取存储模式
+     */
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * 立即压缩指定对话的追加日志
+     */
+    public void compactNow(String conversationId) {
+        if (storageMode == StorageMode.APPEND_LOG) {
+            compact(conversationId);
+        }
+    }
+
+    /**
+     * 关闭后台压缩线程，等待已排队的压缩完成
+     * 压缩线程是守护线程，不等待的话进程退出时排队的压缩会丢失
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (compactionExecutor == null) {
+            return;
+        }
+        compactionExecutor.shutdown();
+        try {
+            if (!compactionExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Chat log compaction did not finish within {}s, pending: {}",
+                        SHUTDOWN_TIMEOUT_SECONDS, pendingCompactions.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
@@ -0,0 +1,155 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
+import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 基于数据库轮询的缓存失效通知
+ * <p>
+ * 不依赖消息中间件，定时从共享的 MySQL 中发现其他节点的变更：
+ * <ul>
+ *     <li>新消息：按 chat_message 自增主键水位增量扫描，跳过本节点 publish 过的主键</li>
+ *     <li>删除对话：扫描上次轮询以来被逻辑删除的 chat_conversation</li>
+ * </ul>
+ * 只删除头部而不插入新消息的写入不会被发现，事务提交顺序与主键顺序不一致时也可能漏掉个别变更，
+ * 这两种情况由缓存的 expire-after-write 兜底。
+ * <p>
+ * 开启分库时每个分片各自的主键互不相关，水位和本节点写入的主键按分片分别记录。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "chat.memory.mysql.cache", name = "invalidation", havingValue = "jdbc")
+public class JdbcPollingChatMemoryCacheInvalidationBus implements ChatMemoryCacheInvalidationBus {
+
+    // 每次查询的最大行数
+    private static final int POLL_LIMIT = 1000;
+
+    private final ChatMessageMapper messageMapper;
+    private final ChatConversationMapper conversationMapper;
+    private final long pollIntervalMillis;
+    private final ShardRouter shardRouter;
+
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    // 分片号 -> 本节点写入的消息主键，轮询到时跳过
+    private final List<Set<Long>> localMessageIds;
+
+    private ScheduledExecutorService poller;
+
+    // 分片号 -> 已扫描到的消息主键
+    private final long[] messageWatermarks;
+    private LocalDateTime lastPollTime;
+
+    public JdbcPollingChatMemoryCacheInvalidationBus(ChatMessageMapper messageMapper,
+                                                     ChatConversationMapper conversationMapper,
+                                                     MysqlChatMemoryProperties properties,
+                                                     ShardRouter shardRouter) {
+        this.messageMapper = messageMapper;
+        this.conversationMapper = conversationMapper;
+        this.pollIntervalMillis = properties.getCache().getPollIntervalMillis();
+        this.shardRouter = shardRouter;
+        this.localMessageIds = new ArrayList<>(shardRouter.shardCount());
+        for (int shard = 0; shard < shardRouter.shardCount(); shard++) {
+            localMessageIds.add(ConcurrentHashMap.newKeySet());
+        }
+        this.messageWatermarks = new long[shardRouter.shardCount()];
+    }
+
+    @PostConstruct
+    public void start() {
+        shardRouter.forEachShard(shard -> messageWatermarks[shard] = messageMapper.getMaxId());
+        lastPollTime = conversationMapper.currentTime();
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-memory-cache-invalidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::pollQuietly, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        log.info("缓存失效轮询已启动: interval={}ms, messageWatermarks={}", pollIntervalMillis, Arrays.toString(messageWatermarks));
+    }
+
+    @Override
+    public void publish(String conversationId, List<Long> insertedMessageIds) {
+        localMessageIds.get(shardRouter.shardOf(conversationId)).addAll(insertedMessageIds);
+    }
+
+    @Override
+    public void subscribe(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 执行一次轮询，返回需要失效的对话ID
+     */
+    Set<String> poll() {
+        LocalDateTime pollTime = conversationMapper.currentTime();
+        Set<String> changed = new LinkedHashSet<>();
+        shardRouter.forEachShard(shard -> pollShard(shard, changed));
+        lastPollTime = pollTime;
+
+        for (String conversationId : changed) {
+            listeners.forEach(listener -> listener.accept(conversationId));
+        }
+        return changed;
+    }
+
+    /**
+     * 轮询当前分片，变更的对话ID加入 changed
+     */
+    private void pollShard(int shard, Set<String> changed) {
+        Set<Long> localIds = localMessageIds.get(shard);
+        List<ChatMessage> rows;
+        do {
+            rows = messageMapper.findIdsAfter(messageWatermarks[shard], POLL_LIMIT);
+            for (ChatMessage row : rows) {
+                messageWatermarks[shard] = Math.max(messageWatermarks[shard], row.getId());
+                if (!localIds.remove(row.getId())) {
+                    changed.add(row.getConversationId());
+                }
+            }
+        } while (rows.size() == POLL_LIMIT);
+        // 轮询已越过的主键不会再出现
+        localIds.removeIf(id -> id <= messageWatermarks[shard]);
+
+        // update_time 只精确到秒，多回看一秒
+        changed.addAll(conversationMapper.findDeletedSince(lastPollTime.minusSeconds(1)));
+    }
+
+    private void pollQuietly() {
+        try {
+            Set<String> changed = poll();
+            if (!changed.isEmpty()) {
+                log.debug("其他节点变更的对话: {}", changed);
+            }
+        } catch (Exception e) {
+            log.warn("缓存失效轮询失败", e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 单节点缓存失效通知
+ * 所有写入都经过本节点的 Repository，本地缓存已同步更新，无需通知其他节点
+ */
+@Component
+@ConditionalOnProperty(prefix = "chat.memory.mysql.cache", name = "invalidation", havingValue = "local", matchIfMissing = true)
+public class LocalChatMemoryCacheInvalidationBus implements ChatMemoryCacheInvalidationBus {
+
+    @Override
+    public void publish(String conversationId, List<Long> insertedMessageIds) {
+        // 单节点无需通知
+    }
+
+    @Override
+    public void subscribe(Consumer<String> listener) {
+        // 单节点不会收到其他节点的变更
+    }
+}
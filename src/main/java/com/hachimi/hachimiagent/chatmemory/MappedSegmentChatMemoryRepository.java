@@ -0,0 +1,812 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemoryRepository;
+import org.springframework.ai.chat.messages.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射段文件的聊天记忆存储库实现
+ * <p>
+ * 所有对话保存在少量大的段文件（segment-xxxxx.seg）中，避免单目录下海量小文件带来的扫描和 inode 压力。
+ * <ul>
+ *     <li>记录：每个对话一条记录，负载使用 {@link ChatMessageKryoCodec} 编码，带 CRC 校验</li>
+ *     <li>索引：index.idx 为开放寻址的磁盘哈希表，保存对话ID哈希到 段号/偏移 的映射</li>
+ *     <li>空间复用：释放的区间按偏移合并、按大小最佳适配分配</li>
+ *     <li>崩溃安全：新版本总是写入新区间并刷盘后才更新索引槽位，槽位带校验；
+ *     索引损坏或缺失时扫描段文件按序列号重建</li>
+ * </ul>
+ * 与 {@link FileBasedChatMemoryRepository} 实现相同的 {@link ChatMemoryRepository} 约定，另有同名的 clearAll 和 getStoragePath；
+ * 构造参数不同（段大小取代缓存开关和存储模式），也没有 getCacheStats、refreshCache、isCacheEnabled 等缓存相关方法，
+ * 替换时调用这些方法的代码需要调整。
+ */
+@Slf4j
+public class MappedSegmentChatMemoryRepository implements ChatMemoryRepository, AutoCloseable {
+
+    // 默认段文件大小
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_FILE = "index.idx";
+    private static final String INDEX_TEMP_FILE = "index.idx.tmp";
+
+    // 区间对齐粒度
+    private static final int ALIGNMENT = 64;
+
+    // 记录魔数 "CHAT"
+    private static final int RECORD_MAGIC = 0x43484154;
+
+    // 记录头：魔数(4) + 区间容量(4) + ID长度(4) + 负载长度(4) + 序列号(8) + CRC(4)
+    private static final int RECORD_HEADER_SIZE = 28;
+
+    // 索引魔数 "CHIX"
+    private static final int INDEX_MAGIC = 0x43484958;
+    private static final int INDEX_VERSION = 1;
+
+    // 索引头：魔数(4) + 版本(4) + 槽位数(4) + 保留(4) + 序列号(8)，补齐到 64 字节
+    private static final int INDEX_HEADER_SIZE = 64;
+
+    // 槽位：哈希(8) + 序列号(8) + 段号(4) + 偏移(4) + 容量(4) + 状态(4) + CRC(4) + 保留(4)
+    private static final int SLOT_SIZE = 40;
+    private static final int SLOT_CHECKSUM_OFFSET = 32;
+
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+
+    private static final int SLOT_EMPTY = 0;
+    private static final int SLOT_LIVE = 1;
+    private static final int SLOT_TOMBSTONE = 2;
+
+    private static final int LOCK_STRIPES = 64;
+
+    // 存储位置
+    private final String storagePath;
+
+    // 新建段文件的大小
+    private final int segmentSize;
+
+    // 已映射的段文件，读路径无锁访问（映射建立后不依赖文件通道，打开后即关闭通道）
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+
+    // 对话ID -> 索引项，由磁盘索引在启动时加载；索引重建或扩容时整体替换，读路径只持有分段锁，不能原地清空
+    private volatile Map<String, IndexEntry> entries = new ConcurrentHashMap<>();
+
+    // 空闲区间：按大小排序用于最佳适配，按段内偏移排序用于合并
+    private final TreeSet<Extent> freeBySize = new TreeSet<>();
+    private final List<TreeMap<Integer, Integer>> freeByOffset = new ArrayList<>();
+
+    // 保护分配器和磁盘索引的结构锁，临界区只包含内存操作和单个槽位写入
+    private final ReentrantLock structureLock = new ReentrantLock();
+
+    // 按对话ID分段的读写锁
+    private final StripedReadWriteLock locks = new StripedReadWriteLock(LOCK_STRIPES);
+
+    private MappedByteBuffer indexBuffer;
+    private int indexCapacity;
+    private int usedSlots;
+    private long sequence;
+
+    /**
+     * 索引项
+     */
+    private record IndexEntry(int slot, int segment, int offset, int capacity, long sequence) {
+    }
+
+    /**
+     * 段内区间
+     */
+    private record Extent(int segment, int offset, int length) implements Comparable<Extent> {
+
+        private static final Comparator<Extent> ORDER = Comparator.comparingInt(Extent::length)
+                .thenComparingInt(Extent::segment)
+                .thenComparingInt(Extent::offset);
+
+        @Override
+        public int compareTo(Extent other) {
+            return ORDER.compare(this, other);
+        }
+    }
+
+    /**
+     * 构造函数，使用默认段大小
+     */
+    public MappedSegmentChatMemoryRepository(String storagePath) {
+        this(storagePath, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * 构造函数，可指定段文件大小
+     */
+    public MappedSegmentChatMemoryRepository(String storagePath, int segmentSize) {
+        if (segmentSize < ALIGNMENT * 16) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.storagePath = storagePath;
+        this.segmentSize = segmentSize - segmentSize % ALIGNMENT;
+
+        File storageDir = new File(storagePath);
+        if (!storageDir.exists() && !storageDir.mkdirs()) {
+            throw new RuntimeException("Failed to create storage directory: " + storagePath);
+        }
+
+        try {
+            openSegments();
+            if (!loadIndex()) {
+                rebuildIndexFromSegments();
+            }
+            rebuildFreeSpace();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open mapped chat memory storage: " + storagePath, e);
+        }
+
+        log.info("MappedSegmentChatMemoryRepository initialized with storage path: {}, segments: {}, conversations: {}",
+                storagePath, segments.size(), entries.size());
+    }
+
+    @Override
+    public List<String> findConversationIds() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    @Override
+    public List<Message> findByConversationId(String conversationId) {
+        if (conversationId == null || conversationId.trim().isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        ReadWriteLock lock = locks.get(conversationId);
+        lock.readLock().lock();
+        try {
+            IndexEntry entry = entries.get(conversationId);
+            if (entry == null) {
+                return new ArrayList<>();
+            }
+            byte[] payload = readPayload(entry, conversationId);
+            return payload != null ? ChatMessageKryoCodec.deserializeMessages(payload) : new ArrayList<>();
+        } catch (Exception e) {
+            log.error("Failed to load messages for conversation: {}", conversationId, e);
+            return new ArrayList<>();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void saveAll(String conversationId, List<Message> messages) {
+        if (conversationId == null || conversationId.trim().isEmpty()) {
+            throw new IllegalArgumentException("Conversation ID cannot be null or empty");
+        }
+        if (messages == null || messages.isEmpty()) {
+            deleteByConversationId(conversationId);
+            return;
+        }
+
+        byte[] idBytes = conversationId.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = ChatMessageKryoCodec.serializeMessages(messages);
+        int recordLength = RECORD_HEADER_SIZE + idBytes.length + payload.length;
+        int capacity = align(recordLength);
+
+        ReadWriteLock lock = locks.get(conversationId);
+        lock.writeLock().lock();
+        try {
+            Extent extent;
+            long recordSequence;
+            structureLock.lock();
+            try {
+                extent = allocate(capacity);
+                recordSequence = ++sequence;
+            } finally {
+                structureLock.unlock();
+            }
+
+            // 1. 新版本写入新区间并刷盘，旧版本在索引切换前保持完整
+            try {
+                writeRecord(extent, idBytes, payload, recordSequence);
+            } catch (RuntimeException e) {
+                structureLock.lock();
+                try {
+                    release(extent.segment(), extent.offset(), extent.length());
+                } finally {
+                    structureLock.unlock();
+                }
+                throw e;
+            }
+
+            // 2. 更新索引槽位，再释放旧区间
+            structureLock.lock();
+            try {
+                IndexEntry previous = entries.get(conversationId);
+                int slot = previous != null ? previous.slot() : claimSlot(hash(idBytes));
+                IndexEntry entry = new IndexEntry(slot, extent.segment(), extent.offset(), extent.length(), recordSequence);
+                writeSlot(slot, hash(idBytes), entry, SLOT_LIVE);
+                writeIndexSequence();
+                entries.put(conversationId, entry);
+
+                if (previous != null) {
+                    // 旧记录的失效必须落盘，否则崩溃后从段文件重建索引时可能复活旧版本
+                    invalidateRecord(previous);
+                    release(previous.segment(), previous.offset(), previous.capacity());
+                }
+            } finally {
+                structureLock.unlock();
+            }
+
+            log.debug("Saved {} messages for conversation: {}", messages.size(), conversationId);
+        } catch (IOException e) {
+            log.error("Failed to save messages for conversation: {}", conversationId, e);
+            throw new RuntimeException("Failed to save conversation: " + conversationId, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteByConversationId(String conversationId) {
+        if (conversationId == null || conversationId.trim().isEmpty()) {
+            return;
+        }
+
+        ReadWriteLock lock = locks.get(conversationId);
+        lock.writeLock().lock();
+        try {
+            structureLock.lock();
+            try {
+                deleteEntry(conversationId);
+            } finally {
+                structureLock.unlock();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ========== 记录读写 ==========
+
+    private void writeRecord(Extent extent, byte[] idBytes, byte[] payload, long recordSequence) {
+        MappedByteBuffer segment = segments.get(extent.segment());
+        int offset = extent.offset();
+
+        segment.putInt(offset, 0);
+        segment.putInt(offset + 4, extent.length());
+        segment.putInt(offset + 8, idBytes.length);
+        segment.putInt(offset + 12, payload.length);
+        segment.putLong(offset + 16, recordSequence);
+        segment.putInt(offset + 24, recordChecksum(idBytes, payload));
+        segment.put(offset + RECORD_HEADER_SIZE, idBytes);
+        segment.put(offset + RECORD_HEADER_SIZE + idBytes.length, payload);
+        // 魔数最后写入，扫描重建时不会把写了一半的记录当成有效记录
+        segment.putInt(offset, RECORD_MAGIC);
+        segment.force(offset, RECORD_HEADER_SIZE + idBytes.length + payload.length);
+    }
+
+    /**
+     * 读取记录负载，校验失败或记录属于其他对话时返回 null
+     */
+    private byte[] readPayload(IndexEntry entry, String conversationId) {
+        MappedByteBuffer segment = segments.get(entry.segment());
+        int offset = entry.offset();
+        if (segment.getInt(offset) != RECORD_MAGIC) {
+            log.warn("Invalid record magic for conversation: {}", conversationId);
+            return null;
+        }
+        int idLength = segment.getInt(offset + 8);
+        int payloadLength = segment.getInt(offset + 12);
+        int checksum = segment.getInt(offset + 24);
+        if (idLength <= 0 || payloadLength < 0
+                || (long) RECORD_HEADER_SIZE + idLength + payloadLength > entry.capacity()) {
+            log.warn("Invalid record header for conversation: {}", conversationId);
+            return null;
+        }
+
+        byte[] idBytes = new byte[idLength];
+        byte[] payload = new byte[payloadLength];
+        segment.get(offset + RECORD_HEADER_SIZE, idBytes);
+        segment.get(offset + RECORD_HEADER_SIZE + idLength, payload);
+
+        if (recordChecksum(idBytes, payload) != checksum) {
+            log.warn("Record checksum mismatch for conversation: {}", conversationId);
+            return null;
+        }
+        // 区间被释放后可能已写入其他对话的记录，校验和不能发现这种情况
+        if (!Arrays.equals(idBytes, conversationId.getBytes(StandardCharsets.UTF_8))) {
+            log.warn("Record belongs to another conversation: {}", conversationId);
+            return null;
+        }
+        return payload;
+    }
+
+    /**
+     * 读取并校验指定位置的记录ID，校验失败返回 null
+     */
+    private String readRecordId(int segmentIndex, int offset) {
+        MappedByteBuffer segment = segments.get(segmentIndex);
+        int segmentCapacity = segment.capacity();
+        if (offset < 0 || offset + RECORD_HEADER_SIZE > segmentCapacity || segment.getInt(offset) != RECORD_MAGIC) {
+            return null;
+        }
+        int capacity = segment.getInt(offset + 4);
+        int idLength = segment.getInt(offset + 8);
+        int payloadLength = segment.getInt(offset + 12);
+        if (idLength <= 0 || payloadLength < 0 || capacity < ALIGNMENT
+                || (long) RECORD_HEADER_SIZE + idLength + payloadLength > capacity
+                || (long) offset + capacity > segmentCapacity) {
+            return null;
+        }
+
+        byte[] idBytes = new byte[idLength];
+        byte[] payload = new byte[payloadLength];
+        segment.get(offset + RECORD_HEADER_SIZE, idBytes);
+        segment.get(offset + RECORD_HEADER_SIZE + idLength, payload);
+        if (recordChecksum(idBytes, payload) != segment.getInt(offset + 24)) {
+            return null;
+        }
+        return new String(idBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 抹掉记录魔数并刷盘，防止索引重建时复活已删除或已被替换的版本
+     */
+    private void invalidateRecord(IndexEntry entry) {
+        MappedByteBuffer segment = segments.get(entry.segment());
+        segment.putInt(entry.offset(), 0);
+        segment.force(entry.offset(), Integer.BYTES);
+    }
+
+    private void deleteEntry(String conversationId) {
+        IndexEntry entry = entries.remove(conversationId);
+        if (entry == null) {
+            return;
+        }
+        writeSlot(entry.slot(), 0L, entry, SLOT_TOMBSTONE);
+        invalidateRecord(entry);
+        release(entry.segment(), entry.offset(), entry.capacity());
+        log.debug("Deleted conversation record: {}", conversationId);
+    }
+
+    // ========== 空间分配 ==========
+
+    /**
+     * 最佳适配分配，没有合适的空闲区间时新建段文件
+     */
+    private Extent allocate(int capacity) throws IOException {
+        if (capacity > segmentSize) {
+            throw new IllegalArgumentException("Conversation too large for segment: " + capacity + " > " + segmentSize);
+        }
+        Extent fit = freeBySize.ceiling(new Extent(-1, -1, capacity));
+        if (fit == null) {
+            int segmentIndex = addSegment();
+            release(segmentIndex, 0, segments.get(segmentIndex).capacity());
+            fit = freeBySize.ceiling(new Extent(-1, -1, capacity));
+        }
+
+        freeBySize.remove(fit);
+        freeByOffset.get(fit.segment()).remove(fit.offset());
+        int remainder = fit.length() - capacity;
+        if (remainder > 0) {
+            addFree(fit.segment(), fit.offset() + capacity, remainder);
+        }
+        return new Extent(fit.segment(), fit.offset(), capacity);
+    }
+
+    /**
+     * 释放区间，并与前后相邻的空闲区间合并
+     */
+    private void release(int segmentIndex, int offset, int length) {
+        TreeMap<Integer, Integer> free = freeByOffset.get(segmentIndex);
+
+        Map.Entry<Integer, Integer> previous = free.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            removeFree(segmentIndex, previous.getKey(), previous.getValue());
+            offset = previous.getKey();
+            length += previous.getValue();
+        }
+        Integer nextLength = free.get(offset + length);
+        if (nextLength != null) {
+            removeFree(segmentIndex, offset + length, nextLength);
+            length += nextLength;
+        }
+        addFree(segmentIndex, offset, length);
+    }
+
+    private void addFree(int segmentIndex, int offset, int length) {
+        freeByOffset.get(segmentIndex).put(offset, length);
+        freeBySize.add(new Extent(segmentIndex, offset, length));
+    }
+
+    private void removeFree(int segmentIndex, int offset, int length) {
+        freeByOffset.get(segmentIndex).remove(offset);
+        freeBySize.remove(new Extent(segmentIndex, offset, length));
+    }
+
+    /**
+     * 根据存活记录推导空闲区间
+     */
+    private void rebuildFreeSpace() {
+        freeBySize.clear();
+        List<List<IndexEntry>> live = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            freeByOffset.get(i).clear();
+            live.add(new ArrayList<>());
+        }
+        entries.values().forEach(entry -> live.get(entry.segment()).add(entry));
+
+        for (int i = 0; i < segments.size(); i++) {
+            List<IndexEntry> segmentEntries = live.get(i);
+            segmentEntries.sort(Comparator.comparingInt(IndexEntry::offset));
+            int cursor = 0;
+            for (IndexEntry entry : segmentEntries) {
+                if (entry.offset() > cursor) {
+                    addFree(i, cursor, entry.offset() - cursor);
+                }
+                cursor = entry.offset() + entry.capacity();
+            }
+            int end = segments.get(i).capacity();
+            if (end > cursor) {
+                addFree(i, cursor, end - cursor);
+            }
+        }
+    }
+
+    // ========== 段文件 ==========
+
+    private void openSegments() throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.list(Paths.get(storagePath))) {
+            files = paths.filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted()
+                    .toList();
+        }
+        for (int i = 0; i < files.size(); i++) {
+            Path expected = segmentPath(i);
+            if (!files.get(i).equals(expected)) {
+                throw new IOException("Missing segment file: " + expected);
+            }
+            mapSegment(expected, (int) Files.size(expected));
+        }
+    }
+
+    private int addSegment() throws IOException {
+        int index = segments.size();
+        mapSegment(segmentPath(index), segmentSize);
+        log.info("Created chat memory segment: {}", segmentPath(index));
+        return index;
+    }
+
+    private void mapSegment(Path path, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            freeByOffset.add(new TreeMap<>());
+            segments.add(buffer);
+        }
+    }
+
+    private Path segmentPath(int index) {
+        return Paths.get(storagePath, String.format("%s%05d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    // ========== 磁盘哈希索引 ==========
+
+    /**
+     * 加载磁盘索引并校验每个槽位和它指向的记录
+     *
+     * @return 索引完整可用时返回 true，需要重建时返回 false
+     */
+    private boolean loadIndex() throws IOException {
+        Path indexPath = Paths.get(storagePath, INDEX_FILE);
+        if (!Files.exists(indexPath)) {
+            return segments.isEmpty() && createIndex(INITIAL_INDEX_CAPACITY, Map.of());
+        }
+
+        mapIndex(indexPath);
+        if (indexBuffer.capacity() < INDEX_HEADER_SIZE
+                || indexBuffer.getInt(0) != INDEX_MAGIC
+                || indexBuffer.getInt(4) != INDEX_VERSION) {
+            log.warn("Chat memory index header invalid, rebuilding from segments");
+            return false;
+        }
+        indexCapacity = indexBuffer.getInt(8);
+        if ((long) INDEX_HEADER_SIZE + (long) indexCapacity * SLOT_SIZE > indexBuffer.capacity()) {
+            log.warn("Chat memory index truncated, rebuilding from segments");
+            return false;
+        }
+        sequence = indexBuffer.getLong(16);
+
+        usedSlots = 0;
+        for (int slot = 0; slot < indexCapacity; slot++) {
+            int position = slotPosition(slot);
+            int state = indexBuffer.getInt(position + 28);
+            if (state == SLOT_EMPTY) {
+                continue;
+            }
+            usedSlots++;
+            if (slotChecksum(position) != indexBuffer.getInt(position + SLOT_CHECKSUM_OFFSET)) {
+                log.warn("Chat memory index slot {} corrupted, rebuilding from segments", slot);
+                entries.clear();
+                return false;
+            }
+            if (state != SLOT_LIVE) {
+                continue;
+            }
+            long slotSequence = indexBuffer.getLong(position + 8);
+            int segmentIndex = indexBuffer.getInt(position + 16);
+            int offset = indexBuffer.getInt(position + 20);
+            int capacity = indexBuffer.getInt(position + 24);
+            String conversationId = segmentIndex < segments.size() ? readRecordId(segmentIndex, offset) : null;
+            if (conversationId == null || hash(conversationId.getBytes(StandardCharsets.UTF_8)) != indexBuffer.getLong(position)) {
+                log.warn("Chat memory index slot {} points to an invalid record, rebuilding from segments", slot);
+                entries.clear();
+                return false;
+            }
+            entries.put(conversationId, new IndexEntry(slot, segmentIndex, offset, capacity, slotSequence));
+            sequence = Math.max(sequence, slotSequence);
+        }
+        return true;
+    }
+
+    /**
+     * 扫描所有段文件，按序列号保留每个对话的最新记录，重建索引
+     */
+    private void rebuildIndexFromSegments() throws IOException {
+        Map<String, IndexEntry> latest = new HashMap<>();
+        long maxSequence = 0;
+        for (int segmentIndex = 0; segmentIndex < segments.size(); segmentIndex++) {
+            MappedByteBuffer segment = segments.get(segmentIndex);
+            int offset = 0;
+            while (offset + RECORD_HEADER_SIZE <= segment.capacity()) {
+                String conversationId = readRecordId(segmentIndex, offset);
+                if (conversationId == null) {
+                    offset += ALIGNMENT;
+                    continue;
+                }
+                int capacity = segment.getInt(offset + 4);
+                long recordSequence = segment.getLong(offset + 16);
+                IndexEntry existing = latest.get(conversationId);
+                if (existing == null || existing.sequence() < recordSequence) {
+                    latest.put(conversationId, new IndexEntry(-1, segmentIndex, offset, capacity, recordSequence));
+                }
+                maxSequence = Math.max(maxSequence, recordSequence);
+                offset += capacity;
+            }
+        }
+
+        sequence = maxSequence;
+        int capacity = INITIAL_INDEX_CAPACITY;
+        while (latest.size() > capacity * MAX_LOAD_FACTOR / 2) {
+            capacity <<= 1;
+        }
+        createIndex(capacity, latest);
+        log.info("Rebuilt chat memory index from segments, conversations: {}", entries.size());
+    }
+
+    /**
+     * 写入新的索引文件（先写临时文件再原子替换），并重新映射
+     * 内存索引构建完成后一次性替换引用，并发的读取看到的要么是旧索引要么是新索引
+     */
+    private boolean createIndex(int capacity, Map<String, IndexEntry> source) throws IOException {
+        Path temp = Paths.get(storagePath, INDEX_TEMP_FILE);
+        Path indexPath = Paths.get(storagePath, INDEX_FILE);
+        long size = (long) INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE;
+
+        Files.deleteIfExists(temp);
+        try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")) {
+            file.setLength(size);
+            indexBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            indexCapacity = capacity;
+            usedSlots = 0;
+
+            indexBuffer.putInt(0, INDEX_MAGIC);
+            indexBuffer.putInt(4, INDEX_VERSION);
+            indexBuffer.putInt(8, capacity);
+            indexBuffer.putLong(16, sequence);
+
+            Map<String, IndexEntry> placed = new ConcurrentHashMap<>();
+            for (Map.Entry<String, IndexEntry> item : source.entrySet()) {
+                long keyHash = hash(item.getKey().getBytes(StandardCharsets.UTF_8));
+                int slot = claimSlot(keyHash);
+                IndexEntry old = item.getValue();
+                IndexEntry entry = new IndexEntry(slot, old.segment(), old.offset(), old.capacity(), old.sequence());
+                writeSlotNoForce(slot, keyHash, entry, SLOT_LIVE);
+                placed.put(item.getKey(), entry);
+            }
+            indexBuffer.force();
+            entries = placed;
+        }
+
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mapIndex(indexPath);
+        return true;
+    }
+
+    private void mapIndex(Path indexPath) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(indexPath.toFile(), "rw")) {
+            indexBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        }
+    }
+
+    /**
+     * 为新对话找到一个空槽位或墓碑槽位，负载过高时先扩容
+     */
+    private int claimSlot(long keyHash) {
+        if (usedSlots + 1 > indexCapacity * MAX_LOAD_FACTOR) {
+            growIndex();
+        }
+        int mask = indexCapacity - 1;
+        int slot = (int) (keyHash ^ (keyHash >>> 32)) & mask;
+        while (true) {
+            int state = indexBuffer.getInt(slotPosition(slot) + 28);
+            if (state == SLOT_EMPTY) {
+                usedSlots++;
+                return slot;
+            }
+            if (state == SLOT_TOMBSTONE) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * 索引扩容为两倍，同时清理墓碑槽位
+     */
+    private void growIndex() {
+        try {
+            createIndex(indexCapacity << 1, new HashMap<>(entries));
+            log.info("Grew chat memory index to {} slots", indexCapacity);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to grow chat memory index", e);
+        }
+    }
+
+    private void writeSlot(int slot, long keyHash, IndexEntry entry, int state) {
+        writeSlotNoForce(slot, keyHash, entry, state);
+        indexBuffer.force(slotPosition(slot), SLOT_SIZE);
+    }
+
+    private void writeSlotNoForce(int slot, long keyHash, IndexEntry entry, int state) {
+        int position = slotPosition(slot);
+        indexBuffer.putLong(position, keyHash);
+        indexBuffer.putLong(position + 8, entry.sequence());
+        indexBuffer.putInt(position + 16, entry.segment());
+        indexBuffer.putInt(position + 20, entry.offset());
+        indexBuffer.putInt(position + 24, entry.capacity());
+        indexBuffer.putInt(position + 28, state);
+        indexBuffer.putInt(position + SLOT_CHECKSUM_OFFSET, slotChecksum(position));
+    }
+
+    private void writeIndexSequence() {
+        indexBuffer.putLong(16, sequence);
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private int slotChecksum(int position) {
+        byte[] bytes = new byte[SLOT_CHECKSUM_OFFSET];
+        indexBuffer.get(position, bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    // ========== 工具方法 ==========
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static int recordChecksum(byte[] idBytes, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(idBytes);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 64 位 FNV-1a 哈希
+     */
+    private static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= (b & 0xFF);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // ========== 扩展功能方法 ==========
+
+    /**
+     * 清空所有对话数据
+     */
+    public void clearAll() {
+        locks.lockAll();
+        try {
+            structureLock.lock();
+            try {
+                for (String conversationId : new ArrayList<>(entries.keySet())) {
+                    deleteEntry(conversationId);
+                }
+                log.info("Cleared all conversation data");
+            } finally {
+                structureLock.unlock();
+            }
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    /**
+     * 获取存储统计信息
+     */
+    public String getStorageStats() {
+        structureLock.lock();
+        try {
+            long totalBytes = segments.stream().mapToLong(MappedByteBuffer::capacity).sum();
+            long freeBytes = freeBySize.stream().mapToLong(Extent::length).sum();
+            return String.format("Storage: %d conversations, %d segments, %d bytes used, %d bytes free, index %d/%d slots",
+                    entries.size(), segments.size(), totalBytes - freeBytes, freeBytes, usedSlots, indexCapacity);
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * 获取存储路径
+     */
+    public String getStoragePath() {
+        return storagePath;
+    }
+
+    /**
+     * 将所有映射区域刷盘
+     */
+    @Override
+    public void close() {
+        locks.lockAll();
+        try {
+            structureLock.lock();
+            try {
+                segments.forEach(MappedByteBuffer::force);
+                if (indexBuffer != null) {
+                    indexBuffer.force();
+                }
+            } finally {
+                structureLock.unlock();
+            }
+        } finally {
+            locks.unlockAll();
+        }
+    }
+}
@@ -2,21 +2,43 @@ package com.hachimi.hachimiagent.chatmemory;
 
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.hachimi.hachimiagent.common.MessageContentCodec;
 import com.hachimi.hachimiagent.common.MessageConverter;
+import com.hachimi.hachimiagent.dto.ConversationActivity;
 import com.hachimi.hachimiagent.entity.ChatConversation;
 import com.hachimi.hachimiagent.entity.ChatMessage;
 import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
 import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.replica.ReadWriteRouter;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.memory.ChatMemoryRepository;
 import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.PessimisticLockingFailureException;
 import org.springframework.stereotype.Repository;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -33,20 +55,187 @@ public class MysqlBasedChatMemoryRepository implements ChatMemoryRepository {
     private final ChatConversationMapper conversationMapper;
     private final ChatMessageMapper messageMapper;
 
-    // 缓存最后保存的消息摘要，避免重复保存
-    private final Map<String, String> lastSavedFingerprint = new ConcurrentHashMap<>();
+    // 对话ID -> 最近一次保存后的逐条内容哈希，按哈希条数限制总量
+    private final Cache<String, ConversationFingerprint> fingerprints;
+
+    // 消息对象 -> 内容哈希，按对象身份弱引用，窗口中沿用的消息不必重复计算
+    private final Cache<Message, Long> messageHashes;
+
+    // 去抖窗口内已确认存在且刷新过活跃时间的对话，未开启去抖时为 null
+    private final Cache<String, Boolean> touchedConversations;
+
+    // 去抖集合最多记录的对话数
+    private static final int TOUCHED_CONVERSATIONS_MAX_SIZE = 100_000;
+
+    // 去抖窗口内暂存的会话列表字段变化，由后台线程按窗口间隔批量写入
+    private final Map<String, ConversationActivity> pendingActivity = new ConcurrentHashMap<>();
+
+    // 批量写入暂存变化的后台线程，未开启去抖时为 null
+    private final ScheduledExecutorService activityFlusher;
+
+    // 批量写入暂存变化时每条 UPDATE 覆盖的对话数
+    private static final int ACTIVITY_FLUSH_CHUNK_SIZE = 200;
+
+    // 追加消息因锁等待超时或死锁回滚后的最多尝试次数
+    private static final int APPEND_LOCK_ATTEMPTS = 3;
+
+    // 会话标题和最后消息预览的最大字符数
+    private static final int TITLE_MAX_LENGTH = 15;
+    private static final int PREVIEW_MAX_LENGTH = 100;
+
+    // 请求ID的最大字符数，与 chat_message.request_id 一致
+    private static final int REQUEST_ID_MAX_LENGTH = 64;
+
+    // 多行 INSERT 每批的消息条数
+    private final int batchSize;
+
+    // 批量删除时每条 IN (...) 更新包含的对话数
+    private final int deleteChunkSize;
+
+    // 按版本号追加时冲突后合并重试的最大次数
+    private final int appendMaxRetries;
+
+    // 主库事务模板，同步写入和写后刷盘共用
+    private final TransactionTemplate transactionTemplate;
+
+    // 分库路由，按对话ID选择分片后再开启事务
+    private final ShardRouter shardRouter;
+
+    // 读写路由，记录刚写入的对话，回迁等写入步骤强制走主库
+    private final ReadWriteRouter readWriteRouter;
+
+    // 写后缓冲区，未开启写后模式时为 null
+    private final WriteBehindChatMemoryBuffer writeBehind;
+
+    // 每条消息在缓存中的估算固定开销（对象头、类型、元数据等）
+    private static final int MESSAGE_OVERHEAD_BYTES = 64;
+
+    // 对话ID -> 已转换的消息列表，未开启缓存时为 null
+    private final Cache<String, List<Message>> cache;
+
+    // 对话ID -> 滚动摘要
+    private final Cache<String, ConversationSummary> summaries;
+
+    // 摘要缓存最多记录的对话数
+    private static final int SUMMARY_CACHE_MAX_SIZE = 10_000;
+
+    // 多节点缓存失效通知
+    private final ChatMemoryCacheInvalidationBus invalidationBus;
+
+    // 本节点删除对话提交后的回调
+    private final List<Consumer<Collection<String>>> deletionListeners = new CopyOnWriteArrayList<>();
+
+    // chat_conversation.storage_tier：消息在 chat_message 中 / 已移入冷存储
+    static final int STORAGE_TIER_HOT = 0;
+    static final int STORAGE_TIER_COLD = 1;
+
+    // 长期不活跃对话的冷存储
+    private final ColdChatMessageStore coldStore;
+
+    // 消息内容压缩算法，未开启压缩时为 CODEC_NONE
+    private final int contentCodec;
+
+    // 内容 UTF-8 字节数达到该值时压缩
+    private final int compressionThresholdBytes;
 
     public MysqlBasedChatMemoryRepository(ChatConversationMapper conversationMapper,
-                                          ChatMessageMapper messageMapper) {
+                                          ChatMessageMapper messageMapper,
+                                          MysqlChatMemoryProperties properties,
+                                          @Qualifier("primaryTransactionManager") PlatformTransactionManager transactionManager,
+                                          ChatMemoryCacheInvalidationBus invalidationBus,
+                                          ShardRouter shardRouter,
+                                          ReadWriteRouter readWriteRouter) {
+        Assert.isTrue(properties.getBatchSize() > 0, "batchSize must be positive");
+        Assert.isTrue(properties.getDeleteChunkSize() > 0, "deleteChunkSize must be positive");
         this.conversationMapper = conversationMapper;
         this.messageMapper = messageMapper;
-        log.info("MysqlBasedChatMemoryRepository 初始化完成");
+        this.batchSize = properties.getBatchSize();
+        this.deleteChunkSize = properties.getDeleteChunkSize();
+        this.appendMaxRetries = Math.max(properties.getAppendMaxRetries(), 0);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.invalidationBus = invalidationBus;
+        this.shardRouter = shardRouter;
+        this.readWriteRouter = readWriteRouter;
+        // 其他节点写入的对话同样在一段时间内从主库读取
+        invalidationBus.subscribe(readWriteRouter::markWritten);
+        // 未开启分层时也要能回迁之前移出的对话
+        this.coldStore = new ColdChatMessageStore(properties.getTiering().getColdStoragePath());
+        MysqlChatMemoryProperties.Compression compression = properties.getCompression();
+        this.contentCodec = compression.isEnabled()
+                ? MessageContentCodec.codecOf(compression.getAlgorithm())
+                : MessageContentCodec.CODEC_NONE;
+        this.compressionThresholdBytes = compression.getThresholdBytes();
+
+        this.fingerprints = Caffeine.newBuilder()
+                .maximumWeight(properties.getFingerprintMaxHashes())
+                .weigher((String conversationId, ConversationFingerprint fingerprint) -> fingerprint.size() + 1)
+                .recordStats()
+                .build();
+        this.messageHashes = Caffeine.newBuilder()
+                .weakKeys()
+                .maximumSize(properties.getFingerprintMaxHashes())
+                .build();
+        invalidationBus.subscribe(fingerprints::invalidate);
+
+        long debounceSeconds = properties.getConversationTouchDebounceSeconds();
+        this.touchedConversations = debounceSeconds > 0
+                ? Caffeine.newBuilder()
+                        .maximumSize(TOUCHED_CONVERSATIONS_MAX_SIZE)
+                        .expireAfterWrite(Duration.ofSeconds(debounceSeconds))
+                        .build()
+                : null;
+        if (touchedConversations != null) {
+            // 其他节点删除对话后，本节点下次保存需要重新恢复会话行
+            invalidationBus.subscribe(touchedConversations::invalidate);
+            this.activityFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "chat-memory-activity-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.activityFlusher.scheduleWithFixedDelay(this::flushPendingActivity,
+                    debounceSeconds, debounceSeconds, TimeUnit.SECONDS);
+        } else {
+            this.activityFlusher = null;
+        }
+
+        MysqlChatMemoryProperties.Cache cacheProperties = properties.getCache();
+        // 摘要更新不会产生失效通知，依靠过期时间兜底；其他节点读到旧摘要时只是多发送几条消息
+        this.summaries = Caffeine.newBuilder()
+                .maximumSize(SUMMARY_CACHE_MAX_SIZE)
+                .expireAfterWrite(Duration.ofSeconds(cacheProperties.getExpireAfterWriteSeconds()))
+                .build();
+        invalidationBus.subscribe(summaries::invalidate);
+        this.cache = cacheProperties.isEnabled()
+                ? Caffeine.newBuilder()
+                        .maximumWeight(cacheProperties.getMaxWeightBytes())
+                        .weigher((String conversationId, List<Message> messages) -> estimateWeight(messages))
+                        .expireAfterWrite(Duration.ofSeconds(cacheProperties.getExpireAfterWriteSeconds()))
+                        .recordStats()
+                        .build()
+                : null;
+        if (cache != null) {
+            invalidationBus.subscribe(cache::invalidate);
+        }
+
+        MysqlChatMemoryProperties.WriteBehind writeBehindProperties = properties.getWriteBehind();
+        this.writeBehind = writeBehindProperties.isEnabled()
+                ? new WriteBehindChatMemoryBuffer(this::saveBatchInTransaction,
+                        writeBehindProperties.getCapacity(),
+                        writeBehindProperties.getMaxBatchSize(),
+                        writeBehindProperties.getFlushIntervalMillis(),
+                        writeBehindProperties.getOfferTimeoutMillis())
+                : null;
+        log.info("MysqlBasedChatMemoryRepository 初始化完成, batchSize={}, writeBehind={}, cache={}, compression={}",
+                batchSize, writeBehindProperties.isEnabled(), cacheProperties.isEnabled(),
+                compression.isEnabled() ? compression.getAlgorithm() : "none");
     }
 
     @Override
     public List<String> findConversationIds() {
         try {
-            List<String> ids = conversationMapper.findAllConversationIds();
+            List<String> ids = shardRouter.scatter(shard -> conversationMapper.findAllConversationIds()).stream()
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
             log.debug("查询到 {} 个对话ID", ids.size());
             return ids;
         } catch (Exception e) {
@@ -59,22 +248,344 @@ public class MysqlBasedChatMemoryRepository implements ChatMemoryRepository {
     public List<Message> findByConversationId(String conversationId) {
         Assert.hasText(conversationId, "conversationId cannot be null or empty");
 
+        // 写后模式下优先返回尚未落库的最新快照
+        if (writeBehind != null) {
+            List<Message> pending = writeBehind.get(conversationId);
+            if (pending != null) {
+                return new ArrayList<>(pending);
+            }
+        }
+
         try {
-            List<ChatMessage> entities = messageMapper.findByConversationIdOrderByOrder(conversationId);
-            List<Message> messages = entities.stream()
+            if (cache == null) {
+                return loadMessages(conversationId);
+            }
+            // 未命中时按键原子加载，加载期间的 saveAll 会在加载完成后覆盖，不会写回旧数据
+            return new ArrayList<>(cache.get(conversationId, id -> List.copyOf(loadMessages(id))));
+        } catch (Exception e) {
+            log.error("查询对话消息失败, conversationId: {}", conversationId, e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * 从数据库加载并转换消息
+     */
+    private List<Message> loadMessages(String conversationId) {
+        List<ChatMessage> entities = shardRouter.route(conversationId, () -> readThroughColdTier(conversationId,
+                () -> messageMapper.findByConversationIdOrderByOrder(conversationId)));
+        List<Message> messages = entities.stream()
+                .map(MessageConverter::toMessage)
+                .collect(Collectors.toList());
+
+        log.debug("对话 {} 查询到 {} 条消息", conversationId, messages.size());
+        return messages;
+    }
+
+    /**
+     * 查询对话最后 N 条消息
+     * 只读取窗口内的行，读取成本不随对话长度增长
+     *
+     * @param conversationId 对话ID
+     * @param limit          条数
+     * @return 按顺序排列的消息列表
+     */
+    public List<Message> findLastMessages(String conversationId, int limit) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        Assert.isTrue(limit > 0, "limit must be positive");
+
+        if (writeBehind != null) {
+            List<Message> pending = writeBehind.get(conversationId);
+            if (pending != null) {
+                return new ArrayList<>(tail(pending, limit));
+            }
+        }
+        if (cache != null) {
+            List<Message> cached = cache.getIfPresent(conversationId);
+            if (cached != null) {
+                return new ArrayList<>(tail(cached, limit));
+            }
+        }
+
+        try {
+            List<Message> messages = shardRouter.route(conversationId, () -> readThroughColdTier(conversationId,
+                    () -> messageMapper.findLastMessages(conversationId, limit))).stream()
                     .map(MessageConverter::toMessage)
                     .collect(Collectors.toList());
-
-            log.debug("对话 {} 查询到 {} 条消息", conversationId, messages.size());
+            log.debug("对话 {} 查询到最后 {} 条消息", conversationId, messages.size());
             return messages;
         } catch (Exception e) {
-            log.error("查询对话消息失败, conversationId: {}", conversationId, e);
+            log.error("查询对话最后消息失败, conversationId: {}", conversationId, e);
             return new ArrayList<>();
         }
     }
 
+    private static List<Message> tail(List<Message> messages, int limit) {
+        return messages.subList(Math.max(0, messages.size() - limit), messages.size());
+    }
+
+    /**
+     * 在对话末尾追加消息，不读取也不改写已有消息
+     *
+     * @param conversationId 对话ID
+     * @param messages       新消息
+     */
+    public void appendMessages(String conversationId, List<Message> messages) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        Assert.notNull(messages, "messages cannot be null");
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        if (writeBehind == null) {
+            appendInTransaction(conversationId, messages);
+        } else {
+            // 先落库该对话未刷盘的快照，保证追加的顺序号接在其后
+            writeBehind.flushAndRun(conversationId, () -> appendInTransaction(conversationId, messages));
+        }
+    }
+
+    private void appendInTransaction(String conversationId, List<Message> messages) {
+        try {
+            List<Long> insertedIds = null;
+            for (int attempt = 1; insertedIds == null; attempt++) {
+                try {
+                    insertedIds = shardRouter.route(conversationId, () -> transactionTemplate.execute(status -> {
+                        // 去抖窗口内不写会话行，列表字段提交后暂存；顺序号由 nextMessageOrder 的锁定读保证不重复
+                        if (!deferAppendActivity(conversationId, messages)) {
+                            recordActivity(conversationId, messages, messages.size(), false, false);
+                        }
+                        return saveMessages(conversationId, messages, nextMessageOrder(conversationId));
+                    }));
+                } catch (PessimisticLockingFailureException e) {
+                    // 空对话上的锁定读只加间隙锁，并发的首次插入可能互相死锁，整个事务已回滚，直接重试
+                    if (attempt >= APPEND_LOCK_ATTEMPTS) {
+                        throw e;
+                    }
+                    log.warn("追加消息锁冲突，重试: conversationId={}, attempt={}", conversationId, attempt);
+                }
+            }
+
+            afterAppend(conversationId, messages, insertedIds);
+            log.debug("追加消息完成: conversationId={}, count={}", conversationId, messages.size());
+        } catch (RuntimeException e) {
+            log.error("追加消息失败: conversationId={}", conversationId, e);
+            forgetTouched(conversationId);
+            invalidateCache(conversationId);
+            throw e;
+        }
+    }
+
+    /**
+     * 追加消息的起始顺序号，调用方负责事务
+     * 接在该对话用过的最大顺序号之后（包括已逻辑删除的行），游标分页和增量同步依赖顺序号只增不减；
+     * 对话在冷存储中时先回迁，顺序号接在原有消息之后
+     */
+    private int nextMessageOrder(String conversationId) {
+        if (messageMapper.getMaxMessageOrder(conversationId) < 0) {
+            rehydrateIfCold(conversationId);
+        }
+        return lockMaxUsedMessageOrder(conversationId) + 1;
+    }
+
+    /**
+     * 锁定读取对话用过的最大顺序号，没有任何行时为 -1
+     * 去抖窗口内的追加不写会话行，同一对话的并发追加和保存改在这条消息索引记录上串行
+     */
+    private int lockMaxUsedMessageOrder(String conversationId) {
+        Integer maxOrder = messageMapper.lockMaxUsedMessageOrder(conversationId);
+        return maxOrder != null ? maxOrder : -1;
+    }
+
+    /**
+     * 追加提交后更新本地状态：库中内容已变化，指纹失效；缓存中已有完整对话时直接追加
+     */
+    private void afterAppend(String conversationId, List<Message> messages, List<Long> insertedIds) {
+        fingerprints.invalidate(conversationId);
+        if (cache != null) {
+            List<Message> appended = messages.stream()
+                    .map(message -> MessageConverter.toMessage(MessageConverter.toEntity(message, conversationId, null)))
+                    .toList();
+            cache.asMap().computeIfPresent(conversationId, (id, cached) -> {
+                List<Message> merged = new ArrayList<>(cached);
+                merged.addAll(appended);
+                return List.copyOf(merged);
+            });
+        }
+        publishChange(conversationId, insertedIds);
+    }
+
+    /**
+     * 按版本号在对话末尾追加消息（比较并设置）
+     * <p>
+     * 调用方读取对话时记下版本号（{@link #getVersion}），追加时带回：版本号未变时追加并返回新版本号。
+     * 期间有其他请求写入过时，所有消息接在最新消息之后，按最新版本号重试，最多 appendMaxRetries 次。
+     * 不会像 saveAll 整体改写窗口那样覆盖其他节点写入的消息，多节点部署无需会话粘滞。
+     * 没有请求ID时无法区分重试写入和内容相同的新消息，冲突后不去重，需要去重时使用带 requestId 的重载
+     *
+     * @param conversationId  对话ID
+     * @param expectedVersion 调用方读取时的版本号，新对话为 0
+     * @param messages        新消息
+     * @return 追加后的版本号
+     * @throws OptimisticLockingFailureException 重试次数用完仍然冲突
+     */
+    public long appendMessages(String conversationId, long expectedVersion, List<Message> messages) {
+        return appendMessages(conversationId, expectedVersion, messages, null);
+    }
+
+    /**
+     * 按版本号在对话末尾追加消息，消息记录客户端提供的请求ID
+     * 版本冲突后重新读取对话末尾，末尾带着同一请求ID、内容与本批前缀相同的消息已由其他节点写入，
+     * 去掉这部分后按最新版本号重试
+     *
+     * @param conversationId  对话ID
+     * @param expectedVersion 调用方读取时的版本号，新对话为 0
+     * @param messages        新消息
+     * @param requestId       客户端为这批消息生成的请求ID，重试时保持不变，最长 64 个字符；为 null 时不去重
+     * @return 追加后的版本号
+     * @throws OptimisticLockingFailureException 重试次数用完仍然冲突
+     */
+    public long appendMessages(String conversationId, long expectedVersion, List<Message> messages, String requestId) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        Assert.notNull(messages, "messages cannot be null");
+        Assert.isTrue(requestId == null || requestId.length() <= REQUEST_ID_MAX_LENGTH,
+                "requestId must not exceed " + REQUEST_ID_MAX_LENGTH + " characters");
+        if (messages.isEmpty()) {
+            return getVersion(conversationId);
+        }
+
+        if (writeBehind == null) {
+            return appendWithRetry(conversationId, expectedVersion, messages, requestId);
+        }
+        long[] version = new long[1];
+        writeBehind.flushAndRun(conversationId,
+                () -> version[0] = appendWithRetry(conversationId, expectedVersion, messages, requestId));
+        return version[0];
+    }
+
+    /**
+     * 查询对话的版本号，对话不存在时为 0
+     * 已删除的对话返回删除时的版本号，带着它追加会恢复对话，版本号继续递增
+     * 去抖窗口内不带版本号的 {@link #appendMessages(String, List)} 不写会话行，版本号不变；
+     * 需要发现并发追加的对话应统一使用按版本号追加
+     */
+    public long getVersion(String conversationId) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        Long version = shardRouter.route(conversationId, () -> conversationMapper.findVersion(conversationId));
+        return version != null ? version : 0;
+    }
+
+    private long appendWithRetry(String conversationId, long expectedVersion, List<Message> messages, String requestId) {
+        long expected = expectedVersion;
+        List<Message> pending = messages;
+        try {
+            for (int attempt = 0; ; attempt++) {
+                VersionedAppend result = tryAppend(conversationId, expected, pending, requestId);
+                if (result.applied()) {
+                    if (attempt == 0) {
+                        afterAppend(conversationId, pending, result.insertedIds());
+                    } else {
+                        // 期间有其他写入，本地缓存未必包含，整体失效
+                        fingerprints.invalidate(conversationId);
+                        invalidateCache(conversationId);
+                        publishChange(conversationId, result.insertedIds());
+                    }
+                    log.debug("按版本号追加完成: conversationId={}, version={}, count={}, retries={}",
+                            conversationId, result.version(), pending.size(), attempt);
+                    return result.version();
+                }
+
+                if (attempt >= appendMaxRetries) {
+                    throw new OptimisticLockingFailureException("追加消息版本冲突，重试 " + attempt + " 次后放弃: conversationId="
+                            + conversationId + ", expected=" + expected + ", current=" + result.version());
+                }
+                List<Message> remaining = mergePending(conversationId, pending, requestId);
+                log.info("追加消息版本冲突，合并后重试: conversationId={}, expected={}, current={}, skipped={}",
+                        conversationId, expected, result.version(), pending.size() - remaining.size());
+                if (remaining.isEmpty()) {
+                    // 这批消息已由其他请求完整写入
+                    return result.version();
+                }
+                expected = result.version();
+                pending = remaining;
+            }
+        } catch (RuntimeException e) {
+            if (!(e instanceof OptimisticLockingFailureException)) {
+                log.error("按版本号追加消息失败: conversationId={}", conversationId, e);
+            }
+            forgetTouched(conversationId);
+            invalidateCache(conversationId);
+            throw e;
+        }
+    }
+
+    /**
+     * 锁定会话行后比较版本号，一致时追加消息，版本号随会话行更新加 1
+     * 已删除的会话行同样按删除时的版本号比较，一致时由 upsertConversationActivity 恢复；
+     * 版本号不一致时不做任何写入
+     */
+    private VersionedAppend tryAppend(String conversationId, long expected, List<Message> messages, String requestId) {
+        return shardRouter.route(conversationId, () -> transactionTemplate.execute(status -> {
+            Long locked = conversationMapper.lockVersion(conversationId);
+            if (locked == null) {
+                if (expected != 0) {
+                    return new VersionedAppend(false, 0, List.of());
+                }
+                // 新对话先插入会话行，并发的首次追加在行锁上串行
+                conversationMapper.upsertConversation(conversationId, LocalDateTime.now());
+                locked = conversationMapper.lockVersion(conversationId);
+            }
+            long current = locked != null ? locked : 0;
+            if (current != expected) {
+                return new VersionedAppend(false, current, List.of());
+            }
+
+            recordActivity(conversationId, messages, messages.size(), false, false);
+            return new VersionedAppend(true, current + 1,
+                    saveMessages(conversationId, messages, nextMessageOrder(conversationId), requestId));
+        }));
+    }
+
+    /**
+     * 版本冲突后合并：对话末尾的 k 条带着本次的请求ID、且与 pending 的前 k 条内容相同时
+     * （其他节点写入了同一批消息）去掉这 k 条，取最长的 k。
+     * 没有请求ID时不去重，连续发送的相同短消息不会被误判为重复
+     */
+    private List<Message> mergePending(String conversationId, List<Message> pending, String requestId) {
+        if (requestId == null) {
+            return pending;
+        }
+        // 冲突的写入刚提交，从主库读取
+        List<ChatMessage> tail = readWriteRouter.onPrimary(() -> shardRouter.route(conversationId,
+                () -> messageMapper.findLastMessages(conversationId, pending.size())));
+        int tagged = 0;
+        while (tagged < tail.size() && requestId.equals(tail.get(tail.size() - 1 - tagged).getRequestId())) {
+            tagged++;
+        }
+        long[] stored = tail.stream().mapToLong(MessageConverter::contentHash).toArray();
+        long[] incoming = new long[pending.size()];
+        for (int i = 0; i < incoming.length; i++) {
+            incoming[i] = contentHash(pending.get(i));
+        }
+        for (int k = Math.min(tagged, incoming.length); k > 0; k--) {
+            if (Arrays.equals(stored, stored.length - k, stored.length, incoming, 0, k)) {
+                return pending.subList(k, pending.size());
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * 一次按版本号追加的结果
+     *
+     * @param applied     版本号一致并已追加
+     * @param version     追加后的版本号；冲突时为当前版本号
+     * @param insertedIds 新插入消息的主键
+     */
+    private record VersionedAppend(boolean applied, long version, List<Long> insertedIds) {
+    }
+
     @Override
-    @Transactional(rollbackFor = Exception.class)
     public void saveAll(String conversationId, List<Message> messages) {
         Assert.hasText(conversationId, "conversationId cannot be null or empty");
         Assert.notNull(messages, "messages cannot be null");
@@ -84,31 +595,116 @@ public class MysqlBasedChatMemoryRepository implements ChatMemoryRepository {
             return;
         }
 
-        log.info("收到saveAll请求: conversationId={}, messageCount={}", conversationId, messages.size());
+        if (writeBehind == null) {
+            saveInTransaction(conversationId, messages);
+            return;
+        }
 
         try {
-            // 1. 生成当前消息的指纹
-            String currentFingerprint = generateMessagesFingerprint(messages);
-            String lastFingerprint = lastSavedFingerprint.get(conversationId);
-
-            // 2. 如果指纹相同，直接跳过
-            if (currentFingerprint.equals(lastFingerprint)) {
-                log.info("消息指纹相同，跳过保存: conversationId={}, fingerprint={}",
-                        conversationId, currentFingerprint.substring(0, 8));
+            if (writeBehind.offer(conversationId, messages)) {
+                log.debug("消息已放入写后缓冲区: conversationId={}, messageCount={}", conversationId, messages.size());
                 return;
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 缓冲区已满，退化为同步写入
+        log.warn("写后缓冲区已满，同步保存: conversationId={}", conversationId);
+        writeBehind.runExclusively(conversationId, () -> saveInTransaction(conversationId, messages));
+    }
+
+    /**
+     * 在单个事务中保存一个对话
+     */
+    private void saveInTransaction(String conversationId, List<Message> messages) {
+        try {
+            List<Long> insertedIds = shardRouter.route(conversationId,
+                    () -> transactionTemplate.execute(status -> doSave(conversationId, messages)));
+            afterCommit(conversationId, messages, insertedIds);
+        } catch (RuntimeException e) {
+            // 事务已回滚，指纹和缓存不再代表库中数据，新建的会话行也可能已回滚
+            fingerprints.invalidate(conversationId);
+            forgetTouched(conversationId);
+            invalidateCache(conversationId);
+            throw e;
+        }
+    }
+
+    /**
+     * 保存写后缓冲区刷出的一批对话，每个分片一个事务
+     * 某个分片失败时整批放回缓冲区，重试时已提交的对话按指纹跳过
+     */
+    private void saveBatchInTransaction(Map<String, List<Message>> batch) {
+        try {
+            for (Map.Entry<Integer, List<String>> group : shardRouter.groupByShard(batch.keySet()).entrySet()) {
+                Map<String, List<Long>> insertedIds = shardRouter.onShard(group.getKey(), () -> transactionTemplate.execute(status -> {
+                    Map<String, List<Long>> ids = new LinkedHashMap<>();
+                    group.getValue().forEach(conversationId ->
+                            ids.put(conversationId, doSave(conversationId, batch.get(conversationId))));
+                    return ids;
+                }));
+                group.getValue().forEach(conversationId ->
+                        afterCommit(conversationId, batch.get(conversationId), insertedIds.get(conversationId)));
+            }
+        } catch (RuntimeException e) {
+            fingerprints.invalidateAll(batch.keySet());
+            batch.keySet().forEach(this::forgetTouched);
+            batch.keySet().forEach(this::invalidateCache);
+            throw e;
+        }
+    }
+
+    /**
+     * 提交后更新本地缓存并通知其他节点
+     * 缓存内容与从数据库读取再转换的结果保持一致
+     */
+    private void afterCommit(String conversationId, List<Message> messages, List<Long> insertedIds) {
+        if (cache != null) {
+            cache.put(conversationId, messages.stream()
+                    .map(message -> MessageConverter.toMessage(MessageConverter.toEntity(message, conversationId, null)))
+                    .toList());
+        }
+        publishChange(conversationId, insertedIds);
+    }
+
+    /**
+     * 记录对话刚写入过（写后读走主库），并通知其他节点
+     */
+    private void publishChange(String conversationId, List<Long> insertedIds) {
+        readWriteRouter.markWritten(conversationId);
+        invalidationBus.publish(conversationId, insertedIds);
+    }
 
-            // 3. 确保会话记录存在
-            ensureConversationExists(conversationId);
+    /**
+     * 保存一个对话，调用方负责事务
+     *
+     * @return 新插入消息的主键
+     */
+    private List<Long> doSave(String conversationId, List<Message> messages) {
+        log.info("收到saveAll请求: conversationId={}, messageCount={}", conversationId, messages.size());
+
+        try {
+            // 1. 计算当前窗口的逐条哈希及滚动组合
+            long[] incomingHashes = new long[messages.size()];
+            for (int i = 0; i < incomingHashes.length; i++) {
+                incomingHashes[i] = contentHash(messages.get(i));
+            }
+            long combined = ConversationFingerprint.combine(incomingHashes);
+            ConversationFingerprint lastFingerprint = fingerprints.getIfPresent(conversationId);
 
-            // 4. 执行智能保存
-            performIntelligentSave(conversationId, messages);
+            // 2. 如果与上次保存的窗口完全相同，直接跳过
+            if (lastFingerprint != null && lastFingerprint.matches(incomingHashes, combined)) {
+                log.info("消息指纹相同，跳过保存: conversationId={}, fingerprint={}",
+                        conversationId, Long.toHexString(combined));
+                return List.of();
+            }
 
-            // 5. 更新指纹缓存
-            lastSavedFingerprint.put(conversationId, currentFingerprint);
+            // 3. 执行智能保存，同时更新会话记录和指纹
+            List<Long> insertedIds = performIntelligentSave(conversationId, messages, incomingHashes, lastFingerprint);
 
-            log.info("saveAll完成: conversationId={}, finalMessageCount={}, newFingerprint={}",
-                    conversationId, getMessageCount(conversationId), currentFingerprint.substring(0, 8));
+            log.info("saveAll完成: conversationId={}, inserted={}, newFingerprint={}",
+                    conversationId, insertedIds.size(), Long.toHexString(combined));
+            return insertedIds;
         } catch (Exception e) {
             log.error("保存对话失败: conversationId={}", conversationId, e);
             throw new RuntimeException("保存对话失败", e);
@@ -116,81 +712,276 @@ public class MysqlBasedChatMemoryRepository implements ChatMemoryRepository {
     }
 
     /**
-     * 生成消息列表的指纹
-     * 基于消息类型、内容和顺序生成唯一标识
+     * 计算单条消息的内容哈希，同一消息对象只计算一次
      */
-    private String generateMessagesFingerprint(List<Message> messages) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < messages.size(); i++) {
-            Message msg = messages.get(i);
-            sb.append(i).append(":")
-                    .append(msg.getMessageType().name()).append(":")
-                    .append(msg.getText().length()).append(":")
-                    .append(msg.getText().hashCode()).append("|");
-        }
-
-        // 生成简单的哈希
-        String content = sb.toString();
-        return String.valueOf(content.hashCode()) + "_" + messages.size();
+    private long contentHash(Message message) {
+        return messageHashes.get(message, MessageConverter::contentHash);
     }
 
     /**
      * 执行智能保存
-     * 只有在真正需要时才进行数据库操作
+     * 将新窗口与库中现有消息按 顺序/类型/内容哈希 对齐，只写入变化的部分：
+     * 窗口头部被滑出的消息和末尾分叉的消息做逻辑删除，只插入新增的尾部消息。
+     * 新消息的顺序号接在用过的最大顺序号之后，不复用被删除消息的顺序号。
+     * 有上次保存的指纹时直接用指纹对齐，不再查询库中摘要
+     *
+     * @return 新插入消息的主键
      */
-    private void performIntelligentSave(String conversationId, List<Message> messages) {
-        // ✅ 简化版本 - 因为指纹已经验证过内容不同，直接更新即可
-        log.info("确认需要更新数据库: conversationId={}", conversationId);
+    private List<Long> performIntelligentSave(String conversationId, List<Message> messages,
+                                              long[] incomingHashes, ConversationFingerprint lastFingerprint) {
+        long[] existingHashes;
+        int[] existingOrders;
+        int maxOrder;
+        if (lastFingerprint != null) {
+            existingHashes = new long[lastFingerprint.size()];
+            existingOrders = new int[lastFingerprint.size()];
+            for (int i = 0; i < existingHashes.length; i++) {
+                existingHashes[i] = lastFingerprint.hashAt(i);
+                existingOrders[i] = lastFingerprint.orderAt(i);
+            }
+            maxOrder = lastFingerprint.maxOrder();
+        } else {
+            List<ChatMessage> existing = messageMapper.findDigestsByConversationId(conversationId);
+            if (existing.isEmpty() && rehydrateIfCold(conversationId)) {
+                existing = messageMapper.findDigestsByConversationId(conversationId);
+            }
+            existingHashes = existing.stream().mapToLong(MessageConverter::contentHash).toArray();
+            existingOrders = existing.stream().mapToInt(ChatMessage::getMessageOrder).toArray();
+            maxOrder = messageMapper.getMaxUsedMessageOrder(conversationId);
+        }
+        int existingCount = existingHashes.length;
+
+        // 1. 找到新窗口在现有消息中的对齐位置：丢弃头部 dropped 条后，公共前缀长度为 common
+        int dropped = existingCount;
+        int common = 0;
+        for (int offset = 0; offset < existingCount; offset++) {
+            int length = commonPrefixLength(existingHashes, offset, incomingHashes);
+            if (length > common) {
+                dropped = offset;
+                common = length;
+            }
+            if (length == existingCount - offset) {
+                break;
+            }
+        }
+        if (common == 0) {
+            dropped = existingCount;
+        }
+
+        // 2. 先写会话行再改消息，与追加路径的加锁顺序一致
+        // 保存后库中有效消息恰好是新窗口，消息数直接取窗口大小
+        // 去抖窗口内只在本事务中把版本号（和改写次数）加 1，列表字段暂存后批量写入
+        int keptEnd = dropped + common;
+        if (dropped > 0 || keptEnd < existingCount || common < messages.size()) {
+            boolean rewritten = keptEnd < existingCount;
+            if (!deferActivity(conversationId, messages, rewritten)) {
+                recordActivity(conversationId, messages, messages.size(), true, rewritten);
+            }
+        } else {
+            ensureConversationExists(conversationId, false);
+        }
 
-        // 删除现有消息（逻辑删除）
-        deleteExistingMessages(conversationId);
+        // 3. 逻辑删除被滑出窗口的头部消息
+        if (dropped > 0) {
+            int headLimit = dropped < existingCount
+                    ? existingOrders[dropped]
+                    : existingOrders[existingCount - 1] + 1;
+            deleteExistingMessages(conversationId, null, headLimit);
+        }
+
+        // 4. 逻辑删除与新窗口分叉的尾部消息
+        if (keptEnd < existingCount) {
+            deleteExistingMessages(conversationId, existingOrders[keptEnd], null);
+        }
 
-        // 保存新消息
-        saveMessages(conversationId, messages);
+        // 5. 只插入新增的尾部消息，顺序号接在用过的最大顺序号之后。
+        // 分叉或整体替换时，被删除的消息占用的顺序号不再分配，已越过它们的游标和增量同步仍能看到新消息；
+        // 插入前与追加路径一样锁定最大顺序号，去抖窗口内不写会话行的并发追加不会分到相同的顺序号
+        List<Message> tail = messages.subList(common, messages.size());
+        if (!tail.isEmpty()) {
+            maxOrder = Math.max(maxOrder, lockMaxUsedMessageOrder(conversationId));
+        }
+        int nextOrder = maxOrder + 1;
+        List<Long> insertedIds = saveMessages(conversationId, tail, nextOrder);
+        int newMaxOrder = tail.isEmpty() ? maxOrder : nextOrder + tail.size() - 1;
+
+        // 6. 新窗口的顺序号连续时，第 i 条顺序号为 baseOrder + i，可记录为指纹
+        int baseOrder = common > 0 ? existingOrders[dropped] : nextOrder;
+        boolean contiguous = common == 0 || (existingOrders[keptEnd - 1] - baseOrder == common - 1
+                && (tail.isEmpty() || existingOrders[keptEnd - 1] + 1 == nextOrder));
+        if (contiguous) {
+            fingerprints.put(conversationId, ConversationFingerprint.of(incomingHashes, baseOrder, newMaxOrder));
+        } else {
+            fingerprints.invalidate(conversationId);
+        }
+
+        log.info("增量保存完成: conversationId={}, dropped={}, kept={}, truncated={}, inserted={}",
+                conversationId, dropped, common, existingCount - keptEnd, tail.size());
+        return insertedIds;
     }
 
     /**
-     * 详细检查是否需要更新
+     * 计算 existing[offset..] 与 incoming 的公共前缀长度
      */
-    private boolean isUpdateRequired(List<Message> newMessages, List<ChatMessage> existingMessages) {
-        // 1. 数量检查
-        if (newMessages.size() != existingMessages.size()) {
-            log.debug("消息数量不同: DB={}, New={}", existingMessages.size(), newMessages.size());
-            return true;
+    private static int commonPrefixLength(long[] existing, int offset, long[] incoming) {
+        int length = 0;
+        while (offset + length < existing.length && length < incoming.length
+                && existing[offset + length] == incoming[length]) {
+            length++;
         }
+        return length;
+    }
 
-        // 2. 内容详细比较
-        for (int i = 0; i < newMessages.size(); i++) {
-            Message newMsg = newMessages.get(i);
-            ChatMessage existingMsg = existingMessages.get(i);
+    @Override
+    public void deleteByConversationId(String conversationId) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
 
-            // 比较消息类型
-            if (!newMsg.getMessageType().name().equals(existingMsg.getMessageType())) {
-                log.debug("消息类型不同，位置{}: DB={}, New={}",
-                        i, existingMsg.getMessageType(), newMsg.getMessageType().name());
-                return true;
+        Runnable delete = () -> shardRouter.route(conversationId,
+                () -> transactionTemplate.executeWithoutResult(status -> doDelete(conversationId)));
+        if (writeBehind == null) {
+            delete.run();
+        } else {
+            // 丢弃未落库的快照，并等待进行中的刷盘完成，避免删除后被旧快照写回
+            writeBehind.runExclusively(conversationId, delete);
+        }
+        invalidateCache(conversationId);
+        summaries.invalidate(conversationId);
+        coldStore.delete(conversationId);
+        publishChange(conversationId, List.of());
+        notifyDeleted(List.of(conversationId));
+    }
+
+    /**
+     * 订阅对话删除，单个删除和批量删除提交后回调被删除的对话ID
+     * 只在执行删除的节点回调一次，适合清理对话在其他存储中的共享数据（如长期记忆向量）
+     */
+    public void onConversationsDeleted(Consumer<Collection<String>> listener) {
+        deletionListeners.add(listener);
+    }
+
+    private void notifyDeleted(List<String> conversationIds) {
+        if (conversationIds.isEmpty()) {
+            return;
+        }
+        for (Consumer<Collection<String>> listener : deletionListeners) {
+            try {
+                listener.accept(conversationIds);
+            } catch (Exception e) {
+                log.warn("对话删除回调失败: conversations={}", conversationIds.size(), e);
             }
+        }
+    }
 
-            // 比较消息内容
-            String newContent = newMsg.getText();
-            String existingContent = existingMsg.getContent();
+    /**
+     * 批量删除对话（逻辑删除）
+     * 在一个事务中按 deleteChunkSize 分批执行 IN (...) 更新，代替逐个对话的两条 UPDATE；
+     * 对话ID去重排序后处理，并发的批量删除按相同顺序加锁。提交后一次性失效本地缓存和指纹。
+     * 开启分库时每个分片一个事务，不保证跨分片原子
+     *
+     * @param conversationIds 对话ID，空白ID会被忽略
+     * @return 实际删除的对话数
+     */
+    public int deleteByConversationIds(Collection<String> conversationIds) {
+        Assert.notNull(conversationIds, "conversationIds cannot be null");
+        List<String> ids = conversationIds.stream()
+                .filter(id -> id != null && !id.isBlank())
+                .distinct()
+                .sorted()
+                .toList();
+        if (ids.isEmpty()) {
+            return 0;
+        }
 
-            if (!Objects.equals(newContent, existingContent)) {
-                log.debug("消息内容不同，位置{}: 长度差异={}",
-                        i, Math.abs(newContent.length() - existingContent.length()));
-                return true;
+        int[] deleted = new int[1];
+        List<String> committed = new ArrayList<>(ids.size());
+        Runnable delete = () -> shardRouter.groupByShard(ids).forEach((shard, shardIds) -> {
+            deleted[0] += shardRouter.onShard(shard, () -> transactionTemplate.execute(status -> doDeleteBatch(shardIds)));
+            committed.addAll(shardIds);
+        });
+        try {
+            if (writeBehind == null) {
+                delete.run();
+            } else {
+                writeBehind.runExclusively(ids, delete);
             }
+        } finally {
+            // 每个分片单独提交，后面的分片失败时，已提交分片上的对话同样要清理本地状态，否则会读到已删除的历史，
+            // 相同窗口的 saveAll 也会按指纹跳过而不写入
+            afterBulkDelete(committed);
         }
+        return deleted[0];
+    }
 
-        log.debug("所有消息内容完全相同，无需更新");
-        return false;
+    /**
+     * 批量删除提交后失效指纹、去抖集合、缓存和摘要，删除冷存储文件，通知其他节点和删除订阅者
+     * 只处理已提交的对话，回滚的分片上冷存储中的对话仍需保留文件
+     */
+    private void afterBulkDelete(List<String> ids) {
+        fingerprints.invalidateAll(ids);
+        if (touchedConversations != null) {
+            touchedConversations.invalidateAll(ids);
+        }
+        // 已删除的会话行不再写入，批量 UPDATE 也会跳过已删除的行
+        ids.forEach(pendingActivity::remove);
+        if (cache != null) {
+            cache.invalidateAll(ids);
+        }
+        summaries.invalidateAll(ids);
+        ids.forEach(coldStore::delete);
+        ids.forEach(id -> publishChange(id, List.of()));
+        notifyDeleted(ids);
     }
 
-    @Override
-    @Transactional(rollbackFor = Exception.class)
-    public void deleteByConversationId(String conversationId) {
-        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+    /**
+     * 查询对话最后 N 条消息的数据库行，保留顺序号等元数据
+     * 直接读库，适用于通过 appendMessages 写入的对话
+     */
+    List<ChatMessage> findLastMessageRows(String conversationId, int limit) {
+        List<ChatMessage> rows = shardRouter.route(conversationId,
+                () -> readThroughColdTier(conversationId, () -> messageMapper.findLastMessages(conversationId, limit)));
+        rows.forEach(MessageContentCodec::inflate);
+        return rows;
+    }
+
+    /**
+     * 查询顺序号在 [fromOrder, toOrder) 内的消息行，最多 limit 条
+     */
+    List<ChatMessage> findMessageRowsBetween(String conversationId, int fromOrder, int toOrder, int limit) {
+        List<ChatMessage> rows = shardRouter.route(conversationId, () -> readThroughColdTier(conversationId,
+                () -> messageMapper.findMessagesBetween(conversationId, fromOrder, toOrder, limit)));
+        rows.forEach(MessageContentCodec::inflate);
+        return rows;
+    }
+
+    /**
+     * 查询对话的滚动摘要，没有时返回 {@link ConversationSummary#EMPTY}
+     */
+    ConversationSummary findSummary(String conversationId) {
+        return summaries.get(conversationId, id -> {
+            ChatConversation row = shardRouter.route(id, () -> conversationMapper.findSummary(id));
+            if (row == null) {
+                return ConversationSummary.EMPTY;
+            }
+            return new ConversationSummary(row.getSummary(), row.getSummaryOrder() != null ? row.getSummaryOrder() : 0);
+        });
+    }
 
+    /**
+     * 保存滚动摘要，库中摘要仍覆盖到 expectedOrder 时才写入
+     *
+     * @return 是否写入成功
+     */
+    boolean saveSummary(String conversationId, int expectedOrder, String summary, int summaryOrder) {
+        boolean updated = shardRouter.route(conversationId,
+                () -> conversationMapper.updateSummary(conversationId, expectedOrder, summary, summaryOrder)) > 0;
+        summaries.invalidate(conversationId);
+        return updated;
+    }
+
+    /**
+     * 逻辑删除对话及其消息，调用方负责事务
+     */
+    private void doDelete(String conversationId) {
         log.info("开始删除对话: conversationId={}", conversationId);
 
         try {
@@ -204,11 +995,14 @@ public class MysqlBasedChatMemoryRepository implements ChatMemoryRepository {
             LambdaUpdateWrapper<ChatConversation> conversationUpdateWrapper = new LambdaUpdateWrapper<>();
             conversationUpdateWrapper.eq(ChatConversation::getConversationId, conversationId)
                     .set(ChatConversation::getDeleted, 1)
+                    .setSql("version = version + 1")
+                    .setSql("rewrite_count = rewrite_count + 1")
                     .set(ChatConversation::getUpdateTime, LocalDateTime.now());
             int deletedConversations = conversationMapper.update(null, conversationUpdateWrapper);
 
             // 清除缓存
-            lastSavedFingerprint.remove(conversationId);
+            fingerprints.invalidate(conversationId);
+            forgetTouched(conversationId);
 
             log.info("成功删除对话: conversationId={}, deletedMessages={}, deletedConversations={}",
                     conversationId, deletedMessages, deletedConversations);
@@ -219,38 +1013,212 @@ public class MysqlBasedChatMemoryRepository implements ChatMemoryRepository {
     }
 
     /**
-     * 确保会话记录存在
+     * 分批逻辑删除对话，调用方负责事务
+     * 先删会话行再删消息，与追加消息时先锁会话行的顺序一致
+     *
+     * @return 实际删除的对话数
+     */
+    private int doDeleteBatch(List<String> conversationIds) {
+        LocalDateTime now = LocalDateTime.now();
+        int deletedConversations = 0;
+        int deletedMessages = 0;
+        for (int from = 0; from < conversationIds.size(); from += deleteChunkSize) {
+            List<String> chunk = conversationIds.subList(from, Math.min(from + deleteChunkSize, conversationIds.size()));
+            deletedConversations += conversationMapper.softDeleteByConversationIds(chunk, now);
+            deletedMessages += messageMapper.softDeleteByConversationIds(chunk);
+        }
+        log.info("批量删除对话完成: requested={}, deletedConversations={}, deletedMessages={}",
+                conversationIds.size(), deletedConversations, deletedMessages);
+        return deletedConversations;
+    }
+
+    /**
+     * 确保会话记录存在并刷新最后活跃时间
+     * 使用单条 INSERT ... ON DUPLICATE KEY UPDATE；同一对话在去抖窗口内只写一次
+     *
+     * @param force 为 true 时忽略去抖，总是写入会话行
+     */
+    private void ensureConversationExists(String conversationId, boolean force) {
+        if (!force && touchedConversations != null && touchedConversations.getIfPresent(conversationId) != null) {
+            return;
+        }
+
+        conversationMapper.upsertConversation(conversationId, LocalDateTime.now());
+        if (touchedConversations != null) {
+            touchedConversations.put(conversationId, Boolean.TRUE);
+        }
+        log.debug("更新对话记录: conversationId={}", conversationId);
+    }
+
+    /**
+     * 写入消息时创建会话行并更新会话列表字段（标题、最后消息、消息数）
+     * 同时刷新最后活跃时间，计入去抖窗口
+     *
+     * @param count        replaceCount 为 true 时是保存后的消息总数，否则是新增条数
+     * @param replaceCount 是否直接覆盖消息数
+     * @param rewritten    是否截断或替换了已有消息
+     */
+    private void recordActivity(String conversationId, List<Message> messages, int count,
+                                boolean replaceCount, boolean rewritten) {
+        // 先写入暂存的变化，避免之后批量写入时用旧值覆盖本次结果
+        writePendingActivity(conversationId);
+        String preview = abbreviate(messages.get(messages.size() - 1).getText(), PREVIEW_MAX_LENGTH);
+        conversationMapper.upsertConversationActivity(conversationId, sessionTitle(messages), preview,
+                count, replaceCount, rewritten, LocalDateTime.now());
+        if (touchedConversations != null) {
+            touchedConversations.put(conversationId, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 去抖窗口内已写过会话行的对话，在本事务中只把版本号加 1，其他节点按版本号追加时立即看到这次改写；
+     * 标题、最后消息、消息数和最后消息时间提交后暂存，由后台线程批量写入；
+     * 批量写入时按最后消息时间判断，不会覆盖其间其他保存立即写入的更新结果
+     *
+     * @return 已暂存返回 true；不在去抖窗口内或会话行不存在时返回 false，由调用方立即写入
      */
-    private void ensureConversationExists(String conversationId) {
-        LambdaQueryWrapper<ChatConversation> wrapper = new LambdaQueryWrapper<>();
-        wrapper.eq(ChatConversation::getConversationId, conversationId)
-                .eq(ChatConversation::getDeleted, 0);
+    private boolean deferActivity(String conversationId, List<Message> messages, boolean rewritten) {
+        if (touchedConversations == null || touchedConversations.getIfPresent(conversationId) == null
+                || conversationMapper.bumpVersion(conversationId, rewritten) == 0) {
+            return false;
+        }
+
+        stageActivity(newActivity(conversationId, messages).setMessageCount(messages.size()));
+        return true;
+    }
+
+    /**
+     * 去抖窗口内的追加不读也不写会话行，列表字段和追加条数提交后暂存；版本号不变
+     * 会话行由窗口内第一次写入创建或恢复，删除时去抖集合随之失效，下一次追加重新写会话行
+     *
+     * @return 已暂存返回 true；不在去抖窗口内时返回 false，由调用方立即写入
+     */
+    private boolean deferAppendActivity(String conversationId, List<Message> messages) {
+        if (touchedConversations == null || touchedConversations.getIfPresent(conversationId) == null) {
+            return false;
+        }
+        stageActivity(newActivity(conversationId, messages).setAppendedCount(messages.size()));
+        return true;
+    }
 
-        ChatConversation existing = conversationMapper.selectOne(wrapper);
-        if (existing == null) {
-            ChatConversation conversation = new ChatConversation();
-            conversation.setConversationId(conversationId);
-            conversation.setCreateTime(LocalDateTime.now());
-            conversation.setUpdateTime(LocalDateTime.now());
-            conversation.setDeleted(0);
+    private static ConversationActivity newActivity(String conversationId, List<Message> messages) {
+        return new ConversationActivity()
+                .setConversationId(conversationId)
+                .setTitle(sessionTitle(messages))
+                .setPreview(abbreviate(messages.get(messages.size() - 1).getText(), PREVIEW_MAX_LENGTH))
+                .setAppendedCount(0)
+                .setLastMessageTime(LocalDateTime.now());
+    }
 
-            conversationMapper.insert(conversation);
-            log.debug("创建新的对话记录: conversationId={}", conversationId);
+    /**
+     * 提交后放入暂存，回滚时不留下没有写入的变化；没有事务同步时直接放入
+     * 放入时行锁已释放，与其间立即写入的会话行之间的先后由批量 UPDATE 按最后消息时间判断
+     */
+    private void stageActivity(ConversationActivity activity) {
+        String conversationId = activity.getConversationId();
+        Runnable stage = () -> pendingActivity.merge(conversationId, activity, ConversationActivity::merge);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    stage.run();
+                }
+            });
         } else {
-            // 更新最后活跃时间
-            existing.setUpdateTime(LocalDateTime.now());
-            conversationMapper.updateById(existing);
-            log.debug("更新对话记录时间: conversationId={}", conversationId);
+            stage.run();
+        }
+    }
+
+    /**
+     * 写入单个对话暂存的会话变化，调用方负责路由到对话所在分片
+     */
+    private void writePendingActivity(String conversationId) {
+        ConversationActivity activity = pendingActivity.remove(conversationId);
+        if (activity != null) {
+            conversationMapper.updateConversationActivity(List.of(activity), LocalDateTime.now());
+        }
+    }
+
+    /**
+     * 批量写入全部暂存的会话变化，按分片分组，每条 UPDATE 覆盖一批对话
+     * 写入失败的变化放回暂存，与其间新暂存的变化合并后下次重试
+     */
+    void flushPendingActivity() {
+        if (pendingActivity.isEmpty()) {
+            return;
+        }
+
+        List<ConversationActivity> drained = new ArrayList<>();
+        for (String conversationId : new ArrayList<>(pendingActivity.keySet())) {
+            ConversationActivity activity = pendingActivity.remove(conversationId);
+            if (activity != null) {
+                drained.add(activity);
+            }
+        }
+        Map<String, ConversationActivity> byId = drained.stream()
+                .collect(Collectors.toMap(ConversationActivity::getConversationId, activity -> activity));
+        shardRouter.groupByShard(byId.keySet()).forEach((shard, shardIds) -> {
+            for (int from = 0; from < shardIds.size(); from += ACTIVITY_FLUSH_CHUNK_SIZE) {
+                List<ConversationActivity> chunk = shardIds.subList(from, Math.min(from + ACTIVITY_FLUSH_CHUNK_SIZE, shardIds.size()))
+                        .stream()
+                        .map(byId::get)
+                        .toList();
+                try {
+                    shardRouter.onShard(shard, () -> conversationMapper.updateConversationActivity(chunk, LocalDateTime.now()));
+                } catch (RuntimeException e) {
+                    log.warn("批量写入会话变化失败, 下次重试: shard={}, count={}", shard, chunk.size(), e);
+                    chunk.forEach(activity -> pendingActivity.merge(activity.getConversationId(), activity,
+                            (current, failed) -> failed.merge(current)));
+                }
+            }
+        });
+        log.debug("批量写入会话变化: count={}", drained.size());
+    }
+
+    /**
+     * 以第一条用户消息作为会话标题，没有用户消息时返回 null
+     */
+    private static String sessionTitle(List<Message> messages) {
+        return messages.stream()
+                .filter(message -> message instanceof UserMessage)
+                .map(message -> abbreviate(message.getText(), TITLE_MAX_LENGTH))
+                .filter(title -> title != null && !title.isEmpty())
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * 合并空白并截断，超出部分以 ... 结尾
+     */
+    private static String abbreviate(String text, int maxLength) {
+        if (text == null) {
+            return null;
+        }
+        String content = text.replaceAll("\\s+", " ").trim();
+        return content.length() <= maxLength ? content : content.substring(0, maxLength) + "...";
+    }
+
+    /**
+     * 会话行可能已回滚或被删除，下次保存时重新写入
+     */
+    private void forgetTouched(String conversationId) {
+        if (touchedConversations != null) {
+            touchedConversations.invalidate(conversationId);
         }
     }
 
     /**
      * 删除现有消息（逻辑删除）
+     *
+     * @param fromOrder 起始顺序号（包含），为 null 时不限制
+     * @param toOrder   结束顺序号（不包含），为 null 时不限制
      */
-    private void deleteExistingMessages(String conversationId) {
+    private void deleteExistingMessages(String conversationId, Integer fromOrder, Integer toOrder) {
         LambdaUpdateWrapper<ChatMessage> updateWrapper = new LambdaUpdateWrapper<>();
         updateWrapper.eq(ChatMessage::getConversationId, conversationId)
                 .eq(ChatMessage::getDeleted, 0)
+                .ge(fromOrder != null, ChatMessage::getMessageOrder, fromOrder)
+                .lt(toOrder != null, ChatMessage::getMessageOrder, toOrder)
                 .set(ChatMessage::getDeleted, 1);
 
         int updatedCount = messageMapper.update(null, updateWrapper);
@@ -259,19 +1227,177 @@ public class MysqlBasedChatMemoryRepository implements ChatMemoryRepository {
 
     /**
      * 保存消息列表
+     * 按 batchSize 分批使用多行 INSERT，每批一次网络往返
+     *
+     * @param startOrder 第一条消息的顺序号
+     * @return 新插入消息的主键
+     */
+    private List<Long> saveMessages(String conversationId, List<Message> messages, int startOrder) {
+        return saveMessages(conversationId, messages, startOrder, null);
+    }
+
+    /**
+     * 保存消息并记录写入它们的请求ID
+     *
+     * @param requestId 请求ID，可为 null
      */
-    private void saveMessages(String conversationId, List<Message> messages) {
+    private List<Long> saveMessages(String conversationId, List<Message> messages, int startOrder, String requestId) {
+        if (messages.isEmpty()) {
+            return List.of();
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        List<ChatMessage> entities = new ArrayList<>(messages.size());
         for (int i = 0; i < messages.size(); i++) {
-            Message message = messages.get(i);
-            ChatMessage entity = MessageConverter.toEntity(message, conversationId, i);
-            entity.setCreateTime(LocalDateTime.now());
+            ChatMessage entity = MessageConverter.toEntity(messages.get(i), conversationId, startOrder + i);
+            // 内容哈希已按明文算好，再按阈值压缩
+            MessageContentCodec.encode(entity, contentCodec, compressionThresholdBytes);
+            entity.setRequestId(requestId);
+            entity.setCreateTime(now);
             entity.setDeleted(0);
+            entities.add(entity);
+        }
 
-            messageMapper.insert(entity);
-            log.debug("保存消息: conversationId={}, order={}, type={}",
-                    conversationId, i, entity.getMessageType());
+        for (int from = 0; from < entities.size(); from += batchSize) {
+            List<ChatMessage> batch = entities.subList(from, Math.min(from + batchSize, entities.size()));
+            messageMapper.insertBatch(batch);
+            log.debug("批量保存消息: conversationId={}, orders=[{}, {}]", conversationId,
+                    batch.get(0).getMessageOrder(), batch.get(batch.size() - 1).getMessageOrder());
         }
         log.debug("成功保存 {} 条消息", messages.size());
+        return entities.stream().map(ChatMessage::getId).filter(Objects::nonNull).toList();
+    }
+
+    /**
+     * 把长期不活跃的对话移入冷存储
+     * 锁定会话行后再次确认仍在 chat_message 中且最后消息时间早于 idleBefore，
+     * 把有效消息写入冷存储文件后物理删除，会话行保留（列表字段、消息数和 update_time 不变）
+     *
+     * @param conversationId 对话ID
+     * @param idleBefore     最后消息时间上限（不包含）
+     * @return 是否移出
+     */
+    public boolean moveToColdStorage(String conversationId, LocalDateTime idleBefore) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        Assert.notNull(idleBefore, "idleBefore cannot be null");
+
+        boolean[] moved = new boolean[1];
+        Runnable move = () -> moved[0] = Boolean.TRUE.equals(shardRouter.route(conversationId,
+                () -> transactionTemplate.execute(status -> doMoveToColdStorage(conversationId, idleBefore))));
+        if (writeBehind == null) {
+            move.run();
+        } else {
+            // 先落库未刷盘的快照，刷盘会更新最后消息时间，对话不再满足移出条件
+            writeBehind.flushAndRun(conversationId, move);
+        }
+
+        if (moved[0]) {
+            fingerprints.invalidate(conversationId);
+            invalidateCache(conversationId);
+            publishChange(conversationId, List.of());
+        }
+        return moved[0];
+    }
+
+    /**
+     * 移出对话，调用方负责事务
+     * 冷存储文件在删除行之前写好；事务回滚时文件残留，但层级仍为热数据，不会被读取
+     */
+    private boolean doMoveToColdStorage(String conversationId, LocalDateTime idleBefore) {
+        ChatConversation locked = conversationMapper.lockStorageTier(conversationId);
+        if (locked == null || !Objects.equals(locked.getStorageTier(), STORAGE_TIER_HOT)
+                || locked.getLastMessageTime() == null || !locked.getLastMessageTime().isBefore(idleBefore)) {
+            return false;
+        }
+        List<ChatMessage> rows = messageMapper.findByConversationIdOrderByOrder(conversationId);
+        if (rows.isEmpty()) {
+            return false;
+        }
+
+        coldStore.write(conversationId, rows);
+        int deleted = messageMapper.deleteActiveByConversationId(conversationId);
+        conversationMapper.updateStorageTier(conversationId, STORAGE_TIER_COLD);
+        log.info("对话已移入冷存储: conversationId={}, messages={}, lastMessageTime={}",
+                conversationId, deleted, locked.getLastMessageTime());
+        return true;
+    }
+
+    /**
+     * 对话在冷存储中时回迁到 chat_message
+     *
+     * 从从库读取时调用也在主库上执行，回迁后的对话一段时间内从主库读取
+     *
+     * @return 对话此前是否在冷存储中，为 true 时调用方应在主库上重新查询
+     */
+    public boolean rehydrate(String conversationId) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        boolean rehydrated = readWriteRouter.onPrimary(() -> shardRouter.route(conversationId, () -> {
+            // 先做不加锁的检查，热对话和不存在的对话不开事务
+            Integer tier = conversationMapper.findStorageTier(conversationId);
+            if (tier == null || tier != STORAGE_TIER_COLD) {
+                return false;
+            }
+            // 回迁不改变对话内容（顺序号不变），指纹和缓存无需失效
+            return Boolean.TRUE.equals(transactionTemplate.execute(status -> rehydrateIfCold(conversationId)));
+        }));
+        if (rehydrated) {
+            readWriteRouter.markWritten(conversationId);
+        }
+        return rehydrated;
+    }
+
+    /**
+     * 回迁冷存储中的对话，调用方负责事务
+     * 消息按原顺序号和创建时间写回（落在原来的分区），冷存储文件在事务提交后删除
+     *
+     * @return 对话此前是否在冷存储中
+     */
+    private boolean rehydrateIfCold(String conversationId) {
+        Integer tier = conversationMapper.findStorageTier(conversationId);
+        if (tier == null || tier != STORAGE_TIER_COLD) {
+            return false;
+        }
+        // 加锁后再次确认，并发的回迁只有一个写入；其他事务已回迁时同样返回 true，由调用方重新查询
+        ChatConversation locked = conversationMapper.lockStorageTier(conversationId);
+        if (locked == null || !Objects.equals(locked.getStorageTier(), STORAGE_TIER_COLD)) {
+            return true;
+        }
+
+        List<ChatMessage> rows = coldStore.read(conversationId);
+        LocalDateTime now = LocalDateTime.now();
+        for (ChatMessage row : rows) {
+            if (row.getCreateTime() == null) {
+                row.setCreateTime(now);
+            }
+            MessageContentCodec.encode(row, contentCodec, compressionThresholdBytes);
+        }
+        for (int from = 0; from < rows.size(); from += batchSize) {
+            messageMapper.insertBatch(rows.subList(from, Math.min(from + batchSize, rows.size())));
+        }
+        conversationMapper.updateStorageTier(conversationId, STORAGE_TIER_HOT);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    coldStore.delete(conversationId);
+                }
+            });
+        }
+        log.info("对话已从冷存储回迁: conversationId={}, messages={}", conversationId, rows.size());
+        return true;
+    }
+
+    /**
+     * 查询结果为空时检查对话是否在冷存储中，是则回迁后重新查询
+     * 热对话只多一次按对话ID的主键查询，且只在结果为空时发生
+     */
+    private <T> List<T> readThroughColdTier(String conversationId, Supplier<List<T>> query) {
+        List<T> rows = query.get();
+        if (rows.isEmpty() && rehydrate(conversationId)) {
+            rows = readWriteRouter.onPrimary(query);
+        }
+        return rows;
     }
 
     /**
@@ -284,14 +1410,20 @@ public class MysqlBasedChatMemoryRepository implements ChatMemoryRepository {
         wrapper.eq(ChatMessage::getConversationId, conversationId)
                 .eq(ChatMessage::getDeleted, 0);
 
-        return messageMapper.selectCount(wrapper);
+        return shardRouter.route(conversationId, () -> {
+            long count = messageMapper.selectCount(wrapper);
+            if (count == 0 && rehydrate(conversationId)) {
+                count = readWriteRouter.onPrimary(() -> messageMapper.selectCount(wrapper));
+            }
+            return count;
+        });
     }
 
     /**
      * 清除指纹缓存（用于测试或维护）
      */
     public void clearFingerprintCache() {
-        lastSavedFingerprint.clear();
+        fingerprints.invalidateAll();
         log.info("已清除指纹缓存");
     }
 
@@ -299,11 +1431,86 @@ public class MysqlBasedChatMemoryRepository implements ChatMemoryRepository {
      * 获取缓存统计信息
      */
     public void printCacheStats() {
+        CacheStats stats = fingerprints.stats();
+        long hashCount = fingerprints.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0L))
+                .orElse(0L);
         log.info("=== 指纹缓存统计 ===");
-        log.info("缓存的对话数: {}", lastSavedFingerprint.size());
-        lastSavedFingerprint.forEach((conversationId, fingerprint) ->
-                log.info("  {} -> {}", conversationId.substring(0, 8), fingerprint)
+        log.info("缓存的对话数: {}, 哈希条数: {}, 命中率: {}%, 淘汰: {}", fingerprints.estimatedSize(), hashCount,
+                String.format("%.2f", stats.hitRate() * 100), stats.evictionCount());
+        fingerprints.asMap().forEach((conversationId, fingerprint) ->
+                log.info("  {} -> {} ({} 条)", conversationId.substring(0, Math.min(8, conversationId.length())),
+                        Long.toHexString(fingerprint.combined()), fingerprint.size())
         );
         log.info("===================");
     }
-}
\ No newline at end of file
+
+    /**
+     * 估算对话在缓存中占用的字节数
+     */
+    private static int estimateWeight(List<Message> messages) {
+        long weight = 0;
+        for (Message message : messages) {
+            String text = message.getText();
+            weight += MESSAGE_OVERHEAD_BYTES + (text != null ? text.length() * 2L : 0);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, weight));
+    }
+
+    /**
+     * 使单个对话的缓存失效
+     */
+    public void invalidateCache(String conversationId) {
+        if (cache != null) {
+            cache.invalidate(conversationId);
+        }
+    }
+
+    /**
+     * 获取缓存统计信息
+     */
+    public String getCacheStats() {
+        if (cache == null) {
+            return "Cache disabled";
+        }
+
+        CacheStats stats = cache.stats();
+        long weightedSize = cache.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0L))
+                .orElse(0L);
+
+        return String.format("Cache: %d conversations, %d bytes (estimated), hits: %d, misses: %d, hit rate: %.2f%%, evictions: %d",
+                cache.estimatedSize(), weightedSize, stats.hitCount(), stats.missCount(),
+                stats.hitRate() * 100, stats.evictionCount());
+    }
+
+    /**
+     * 获取写后缓冲区统计信息
+     */
+    public String getWriteBehindStats() {
+        return writeBehind != null ? writeBehind.getStats() : "WriteBehind disabled";
+    }
+
+    /**
+     * 关闭时刷写写后缓冲区中的全部快照，再写入暂存的会话变化
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+            log.info("写后缓冲区已刷盘关闭: {}", writeBehind.getStats());
+        }
+        if (activityFlusher != null) {
+            activityFlusher.shutdown();
+            try {
+                activityFlusher.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flushPendingActivity();
+            if (!pendingActivity.isEmpty()) {
+                log.error("关闭时仍有 {} 个对话的会话变化未能写入", pendingActivity.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * MySQL 聊天记忆配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "chat.memory.mysql")
+public class MysqlChatMemoryProperties {
+
+    /**
+     * 多行 INSERT 每批消息数
+     */
+    private int batchSize = 100;
+
+    /**
+     * 指纹缓存最多保存的消息哈希条数（所有对话合计），超过后按对话淘汰
+     */
+    private long fingerprintMaxHashes = 1_000_000;
+
+    /**
+     * 会话行的去抖窗口（秒），为 0 时每次保存都立即写会话行
+     * <p>
+     * 窗口内同一对话只完整写一次会话行：消息未变化的保存不再刷新 update_time；
+     * 消息有变化的保存在本事务中只把版本号（和改写次数）加 1，按版本号追加在任何节点上都能立即发现这次改写；
+     * 不带版本号的 appendMessages 在窗口内完全不读写会话行，版本号不变，顺序号由消息表上的锁定读分配。
+     * 标题、最后消息、消息数和最后消息时间暂存后每个窗口批量写入一次，省去列表索引在每轮对话上的维护。
+     * 代价是会话列表最多滞后一个窗口；窗口外的保存和追加、按版本号追加会先写入暂存的变化。
+     * 节点崩溃时丢失暂存的列表字段，消息和版本号已落库，下一次完整写会话行时列表字段恢复正确
+     */
+    private long conversationTouchDebounceSeconds = 30;
+
+    /**
+     * 启动时是否回填已有对话的会话列表字段（标题、最后消息、消息数）
+     */
+    private boolean backfillOnStartup = true;
+
+    /**
+     * 回填时每条 UPDATE 覆盖的对话主键范围
+     */
+    private int backfillBatchSize = 500;
+
+    /**
+     * 批量删除对话时每条 IN (...) 更新包含的对话数
+     */
+    private int deleteChunkSize = 500;
+
+    /**
+     * 按版本号追加消息时，版本冲突后合并重试的最大次数
+     */
+    private int appendMaxRetries = 3;
+
+    /**
+     * 写后缓冲配置
+     */
+    private WriteBehind writeBehind = new WriteBehind();
+
+    /**
+     * 本地缓存配置
+     */
+    private Cache cache = new Cache();
+
+    /**
+     * 按 token 预算裁剪历史的配置
+     */
+    private TokenBudget tokenBudget = new TokenBudget();
+
+    /**
+     * 逻辑删除行的定期清理配置
+     */
+    private Purge purge = new Purge();
+
+    /**
+     * 冷热分层配置
+     */
+    private Tiering tiering = new Tiering();
+
+    /**
+     * chat_message 分区维护配置
+     */
+    private Partition partition = new Partition();
+
+    /**
+     * 消息内容压缩配置
+     */
+    private Compression compression = new Compression();
+
+    @Data
+    public static class WriteBehind {
+
+        /**
+         * 是否开启写后模式，关闭时 saveAll 同步写库
+         */
+        private boolean enabled = false;
+
+        /**
+         * 最多缓冲的对话数，超过后写入方等待
+         */
+        private int capacity = 1000;
+
+        /**
+         * 每次刷盘最多合并的对话数
+         */
+        private int maxBatchSize = 50;
+
+        /**
+         * 后台刷盘间隔（毫秒）
+         */
+        private long flushIntervalMillis = 200;
+
+        /**
+         * 缓冲区满时的最长等待（毫秒），超时后改为同步写库
+         */
+        private long offerTimeoutMillis = 2000;
+    }
+
+    @Data
+    public static class Cache {
+
+        /**
+         * 是否开启 findByConversationId 的本地缓存
+         */
+        private boolean enabled = true;
+
+        /**
+         * 缓存占用上限（按消息文本估算的字节数）
+         */
+        private long maxWeightBytes = 64L * 1024 * 1024;
+
+        /**
+         * 写入后过期时间（秒），多节点时作为失效通知遗漏的兜底
+         */
+        private long expireAfterWriteSeconds = 600;
+
+        /**
+         * 失效通知方式：local（单节点）或 jdbc（轮询数据库）
+         */
+        private String invalidation = "local";
+
+        /**
+         * jdbc 方式的轮询间隔（毫秒）
+         */
+        private long pollIntervalMillis = 1000;
+    }
+
+    @Data
+    public static class TokenBudget {
+
+        /**
+         * 每轮发送给模型的历史消息（含摘要）token 上限
+         */
+        private int maxTokens = 2000;
+
+        /**
+         * 每轮最多读取的最近消息数
+         */
+        private int maxCandidates = 50;
+
+        /**
+         * 统计节省 token 的基准窗口：被替换的固定窗口记忆每轮发送的最近消息数
+         */
+        private int baselineMessages = 20;
+
+        /**
+         * 每次生成摘要最多折叠的消息数
+         */
+        private int maxFoldMessages = 200;
+
+        /**
+         * 后台生成摘要的线程数
+         */
+        private int summaryThreads = 2;
+
+        /**
+         * 等待生成摘要的最大对话数，超过后本轮放弃，下一轮再提交
+         */
+        private int summaryQueueCapacity = 100;
+    }
+
+    @Data
+    public static class Purge {
+
+        /**
+         * 是否定期清理逻辑删除的消息和对话
+         */
+        private boolean enabled = true;
+
+        /**
+         * 执行时间（cron 表达式），由 ChatMessagePurgeJob 的 @Scheduled 读取
+         */
+        private String cron = "0 30 3 * * *";
+
+        /**
+         * 保留天数，消息按创建时间、对话按删除时的更新时间计算
+         */
+        private int retentionDays = 7;
+
+        /**
+         * 清理方式：delete 直接物理删除；archive 先复制到 chat_message_archive 再删除（只归档消息）
+         */
+        private String mode = "delete";
+
+        /**
+         * 每个事务删除的行数
+         */
+        private int batchSize = 500;
+
+        /**
+         * 两批之间的暂停时间（毫秒），限制清理对线上写入的影响
+         */
+        private long pauseMillis = 100;
+
+        /**
+         * 每次执行最多处理的批数，剩余部分留到下次
+         */
+        private int maxBatchesPerRun = 2000;
+    }
+
+    @Data
+    public static class Tiering {
+
+        /**
+         * 是否把长期不活跃的对话移入冷存储；关闭时已在冷存储中的对话仍会在访问时回迁
+         */
+        private boolean enabled = false;
+
+        /**
+         * 执行时间（cron 表达式），由 ChatMessageTieringJob 的 @Scheduled 读取
+         */
+        private String cron = "0 0 4 * * *";
+
+        /**
+         * 冷存储目录，多节点部署时需要是共享存储
+         */
+        private String coldStoragePath = "./chat-memory-cold";
+
+        /**
+         * 最后消息时间早于该天数的对话移入冷存储
+         */
+        private int idleDays = 90;
+
+        /**
+         * 每次查询的候选对话数
+         */
+        private int batchSize = 100;
+
+        /**
+         * 两批之间的暂停时间（毫秒）
+         */
+        private long pauseMillis = 100;
+
+        /**
+         * 每次执行最多移出的对话数，剩余部分留到下次
+         */
+        private int maxConversationsPerRun = 10000;
+    }
+
+    @Data
+    public static class Partition {
+
+        /**
+         * 是否维护 chat_message 的按月分区；表未分区时不做任何操作
+         */
+        private boolean enabled = true;
+
+        /**
+         * 执行时间（cron 表达式），启动时也会执行一次
+         */
+        private String cron = "0 0 2 * * *";
+
+        /**
+         * 提前创建的月份数，从当前月开始计算
+         */
+        private int monthsAhead = 3;
+    }
+
+    @Data
+    public static class Compression {
+
+        /**
+         * 是否压缩新写入的长消息；关闭后已压缩的行仍按各自的 content_codec 读取
+         */
+        private boolean enabled = false;
+
+        /**
+         * 压缩算法：lz4 或 deflate
+         */
+        private String algorithm = "lz4";
+
+        /**
+         * 内容 UTF-8 字节数达到该值时压缩
+         */
+        private int thresholdBytes = 1024;
+    }
+}
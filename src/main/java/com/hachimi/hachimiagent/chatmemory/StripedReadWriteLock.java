@@ -0,0 +1,67 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 按对话ID分段的读写锁
+ * 不同对话落在不同分段上时互不阻塞，跨对话操作通过 {@link #lockAll()} 按固定顺序获取全部分段
+ */
+class StripedReadWriteLock {
+
+    private final ReadWriteLock[] stripes;
+
+    StripedReadWriteLock(int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+        }
+        // 向上取整为 2 的幂，方便用位运算取模
+        int size = Integer.highestOneBit(stripeCount - 1) << 1;
+        if (stripeCount == 1) {
+            size = 1;
+        }
+        this.stripes = new ReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * 获取指定对话所在分段的锁
+     */
+    ReadWriteLock get(String conversationId) {
+        return stripes[indexFor(conversationId)];
+    }
+
+    /**
+     * 计算对话所在的分段下标
+     */
+    int indexFor(String conversationId) {
+        int h = conversationId.hashCode();
+        // 扰动一下，避免相近的ID集中在同一分段
+        h ^= (h >>> 16);
+        return h & (stripes.length - 1);
+    }
+
+    /**
+     * 按下标顺序获取所有分段的写锁，固定顺序避免死锁
+     */
+    void lockAll() {
+        for (ReadWriteLock stripe : stripes) {
+            stripe.writeLock().lock();
+        }
+    }
+
+    /**
+     * 逆序释放所有分段的写锁
+     */
+    void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].writeLock().unlock();
+        }
+    }
+
+    int size() {
+        return stripes.length;
+    }
+}
@@ -0,0 +1,47 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.util.Assert;
+
+import java.util.List;
+
+/**
+ * 基于尾部窗口查询的聊天记忆
+ * <p>
+ * 与 MessageWindowChatMemory 每轮读取整个对话再整体保存不同：
+ * 读取时只查询最后 maxMessages 条，写入时只追加新消息，读写成本都不随对话长度增长。
+ * 完整历史保留在数据库中，可供历史记录接口查询。
+ */
+public class TailWindowChatMemory implements ChatMemory {
+
+    private final MysqlBasedChatMemoryRepository repository;
+
+    private final int maxMessages;
+
+    public TailWindowChatMemory(MysqlBasedChatMemoryRepository repository, int maxMessages) {
+        Assert.notNull(repository, "repository cannot be null");
+        Assert.isTrue(maxMessages > 0, "maxMessages must be positive");
+        this.repository = repository;
+        this.maxMessages = maxMessages;
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        Assert.notNull(messages, "messages cannot be null");
+        repository.appendMessages(conversationId, messages);
+    }
+
+    @Override
+    public List<Message> get(String conversationId) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        return repository.findLastMessages(conversationId, maxMessages);
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        repository.deleteByConversationId(conversationId);
+    }
+}
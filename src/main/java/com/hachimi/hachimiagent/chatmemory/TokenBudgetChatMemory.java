@@ -0,0 +1,174 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hachimi.hachimiagent.common.MessageConverter;
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按 token 预算裁剪历史的聊天记忆
+ * <p>
+ * 每轮读取最近 maxCandidates 条消息，从最新一条往前保留，直到摘要加消息的 token 数达到 maxTokens。
+ * 放不下的较早消息交给 {@link ConversationSummarizer} 在后台折叠进滚动摘要，摘要以系统消息放在历史最前面；
+ * 摘要尚未生成时这些消息只是暂不发送，请求线程不等待模型。
+ * <p>
+ * 指标：
+ * <ul>
+ *     <li>chat.memory.prompt.tokens{type=sent}：本轮实际发送的历史 token 数（含摘要）</li>
+ *     <li>chat.memory.prompt.tokens{type=baseline}：不做裁剪、直接发送最近 baselineMessages 条消息（被替换的固定窗口）的 token 数</li>
+ *     <li>chat.memory.prompt.tokens.saved：两者之差</li>
+ *     <li>chat.memory.summary.requests：提交的摘要任务数</li>
+ * </ul>
+ */
+@Slf4j
+public class TokenBudgetChatMemory implements ChatMemory {
+
+    static final String SUMMARY_PREFIX = "以下是此前对话的摘要，供你参考：\n";
+
+    // 消息内容哈希 -> token 数，最近的消息每轮都会重新计算
+    private static final int TOKEN_COUNT_CACHE_MAX_SIZE = 100_000;
+
+    private final MysqlBasedChatMemoryRepository repository;
+    private final ConversationSummarizer summarizer;
+    private final TokenCountEstimator tokenCountEstimator;
+    private final int maxTokens;
+    private final int maxCandidates;
+    private final int baselineMessages;
+
+    private final Cache<Long, Integer> tokenCounts = Caffeine.newBuilder()
+            .maximumSize(TOKEN_COUNT_CACHE_MAX_SIZE)
+            .build();
+
+    private final DistributionSummary sentTokens;
+    private final DistributionSummary baselineTokens;
+    private final DistributionSummary savedTokens;
+    private final Counter summaryRequests;
+
+    public TokenBudgetChatMemory(MysqlBasedChatMemoryRepository repository,
+                                 ConversationSummarizer summarizer,
+                                 TokenCountEstimator tokenCountEstimator,
+                                 MeterRegistry meterRegistry,
+                                 int maxTokens, int maxCandidates, int baselineMessages) {
+        Assert.notNull(repository, "repository cannot be null");
+        Assert.notNull(summarizer, "summarizer cannot be null");
+        Assert.notNull(tokenCountEstimator, "tokenCountEstimator cannot be null");
+        Assert.isTrue(maxTokens > 0, "maxTokens must be positive");
+        Assert.isTrue(maxCandidates > 0, "maxCandidates must be positive");
+        Assert.isTrue(baselineMessages > 0, "baselineMessages must be positive");
+        this.repository = repository;
+        this.summarizer = summarizer;
+        this.tokenCountEstimator = tokenCountEstimator;
+        this.maxTokens = maxTokens;
+        this.maxCandidates = maxCandidates;
+        this.baselineMessages = baselineMessages;
+
+        this.sentTokens = DistributionSummary.builder("chat.memory.prompt.tokens")
+                .description("每轮发送给模型的历史 token 数")
+                .tag("type", "sent")
+                .register(meterRegistry);
+        this.baselineTokens = DistributionSummary.builder("chat.memory.prompt.tokens")
+                .description("每轮发送给模型的历史 token 数")
+                .tag("type", "baseline")
+                .register(meterRegistry);
+        this.savedTokens = DistributionSummary.builder("chat.memory.prompt.tokens.saved")
+                .description("按 token 预算裁剪后每轮节省的历史 token 数")
+                .register(meterRegistry);
+        this.summaryRequests = Counter.builder("chat.memory.summary.requests")
+                .description("提交的对话摘要任务数")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void add(String conversationId, List<Message> messages) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        Assert.notNull(messages, "messages cannot be null");
+        repository.appendMessages(conversationId, messages);
+    }
+
+    @Override
+    public List<Message> get(String conversationId) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+
+        ConversationSummary summary = repository.findSummary(conversationId);
+        List<ChatMessage> rows = repository.findLastMessageRows(conversationId, maxCandidates);
+
+        // 1. 摘要已覆盖的消息不再发送
+        int firstUncovered = 0;
+        while (firstUncovered < rows.size() && rows.get(firstUncovered).getMessageOrder() < summary.coveredOrder()) {
+            firstUncovered++;
+        }
+
+        // 2. 从最新一条往前保留，至少保留最新一条
+        int summaryTokens = summary.isEmpty() ? 0 : tokenCountEstimator.estimate(SUMMARY_PREFIX + summary.text());
+        int budget = maxTokens - summaryTokens;
+        int baseline = 0;
+        int used = 0;
+        int keepFrom = rows.size();
+        // 基准只统计最近 baselineMessages 条，候选不足时按实际条数
+        int baselineFrom = Math.max(0, rows.size() - baselineMessages);
+        boolean fitting = true;
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            int tokens = tokens(rows.get(i));
+            if (i >= baselineFrom) {
+                baseline += tokens;
+            }
+            if (fitting && i >= firstUncovered && (used + tokens <= budget || keepFrom == rows.size())) {
+                used += tokens;
+                keepFrom = i;
+            } else {
+                fitting = false;
+            }
+        }
+        // 历史从用户消息开始，开头落单的助手回复一并折叠
+        while (keepFrom < rows.size() - 1 && !"USER".equals(rows.get(keepFrom).getMessageType())) {
+            used -= tokens(rows.get(keepFrom));
+            keepFrom++;
+        }
+
+        // 3. 有未发送且未折叠的消息时，后台更新摘要
+        if (keepFrom > firstUncovered || (firstUncovered == 0 && rows.size() == maxCandidates)) {
+            int upToOrder = rows.get(keepFrom).getMessageOrder();
+            if (upToOrder > summary.coveredOrder() && summarizer.requestSummary(conversationId, summary, upToOrder)) {
+                summaryRequests.increment();
+            }
+        }
+
+        List<Message> messages = new ArrayList<>(rows.size() - keepFrom + 1);
+        if (!summary.isEmpty()) {
+            messages.add(new SystemMessage(SUMMARY_PREFIX + summary.text()));
+        }
+        for (int i = keepFrom; i < rows.size(); i++) {
+            messages.add(MessageConverter.toMessage(rows.get(i)));
+        }
+
+        int sent = summaryTokens + used;
+        sentTokens.record(sent);
+        baselineTokens.record(baseline);
+        savedTokens.record(Math.max(0, baseline - sent));
+        log.debug("按 token 预算裁剪历史: conversationId={}, candidates={}, kept={}, sentTokens={}, baselineTokens={}",
+                conversationId, rows.size(), rows.size() - keepFrom, sent, baseline);
+        return messages;
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        repository.deleteByConversationId(conversationId);
+    }
+
+    private int tokens(ChatMessage row) {
+        return tokenCounts.get(MessageConverter.contentHash(row), hash -> tokenCountEstimator.estimate(row.getContent()));
+    }
+}
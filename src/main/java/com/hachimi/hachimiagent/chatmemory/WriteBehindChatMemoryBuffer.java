@@ -0,0 +1,303 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * 聊天记忆写后缓冲区
+ * <p>
+ * 按对话合并写入：同一对话在刷盘前的多次保存只保留最新的快照；
+ * 后台线程定时把多个对话的快照合并成一批交给 batchWriter 写入。
+ * <ul>
+ *     <li>读己之写：刷盘完成前可以从 pending / inFlight 中读到最新快照</li>
+ *     <li>背压：待写对话数达到上限时，调用方最多等待 offerTimeoutMillis，超时返回 false 由调用方同步写入</li>
+ *     <li>刷盘和同步写入只锁定涉及对话所在的分段锁，同一对话的快照按保存顺序落库，不同对话互不等待</li>
+ * </ul>
+ */
+@Slf4j
+class WriteBehindChatMemoryBuffer {
+
+    // 等待刷盘的最新快照
+    private final Map<String, List<Message>> pending = new ConcurrentHashMap<>();
+
+    // 正在写入数据库的快照，提交后移除
+    private final Map<String, List<Message>> inFlight = new ConcurrentHashMap<>();
+
+    // 待刷盘对话的先后顺序
+    private final ConcurrentLinkedQueue<String> dirtyQueue = new ConcurrentLinkedQueue<>();
+
+    // 每个待写对话占用一个许可
+    private final Semaphore permits;
+
+    // 串行化后台线程和关闭时的批量刷盘
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    // 对话锁分段数
+    private static final int LOCK_STRIPES = 256;
+
+    // 按对话ID分段的锁，批量刷盘与同一对话的同步写入、追加在此互斥
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+
+    private final Consumer<Map<String, List<Message>>> batchWriter;
+    private final int maxBatchSize;
+    private final long offerTimeoutMillis;
+    private final ScheduledExecutorService flusher;
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong failedFlushCount = new AtomicLong();
+
+    WriteBehindChatMemoryBuffer(Consumer<Map<String, List<Message>>> batchWriter,
+                                int capacity, int maxBatchSize,
+                                long flushIntervalMillis, long offerTimeoutMillis) {
+        this.batchWriter = batchWriter;
+        this.permits = new Semaphore(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-memory-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 放入最新快照
+     *
+     * @return 放入成功返回 true；缓冲区已满且等待超时返回 false
+     */
+    boolean offer(String conversationId, List<Message> messages) throws InterruptedException {
+        List<Message> snapshot = List.copyOf(messages);
+
+        // 已有待写快照时直接替换，不占用新的许可
+        if (pending.computeIfPresent(conversationId, (id, old) -> snapshot) != null) {
+            coalescedCount.incrementAndGet();
+            return true;
+        }
+        if (!permits.tryAcquire(offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        if (pending.put(conversationId, snapshot) != null) {
+            // 并发放入的快照已占用许可
+            permits.release();
+            coalescedCount.incrementAndGet();
+        } else {
+            dirtyQueue.add(conversationId);
+        }
+        return true;
+    }
+
+    /**
+     * 读取尚未落库的最新快照，没有时返回 null
+     */
+    List<Message> get(String conversationId) {
+        List<Message> snapshot = pending.get(conversationId);
+        return snapshot != null ? snapshot : inFlight.get(conversationId);
+    }
+
+    /**
+     * 持有该对话的分段锁执行同步写入或删除，并丢弃该对话尚未落库的快照
+     */
+    void runExclusively(String conversationId, Runnable action) {
+        runExclusively(List.of(conversationId), action);
+    }
+
+    /**
+     * 持有这些对话的分段锁执行批量删除，并丢弃这些对话尚未落库的快照
+     */
+    void runExclusively(Collection<String> conversationIds, Runnable action) {
+        List<ReentrantLock> locks = lockStripes(conversationIds);
+        try {
+            for (String conversationId : conversationIds) {
+                if (pending.remove(conversationId) != null) {
+                    permits.release();
+                }
+            }
+            action.run();
+        } finally {
+            unlock(locks);
+        }
+    }
+
+    /**
+     * 先落库该对话尚未落库的快照，再执行 action
+     * 只在落库快照时持有该对话的分段锁，action 在锁外执行，不同对话的追加互不等待，也不阻塞后台刷盘；
+     * 后台线程正在写入该对话的快照时，等它提交后再执行 action
+     */
+    void flushAndRun(String conversationId, Runnable action) {
+        List<ReentrantLock> locks = lockStripes(List.of(conversationId));
+        try {
+            List<Message> snapshot = pending.remove(conversationId);
+            if (snapshot != null) {
+                inFlight.put(conversationId, snapshot);
+                try {
+                    batchWriter.accept(Map.of(conversationId, snapshot));
+                    flushedCount.incrementAndGet();
+                    permits.release();
+                } catch (RuntimeException e) {
+                    failedFlushCount.incrementAndGet();
+                    requeue(Map.of(conversationId, snapshot));
+                    throw e;
+                } finally {
+                    inFlight.remove(conversationId);
+                }
+            }
+        } finally {
+            unlock(locks);
+        }
+        action.run();
+    }
+
+    /**
+     * 刷写一批待写快照
+     *
+     * @return 本次写入的对话数
+     */
+    int flush() {
+        flushLock.lock();
+        try {
+            List<String> conversationIds = new ArrayList<>();
+            String conversationId;
+            while (conversationIds.size() < maxBatchSize && (conversationId = dirtyQueue.poll()) != null) {
+                // 跳过已由同步写入或追加取走快照的对话
+                if (pending.containsKey(conversationId)) {
+                    conversationIds.add(conversationId);
+                }
+            }
+            if (conversationIds.isEmpty()) {
+                return 0;
+            }
+
+            // 先锁定再取出快照，取出后到提交前同一对话的同步写入和追加都在分段锁上等待
+            List<ReentrantLock> locks = lockStripes(conversationIds);
+            try {
+                Map<String, List<Message>> batch = new LinkedHashMap<>();
+                for (String id : conversationIds) {
+                    List<Message> snapshot = pending.remove(id);
+                    if (snapshot != null) {
+                        batch.put(id, snapshot);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    return 0;
+                }
+
+                inFlight.putAll(batch);
+                try {
+                    batchWriter.accept(batch);
+                    flushedCount.addAndGet(batch.size());
+                    permits.release(batch.size());
+                } catch (RuntimeException e) {
+                    failedFlushCount.incrementAndGet();
+                    requeue(batch);
+                    throw e;
+                } finally {
+                    batch.forEach(inFlight::remove);
+                }
+                log.debug("写后缓冲区刷盘完成: conversations={}", batch.size());
+                return batch.size();
+            } finally {
+                unlock(locks);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 按分段序号升序加锁，多个对话同时加锁时不会互相死锁
+     */
+    private List<ReentrantLock> lockStripes(Collection<String> conversationIds) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        conversationIds.forEach(conversationId -> indexes.add(Math.floorMod(conversationId.hashCode(), LOCK_STRIPES)));
+        List<ReentrantLock> locks = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            stripes[index].lock();
+            locks.add(stripes[index]);
+        }
+        return locks;
+    }
+
+    private static void unlock(List<ReentrantLock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    /**
+     * 写入失败时放回缓冲区，已有更新快照的对话直接丢弃旧快照
+     */
+    private void requeue(Map<String, List<Message>> batch) {
+        batch.forEach((conversationId, snapshot) -> {
+            if (pending.putIfAbsent(conversationId, snapshot) == null) {
+                dirtyQueue.add(conversationId);
+            } else {
+                permits.release();
+            }
+        });
+    }
+
+    private void flushQuietly() {
+        try {
+            while (flush() == maxBatchSize) {
+                // 积压较多时连续刷写
+            }
+        } catch (Exception e) {
+            log.error("写后缓冲区刷盘失败, pending={}", pending.size(), e);
+        }
+    }
+
+    /**
+     * 停止后台线程并刷写全部待写快照
+     */
+    void shutdown() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int attempts = 0;
+        while (!pending.isEmpty() && attempts++ < 3) {
+            try {
+                while (flush() > 0) {
+                    // 刷写到缓冲区为空
+                }
+            } catch (Exception e) {
+                log.error("关闭时刷盘失败, 剩余对话数={}", pending.size(), e);
+            }
+        }
+        if (!pending.isEmpty()) {
+            log.error("关闭时仍有 {} 个对话未能落库: {}", pending.size(), new ArrayList<>(pending.keySet()));
+        }
+    }
+
+    /**
+     * 获取缓冲区统计信息
+     */
+    String getStats() {
+        return String.format("WriteBehind: %d pending, %d in flight, %d coalesced, %d flushed, %d failed flushes",
+                pending.size(), inFlight.size(), coalescedCount.get(), flushedCount.get(), failedFlushCount.get());
+    }
+}
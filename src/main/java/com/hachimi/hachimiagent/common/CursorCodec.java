@@ -0,0 +1,68 @@
+package com.hachimi.hachimiagent.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 分页游标编解码
+ * 游标是排序键各字段以 '|' 连接后的 URL 安全 Base64，对调用方不透明
+ */
+public final class CursorCodec {
+
+    private static final String SEPARATOR = "|";
+
+    private CursorCodec() {
+    }
+
+    /**
+     * 编码游标
+     *
+     * @param parts 排序键字段（不能包含 '|'）
+     * @return 游标
+     */
+    public static String encode(Object... parts) {
+        StringBuilder raw = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                raw.append(SEPARATOR);
+            }
+            raw.append(parts[i]);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 解码游标
+     *
+     * @param cursor 游标
+     * @param size   期望的字段数
+     * @return 排序键字段
+     * @throws IllegalArgumentException 游标格式不正确
+     */
+    public static String[] decode(String cursor, int size) {
+        return decode(cursor, size, size);
+    }
+
+    /**
+     * 解码字段数可变的游标，用于排序键增加字段后仍接受旧游标
+     *
+     * @param cursor  游标
+     * @param minSize 最少字段数
+     * @param maxSize 最多字段数
+     * @return 排序键字段
+     * @throws IllegalArgumentException 游标格式不正确
+     */
+    public static String[] decode(String cursor, int minSize, int maxSize) {
+        String raw;
+        try {
+            raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("无效的分页游标: " + cursor);
+        }
+        String[] parts = raw.split("\\|", -1);
+        if (parts.length < minSize || parts.length > maxSize) {
+            throw new IllegalArgumentException("无效的分页游标: " + cursor);
+        }
+        return parts;
+    }
+}
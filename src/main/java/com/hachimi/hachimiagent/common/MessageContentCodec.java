@@ -0,0 +1,172 @@
+package com.hachimi.hachimiagent.common;
+
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 消息内容压缩编解码
+ * <p>
+ * 超过阈值的消息内容压缩后写入 content_blob，content_codec 记录算法，content 置为空串；
+ * content_codec 为 0 或 null 的行（包括压缩上线前的历史数据）直接读取 content。
+ * 压缩数据格式：原始 UTF-8 字节数（4 字节大端）+ 压缩数据，解压时按长度校验。
+ * <p>
+ * 解压只依赖每行自带的 content_codec，与当前配置无关，关闭压缩或更换算法后旧行仍可读取。
+ */
+public final class MessageContentCodec {
+
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_LZ4 = 1;
+    public static final int CODEC_DEFLATE = 2;
+
+    private static final int LENGTH_PREFIX_BYTES = 4;
+
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    private MessageContentCodec() {
+    }
+
+    /**
+     * 配置中的算法名转换为 content_codec
+     *
+     * @param algorithm none、lz4 或 deflate，不区分大小写
+     */
+    public static int codecOf(String algorithm) {
+        return switch (algorithm == null ? "none" : algorithm.toLowerCase()) {
+            case "none" -> CODEC_NONE;
+            case "lz4" -> CODEC_LZ4;
+            case "deflate" -> CODEC_DEFLATE;
+            default -> throw new IllegalArgumentException("不支持的压缩算法: " + algorithm);
+        };
+    }
+
+    /**
+     * 内容的 UTF-8 字节数不小于 thresholdBytes 时压缩写入 content_blob
+     * 压缩后节省不到 1/8 时保持明文，读取时少一次解压
+     *
+     * @param entity         待写入的实体，内容在 content 中
+     * @param codec          压缩算法，CODEC_NONE 时不压缩
+     * @param thresholdBytes 压缩阈值
+     * @return 是否压缩
+     */
+    public static boolean encode(ChatMessage entity, int codec, int thresholdBytes) {
+        String content = entity.getContent();
+        if (codec == CODEC_NONE || content == null || content.length() * 3L < thresholdBytes) {
+            return false;
+        }
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        if (raw.length < thresholdBytes) {
+            return false;
+        }
+        byte[] compressed = compress(raw, codec);
+        if (compressed.length > raw.length - raw.length / 8) {
+            return false;
+        }
+        entity.setContentCodec(codec);
+        entity.setContentBlob(compressed);
+        entity.setContent("");
+        return true;
+    }
+
+    /**
+     * 读取实体的明文内容
+     */
+    public static String decode(ChatMessage entity) {
+        Integer codec = entity.getContentCodec();
+        if (codec == null || codec == CODEC_NONE || entity.getContentBlob() == null) {
+            return entity.getContent();
+        }
+        return new String(decompress(entity.getContentBlob(), codec), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 原地解压：明文写回 content，清空压缩字段，返回同一个实体
+     * 用于把行交给按 content 读取内容的调用方（接口返回、摘要、token 估算等）
+     */
+    public static ChatMessage inflate(ChatMessage entity) {
+        if (entity.getContentCodec() != null && entity.getContentCodec() != CODEC_NONE) {
+            entity.setContent(decode(entity));
+            entity.setContentCodec(CODEC_NONE);
+            entity.setContentBlob(null);
+        }
+        return entity;
+    }
+
+    /**
+     * 压缩，结果带原始长度前缀
+     */
+    public static byte[] compress(byte[] raw, int codec) {
+        return switch (codec) {
+            case CODEC_LZ4 -> {
+                LZ4Compressor compressor = LZ4.fastCompressor();
+                int maxLength = compressor.maxCompressedLength(raw.length);
+                byte[] out = new byte[LENGTH_PREFIX_BYTES + maxLength];
+                ByteBuffer.wrap(out).putInt(raw.length);
+                int length = compressor.compress(raw, 0, raw.length, out, LENGTH_PREFIX_BYTES, maxLength);
+                yield Arrays.copyOf(out, LENGTH_PREFIX_BYTES + length);
+            }
+            case CODEC_DEFLATE -> {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try {
+                    deflater.setInput(raw);
+                    deflater.finish();
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + LENGTH_PREFIX_BYTES);
+                    out.write(ByteBuffer.allocate(LENGTH_PREFIX_BYTES).putInt(raw.length).array(), 0, LENGTH_PREFIX_BYTES);
+                    byte[] buffer = new byte[8192];
+                    while (!deflater.finished()) {
+                        out.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                    yield out.toByteArray();
+                } finally {
+                    deflater.end();
+                }
+            }
+            default -> throw new IllegalArgumentException("不支持的压缩算法: " + codec);
+        };
+    }
+
+    /**
+     * 解压带原始长度前缀的数据
+     *
+     * @throws IllegalStateException 数据损坏或长度不符
+     */
+    public static byte[] decompress(byte[] data, int codec) {
+        if (data.length < LENGTH_PREFIX_BYTES) {
+            throw new IllegalStateException("压缩内容已损坏: length=" + data.length);
+        }
+        int length = ByteBuffer.wrap(data).getInt();
+        if (length < 0) {
+            throw new IllegalStateException("压缩内容已损坏: length=" + length);
+        }
+        byte[] raw = new byte[length];
+        int actual;
+        switch (codec) {
+            case CODEC_LZ4 -> actual = LZ4.safeDecompressor().decompress(
+                    data, LENGTH_PREFIX_BYTES, data.length - LENGTH_PREFIX_BYTES, raw, 0, length);
+            case CODEC_DEFLATE -> {
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(data, LENGTH_PREFIX_BYTES, data.length - LENGTH_PREFIX_BYTES);
+                    actual = inflater.inflate(raw);
+                } catch (DataFormatException e) {
+                    throw new IllegalStateException("压缩内容已损坏", e);
+                } finally {
+                    inflater.end();
+                }
+            }
+            default -> throw new IllegalArgumentException("不支持的压缩算法: " + codec);
+        }
+        if (actual != length) {
+            throw new IllegalStateException("压缩内容长度不符: expected=" + length + ", actual=" + actual);
+        }
+        return raw;
+    }
+}
@@ -1,11 +1,14 @@
 package com.hachimi.hachimiagent.common;
 
+import cn.hutool.core.util.HashUtil;
 import com.hachimi.hachimiagent.entity.ChatMessage;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.SystemMessage;
 import org.springframework.ai.chat.messages.UserMessage;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Message转换器工具类
  *
@@ -29,17 +32,58 @@ public class MessageConverter {
         entity.setMessageOrder(messageOrder);
 
         // 根据消息类型设置message_type
+        entity.setMessageType(messageType(message));
+        entity.setContentHash(contentHash(entity.getMessageType(), entity.getContent()));
+
+        return entity;
+    }
+
+    /**
+     * 计算消息内容哈希
+     *
+     * @param message Spring AI消息
+     * @return 消息类型与内容的 64 位哈希
+     */
+    public static long contentHash(Message message) {
+        return contentHash(messageType(message), message.getText());
+    }
+
+    /**
+     * 获取消息对应的 message_type
+     */
+    private static String messageType(Message message) {
         if (message instanceof UserMessage) {
-            entity.setMessageType("USER");
+            return "USER";
         } else if (message instanceof AssistantMessage) {
-            entity.setMessageType("ASSISTANT");
+            return "ASSISTANT";
         } else if (message instanceof SystemMessage) {
-            entity.setMessageType("SYSTEM");
-        } else {
-            entity.setMessageType("UNKNOWN");
+            return "SYSTEM";
         }
+        return "UNKNOWN";
+    }
 
-        return entity;
+    /**
+     * 计算数据库消息的内容哈希，历史数据没有存储哈希时根据内容现算
+     *
+     * @param entity 数据库实体
+     * @return 消息类型与内容的 64 位哈希
+     */
+    public static long contentHash(ChatMessage entity) {
+        return entity.getContentHash() != null
+                ? entity.getContentHash()
+                : contentHash(entity.getMessageType(), MessageContentCodec.decode(entity));
+    }
+
+    /**
+     * 计算消息类型与内容的 64 位哈希
+     *
+     * @param messageType 消息类型
+     * @param content 消息内容
+     * @return 64 位哈希
+     */
+    public static long contentHash(String messageType, String content) {
+        String source = messageType + '\u0000' + (content != null ? content : "");
+        return HashUtil.cityHash64(source.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -49,7 +93,7 @@ public class MessageConverter {
      * @return Spring AI消息
      */
     public static Message toMessage(ChatMessage entity) {
-        String content = entity.getContent();
+        String content = MessageContentCodec.decode(entity);
         String messageType = entity.getMessageType();
 
         return switch (messageType) {
@@ -0,0 +1,36 @@
+package com.hachimi.hachimiagent.configuration;
+
+import com.hachimi.hachimiagent.advisor.ConversationRecallAdvisor;
+import com.hachimi.hachimiagent.chatmemory.MysqlBasedChatMemoryRepository;
+import com.hachimi.hachimiagent.service.ChatMessagePurgeJob;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 对话长期记忆召回配置类
+ */
+@Configuration
+public class ConversationRecallAdvisorConfig {
+
+    @Value("${chat.memory.recall.top-k:4}")
+    private int topK;
+
+    @Value("${chat.memory.recall.similarity-threshold:0.5}")
+    private double similarityThreshold;
+
+    /**
+     * 删除和清理对话时一并删除它的向量，已删除会话的内容不会再被召回，也不会在向量表中残留
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ConversationRecallAdvisor conversationRecallAdvisor(@Qualifier("chatMemoryVectorStore") VectorStore chatMemoryVectorStore,
+                                                               MysqlBasedChatMemoryRepository chatMemoryRepository,
+                                                               ChatMessagePurgeJob purgeJob) {
+        ConversationRecallAdvisor advisor = new ConversationRecallAdvisor(chatMemoryVectorStore, topK, similarityThreshold);
+        chatMemoryRepository.onConversationsDeleted(advisor::forget);
+        purgeJob.onConversationsPurged(advisor::forget);
+        return advisor;
+    }
+}
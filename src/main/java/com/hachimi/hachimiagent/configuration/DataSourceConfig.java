@@ -1,15 +1,31 @@
 package com.hachimi.hachimiagent.configuration;
 
 import com.alibaba.druid.pool.DruidDataSource;
+import com.hachimi.hachimiagent.replica.LazyRoutingDataSourceProxy;
+import com.hachimi.hachimiagent.replica.ReadWriteRouter;
+import com.hachimi.hachimiagent.replica.ReadWriteRoutingDataSource;
+import com.hachimi.hachimiagent.replica.ReplicaProperties;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import com.hachimi.hachimiagent.sharding.ShardRoutingDataSource;
+import com.hachimi.hachimiagent.sharding.ShardingProperties;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.sql.init.SqlDataSourceScriptDatabaseInitializer;
+import org.springframework.boot.autoconfigure.sql.init.SqlInitializationProperties;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 
 import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * 多数据源配置 - 修复版本，匹配现有配置格式
@@ -18,16 +34,100 @@ import javax.sql.DataSource;
 public class DataSourceConfig {
 
     /**
-     * 主数据源 - MySQL (对话存储)
+     * MySQL 数据源 (对话存储)，开启分库时作为 0 号分片
      * 使用现有的配置路径
      */
-    @Primary
-    @Bean(name = "primaryDataSource")
+    @Bean(name = "mysqlDataSource")
     @ConfigurationProperties("spring.datasource")  // 使用现有的配置路径
-    public DataSource primaryDataSource() {
+    public DruidDataSource mysqlDataSource() {
         return new DruidDataSource();
     }
 
+    /**
+     * 主数据源 - MySQL (对话存储)
+     * 未开启分库和读写分离时就是 mysqlDataSource；开启分库后按 conversation_id 路由到各分片，
+     * 开启读写分离后每个分片再分为主库和从库，外层用延迟取连接的代理包装。
+     * MyBatis、JdbcTemplate 和事务管理器都经由它取连接
+     */
+    @Primary
+    @Bean(name = "primaryDataSource")
+    public DataSource primaryDataSource(@Qualifier("mysqlDataSource") DruidDataSource mysqlDataSource,
+                                        ShardingProperties shardingProperties,
+                                        ReplicaProperties replicaProperties,
+                                        ReadWriteRouter readWriteRouter,
+                                        Environment environment) {
+        boolean readWrite = replicaProperties.isEnabled() && !replicaProperties.getReplicas().isEmpty();
+        if (!shardingProperties.isEnabled() && !readWrite) {
+            return mysqlDataSource;
+        }
+        Binder binder = Binder.get(environment);
+        List<DruidDataSource> primaries = new ArrayList<>();
+        primaries.add(mysqlDataSource);
+        if (shardingProperties.isEnabled()) {
+            for (int i = 0; i < shardingProperties.getShards().size(); i++) {
+                primaries.add(bindDruid(binder, "chat.sharding.shards[" + i + "]", "chat-shard-" + (i + 1)));
+            }
+        }
+
+        List<DataSource> shards = new ArrayList<>();
+        for (int shard = 0; shard < primaries.size(); shard++) {
+            shards.add(readWrite
+                    ? withReplicas(shard, primaries.get(shard), binder, replicaProperties, readWriteRouter)
+                    : primaries.get(shard));
+        }
+        DataSource routing = shards.size() > 1 ? new ShardRoutingDataSource(shards) : shards.get(0);
+        return readWrite ? new LazyRoutingDataSourceProxy(routing) : routing;
+    }
+
+    /**
+     * 为分片配上从库，没有配置从库的分片直接使用主库
+     */
+    private static DataSource withReplicas(int shard, DruidDataSource primary, Binder binder,
+                                           ReplicaProperties properties, ReadWriteRouter readWriteRouter) {
+        List<DruidDataSource> replicas = new ArrayList<>();
+        List<Map<String, String>> configured = properties.getReplicas();
+        for (int i = 0; i < configured.size(); i++) {
+            if (Integer.parseInt(configured.get(i).getOrDefault("shard", "0")) == shard) {
+                replicas.add(bindDruid(binder, "chat.replica.replicas[" + i + "]",
+                        "chat-replica-" + shard + "-" + (replicas.size() + 1)));
+            }
+        }
+        if (replicas.isEmpty()) {
+            return primary;
+        }
+        ReadWriteRoutingDataSource dataSource = new ReadWriteRoutingDataSource(shard, primary, replicas);
+        readWriteRouter.register(dataSource);
+        return dataSource;
+    }
+
+    /**
+     * 先沿用 spring.datasource 的连接池参数，再用 prefix 下的配置覆盖
+     */
+    private static DruidDataSource bindDruid(Binder binder, String prefix, String name) {
+        DruidDataSource dataSource = new DruidDataSource();
+        binder.bind("spring.datasource", Bindable.ofInstance(dataSource));
+        binder.bind(prefix, Bindable.ofInstance(dataSource));
+        dataSource.setName(name);
+        return dataSource;
+    }
+
+    /**
+     * 开启分库时在每个分片上执行建表脚本，代替只作用于 0 号分片的默认初始化
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "chat.sharding", name = "enabled", havingValue = "true")
+    public SqlDataSourceScriptDatabaseInitializer shardedDataSourceScriptDatabaseInitializer(
+            @Qualifier("primaryDataSource") DataSource dataSource,
+            SqlInitializationProperties properties,
+            ShardRouter shardRouter) {
+        return new SqlDataSourceScriptDatabaseInitializer(dataSource, properties) {
+            @Override
+            protected void runScripts(Scripts scripts) {
+                shardRouter.forEachShard(shard -> super.runScripts(scripts));
+            }
+        };
+    }
+
     /**
      * 向量数据源 - PostgreSQL (RAG知识库)
      * 使用新的配置路径
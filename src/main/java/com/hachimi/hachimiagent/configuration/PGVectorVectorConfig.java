@@ -55,6 +55,21 @@ public class PGVectorVectorConfig {
         return pgVectorStore;
     }
 
+    /**
+     * 对话长期记忆向量表，与知识库的 vector_store 分开存放，按 conversationId 元数据过滤
+     */
+    @Bean
+    public VectorStore chatMemoryVectorStore(@Qualifier("vectorJdbcTemplate") JdbcTemplate vectorJdbcTemplate,
+                                             EmbeddingModel embeddingModel) {
+        return PgVectorStore.builder(vectorJdbcTemplate, embeddingModel)
+                .distanceType(COSINE_DISTANCE)
+                .indexType(HNSW)
+                .initializeSchema(true)
+                .schemaName("public")
+                .vectorTableName("chat_memory_store")
+                .build();
+    }
+
     private void initializePgVectorStore(PgVectorStore pgVectorStore) {
         try {
             // ✅ 直接使用简单的similaritySearch方法
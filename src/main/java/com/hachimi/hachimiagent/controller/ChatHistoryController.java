@@ -2,13 +2,24 @@ package com.hachimi.hachimiagent.controller;
 
 import com.hachimi.hachimiagent.common.BaseResponse;
 import com.hachimi.hachimiagent.common.ResultUtils;
+import com.hachimi.hachimiagent.dto.BulkDeleteJobStatus;
+import com.hachimi.hachimiagent.dto.CursorPage;
+import com.hachimi.hachimiagent.dto.MessageDeltaPage;
 import com.hachimi.hachimiagent.entity.ChatMessage;
 import com.hachimi.hachimiagent.exception.ErrorCode;
+import com.hachimi.hachimiagent.service.BulkSessionDeleteService;
+import com.hachimi.hachimiagent.service.ChatHistoryExportService;
 import com.hachimi.hachimiagent.service.ChatHistoryService;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import jakarta.annotation.Resource;
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 
@@ -25,6 +36,12 @@ public class ChatHistoryController {
     @Resource
     private ChatHistoryService chatHistoryService;
 
+    @Resource
+    private ChatHistoryExportService chatHistoryExportService;
+
+    @Resource
+    private BulkSessionDeleteService bulkSessionDeleteService;
+
     /**
      * 获取所有会话列表
      * 返回会话摘要信息的Map列表
@@ -62,6 +79,94 @@ public class ChatHistoryController {
         }
     }
 
+    /**
+     * 游标分页获取会话列表
+     * 第一页不传 cursor，之后传上一页返回的 nextCursor，直到 hasMore 为 false
+     */
+    @GetMapping("/sessions/page")
+    public BaseResponse<CursorPage<Map<String, Object>>> getSessionsPage(@RequestParam(required = false) String cursor,
+                                                                        @RequestParam(required = false) Integer size) {
+        try {
+            CursorPage<Map<String, Object>> page = chatHistoryService.getSessionsPage(cursor, size);
+            log.debug("分页获取会话列表成功，本页 {} 个会话，hasMore={}", page.getItems().size(), page.getHasMore());
+            return ResultUtils.success(page, "获取会话列表成功");
+        } catch (IllegalArgumentException e) {
+            return ResultUtils.error(ErrorCode.PARAMS_ERROR.getCode(), e.getMessage());
+        } catch (Exception e) {
+            log.error("分页获取会话列表失败: {}", e.getMessage(), e);
+            return ResultUtils.error(ErrorCode.AI_PROCESS_ERROR.getCode(), "获取会话列表失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 游标分页获取指定会话的消息历史，按消息顺序正序
+     */
+    @GetMapping("/sessions/{sessionId}/messages/page")
+    public BaseResponse<CursorPage<ChatMessage>> getSessionMessagesPage(@PathVariable String sessionId,
+                                                                       @RequestParam(required = false) String cursor,
+                                                                       @RequestParam(required = false) Integer size) {
+        try {
+            // 参数验证
+            if (sessionId == null || sessionId.trim().isEmpty()) {
+                return ResultUtils.error(ErrorCode.INVALID_REQUEST.getCode(), "会话ID不能为空");
+            }
+
+            CursorPage<ChatMessage> page = chatHistoryService.getSessionMessagesPage(sessionId, cursor, size);
+            log.debug("分页获取会话 {} 的消息历史成功，本页 {} 条消息，hasMore={}", sessionId, page.getItems().size(), page.getHasMore());
+            return ResultUtils.success(page, "获取消息历史成功");
+        } catch (IllegalArgumentException e) {
+            return ResultUtils.error(ErrorCode.PARAMS_ERROR.getCode(), e.getMessage());
+        } catch (Exception e) {
+            log.error("分页获取会话 {} 的消息历史失败: {}", sessionId, e.getMessage(), e);
+            return ResultUtils.error(ErrorCode.AI_PROCESS_ERROR.getCode(), "获取消息历史失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 增量获取指定会话中顺序号大于 afterOrder 的消息
+     * 返回的 rewriteCount 与上次不同时，客户端需要从 afterOrder=-1 整体重新拉取
+     */
+    @GetMapping("/sessions/{sessionId}/messages/delta")
+    public BaseResponse<MessageDeltaPage> getSessionMessagesDelta(@PathVariable String sessionId,
+                                                                        @RequestParam(defaultValue = "-1") int afterOrder,
+                                                                        @RequestParam(required = false) Integer size) {
+        try {
+            // 参数验证
+            if (sessionId == null || sessionId.trim().isEmpty()) {
+                return ResultUtils.error(ErrorCode.INVALID_REQUEST.getCode(), "会话ID不能为空");
+            }
+
+            MessageDeltaPage page = chatHistoryService.getSessionMessagesAfter(sessionId, afterOrder, size);
+            log.debug("增量获取会话 {} 的消息成功，afterOrder={}，本次 {} 条，rewriteCount={}",
+                    sessionId, afterOrder, page.getItems().size(), page.getRewriteCount());
+            return ResultUtils.success(page, "获取新增消息成功");
+        } catch (Exception e) {
+            log.error("增量获取会话 {} 的消息失败: {}", sessionId, e.getMessage(), e);
+            return ResultUtils.error(ErrorCode.AI_PROCESS_ERROR.getCode(), "获取新增消息失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 增量获取变更过的会话
+     * 首次传 since（如 2025-01-17T10:00:00）或不传从头同步，之后传上一次返回的 nextCursor
+     */
+    @GetMapping("/sessions/changes")
+    public BaseResponse<CursorPage<Map<String, Object>>> getChangedSessions(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime since,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer size) {
+        try {
+            CursorPage<Map<String, Object>> page = chatHistoryService.getChangedSessions(since, cursor, size);
+            log.debug("增量获取变更会话成功，本次 {} 个，hasMore={}", page.getItems().size(), page.getHasMore());
+            return ResultUtils.success(page, "获取变更会话成功");
+        } catch (IllegalArgumentException e) {
+            return ResultUtils.error(ErrorCode.PARAMS_ERROR.getCode(), e.getMessage());
+        } catch (Exception e) {
+            log.error("增量获取变更会话失败: {}", e.getMessage(), e);
+            return ResultUtils.error(ErrorCode.AI_PROCESS_ERROR.getCode(), "获取变更会话失败: " + e.getMessage());
+        }
+    }
+
     /**
      * 获取会话信息
      * 返回会话摘要Map
@@ -127,6 +232,7 @@ public class ChatHistoryController {
 
     /**
      * 批量删除会话
+     * 数量不超过阈值时同步删除；超过阈值时提交后台任务，返回 jobId 供查询进度
      */
     @DeleteMapping("/sessions/batch")
     public BaseResponse<Map<String, Object>> batchDeleteSessions(@RequestBody List<String> sessionIds) {
@@ -136,65 +242,66 @@ public class ChatHistoryController {
                 return ResultUtils.error(ErrorCode.INVALID_REQUEST.getCode(), "会话ID列表不能为空");
             }
 
-            int successCount = 0;
-            int failCount = 0;
-
-            for (String sessionId : sessionIds) {
-                try {
-                    if (sessionId != null && !sessionId.trim().isEmpty()) {
-                        chatHistoryService.deleteSession(sessionId);
-                        successCount++;
-                        log.debug("删除会话成功: {}", sessionId);
-                    } else {
-                        failCount++;
-                        log.warn("跳过无效的会话ID: {}", sessionId);
-                    }
-                } catch (Exception e) {
-                    failCount++;
-                    log.error("删除会话 {} 失败: {}", sessionId, e.getMessage());
-                }
+            List<String> validIds = sessionIds.stream()
+                    .filter(sessionId -> sessionId != null && !sessionId.trim().isEmpty())
+                    .toList();
+            int failCount = sessionIds.size() - validIds.size();
+            if (failCount > 0) {
+                log.warn("跳过 {} 个无效的会话ID", failCount);
             }
 
+            if (bulkSessionDeleteService.isAsync(validIds.size())) {
+                BulkDeleteJobStatus job = bulkSessionDeleteService.submit(validIds);
+                Map<String, Object> result = Map.of(
+                        "total", sessionIds.size(),
+                        "failCount", failCount,
+                        "async", true,
+                        "jobId", job.getJobId(),
+                        "status", job.getStatus()
+                );
+                return ResultUtils.success(result, String.format("已提交批量删除任务，共 %d 个会话", validIds.size()));
+            }
+
+            int deletedCount = bulkSessionDeleteService.deleteNow(validIds);
             Map<String, Object> result = Map.of(
                     "total", sessionIds.size(),
-                    "successCount", successCount,
+                    "successCount", deletedCount,
                     "failCount", failCount,
+                    "deletedCount", deletedCount,
                     "deletedAt", System.currentTimeMillis()
             );
 
-            log.info("批量删除会话完成，成功: {}, 失败: {}", successCount, failCount);
+            // 不存在或已删除的会话不计入成功数
+            log.info("批量删除会话完成，成功: {}, 失败: {}, 有效ID: {}", deletedCount, failCount, validIds.size());
             return ResultUtils.success(result,
-                    String.format("批量删除完成，成功 %d 个，失败 %d 个", successCount, failCount));
+                    String.format("批量删除完成，成功 %d 个，失败 %d 个", deletedCount, failCount));
+        } catch (IllegalStateException e) {
+            return ResultUtils.error(ErrorCode.OPERATION_NOT_ALLOWED.getCode(), e.getMessage());
         } catch (Exception e) {
             log.error("批量删除会话失败: {}", e.getMessage(), e);
             return ResultUtils.error(ErrorCode.AI_PROCESS_ERROR.getCode(), "批量删除会话失败: " + e.getMessage());
         }
     }
 
+    /**
+     * 查询批量删除任务进度
+     */
+    @GetMapping("/sessions/batch/jobs/{jobId}")
+    public BaseResponse<BulkDeleteJobStatus> getBatchDeleteJob(@PathVariable String jobId) {
+        BulkDeleteJobStatus job = bulkSessionDeleteService.getJob(jobId);
+        if (job == null) {
+            return ResultUtils.error(ErrorCode.NOT_FOUND_ERROR.getCode(), "批量删除任务不存在或已过期");
+        }
+        return ResultUtils.success(job, "获取任务进度成功");
+    }
+
     /**
      * 获取会话统计信息
      */
     @GetMapping("/sessions/stats")
     public BaseResponse<Map<String, Object>> getSessionStats() {
         try {
-            List<Map<String, Object>> allSessions = chatHistoryService.getAllSessions();
-
-            // 统计信息
-            int totalSessions = allSessions.size();
-            long totalMessages = allSessions.stream()
-                    .mapToLong(session -> {
-                        Object messageCount = session.get("messageCount");
-                        return messageCount instanceof Number ? ((Number) messageCount).longValue() : 0L;
-                    })
-                    .sum();
-
-            Map<String, Object> stats = Map.of(
-                    "totalSessions", totalSessions,
-                    "totalMessages", totalMessages,
-                    "averageMessagesPerSession", totalSessions > 0 ? (double) totalMessages / totalSessions : 0.0,
-                    "generatedAt", System.currentTimeMillis()
-            );
-
+            Map<String, Object> stats = chatHistoryService.getSessionStats();
             log.debug("获取会话统计信息成功");
             return ResultUtils.success(stats, "获取统计信息成功");
         } catch (Exception e) {
@@ -202,4 +309,29 @@ public class ChatHistoryController {
             return ResultUtils.error(ErrorCode.AI_PROCESS_ERROR.getCode(), "获取统计信息失败: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 导出聊天历史为 NDJSON，每行一条消息，可按对话和创建时间范围过滤
+     * 边查边写，导出任意行数内存占用都不变；gzip=true 时返回 .ndjson.gz 文件
+     */
+    @GetMapping("/export")
+    public ResponseEntity<?> exportMessages(
+            @RequestParam(required = false) String conversationId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(defaultValue = "false") boolean gzip) {
+        // 参数验证，开始输出后就无法再返回错误响应
+        if (from != null && to != null && !from.isBefore(to)) {
+            return ResponseEntity.ok(ResultUtils.error(ErrorCode.PARAMS_ERROR.getCode(), "起始时间必须早于结束时间"));
+        }
+        String id = conversationId != null && !conversationId.isBlank() ? conversationId : null;
+
+        StreamingResponseBody body = out -> chatHistoryExportService.exportMessages(id, from, to, gzip, out);
+        String filename = "chat-history" + (id != null ? "-" + id : "") + (gzip ? ".ndjson.gz" : ".ndjson");
+        log.info("开始导出聊天历史: conversationId={}, from={}, to={}, gzip={}", id, from, to, gzip);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
+                .contentType(gzip ? MediaType.parseMediaType("application/gzip") : MediaType.parseMediaType("application/x-ndjson"))
+                .body(body);
+    }
+}
@@ -0,0 +1,52 @@
+package com.hachimi.hachimiagent.dto;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * 批量删除会话任务进度
+ */
+@Data
+@Accessors(chain = true)
+public class BulkDeleteJobStatus {
+
+    /**
+     * 任务ID
+     */
+    private String jobId;
+
+    /**
+     * 任务状态：RUNNING、COMPLETED、FAILED
+     */
+    private String status;
+
+    /**
+     * 待删除的会话数
+     */
+    private Integer total;
+
+    /**
+     * 已处理的会话数
+     */
+    private Integer processed;
+
+    /**
+     * 实际删除的会话数（不含不存在或已删除的会话）
+     */
+    private Integer deleted;
+
+    /**
+     * 失败原因
+     */
+    private String error;
+
+    /**
+     * 开始时间戳
+     */
+    private Long startedAt;
+
+    /**
+     * 结束时间戳，未结束时为 null
+     */
+    private Long finishedAt;
+}
@@ -0,0 +1,59 @@
+package com.hachimi.hachimiagent.dto;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.time.LocalDateTime;
+
+/**
+ * 去抖窗口内暂存的会话列表字段变化，定期批量写入 chat_conversation
+ */
+@Data
+@Accessors(chain = true)
+public class ConversationActivity {
+
+    /**
+     * 对话ID
+     */
+    private String conversationId;
+
+    /**
+     * 标题候选（第一条用户消息），会话已有标题时不覆盖
+     */
+    private String title;
+
+    /**
+     * 最后一条消息预览
+     */
+    private String preview;
+
+    /**
+     * 保存后的有效消息数，只有追加时为 null
+     */
+    private Integer messageCount;
+
+    /**
+     * 在 messageCount（为 null 时是库中消息数）之上追加的消息条数
+     */
+    private Integer appendedCount;
+
+    /**
+     * 最后一条消息时间
+     */
+    private LocalDateTime lastMessageTime;
+
+    /**
+     * 合并同一对话更晚的一次保存或追加：列表字段取较新的值，标题保留先记录的候选；
+     * 较晚的是保存时消息数直接取它的，是追加时追加条数累加
+     */
+    public ConversationActivity merge(ConversationActivity later) {
+        boolean replaced = later.getMessageCount() != null;
+        return new ConversationActivity()
+                .setConversationId(conversationId)
+                .setTitle(title != null ? title : later.getTitle())
+                .setPreview(later.getPreview())
+                .setMessageCount(replaced ? later.getMessageCount() : messageCount)
+                .setAppendedCount(replaced ? later.getAppendedCount() : appendedCount + later.getAppendedCount())
+                .setLastMessageTime(later.getLastMessageTime());
+    }
+}
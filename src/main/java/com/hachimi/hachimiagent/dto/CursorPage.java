@@ -0,0 +1,30 @@
+package com.hachimi.hachimiagent.dto;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.util.List;
+
+/**
+ * 游标分页结果
+ * 下一页请求带上 nextCursor，没有更多数据时 nextCursor 为 null
+ */
+@Data
+@Accessors(chain = true)
+public class CursorPage<T> {
+
+    /**
+     * 本页数据
+     */
+    private List<T> items;
+
+    /**
+     * 下一页游标
+     */
+    private String nextCursor;
+
+    /**
+     * 是否还有下一页
+     */
+    private Boolean hasMore;
+}
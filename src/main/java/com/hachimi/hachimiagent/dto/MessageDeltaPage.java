@@ -0,0 +1,20 @@
+package com.hachimi.hachimiagent.dto;
+
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * 增量拉取消息的结果
+ * 除新增消息外带回会话历史的改写次数：与客户端上次记录的值不同时，说明已有消息被截断、替换或会话被删除，
+ * 本地缓存的消息不再可信，需要从 afterOrder = -1 整体重新拉取
+ */
+@Data
+@EqualsAndHashCode(callSuper = true)
+public class MessageDeltaPage extends CursorPage<ChatMessage> {
+
+    /**
+     * 会话历史的改写次数，会话不存在时为 0
+     */
+    private Integer rewriteCount;
+}
@@ -35,6 +35,60 @@ public class ChatConversation {
     @TableField("user_id")
     private String userId;
 
+    /**
+     * 滚动摘要，概括顺序号小于 summaryOrder 的消息
+     */
+    @TableField("summary")
+    private String summary;
+
+    /**
+     * 摘要覆盖到的消息顺序号（不包含）
+     */
+    @TableField("summary_order")
+    private Integer summaryOrder;
+
+    /**
+     * 会话标题（第一条用户消息）
+     */
+    @TableField("title")
+    private String title;
+
+    /**
+     * 最后一条消息预览
+     */
+    @TableField("last_message_preview")
+    private String lastMessagePreview;
+
+    /**
+     * 最后一条消息时间
+     */
+    @TableField("last_message_time")
+    private LocalDateTime lastMessageTime;
+
+    /**
+     * 有效消息数
+     */
+    @TableField("message_count")
+    private Integer messageCount;
+
+    /**
+     * 消息存储层级：0 在 chat_message 中，1 已移入冷存储
+     */
+    @TableField("storage_tier")
+    private Integer storageTier;
+
+    /**
+     * 内容版本号，每次写入或删除消息加 1
+     */
+    @TableField("version")
+    private Long version;
+
+    /**
+     * 历史改写次数，截断或替换已有消息、删除对话时加 1
+     */
+    @TableField("rewrite_count")
+    private Integer rewriteCount;
+
     /**
      * 创建时间
      */
@@ -1,6 +1,7 @@
 package com.hachimi.hachimiagent.entity;
 
 import com.baomidou.mybatisplus.annotation.*;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 
@@ -41,12 +42,38 @@ public class ChatMessage {
     @TableField("content")
     private String content;
 
+    /**
+     * 内容压缩算法：0 未压缩（内容在 content 中），1 LZ4，2 Deflate
+     */
+    @JsonIgnore
+    @TableField("content_codec")
+    private Integer contentCodec;
+
+    /**
+     * 压缩后的内容，未压缩时为 null
+     */
+    @JsonIgnore
+    @TableField("content_blob")
+    private byte[] contentBlob;
+
     /**
      * 消息顺序
      */
     @TableField("message_order")
     private Integer messageOrder;
 
+    /**
+     * 内容哈希（消息类型 + 内容的 64 位哈希），用于增量保存时比对
+     */
+    @TableField("content_hash")
+    private Long contentHash;
+
+    /**
+     * 写入该消息的请求ID，按版本号追加冲突时据此识别其他节点已写入的同一批消息
+     */
+    @TableField("request_id")
+    private String requestId;
+
     /**
      * 创建时间
      */
@@ -1,11 +1,18 @@
 package com.hachimi.hachimiagent.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hachimi.hachimiagent.dto.ConversationActivity;
 import com.hachimi.hachimiagent.entity.ChatConversation;
+import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Insert;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
 
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 聊天对话Mapper
@@ -23,4 +30,360 @@ public interface ChatConversationMapper extends BaseMapper<ChatConversation> {
      */
     @Select("SELECT DISTINCT conversation_id FROM chat_conversation WHERE deleted = 0")
     List<String> findAllConversationIds();
+
+    /**
+     * 查询指定时间之后被逻辑删除的对话ID
+     *
+     * @param since 起始时间（包含）
+     * @return 对话ID列表
+     */
+    @Select("SELECT conversation_id FROM chat_conversation WHERE deleted = 1 AND update_time >= #{since}")
+    List<String> findDeletedSince(@Param("since") LocalDateTime since);
+
+    /**
+     * 获取数据库当前时间，避免应用与数据库时钟不一致
+     *
+     * @return 数据库当前时间
+     */
+    @Select("SELECT NOW()")
+    LocalDateTime currentTime();
+
+    /**
+     * 创建对话或刷新最后活跃时间，一次往返完成
+     * 对话ID已被逻辑删除时恢复为有效对话，并重置创建时间、摘要、会话列表字段和存储层级；
+     * 命中已有行时持有该行的排他锁直到事务结束
+     *
+     * @param conversationId 对话ID
+     * @param now            当前时间
+     * @return 影响行数：1 为新建，2 为更新，0 为无变化
+     */
+    @Insert("INSERT INTO chat_conversation (conversation_id, create_time, update_time, deleted) " +
+            "VALUES (#{conversationId}, #{now}, #{now}, 0) " +
+            "ON DUPLICATE KEY UPDATE create_time = IF(deleted = 1, #{now}, create_time), " +
+            "summary = IF(deleted = 1, NULL, summary), summary_order = IF(deleted = 1, 0, summary_order), " +
+            "title = IF(deleted = 1, NULL, title), last_message_preview = IF(deleted = 1, NULL, last_message_preview), " +
+            "last_message_time = IF(deleted = 1, NULL, last_message_time), message_count = IF(deleted = 1, 0, message_count), " +
+            "storage_tier = IF(deleted = 1, 0, storage_tier), update_time = #{now}, deleted = 0")
+    int upsertConversation(@Param("conversationId") String conversationId, @Param("now") LocalDateTime now);
+
+    /**
+     * 查询对话的滚动摘要
+     *
+     * @param conversationId 对话ID
+     * @return 只包含 summary 和 summary_order 的对话，对话不存在时为 null
+     */
+    @Select("SELECT summary, summary_order FROM chat_conversation WHERE conversation_id = #{conversationId} AND deleted = 0")
+    ChatConversation findSummary(@Param("conversationId") String conversationId);
+
+    /**
+     * 更新对话的滚动摘要，summary_order 仍为 expectedOrder 时才更新，避免并发生成的旧摘要覆盖新摘要
+     * 摘要不代表用户活跃，保持 update_time 不变
+     *
+     * @param conversationId 对话ID
+     * @param expectedOrder  生成摘要时读到的 summary_order
+     * @param summary        新摘要
+     * @param summaryOrder   新摘要覆盖到的顺序号（不包含）
+     * @return 影响行数
+     */
+    @Update("UPDATE chat_conversation SET summary = #{summary}, summary_order = #{summaryOrder}, update_time = update_time " +
+            "WHERE conversation_id = #{conversationId} AND deleted = 0 AND summary_order = #{expectedOrder}")
+    int updateSummary(@Param("conversationId") String conversationId,
+                      @Param("expectedOrder") int expectedOrder,
+                      @Param("summary") String summary,
+                      @Param("summaryOrder") int summaryOrder);
+
+    /**
+     * 写入消息后创建对话或更新会话列表字段，一次往返完成，同时刷新最后活跃时间并把版本号加 1
+     * 标题只在为空时写入；对话ID已被逻辑删除时按新对话处理，版本号继续递增，删除前的版本号不会再次匹配
+     * 截断或替换了已有消息时改写次数加 1，增量拉取的客户端据此整体重新拉取
+     *
+     * @param conversationId 对话ID
+     * @param title          标题候选（第一条用户消息），可为 null
+     * @param preview        最后一条消息预览
+     * @param count          replaceCount 为 true 时是保存后的消息总数，否则是新增条数
+     * @param replaceCount   是否用 count 直接覆盖消息数
+     * @param rewritten      是否截断或替换了已有消息
+     * @param now            当前时间
+     * @return 影响行数
+     */
+    @Insert("INSERT INTO chat_conversation (conversation_id, title, last_message_preview, last_message_time, message_count, " +
+            "version, create_time, update_time, deleted) " +
+            "VALUES (#{conversationId}, #{title}, #{preview}, #{now}, #{count}, 1, #{now}, #{now}, 0) " +
+            "ON DUPLICATE KEY UPDATE create_time = IF(deleted = 1, #{now}, create_time), " +
+            "summary = IF(deleted = 1, NULL, summary), summary_order = IF(deleted = 1, 0, summary_order), " +
+            "title = IF(deleted = 1 OR title IS NULL, #{title}, title), " +
+            "message_count = IF(#{replaceCount}, #{count}, IF(deleted = 1, 0, message_count) + #{count}), " +
+            "storage_tier = IF(deleted = 1, 0, storage_tier), version = version + 1, " +
+            "rewrite_count = rewrite_count + IF(#{rewritten}, 1, 0), " +
+            "last_message_preview = #{preview}, last_message_time = #{now}, update_time = #{now}, deleted = 0")
+    int upsertConversationActivity(@Param("conversationId") String conversationId,
+                                   @Param("title") String title,
+                                   @Param("preview") String preview,
+                                   @Param("count") int count,
+                                   @Param("replaceCount") boolean replaceCount,
+                                   @Param("rewritten") boolean rewritten,
+                                   @Param("now") LocalDateTime now);
+
+    /**
+     * 去抖窗口内保存消息时只把版本号加 1，截断或替换了已有消息时改写次数同时加 1
+     * 与消息写入在同一事务中，其他节点按版本号追加时立即可见；列表字段暂存后由 updateConversationActivity 批量写入。
+     * 显式保留 update_time，避免 ON UPDATE CURRENT_TIMESTAMP 在窗口内反复改写它和它的索引
+     *
+     * @param conversationId 对话ID
+     * @param rewritten      是否截断或替换了已有消息
+     * @return 影响行数，会话行不存在或已删除时为 0
+     */
+    @Update("UPDATE chat_conversation SET version = version + 1, rewrite_count = rewrite_count + IF(#{rewritten}, 1, 0), " +
+            "update_time = update_time WHERE conversation_id = #{conversationId} AND deleted = 0")
+    int bumpVersion(@Param("conversationId") String conversationId,
+                    @Param("rewritten") boolean rewritten);
+
+    /**
+     * 批量写入去抖窗口内暂存的会话列表字段，一条 UPDATE ... JOIN 覆盖整批对话
+     * 只更新有效对话，期间被删除的对话不会被恢复；版本号已在保存时写入，这里不再改动
+     * 其间已有更晚的保存立即写入时（last_message_time 更新），不用暂存的旧值覆盖预览和消息数；
+     * 只有追加时（message_count 为 null）追加条数直接累加到库中的消息数上。
+     * MySQL 按书写顺序执行 SET，last_message_time 必须最后赋值
+     *
+     * @param activities 暂存的会话变化（不能为空，同一对话只出现一次）
+     * @param now        当前时间，写入 update_time
+     * @return 影响行数
+     */
+    @Update({"<script>",
+            "UPDATE chat_conversation c JOIN (",
+            "<foreach collection='activities' item='a' separator=' UNION ALL '>",
+            "SELECT #{a.conversationId} AS conversation_id, #{a.title} AS title, #{a.preview} AS preview,",
+            "#{a.messageCount} AS message_count, #{a.appendedCount} AS appended_count, #{a.lastMessageTime} AS last_message_time",
+            "</foreach>",
+            ") p ON c.conversation_id = p.conversation_id",
+            "SET c.title = IF(c.title IS NULL, p.title, c.title),",
+            "c.last_message_preview = IF(c.last_message_time IS NULL OR c.last_message_time &lt;= p.last_message_time, p.preview, c.last_message_preview),",
+            "c.message_count = IF(p.message_count IS NULL, c.message_count + p.appended_count,",
+            "IF(c.last_message_time IS NULL OR c.last_message_time &lt;= p.last_message_time, p.message_count + p.appended_count, c.message_count)),",
+            "c.update_time = #{now},",
+            "c.last_message_time = GREATEST(COALESCE(c.last_message_time, p.last_message_time), p.last_message_time)",
+            "WHERE c.deleted = 0",
+            "</script>"})
+    int updateConversationActivity(@Param("activities") List<ConversationActivity> activities,
+                                   @Param("now") LocalDateTime now);
+
+    /**
+     * 查询会话列表，按最后消息时间倒序，只读 chat_conversation
+     *
+     * @return 会话列表
+     */
+    @Select("SELECT conversation_id, title, last_message_preview, last_message_time, message_count FROM chat_conversation " +
+            "WHERE deleted = 0 AND message_count > 0 ORDER BY last_message_time DESC")
+    List<ChatConversation> findSessions();
+
+    /**
+     * 游标分页查询会话列表，按 (last_message_time, id) 倒序
+     * 沿 idx_deleted_last_message_time 从上一页最后一行之后开始读取，翻到第几页代价都一样
+     *
+     * @param lastTime 上一页最后一个会话的最后消息时间，第一页为 null
+     * @param lastId   上一页最后一个会话的主键，第一页为 null
+     * @param limit    最多条数
+     * @return 会话列表
+     */
+    @Select({"<script>",
+            "SELECT id, conversation_id, title, last_message_preview, last_message_time, message_count FROM chat_conversation",
+            "WHERE deleted = 0 AND message_count > 0",
+            "<if test='lastTime != null'>",
+            "AND (last_message_time &lt; #{lastTime} OR (last_message_time = #{lastTime} AND id &lt; #{lastId}))",
+            "</if>",
+            "ORDER BY last_message_time DESC, id DESC LIMIT #{limit}",
+            "</script>"})
+    List<ChatConversation> findSessionsPage(@Param("lastTime") LocalDateTime lastTime,
+                                            @Param("lastId") Long lastId,
+                                            @Param("limit") int limit);
+
+    /**
+     * 按 (update_time, id) 正序查询指定位置之后变更过的会话，包括已逻辑删除的会话
+     * 沿 idx_update_time 读取，返回行数只与变更的会话数有关
+     *
+     * @param lastTime 上次同步到的更新时间，为 null 时从头开始
+     * @param lastId   上次同步到的主键，与 lastTime 一起定位，首次按时间同步时传 0
+     * @param until    更新时间上限（不包含），避开还可能有事务提交的最近时间段
+     * @param limit    最多条数
+     * @return 会话列表
+     */
+    @Select({"<script>",
+            "SELECT id, conversation_id, title, last_message_preview, last_message_time, message_count, update_time, deleted",
+            "FROM chat_conversation WHERE update_time &lt; #{until} AND (deleted = 1 OR message_count > 0)",
+            "<if test='lastTime != null'>",
+            "AND (update_time &gt; #{lastTime} OR (update_time = #{lastTime} AND id &gt; #{lastId}))",
+            "</if>",
+            "ORDER BY update_time, id LIMIT #{limit}",
+            "</script>"})
+    List<ChatConversation> findChangedSince(@Param("lastTime") LocalDateTime lastTime,
+                                            @Param("lastId") Long lastId,
+                                            @Param("until") LocalDateTime until,
+                                            @Param("limit") int limit);
+
+    /**
+     * 查询单个会话的列表字段
+     *
+     * @param conversationId 对话ID
+     * @return 会话，不存在时为 null
+     */
+    @Select("SELECT conversation_id, title, last_message_preview, last_message_time, message_count FROM chat_conversation " +
+            "WHERE conversation_id = #{conversationId} AND deleted = 0")
+    ChatConversation findSession(@Param("conversationId") String conversationId);
+
+    /**
+     * 查询对话历史的改写次数，包括已逻辑删除的对话
+     *
+     * @param conversationId 对话ID
+     * @return 改写次数，对话不存在时为 null
+     */
+    @Select("SELECT rewrite_count FROM chat_conversation WHERE conversation_id = #{conversationId}")
+    Integer findRewriteCount(@Param("conversationId") String conversationId);
+
+    /**
+     * 统计有消息的会话数和消息总数，由 idx_deleted_last_message_time 覆盖
+     *
+     * @return totalSessions、totalMessages
+     */
+    @Select("SELECT COUNT(*) AS totalSessions, COALESCE(SUM(message_count), 0) AS totalMessages FROM chat_conversation " +
+            "WHERE deleted = 0 AND message_count > 0")
+    Map<String, Object> sessionStats();
+
+    /**
+     * 批量逻辑删除对话
+     *
+     * @param conversationIds 对话ID（不能为空）
+     * @param now             当前时间
+     * @return 实际删除的对话数
+     */
+    @Update({"<script>",
+            "UPDATE chat_conversation SET deleted = 1, version = version + 1, rewrite_count = rewrite_count + 1, update_time = #{now}",
+            "WHERE deleted = 0 AND conversation_id IN",
+            "<foreach collection='conversationIds' item='id' open='(' separator=',' close=')'>#{id}</foreach>",
+            "</script>"})
+    int softDeleteByConversationIds(@Param("conversationIds") List<String> conversationIds,
+                                    @Param("now") LocalDateTime now);
+
+    /**
+     * 查询更新时间早于 before 的逻辑删除对话，每次最多 limit 行
+     *
+     * @param before 更新时间上限（不包含）
+     * @param limit  最多行数
+     * @return 对话的主键和对话ID
+     */
+    @Select("SELECT id, conversation_id FROM chat_conversation WHERE deleted = 1 AND update_time < #{before} LIMIT #{limit}")
+    List<ChatConversation> findPurgeableConversations(@Param("before") LocalDateTime before, @Param("limit") int limit);
+
+    /**
+     * 按主键物理删除逻辑删除的对话，期间已恢复的对话不会被删除
+     *
+     * @param ids 对话主键（不能为空）
+     * @return 删除行数
+     */
+    @Delete({"<script>",
+            "DELETE FROM chat_conversation WHERE deleted = 1 AND id IN",
+            "<foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach>",
+            "</script>"})
+    int purgeByIds(@Param("ids") List<Long> ids);
+
+    /**
+     * 查询对话的版本号，不加锁
+     * 已逻辑删除的对话返回删除时的版本号，与按版本号追加时锁定读到的一致
+     *
+     * @param conversationId 对话ID
+     * @return 版本号，对话不存在时为 null
+     */
+    @Select("SELECT version FROM chat_conversation WHERE conversation_id = #{conversationId}")
+    Long findVersion(@Param("conversationId") String conversationId);
+
+    /**
+     * 锁定会话行并读取版本号，按版本号追加消息时在此串行
+     *
+     * @param conversationId 对话ID
+     * @return 版本号，对话不存在时为 null；已逻辑删除的对话返回删除时的版本号
+     */
+    @Select("SELECT version FROM chat_conversation WHERE conversation_id = #{conversationId} FOR UPDATE")
+    Long lockVersion(@Param("conversationId") String conversationId);
+
+    /**
+     * 查询对话的存储层级，不加锁
+     *
+     * @param conversationId 对话ID
+     * @return 0 在 chat_message 中，1 在冷存储中；对话不存在时为 null
+     */
+    @Select("SELECT storage_tier FROM chat_conversation WHERE conversation_id = #{conversationId} AND deleted = 0")
+    Integer findStorageTier(@Param("conversationId") String conversationId);
+
+    /**
+     * 锁定会话行并读取存储层级和最后消息时间，移出和回迁在此串行
+     *
+     * @param conversationId 对话ID
+     * @return 只包含 storage_tier 和 last_message_time 的对话，不存在时为 null
+     */
+    @Select("SELECT storage_tier, last_message_time FROM chat_conversation " +
+            "WHERE conversation_id = #{conversationId} AND deleted = 0 FOR UPDATE")
+    ChatConversation lockStorageTier(@Param("conversationId") String conversationId);
+
+    /**
+     * 更新对话的存储层级，不代表用户活跃，保持 update_time 不变
+     *
+     * @param conversationId 对话ID
+     * @param storageTier    新层级
+     * @return 影响行数
+     */
+    @Update("UPDATE chat_conversation SET storage_tier = #{storageTier}, update_time = update_time " +
+            "WHERE conversation_id = #{conversationId} AND deleted = 0")
+    int updateStorageTier(@Param("conversationId") String conversationId, @Param("storageTier") int storageTier);
+
+    /**
+     * 按 (last_message_time, id) 正序查询最后消息时间早于 before、仍在 chat_message 中的对话
+     * 沿 idx_deleted_tier_last_message_time 读取，从上一批最后一行之后继续，移出失败的对话不会被反复返回
+     *
+     * @param before   最后消息时间上限（不包含）
+     * @param lastTime 上一批最后一个对话的最后消息时间，第一批为 null
+     * @param lastId   上一批最后一个对话的主键，第一批为 null
+     * @param limit    最多条数
+     * @return 只包含 id、conversation_id、last_message_time 的对话
+     */
+    @Select({"<script>",
+            "SELECT id, conversation_id, last_message_time FROM chat_conversation",
+            "WHERE deleted = 0 AND last_message_time &lt; #{before} AND message_count > 0 AND storage_tier = 0",
+            "<if test='lastTime != null'>",
+            "AND (last_message_time &gt; #{lastTime} OR (last_message_time = #{lastTime} AND id &gt; #{lastId}))",
+            "</if>",
+            "ORDER BY last_message_time, id LIMIT #{limit}",
+            "</script>"})
+    List<ChatConversation> findIdleHotConversations(@Param("before") LocalDateTime before,
+                                                    @Param("lastTime") LocalDateTime lastTime,
+                                                    @Param("lastId") Long lastId,
+                                                    @Param("limit") int limit);
+
+    /**
+     * 获取当前最大主键
+     *
+     * @return 最大主键，表为空时为 0
+     */
+    @Select("SELECT COALESCE(MAX(id), 0) FROM chat_conversation")
+    long getMaxId();
+
+    /**
+     * 根据 chat_message 回填主键在 (fromId, toId] 内、尚未维护会话列表字段的对话
+     * 不修改 update_time
+     *
+     * @param fromId 起始主键（不包含）
+     * @param toId   结束主键（包含）
+     * @return 影响行数
+     */
+    @Update("UPDATE chat_conversation c SET " +
+            "c.message_count = (SELECT COUNT(*) FROM chat_message m " +
+            "WHERE m.conversation_id = c.conversation_id AND m.deleted = 0), " +
+            "c.last_message_time = (SELECT MAX(m.create_time) FROM chat_message m " +
+            "WHERE m.conversation_id = c.conversation_id AND m.deleted = 0), " +
+            "c.last_message_preview = (SELECT LEFT(m.content, 100) FROM chat_message m " +
+            "WHERE m.conversation_id = c.conversation_id AND m.deleted = 0 ORDER BY m.message_order DESC LIMIT 1), " +
+            "c.title = COALESCE(c.title, (SELECT IF(CHAR_LENGTH(m.content) > 15, CONCAT(LEFT(m.content, 15), '...'), m.content) " +
+            "FROM chat_message m WHERE m.conversation_id = c.conversation_id AND m.deleted = 0 AND m.message_type = 'USER' " +
+            "ORDER BY m.message_order LIMIT 1)), " +
+            "c.update_time = c.update_time " +
+            "WHERE c.id > #{fromId} AND c.id <= #{toId} AND c.deleted = 0 AND c.last_message_time IS NULL")
+    int backfillSessionFields(@Param("fromId") long fromId, @Param("toId") long toId);
 }
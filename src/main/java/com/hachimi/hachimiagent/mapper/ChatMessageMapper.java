@@ -2,10 +2,17 @@ package com.hachimi.hachimiagent.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.hachimi.hachimiagent.entity.ChatMessage;
+import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Insert;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Options;
 import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.mapping.ResultSetType;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 /**
@@ -26,6 +33,78 @@ public interface ChatMessageMapper extends BaseMapper<ChatMessage> {
     @Select("SELECT * FROM chat_message WHERE conversation_id = #{conversationId} AND deleted = 0 ORDER BY message_order")
     List<ChatMessage> findByConversationIdOrderByOrder(@Param("conversationId") String conversationId);
 
+    /**
+     * 查询对话最后 N 条消息（按顺序排序）
+     * 内层沿 (conversation_id, message_order) 索引倒序取 N 条，外层再按正序返回
+     *
+     * @param conversationId 对话ID
+     * @param limit          条数
+     * @return 消息列表
+     */
+    @Select("SELECT * FROM (" +
+            "SELECT * FROM chat_message WHERE conversation_id = #{conversationId} AND deleted = 0 " +
+            "ORDER BY message_order DESC LIMIT #{limit}" +
+            ") t ORDER BY message_order")
+    List<ChatMessage> findLastMessages(@Param("conversationId") String conversationId, @Param("limit") int limit);
+
+    /**
+     * 查询对话中顺序号在 [fromOrder, toOrder) 内的消息（按顺序排序）
+     *
+     * @param conversationId 对话ID
+     * @param fromOrder      起始顺序号（包含）
+     * @param toOrder        结束顺序号（不包含）
+     * @param limit          最多条数
+     * @return 消息列表
+     */
+    @Select("SELECT * FROM chat_message WHERE conversation_id = #{conversationId} AND deleted = 0 " +
+            "AND message_order >= #{fromOrder} AND message_order < #{toOrder} ORDER BY message_order LIMIT #{limit}")
+    List<ChatMessage> findMessagesBetween(@Param("conversationId") String conversationId,
+                                          @Param("fromOrder") int fromOrder,
+                                          @Param("toOrder") int toOrder,
+                                          @Param("limit") int limit);
+
+    /**
+     * 游标分页查询对话消息，返回顺序号大于 afterOrder 的前 limit 条（按顺序排序）
+     * 沿 (conversation_id, message_order) 索引定位，翻到第几页代价都一样
+     *
+     * @param conversationId 对话ID
+     * @param afterOrder     上一页最后一条消息的顺序号，第一页为 -1
+     * @param limit          最多条数
+     * @return 消息列表
+     */
+    @Select("SELECT * FROM chat_message WHERE conversation_id = #{conversationId} AND deleted = 0 " +
+            "AND message_order > #{afterOrder} ORDER BY message_order LIMIT #{limit}")
+    List<ChatMessage> findMessagesPage(@Param("conversationId") String conversationId,
+                                       @Param("afterOrder") int afterOrder,
+                                       @Param("limit") int limit);
+
+    /**
+     * 流式读取消息用于导出，MySQL 驱动逐行返回结果，不在内存中物化整个结果集
+     * 指定对话时沿 (conversation_id, message_order) 按消息顺序返回，否则沿 create_time 索引按时间顺序返回；
+     * 返回的 Cursor 只能在同一事务内遍历，遍历期间占用一个连接
+     *
+     * @param conversationId 对话ID，为 null 时导出所有对话
+     * @param from           起始创建时间（包含），可为 null
+     * @param to             结束创建时间（不包含），可为 null
+     * @return 消息游标
+     */
+    @Select({"<script>",
+            "SELECT id, conversation_id, message_type, content, content_codec, content_blob, message_order, create_time",
+            "FROM chat_message",
+            "WHERE deleted = 0",
+            "<if test='conversationId != null'>AND conversation_id = #{conversationId}</if>",
+            "<if test='from != null'>AND create_time &gt;= #{from}</if>",
+            "<if test='to != null'>AND create_time &lt; #{to}</if>",
+            "<choose>",
+            "<when test='conversationId != null'>ORDER BY message_order</when>",
+            "<otherwise>ORDER BY create_time, id</otherwise>",
+            "</choose>",
+            "</script>"})
+    @Options(fetchSize = Integer.MIN_VALUE, resultSetType = ResultSetType.FORWARD_ONLY)
+    Cursor<ChatMessage> streamMessages(@Param("conversationId") String conversationId,
+                                       @Param("from") LocalDateTime from,
+                                       @Param("to") LocalDateTime to);
+
     /**
      * 获取对话中的最大消息顺序号
      *
@@ -34,4 +113,152 @@ public interface ChatMessageMapper extends BaseMapper<ChatMessage> {
      */
     @Select("SELECT COALESCE(MAX(message_order), -1) FROM chat_message WHERE conversation_id = #{conversationId} AND deleted = 0")
     Integer getMaxMessageOrder(@Param("conversationId") String conversationId);
+
+    /**
+     * 获取对话用过的最大消息顺序号，包括已逻辑删除的行
+     * 新消息的顺序号从它之后分配，被删除消息的顺序号不会再次出现
+     *
+     * @param conversationId 对话ID
+     * @return 最大顺序号，没有任何行时为 -1
+     */
+    @Select("SELECT COALESCE(MAX(message_order), -1) FROM chat_message WHERE conversation_id = #{conversationId}")
+    Integer getMaxUsedMessageOrder(@Param("conversationId") String conversationId);
+
+    /**
+     * 锁定对话用过的最大消息顺序号所在的索引记录（包括已逻辑删除的行），调用方负责事务
+     * 并发写入同一对话的事务在这条记录上串行，读到的都是已提交的最新值，分配的顺序号不会重复
+     *
+     * @param conversationId 对话ID
+     * @return 最大顺序号，没有任何行时为 null
+     */
+    @Select("SELECT message_order FROM chat_message WHERE conversation_id = #{conversationId} " +
+            "ORDER BY message_order DESC LIMIT 1 FOR UPDATE")
+    Integer lockMaxUsedMessageOrder(@Param("conversationId") String conversationId);
+
+    /**
+     * 查询对话中消息的比对摘要（按顺序排序）
+     * 只返回 id、顺序、类型和内容哈希；历史数据没有内容哈希时才返回内容
+     *
+     * @param conversationId 对话ID
+     * @return 消息摘要列表
+     */
+    @Select("SELECT id, message_order, message_type, content_hash, " +
+            "CASE WHEN content_hash IS NULL THEN content END AS content " +
+            "FROM chat_message WHERE conversation_id = #{conversationId} AND deleted = 0 ORDER BY message_order")
+    List<ChatMessage> findDigestsByConversationId(@Param("conversationId") String conversationId);
+
+    /**
+     * 多行 INSERT 批量插入消息，一次网络往返写入整批，生成的主键回填到实体
+     *
+     * @param messages 消息列表（不能为空）
+     * @return 插入行数
+     */
+    @Insert({"<script>",
+            "INSERT INTO chat_message (conversation_id, message_type, content, content_codec, content_blob, message_order,",
+            "content_hash, request_id, create_time, deleted) VALUES",
+            "<foreach collection='messages' item='m' separator=','>",
+            "(#{m.conversationId}, #{m.messageType}, #{m.content}, COALESCE(#{m.contentCodec,jdbcType=INTEGER}, 0), #{m.contentBlob,jdbcType=VARBINARY},",
+            "#{m.messageOrder}, #{m.contentHash}, #{m.requestId}, #{m.createTime}, #{m.deleted})",
+            "</foreach>",
+            "</script>"})
+    @Options(useGeneratedKeys = true, keyProperty = "messages.id", keyColumn = "id")
+    int insertBatch(@Param("messages") List<ChatMessage> messages);
+
+    /**
+     * 批量逻辑删除多个对话的消息，沿 idx_conversation_id 定位
+     *
+     * @param conversationIds 对话ID（不能为空）
+     * @return 删除的消息数
+     */
+    @Update({"<script>",
+            "UPDATE chat_message SET deleted = 1 WHERE deleted = 0 AND conversation_id IN",
+            "<foreach collection='conversationIds' item='id' open='(' separator=',' close=')'>#{id}</foreach>",
+            "</script>"})
+    int softDeleteByConversationIds(@Param("conversationIds") List<String> conversationIds);
+
+    /**
+     * 物理删除对话的有效消息，移入冷存储后调用；逻辑删除的行留给清理任务
+     *
+     * @param conversationId 对话ID
+     * @return 删除行数
+     */
+    @Delete("DELETE FROM chat_message WHERE conversation_id = #{conversationId} AND deleted = 0")
+    int deleteActiveByConversationId(@Param("conversationId") String conversationId);
+
+    /**
+     * 查询创建时间早于 before 的逻辑删除消息主键，沿 idx_deleted_create_time 读取
+     *
+     * @param before 创建时间上限（不包含）
+     * @param limit  最多条数
+     * @return 消息主键
+     */
+    @Select("SELECT id FROM chat_message WHERE deleted = 1 AND create_time < #{before} LIMIT #{limit}")
+    List<Long> findPurgeableIds(@Param("before") LocalDateTime before, @Param("limit") int limit);
+
+    /**
+     * 把逻辑删除的消息复制到归档表
+     *
+     * @param ids 消息主键（不能为空）
+     * @return 归档行数
+     */
+    @Insert({"<script>",
+            "INSERT INTO chat_message_archive (id, conversation_id, message_type, content, content_codec, content_blob,",
+            "message_order, content_hash, create_time)",
+            "SELECT id, conversation_id, message_type, content, content_codec, content_blob, message_order, content_hash, create_time",
+            "FROM chat_message",
+            "WHERE deleted = 1 AND id IN",
+            "<foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach>",
+            "</script>"})
+    int archiveByIds(@Param("ids") List<Long> ids);
+
+    /**
+     * 物理删除逻辑删除的消息
+     *
+     * @param ids 消息主键（不能为空）
+     * @return 删除行数
+     */
+    @Delete({"<script>",
+            "DELETE FROM chat_message WHERE deleted = 1 AND id IN",
+            "<foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach>",
+            "</script>"})
+    int purgeByIds(@Param("ids") List<Long> ids);
+
+    /**
+     * 查询 chat_message 各分区的上界（PARTITION_DESCRIPTION），按分区顺序排列
+     *
+     * @return 形如 '2026-11-01 00:00:00' 或 MAXVALUE 的上界，表未分区时为空列表
+     */
+    @Select("SELECT PARTITION_DESCRIPTION FROM information_schema.PARTITIONS " +
+            "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'chat_message' AND PARTITION_NAME IS NOT NULL " +
+            "ORDER BY PARTITION_ORDINAL_POSITION")
+    List<String> findPartitionBounds();
+
+    /**
+     * 从 pmax 中拆出一个新的月分区，pmax 为空时只修改元数据
+     * 分区名和上界由调用方按日期生成，不接受外部输入
+     *
+     * @param name     分区名，如 p202611
+     * @param lessThan 分区上界（不包含），如 2026-12-01
+     */
+    @Update("ALTER TABLE chat_message REORGANIZE PARTITION pmax INTO (" +
+            "PARTITION ${name} VALUES LESS THAN ('${lessThan}'), PARTITION pmax VALUES LESS THAN (MAXVALUE))")
+    void addPartition(@Param("name") String name, @Param("lessThan") String lessThan);
+
+    /**
+     * 获取消息表当前最大主键
+     *
+     * @return 最大主键，空表返回 0
+     */
+    @Select("SELECT COALESCE(MAX(id), 0) FROM chat_message")
+    Long getMaxId();
+
+    /**
+     * 按主键顺序查询指定主键之后写入的消息（只返回 id 和对话ID）
+     *
+     * @param afterId 起始主键（不包含）
+     * @param limit   最大行数
+     * @return 消息列表
+     */
+    @Select("SELECT id, conversation_id FROM chat_message WHERE id > #{afterId} ORDER BY id LIMIT #{limit}")
+    List<ChatMessage> findIdsAfter(@Param("afterId") long afterId, @Param("limit") int limit);
 }
@@ -0,0 +1,36 @@
+package com.hachimi.hachimiagent.replica;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+
+/**
+ * 延迟到第一条语句才取真实连接的数据源代理
+ * 事务管理器开启事务时拿到的是代理连接，只读标记已经登记后才由 {@link ReadWriteRoutingDataSource} 选择主库或从库。
+ * 关闭时一并关闭被代理的路由数据源
+ */
+@Slf4j
+public class LazyRoutingDataSourceProxy extends LazyConnectionDataSourceProxy implements AutoCloseable {
+
+    public LazyRoutingDataSourceProxy(DataSource target) {
+        super();
+        setTargetDataSource(target);
+        // 与 MySQL 默认值一致，避免启动时为读取默认值去连接数据库
+        setDefaultAutoCommit(true);
+        setDefaultTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        afterPropertiesSet();
+    }
+
+    @Override
+    public void close() {
+        if (getTargetDataSource() instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                log.warn("关闭数据源失败", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.hachimi.hachimiagent.replica;
+
+import com.alibaba.druid.pool.DruidDataSource;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+/**
+ * 聊天库读写路由
+ * <p>
+ * 以下情况使用从库：{@link ReplicaRead} 标注的方法内不在读写事务中的查询，以及只读事务。
+ * 读写事务、写入和未标注的查询都使用主库。
+ * 对话写入后 readYourWritesSeconds 秒内，读取这个对话仍走主库；其他节点的写入通过缓存失效通知得知。
+ * 会话列表、统计等不针对单个对话的读取不做写后读保证，最多落后 maxLagSeconds 秒。
+ * <p>
+ * 定时检查每个从库的复制延迟，超过 maxLagSeconds 或复制中断的从库暂停使用，全部不可用时退回主库。
+ * 各角色连接池的使用情况、路由次数和复制延迟注册为 chat.datasource.* 指标。
+ */
+@Component
+@Slf4j
+public class ReadWriteRouter implements MeterBinder {
+
+    // 当前线程是否想读从库，null 表示未指定（只读事务读从库，其余读主库）
+    private static final ThreadLocal<Boolean> PREFER_REPLICA = new ThreadLocal<>();
+
+    private final ReplicaProperties properties;
+
+    // 最近写入过的对话
+    private final Cache<String, Boolean> recentWrites;
+
+    private final List<ReadWriteRoutingDataSource> dataSources = new CopyOnWriteArrayList<>();
+
+    private volatile MeterRegistry meterRegistry;
+
+    public ReadWriteRouter(ReplicaProperties properties) {
+        this.properties = properties;
+        this.recentWrites = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofSeconds(Math.max(properties.getReadYourWritesSeconds(), 1)))
+                .build();
+    }
+
+    /**
+     * 当前线程取连接时是否应当使用从库
+     */
+    public static boolean replicaPreferred() {
+        boolean inTransaction = TransactionSynchronizationManager.isActualTransactionActive();
+        if (inTransaction && !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return false;
+        }
+        Boolean preference = PREFER_REPLICA.get();
+        return preference != null ? preference : inTransaction;
+    }
+
+    /**
+     * 当前线程的读库偏好，用于把它带到其他线程（跨分片并发查询）
+     */
+    public static Boolean currentPreference() {
+        return PREFER_REPLICA.get();
+    }
+
+    /**
+     * 设置当前线程的读库偏好，返回原来的值，执行完后交给 {@link #restore}
+     */
+    public static Boolean enter(Boolean preferReplica) {
+        Boolean previous = PREFER_REPLICA.get();
+        if (preferReplica == null) {
+            PREFER_REPLICA.remove();
+        } else {
+            PREFER_REPLICA.set(preferReplica);
+        }
+        return previous;
+    }
+
+    public static void restore(Boolean previous) {
+        enter(previous);
+    }
+
+    /**
+     * 在指定的读库偏好下执行
+     */
+    public static <T> T withPreference(Boolean preferReplica, Supplier<T> action) {
+        Boolean previous = enter(preferReplica);
+        try {
+            return action.get();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    /**
+     * 读取对话时是否可以使用从库：未开启读写分离或对话刚写入过时返回 false
+     *
+     * @param conversationId 对话ID，为 null 时表示不针对单个对话
+     */
+    public boolean preferReplica(String conversationId) {
+        if (!properties.isEnabled()) {
+            return false;
+        }
+        return conversationId == null || recentWrites.getIfPresent(conversationId) == null;
+    }
+
+    /**
+     * 在从库上读取，对话刚写入过时使用主库
+     */
+    public <T> T readOnReplica(String conversationId, Supplier<T> action) {
+        return withPreference(preferReplica(conversationId), action);
+    }
+
+    /**
+     * 强制使用主库，用于只读路径中需要写入的步骤（如冷存储回迁）及其后的查询
+     */
+    public <T> T onPrimary(Supplier<T> action) {
+        return withPreference(false, action);
+    }
+
+    /**
+     * 记录对话刚写入过，之后一段时间内读取这个对话走主库
+     */
+    public void markWritten(String conversationId) {
+        if (properties.isEnabled()) {
+            recentWrites.put(conversationId, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 登记分片的读写分离数据源，纳入延迟检查和指标
+     */
+    public void register(ReadWriteRoutingDataSource dataSource) {
+        dataSources.add(dataSource);
+        MeterRegistry registry = meterRegistry;
+        if (registry != null) {
+            bindDataSource(registry, dataSource);
+        }
+    }
+
+    /**
+     * 检查各从库的复制延迟，更新可用状态
+     */
+    @Scheduled(fixedDelayString = "${chat.replica.lag-check-millis:5000}")
+    public void checkReplicaLag() {
+        for (ReadWriteRoutingDataSource dataSource : dataSources) {
+            List<DruidDataSource> replicas = dataSource.replicas();
+            for (int i = 0; i < replicas.size(); i++) {
+                long lag = replicationLag(replicas.get(i));
+                dataSource.updateReplica(i, lag, lag >= 0 && lag <= properties.getMaxLagSeconds());
+            }
+        }
+    }
+
+    /**
+     * 查询从库的复制延迟（秒），复制中断或查询失败时返回 -1
+     * 需要 REPLICATION CLIENT 权限；MySQL 8.0.22 之前的版本使用 SHOW SLAVE STATUS
+     */
+    private static long replicationLag(DruidDataSource replica) {
+        try (Connection connection = replica.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.setQueryTimeout(3);
+            try (ResultSet rs = queryReplicaStatus(statement)) {
+                if (!rs.next()) {
+                    log.warn("从库没有复制状态，可能不是从库: {}", replica.getName());
+                    return -1;
+                }
+                long lag = lagColumn(rs);
+                return rs.wasNull() ? -1 : lag;
+            }
+        } catch (SQLException e) {
+            log.warn("检查从库复制延迟失败: {}", replica.getName(), e);
+            return -1;
+        }
+    }
+
+    private static ResultSet queryReplicaStatus(Statement statement) throws SQLException {
+        try {
+            return statement.executeQuery("SHOW REPLICA STATUS");
+        } catch (SQLException e) {
+            return statement.executeQuery("SHOW SLAVE STATUS");
+        }
+    }
+
+    private static long lagColumn(ResultSet rs) throws SQLException {
+        try {
+            return rs.getLong("Seconds_Behind_Source");
+        } catch (SQLException e) {
+            return rs.getLong("Seconds_Behind_Master");
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        this.meterRegistry = registry;
+        dataSources.forEach(dataSource -> bindDataSource(registry, dataSource));
+    }
+
+    private static void bindDataSource(MeterRegistry registry, ReadWriteRoutingDataSource dataSource) {
+        String shard = String.valueOf(dataSource.shard());
+        bindPool(registry, dataSource.primary(), Tags.of("shard", shard, "role", "primary", "name", dataSource.primary().getName()));
+        List<DruidDataSource> replicas = dataSource.replicas();
+        for (int i = 0; i < replicas.size(); i++) {
+            int replica = i;
+            Tags tags = Tags.of("shard", shard, "role", "replica", "name", replicas.get(i).getName());
+            bindPool(registry, replicas.get(i), tags);
+            Gauge.builder("chat.datasource.replica.lag", dataSource, ds -> ds.replicaLagSeconds(replica))
+                    .description("从库复制延迟，-1 表示未知或复制中断")
+                    .baseUnit("seconds")
+                    .tags(tags)
+                    .register(registry);
+            Gauge.builder("chat.datasource.replica.available", dataSource, ds -> ds.replicaAvailable(replica) ? 1 : 0)
+                    .description("从库是否参与读请求")
+                    .tags(tags)
+                    .register(registry);
+        }
+        FunctionCounter.builder("chat.datasource.routes", dataSource, ReadWriteRoutingDataSource::primaryRoutes)
+                .description("按读写角色路由的取连接次数")
+                .tags("shard", shard, "target", "primary")
+                .register(registry);
+        FunctionCounter.builder("chat.datasource.routes", dataSource, ReadWriteRoutingDataSource::replicaRoutes)
+                .description("按读写角色路由的取连接次数")
+                .tags("shard", shard, "target", "replica")
+                .register(registry);
+        FunctionCounter.builder("chat.datasource.routes", dataSource, ReadWriteRoutingDataSource::fallbackRoutes)
+                .description("按读写角色路由的取连接次数")
+                .tags("shard", shard, "target", "fallback")
+                .register(registry);
+    }
+
+    private static void bindPool(MeterRegistry registry, DruidDataSource pool, Tags tags) {
+        Gauge.builder("chat.datasource.connections.active", pool, DruidDataSource::getActiveCount)
+                .description("连接池中正在使用的连接数")
+                .tags(tags)
+                .register(registry);
+        Gauge.builder("chat.datasource.connections.idle", pool, DruidDataSource::getPoolingCount)
+                .description("连接池中空闲的连接数")
+                .tags(tags)
+                .register(registry);
+        Gauge.builder("chat.datasource.connections.pending", pool, DruidDataSource::getWaitThreadCount)
+                .description("等待取连接的线程数")
+                .tags(tags)
+                .register(registry);
+        Gauge.builder("chat.datasource.connections.max", pool, DruidDataSource::getMaxActive)
+                .description("连接池的最大连接数")
+                .tags(tags)
+                .register(registry);
+    }
+}
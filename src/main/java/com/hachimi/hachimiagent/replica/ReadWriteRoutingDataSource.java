@@ -0,0 +1,131 @@
+package com.hachimi.hachimiagent.replica;
+
+import com.alibaba.druid.pool.DruidDataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个分片的读写分离数据源：主库加若干从库
+ * <p>
+ * {@link ReadWriteRouter#replicaPreferred()} 为 true 时在可用的从库中轮询，没有可用从库时退回主库；其余情况使用主库。
+ * 取连接时才决定去向，需要由 {@link LazyRoutingDataSourceProxy} 包装，让只读事务的标记在取连接前生效
+ */
+@Slf4j
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+
+    static final String PRIMARY = "primary";
+
+    private final int shard;
+    private final DruidDataSource primary;
+    private final List<DruidDataSource> replicas;
+
+    // 从库最近一次检查的复制延迟（秒），-1 表示未知或复制已中断
+    private final AtomicLongArray replicaLagSeconds;
+    // 从库是否可用，1 可用；启动后首次检查前不可用
+    private final AtomicIntegerArray replicaAvailable;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    private final LongAdder primaryRoutes = new LongAdder();
+    private final LongAdder replicaRoutes = new LongAdder();
+    // 想读从库但没有可用从库，退回主库的次数
+    private final LongAdder fallbackRoutes = new LongAdder();
+
+    public ReadWriteRoutingDataSource(int shard, DruidDataSource primary, List<DruidDataSource> replicas) {
+        this.shard = shard;
+        this.primary = primary;
+        this.replicas = List.copyOf(replicas);
+        this.replicaLagSeconds = new AtomicLongArray(replicas.size());
+        this.replicaAvailable = new AtomicIntegerArray(replicas.size());
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        for (int i = 0; i < replicas.size(); i++) {
+            targets.put(i, replicas.get(i));
+            replicaLagSeconds.set(i, -1);
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        setLenientFallback(false);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!ReadWriteRouter.replicaPreferred()) {
+            primaryRoutes.increment();
+            return PRIMARY;
+        }
+        int size = replicas.size();
+        int start = Math.floorMod(nextReplica.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            int replica = (start + i) % size;
+            if (replicaAvailable.get(replica) == 1) {
+                replicaRoutes.increment();
+                return replica;
+            }
+        }
+        fallbackRoutes.increment();
+        return PRIMARY;
+    }
+
+    /**
+     * 记录从库的检查结果，可用状态变化时打日志
+     */
+    void updateReplica(int replica, long lagSeconds, boolean available) {
+        replicaLagSeconds.set(replica, lagSeconds);
+        int previous = replicaAvailable.getAndSet(replica, available ? 1 : 0);
+        if (previous == 1 && !available) {
+            log.warn("从库暂停使用: shard={}, replica={}, lag={}s", shard, replicas.get(replica).getName(), lagSeconds);
+        } else if (previous == 0 && available) {
+            log.info("从库可用: shard={}, replica={}, lag={}s", shard, replicas.get(replica).getName(), lagSeconds);
+        }
+    }
+
+    public int shard() {
+        return shard;
+    }
+
+    public DruidDataSource primary() {
+        return primary;
+    }
+
+    public List<DruidDataSource> replicas() {
+        return replicas;
+    }
+
+    public long replicaLagSeconds(int replica) {
+        return replicaLagSeconds.get(replica);
+    }
+
+    public boolean replicaAvailable(int replica) {
+        return replicaAvailable.get(replica) == 1;
+    }
+
+    public long primaryRoutes() {
+        return primaryRoutes.sum();
+    }
+
+    public long replicaRoutes() {
+        return replicaRoutes.sum();
+    }
+
+    public long fallbackRoutes() {
+        return fallbackRoutes.sum();
+    }
+
+    /**
+     * 关闭主库和从库连接池；0 号分片的主库由 Spring 管理，Druid 的 close 可以重复调用
+     */
+    @Override
+    public void close() {
+        primary.close();
+        replicas.forEach(DruidDataSource::close);
+    }
+}
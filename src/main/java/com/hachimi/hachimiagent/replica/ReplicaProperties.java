@@ -0,0 +1,44 @@
+package com.hachimi.hachimiagent.replica;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 聊天库读写分离配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "chat.replica")
+public class ReplicaProperties {
+
+    /**
+     * 是否把只读事务和 {@link ReplicaRead} 标注的查询发往从库
+     */
+    private boolean enabled = false;
+
+    /**
+     * 从库列表，每项的键与 spring.datasource 相同，未配置的键沿用 spring.datasource；
+     * shard 指定所属的分片（默认 0），一个分片可以配置多个从库，轮询使用
+     */
+    private List<Map<String, String>> replicas = new ArrayList<>();
+
+    /**
+     * 对话写入后该秒数内，这个对话的读取仍走主库，保证写后读一致
+     */
+    private int readYourWritesSeconds = 5;
+
+    /**
+     * 复制延迟超过该秒数的从库暂停使用，恢复后自动加回
+     */
+    private int maxLagSeconds = 10;
+
+    /**
+     * 检查从库复制延迟的间隔
+     */
+    private long lagCheckMillis = 5000;
+}
@@ -0,0 +1,22 @@
+package com.hachimi.hachimiagent.replica;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 标注可以读从库的查询方法
+ * 方法内的读写事务仍使用主库；读取单个对话时指定对话ID参数，该对话刚写入过时改读主库
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface ReplicaRead {
+
+    /**
+     * 对话ID在方法参数中的位置，-1 表示不针对单个对话（会话列表、统计等）
+     */
+    int conversationIdArg() default -1;
+}
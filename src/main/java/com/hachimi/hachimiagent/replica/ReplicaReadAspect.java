@@ -0,0 +1,32 @@
+package com.hachimi.hachimiagent.replica;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.stereotype.Component;
+
+/**
+ * 在 {@link ReplicaRead} 标注的方法执行期间把查询路由到从库
+ */
+@Aspect
+@Component
+public class ReplicaReadAspect {
+
+    private final ReadWriteRouter readWriteRouter;
+
+    public ReplicaReadAspect(ReadWriteRouter readWriteRouter) {
+        this.readWriteRouter = readWriteRouter;
+    }
+
+    @Around("@annotation(replicaRead)")
+    public Object route(ProceedingJoinPoint joinPoint, ReplicaRead replicaRead) throws Throwable {
+        int index = replicaRead.conversationIdArg();
+        String conversationId = index >= 0 ? (String) joinPoint.getArgs()[index] : null;
+        Boolean previous = ReadWriteRouter.enter(readWriteRouter.preferReplica(conversationId));
+        try {
+            return joinPoint.proceed();
+        } finally {
+            ReadWriteRouter.restore(previous);
+        }
+    }
+}
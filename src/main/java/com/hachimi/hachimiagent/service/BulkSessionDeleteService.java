@@ -0,0 +1,163 @@
+package com.hachimi.hachimiagent.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hachimi.hachimiagent.chatmemory.MysqlBasedChatMemoryRepository;
+import com.hachimi.hachimiagent.dto.BulkDeleteJobStatus;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量删除会话
+ * <p>
+ * 数量不超过 asyncThreshold 时在请求线程中一个事务内删除；更大的选择提交为后台任务，
+ * 每 jobBatchSize 个会话一个事务，调用方通过任务ID轮询进度。任务结束后进度保留一段时间再清除。
+ */
+@Service
+@Slf4j
+public class BulkSessionDeleteService {
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+    public static final String STATUS_FAILED = "FAILED";
+
+    // 同时排队的删除任务上限
+    private static final int JOB_QUEUE_CAPACITY = 16;
+
+    private final MysqlBasedChatMemoryRepository chatMemoryRepository;
+    private final int asyncThreshold;
+    private final int jobBatchSize;
+    private final ThreadPoolExecutor executor;
+
+    // 任务ID -> 进度
+    private final Cache<String, BulkDeleteJobStatus> jobs;
+
+    public BulkSessionDeleteService(MysqlBasedChatMemoryRepository chatMemoryRepository,
+                                    @Value("${chat.history.bulk-delete.async-threshold:1000}") int asyncThreshold,
+                                    @Value("${chat.history.bulk-delete.job-batch-size:1000}") int jobBatchSize,
+                                    @Value("${chat.history.bulk-delete.job-retention-minutes:60}") long jobRetentionMinutes) {
+        this.chatMemoryRepository = chatMemoryRepository;
+        this.asyncThreshold = asyncThreshold;
+        this.jobBatchSize = jobBatchSize;
+        this.jobs = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMinutes(jobRetentionMinutes))
+                .build();
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(JOB_QUEUE_CAPACITY), r -> {
+                    Thread thread = new Thread(r, "bulk-session-delete");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * 是否需要作为后台任务执行
+     */
+    public boolean isAsync(int size) {
+        return size > asyncThreshold;
+    }
+
+    /**
+     * 在当前线程中删除
+     *
+     * @return 实际删除的会话数
+     */
+    public int deleteNow(List<String> sessionIds) {
+        return chatMemoryRepository.deleteByConversationIds(sessionIds);
+    }
+
+    /**
+     * 提交后台删除任务
+     *
+     * @return 任务初始进度
+     * @throws IllegalStateException 排队的任务已满
+     */
+    public BulkDeleteJobStatus submit(List<String> sessionIds) {
+        List<String> ids = List.copyOf(sessionIds);
+        String jobId = UUID.randomUUID().toString();
+        BulkDeleteJobStatus status = new BulkDeleteJobStatus()
+                .setJobId(jobId)
+                .setStatus(STATUS_RUNNING)
+                .setTotal(ids.size())
+                .setProcessed(0)
+                .setDeleted(0)
+                .setStartedAt(System.currentTimeMillis());
+        jobs.put(jobId, status);
+        try {
+            executor.execute(() -> run(jobId, ids));
+        } catch (RejectedExecutionException e) {
+            jobs.invalidate(jobId);
+            throw new IllegalStateException("批量删除任务过多，请稍后重试");
+        }
+        log.info("已提交批量删除任务: jobId={}, total={}", jobId, ids.size());
+        return copy(status);
+    }
+
+    /**
+     * 查询任务进度，任务不存在或已过期时返回 null
+     */
+    public BulkDeleteJobStatus getJob(String jobId) {
+        BulkDeleteJobStatus status = jobs.getIfPresent(jobId);
+        return status != null ? copy(status) : null;
+    }
+
+    private void run(String jobId, List<String> ids) {
+        int processed = 0;
+        int deleted = 0;
+        try {
+            for (int from = 0; from < ids.size(); from += jobBatchSize) {
+                List<String> batch = ids.subList(from, Math.min(from + jobBatchSize, ids.size()));
+                deleted += chatMemoryRepository.deleteByConversationIds(batch);
+                processed += batch.size();
+                update(jobId, processed, deleted, STATUS_RUNNING, null);
+            }
+            update(jobId, processed, deleted, STATUS_COMPLETED, null);
+            log.info("批量删除任务完成: jobId={}, total={}, deleted={}", jobId, ids.size(), deleted);
+        } catch (Exception e) {
+            // 已提交的批次不回滚，进度反映已处理的部分
+            update(jobId, processed, deleted, STATUS_FAILED, e.getMessage());
+            log.error("批量删除任务失败: jobId={}, processed={}", jobId, processed, e);
+        }
+    }
+
+    private void update(String jobId, int processed, int deleted, String state, String error) {
+        jobs.asMap().computeIfPresent(jobId, (id, status) -> {
+            BulkDeleteJobStatus next = copy(status)
+                    .setProcessed(processed)
+                    .setDeleted(deleted)
+                    .setStatus(state)
+                    .setError(error);
+            if (!STATUS_RUNNING.equals(state)) {
+                next.setFinishedAt(System.currentTimeMillis());
+            }
+            return next;
+        });
+    }
+
+    private static BulkDeleteJobStatus copy(BulkDeleteJobStatus status) {
+        return new BulkDeleteJobStatus()
+                .setJobId(status.getJobId())
+                .setStatus(status.getStatus())
+                .setTotal(status.getTotal())
+                .setProcessed(status.getProcessed())
+                .setDeleted(status.getDeleted())
+                .setError(status.getError())
+                .setStartedAt(status.getStartedAt())
+                .setFinishedAt(status.getFinishedAt());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
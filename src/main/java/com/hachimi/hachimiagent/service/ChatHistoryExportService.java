@@ -0,0 +1,128 @@
+package com.hachimi.hachimiagent.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.hachimi.hachimiagent.common.MessageContentCodec;
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 聊天历史导出服务
+ * <p>
+ * 通过 MySQL 流式结果集逐行读取消息，边读边写成 NDJSON（每行一条消息的 JSON），可选 gzip 压缩。
+ * 内存占用只有一行消息和输出缓冲区，与导出的行数无关。
+ * 开启分库时，指定对话只读所在分片；导出所有对话时依次读取每个分片，写入同一个输出流。
+ */
+@Service
+@Slf4j
+public class ChatHistoryExportService {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    // 每写出多少行刷新一次输出，让客户端尽早收到数据
+    private static final int FLUSH_INTERVAL_ROWS = 1000;
+
+    private final ChatMessageMapper messageMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final ShardRouter shardRouter;
+
+    public ChatHistoryExportService(ChatMessageMapper messageMapper,
+                                    @Qualifier("primaryTransactionManager") PlatformTransactionManager transactionManager,
+                                    ShardRouter shardRouter) {
+        this.messageMapper = messageMapper;
+        this.shardRouter = shardRouter;
+        // Cursor 依赖打开的 SqlSession，整个遍历放在一个只读事务中
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+    }
+
+    /**
+     * 导出消息为 NDJSON
+     *
+     * @param conversationId 对话ID，为 null 时导出所有对话
+     * @param from           起始创建时间（包含），可为 null
+     * @param to             结束创建时间（不包含），可为 null
+     * @param gzip           是否 gzip 压缩
+     * @param out            输出流，由调用方关闭
+     * @return 导出的行数
+     */
+    public long exportMessages(String conversationId, LocalDateTime from, LocalDateTime to,
+                               boolean gzip, OutputStream out) {
+        if (from != null && to != null && !from.isBefore(to)) {
+            throw new IllegalArgumentException("起始时间必须早于结束时间");
+        }
+
+        long begin = System.currentTimeMillis();
+        long rows;
+        try {
+            OutputStream target = gzip ? new GZIPOutputStream(out, 8192) : out;
+            // 不关闭底层输出流，由调用方负责
+            JsonGenerator generator = JSON_FACTORY.createGenerator(target);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            if (conversationId != null) {
+                rows = shardRouter.route(conversationId, () -> exportShard(conversationId, from, to, generator));
+            } else {
+                long[] total = new long[1];
+                shardRouter.forEachShard(shard -> total[0] += exportShard(null, from, to, generator));
+                rows = total[0];
+            }
+            generator.close();
+            if (target instanceof GZIPOutputStream gzipOut) {
+                gzipOut.finish();
+            }
+            target.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("导出聊天历史完成: conversationId={}, from={}, to={}, gzip={}, rows={}, cost={}ms",
+                conversationId, from, to, gzip, rows, System.currentTimeMillis() - begin);
+        return rows;
+    }
+
+    /**
+     * 在当前分片的只读事务中遍历消息并写出
+     */
+    private long exportShard(String conversationId, LocalDateTime from, LocalDateTime to, JsonGenerator generator) {
+        Long rows = transactionTemplate.execute(status -> {
+            try (Cursor<ChatMessage> cursor = messageMapper.streamMessages(conversationId, from, to)) {
+                return write(cursor, generator);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return rows != null ? rows : 0;
+    }
+
+    private static long write(Cursor<ChatMessage> cursor, JsonGenerator generator) throws IOException {
+        long rows = 0;
+        for (ChatMessage message : cursor) {
+            generator.writeStartObject();
+            generator.writeNumberField("id", message.getId());
+            generator.writeStringField("conversationId", message.getConversationId());
+            generator.writeNumberField("messageOrder", message.getMessageOrder());
+            generator.writeStringField("messageType", message.getMessageType());
+            generator.writeStringField("content", MessageContentCodec.decode(message));
+            generator.writeStringField("createTime",
+                    message.getCreateTime() != null ? message.getCreateTime().toString() : null);
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+            if (++rows % FLUSH_INTERVAL_ROWS == 0) {
+                generator.flush();
+            }
+        }
+        return rows;
+    }
+}
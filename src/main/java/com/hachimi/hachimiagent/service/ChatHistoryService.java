@@ -1,13 +1,25 @@
 package com.hachimi.hachimiagent.service;
 
 import com.hachimi.hachimiagent.chatmemory.MysqlBasedChatMemoryRepository;
+import com.hachimi.hachimiagent.common.CursorCodec;
+import com.hachimi.hachimiagent.common.MessageContentCodec;
+import com.hachimi.hachimiagent.dto.CursorPage;
+import com.hachimi.hachimiagent.dto.MessageDeltaPage;
+import com.hachimi.hachimiagent.entity.ChatConversation;
 import com.hachimi.hachimiagent.entity.ChatMessage;
+import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
 import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.replica.ReadWriteRouter;
+import com.hachimi.hachimiagent.replica.ReplicaRead;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import jakarta.annotation.Resource;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +28,11 @@ import java.util.stream.Collectors;
 /**
  * 基于现有数据库ChatMemory体系的聊天历史服务
  * 直接使用Entity，无需DTO转换
+ * <p>
+ * 开启分库时，单个会话的查询路由到所在分片；会话列表、增量同步和统计在各分片上并发查询后归并。
+ * 跨分片的游标在 (时间, 主键) 之后追加最后一行所在的分片号，不同分片上时间和主键都相同的行按分片号排列
+ * <p>
+ * 开启读写分离时，会话列表、统计和消息历史读从库；刚写入过的对话读主库，冷存储回迁及其后的查询也在主库上执行
  */
 @Service
 @Slf4j
@@ -27,23 +44,39 @@ public class ChatHistoryService {
     @Resource
     private ChatMessageMapper messageMapper;
 
+    @Resource
+    private ChatConversationMapper conversationMapper;
+
+    @Resource
+    private ShardRouter shardRouter;
+
+    @Resource
+    private ReadWriteRouter readWriteRouter;
+
+    // 游标中没有分片号（未分库时生成的游标）
+    private static final int NO_SHARD = Integer.MAX_VALUE;
+
+    @Value("${chat.history.default-page-size:20}")
+    private int defaultPageSize;
+
+    @Value("${chat.history.max-page-size:100}")
+    private int maxPageSize;
+
+    @Value("${chat.history.change-settle-seconds:2}")
+    private int changeSettleSeconds;
+
     /**
      * 获取所有会话列表
-     * 返回会话基本信息的Map
+     * 返回会话基本信息的Map，只查询 chat_conversation 上维护的会话列表字段
      */
+    @ReplicaRead
     public List<Map<String, Object>> getAllSessions() {
         try {
-            // 使用现有的ChatMemoryRepository获取所有对话ID
-            List<String> conversationIds = chatMemoryRepository.findConversationIds();
-
-            return conversationIds.stream()
+            List<List<ChatConversation>> shards = shardRouter.scatter(shard -> conversationMapper.findSessions());
+            Comparator<ChatConversation> order = Comparator.comparing(ChatConversation::getLastMessageTime,
+                    Comparator.nullsLast(Comparator.reverseOrder()));
+            return ShardRouter.merge(shards, order, Integer.MAX_VALUE).stream()
                     .map(this::buildSessionSummary)
-                    .filter(session -> session != null)
-                    .sorted((a, b) -> {
-                        LocalDateTime timeA = (LocalDateTime) a.get("lastMessageTime");
-                        LocalDateTime timeB = (LocalDateTime) b.get("lastMessageTime");
-                        return timeB.compareTo(timeA);
-                    })
                     .collect(Collectors.toList());
 
         } catch (Exception e) {
@@ -52,14 +85,225 @@ public class ChatHistoryService {
         }
     }
 
+    /**
+     * 游标分页获取会话列表，按最后消息时间倒序
+     * 游标记录上一页最后一个会话的 (lastMessageTime, id)，翻页期间有新消息的会话会移到第一页，不会在后续页重复出现
+     *
+     * @param cursor 上一页返回的 nextCursor，第一页为空
+     * @param size   每页条数，为空时使用默认值，超过上限时按上限返回
+     * @throws IllegalArgumentException 游标格式不正确
+     */
+    @ReplicaRead
+    public CursorPage<Map<String, Object>> getSessionsPage(String cursor, Integer size) {
+        LocalDateTime lastTime = null;
+        Long lastId = null;
+        int lastShard = NO_SHARD;
+        if (cursor != null && !cursor.isBlank()) {
+            String[] parts = CursorCodec.decode(cursor, 2, 3);
+            try {
+                lastTime = LocalDateTime.parse(parts[0]);
+                lastId = Long.parseLong(parts[1]);
+                lastShard = parts.length == 3 ? Integer.parseInt(parts[2]) : NO_SHARD;
+            } catch (DateTimeParseException | NumberFormatException e) {
+                throw new IllegalArgumentException("无效的分页游标: " + cursor);
+            }
+        }
+
+        int pageSize = pageSize(size);
+        LocalDateTime time = lastTime;
+        Long id = lastId;
+        int cursorShard = lastShard;
+        // 排在游标分片之后的分片，与游标时间、主键都相同的行还没有返回，主键上界放宽 1
+        List<List<ChatConversation>> shards = shardRouter.scatter(shard -> conversationMapper.findSessionsPage(
+                time, id != null && shard > cursorShard ? id + 1 : id, pageSize + 1));
+        Comparator<ChatConversation> order = Comparator.comparing(ChatConversation::getLastMessageTime,
+                        Comparator.nullsLast(Comparator.<LocalDateTime>reverseOrder()))
+                .thenComparing(ChatConversation::getId, Comparator.reverseOrder())
+                .thenComparingInt(conversation -> shardRouter.shardOf(conversation.getConversationId()));
+        List<ChatConversation> rows = ShardRouter.merge(shards, order, pageSize + 1);
+        boolean hasMore = rows.size() > pageSize;
+        if (hasMore) {
+            rows = rows.subList(0, pageSize);
+        }
+
+        ChatConversation last = rows.isEmpty() ? null : rows.get(rows.size() - 1);
+        return new CursorPage<Map<String, Object>>()
+                .setItems(rows.stream().map(this::buildSessionSummary).collect(Collectors.toList()))
+                .setHasMore(hasMore)
+                .setNextCursor(hasMore ? encodeCursor(last.getLastMessageTime(), last.getId(),
+                        shardRouter.shardOf(last.getConversationId())) : null);
+    }
+
+    /**
+     * 游标分页获取会话消息，按消息顺序正序
+     *
+     * @param sessionId 会话ID
+     * @param cursor    上一页返回的 nextCursor，第一页为空
+     * @param size      每页条数，为空时使用默认值，超过上限时按上限返回
+     * @throws IllegalArgumentException 游标格式不正确
+     */
+    @ReplicaRead(conversationIdArg = 0)
+    public CursorPage<ChatMessage> getSessionMessagesPage(String sessionId, String cursor, Integer size) {
+        int afterOrder = -1;
+        if (cursor != null && !cursor.isBlank()) {
+            try {
+                afterOrder = Integer.parseInt(CursorCodec.decode(cursor, 1)[0]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("无效的分页游标: " + cursor);
+            }
+        }
+        int fromOrder = afterOrder;
+        List<ChatMessage> rows = shardRouter.route(sessionId, () -> findMessagesAfter(sessionId, fromOrder, size));
+        return toMessagePage(sessionId, rows, pageSize(size), new CursorPage<>());
+    }
+
+    /**
+     * 增量获取会话消息：只返回顺序号大于 afterOrder 的消息，按消息顺序正序
+     * 客户端记住已有的最大顺序号和返回的 rewriteCount，每轮对话后只拉取新增部分。
+     * 新消息的顺序号总是大于用过的最大顺序号，但截断或替换已有消息、删除会话不会体现在新增部分中，
+     * 这些操作会使 rewriteCount 加 1；与本地记录的值不同时，客户端丢弃本地消息并从 -1 整体重新拉取。
+     * 窗口头部滑出的消息不计入改写，客户端可以继续保留。
+     * rewriteCount 先于消息读取，期间发生的改写最迟在下一次拉取时发现
+     *
+     * @param sessionId  会话ID
+     * @param afterOrder 客户端已有的最大顺序号，没有时为 -1
+     * @param size       最多条数，为空时使用默认值，超过上限时按上限返回
+     */
+    @ReplicaRead(conversationIdArg = 0)
+    public MessageDeltaPage getSessionMessagesAfter(String sessionId, int afterOrder, Integer size) {
+        MessageDeltaPage delta = new MessageDeltaPage();
+        List<ChatMessage> rows = shardRouter.route(sessionId, () -> {
+            Integer rewriteCount = conversationMapper.findRewriteCount(sessionId);
+            delta.setRewriteCount(rewriteCount == null ? 0 : rewriteCount);
+            return findMessagesAfter(sessionId, afterOrder, size);
+        });
+        return toMessagePage(sessionId, rows, pageSize(size), delta);
+    }
+
+    /**
+     * 查询顺序号大于 afterOrder 的消息，多取一条用于判断 hasMore，调用方负责路由到对话所在分片
+     */
+    private List<ChatMessage> findMessagesAfter(String sessionId, int afterOrder, Integer size) {
+        int fromOrder = Math.max(afterOrder, -1);
+        int limit = pageSize(size) + 1;
+        List<ChatMessage> page = messageMapper.findMessagesPage(sessionId, fromOrder, limit);
+        // 会话在冷存储中时回迁后重新查询，顺序号不变，客户端已有的 afterOrder 仍然有效
+        if (page.isEmpty() && chatMemoryRepository.rehydrate(sessionId)) {
+            page = readWriteRouter.onPrimary(() -> messageMapper.findMessagesPage(sessionId, fromOrder, limit));
+        }
+        return page;
+    }
+
+    private <P extends CursorPage<ChatMessage>> P toMessagePage(String sessionId, List<ChatMessage> rows, int pageSize, P page) {
+        boolean hasMore = rows.size() > pageSize;
+        if (hasMore) {
+            rows = rows.subList(0, pageSize);
+        }
+        rows.forEach(MessageContentCodec::inflate);
+
+        log.debug("分页获取会话 {} 的消息 {} 条, hasMore={}", sessionId, rows.size(), hasMore);
+        page.setItems(rows)
+                .setHasMore(hasMore)
+                .setNextCursor(hasMore ? CursorCodec.encode(rows.get(rows.size() - 1).getMessageOrder()) : null);
+        return page;
+    }
+
+    /**
+     * 增量获取变更过的会话，按更新时间正序，已删除的会话带 deleted=true 返回
+     * 游标记录已同步到的 (updateTime, id)；没有新变更时 nextCursor 保持不变，客户端下次原样带回即可。
+     * 只返回 changeSettleSeconds 秒之前的变更，避免漏掉更新时间较早、但还没提交的事务。
+     * 从库上还没复制到的变更同样会被游标越过，因此始终读主库
+     *
+     * @param since  起始更新时间（包含），cursor 为空时生效；两者都为空时从头同步
+     * @param cursor 上一次返回的 nextCursor
+     * @param size   每页条数，为空时使用默认值，超过上限时按上限返回
+     * @throws IllegalArgumentException 游标格式不正确
+     */
+    public CursorPage<Map<String, Object>> getChangedSessions(LocalDateTime since, String cursor, Integer size) {
+        LocalDateTime lastTime = since;
+        Long lastId = 0L;
+        int lastShard = NO_SHARD;
+        if (cursor != null && !cursor.isBlank()) {
+            String[] parts = CursorCodec.decode(cursor, 2, 3);
+            try {
+                lastTime = LocalDateTime.parse(parts[0]);
+                lastId = Long.parseLong(parts[1]);
+                lastShard = parts.length == 3 ? Integer.parseInt(parts[2]) : NO_SHARD;
+            } catch (DateTimeParseException | NumberFormatException e) {
+                throw new IllegalArgumentException("无效的分页游标: " + cursor);
+            }
+        }
+
+        int pageSize = pageSize(size);
+        // 各分片使用同一个时间上限（0 号分片的数据库时间）
+        LocalDateTime until = conversationMapper.currentTime().minusSeconds(changeSettleSeconds);
+        LocalDateTime time = lastTime;
+        long id = lastId;
+        int cursorShard = lastShard;
+        // 排在游标分片之后的分片，与游标时间、主键都相同的行还没有返回，主键下界放宽 1
+        List<List<ChatConversation>> shards = shardRouter.scatter(shard -> conversationMapper.findChangedSince(
+                time, shard > cursorShard ? id - 1 : id, until, pageSize + 1));
+        Comparator<ChatConversation> order = Comparator.comparing(ChatConversation::getUpdateTime)
+                .thenComparing(ChatConversation::getId)
+                .thenComparingInt(conversation -> shardRouter.shardOf(conversation.getConversationId()));
+        List<ChatConversation> rows = ShardRouter.merge(shards, order, pageSize + 1);
+        boolean hasMore = rows.size() > pageSize;
+        if (hasMore) {
+            rows = rows.subList(0, pageSize);
+        }
+
+        String nextCursor;
+        if (!rows.isEmpty()) {
+            ChatConversation last = rows.get(rows.size() - 1);
+            nextCursor = encodeCursor(last.getUpdateTime(), last.getId(), shardRouter.shardOf(last.getConversationId()));
+        } else {
+            nextCursor = lastTime != null ? encodeCursor(lastTime, lastId, lastShard) : null;
+        }
+
+        log.debug("增量获取变更会话 {} 个, hasMore={}", rows.size(), hasMore);
+        return new CursorPage<Map<String, Object>>()
+                .setItems(rows.stream().map(this::buildSessionChange).collect(Collectors.toList()))
+                .setHasMore(hasMore)
+                .setNextCursor(nextCursor);
+    }
+
+    /**
+     * 获取会话统计信息
+     * 每个分片一条聚合查询，不扫描消息表
+     */
+    @ReplicaRead
+    public Map<String, Object> getSessionStats() {
+        long totalSessions = 0;
+        long totalMessages = 0;
+        for (Map<String, Object> row : shardRouter.scatter(shard -> conversationMapper.sessionStats())) {
+            totalSessions += ((Number) row.get("totalSessions")).longValue();
+            totalMessages += ((Number) row.get("totalMessages")).longValue();
+        }
+
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("totalSessions", totalSessions);
+        stats.put("totalMessages", totalMessages);
+        stats.put("averageMessagesPerSession", totalSessions > 0 ? (double) totalMessages / totalSessions : 0.0);
+        stats.put("generatedAt", System.currentTimeMillis());
+        return stats;
+    }
+
     /**
      * 获取指定会话的消息历史
      * 直接返回ChatMessage实体列表
      */
+    @ReplicaRead(conversationIdArg = 0)
     public List<ChatMessage> getSessionMessages(String sessionId) {
         try {
             // 直接使用现有的mapper获取数据库中的完整消息信息
-            List<ChatMessage> messages = messageMapper.findByConversationIdOrderByOrder(sessionId);
+            List<ChatMessage> messages = shardRouter.route(sessionId, () -> {
+                List<ChatMessage> rows = messageMapper.findByConversationIdOrderByOrder(sessionId);
+                if (rows.isEmpty() && chatMemoryRepository.rehydrate(sessionId)) {
+                    rows = readWriteRouter.onPrimary(() -> messageMapper.findByConversationIdOrderByOrder(sessionId));
+                }
+                return rows;
+            });
+            messages.forEach(MessageContentCodec::inflate);
 
             log.debug("获取会话 {} 的消息 {} 条", sessionId, messages.size());
             return messages;
@@ -72,10 +316,15 @@ public class ChatHistoryService {
 
     /**
      * 获取会话信息
-     * 返回会话摘要Map
+     * 返回会话摘要Map，会话不存在或没有消息时返回 null
      */
+    @ReplicaRead(conversationIdArg = 0)
     public Map<String, Object> getSession(String sessionId) {
-        return buildSessionSummary(sessionId);
+        ChatConversation conversation = shardRouter.route(sessionId, () -> conversationMapper.findSession(sessionId));
+        if (conversation == null || conversation.getMessageCount() == null || conversation.getMessageCount() == 0) {
+            return null;
+        }
+        return buildSessionSummary(conversation);
     }
 
     /**
@@ -92,73 +341,41 @@ public class ChatHistoryService {
     }
 
     /**
-     * 构建会话摘要信息
+     * 编码 (时间, 主键) 游标，跨分片时追加分片号；只有一个分片时与未分库的格式相同
      */
-    private Map<String, Object> buildSessionSummary(String conversationId) {
-        try {
-            // 从数据库查询消息来构建会话信息
-            List<ChatMessage> messages = messageMapper.findByConversationIdOrderByOrder(conversationId);
-
-            if (messages.isEmpty()) {
-                return null;
-            }
-
-            // 获取最后一条消息
-            ChatMessage lastMessage = messages.get(messages.size() - 1);
-
-            // 生成默认会话名称
-            String sessionName = generateDefaultSessionName(messages);
-
-            Map<String, Object> sessionSummary = new HashMap<>();
-            sessionSummary.put("sessionId", conversationId);
-            sessionSummary.put("sessionName", sessionName);
-            sessionSummary.put("lastMessageTime", lastMessage.getCreateTime());
-            sessionSummary.put("lastMessage", lastMessage.getContent());
-            sessionSummary.put("messageCount", messages.size());
-
-            return sessionSummary;
+    private String encodeCursor(LocalDateTime time, Long id, int shard) {
+        return shardRouter.shardCount() > 1 && shard != NO_SHARD
+                ? CursorCodec.encode(time, id, shard)
+                : CursorCodec.encode(time, id);
+    }
 
-        } catch (Exception e) {
-            log.error("构建会话摘要失败, conversationId: {}", conversationId, e);
-            return null;
+    private int pageSize(Integer size) {
+        if (size == null || size <= 0) {
+            return defaultPageSize;
         }
+        return Math.min(size, maxPageSize);
     }
 
     /**
-     * 生成默认会话名称
+     * 构建会话摘要信息
      */
-    // 更稳健的解决方案：兼容大小写
-    private String generateDefaultSessionName(List<ChatMessage> messages) {
-        // 查找第一条用户消息 - 兼容大小写
-        ChatMessage firstUserMessage = messages.stream()
-                .filter(msg -> msg.getMessageType() != null &&
-                        msg.getMessageType().toUpperCase().equals("USER"))  // ✅ 兼容大小写
-                .findFirst()
-                .orElse(null);
-
-        if (firstUserMessage != null && firstUserMessage.getContent() != null) {
-            String content = firstUserMessage.getContent().trim();
-
-            // 清理内容
-            content = content.replaceAll("\\s+", " ")  // 多个空格合并为单个
-                    .replaceAll("[\\r\\n]+", "")  // 移除换行符
-                    .trim();
-
-            if (content.isEmpty()) {
-                return "新对话";
-            }
-
-            // 适当增加长度限制
-            int maxLength = 15;
-
-            if (content.length() <= maxLength) {
-                return content;
-            } else {
-                return content.substring(0, maxLength) + "...";
-            }
-        }
+    private Map<String, Object> buildSessionSummary(ChatConversation conversation) {
+        Map<String, Object> sessionSummary = new HashMap<>();
+        sessionSummary.put("sessionId", conversation.getConversationId());
+        sessionSummary.put("sessionName", conversation.getTitle() != null ? conversation.getTitle() : "新对话");
+        sessionSummary.put("lastMessageTime", conversation.getLastMessageTime());
+        sessionSummary.put("lastMessage", conversation.getLastMessagePreview());
+        sessionSummary.put("messageCount", conversation.getMessageCount());
+        return sessionSummary;
+    }
 
-        return "新对话";
+    /**
+     * 构建会话变更信息，在会话摘要基础上带上更新时间和删除标志
+     */
+    private Map<String, Object> buildSessionChange(ChatConversation conversation) {
+        Map<String, Object> change = buildSessionSummary(conversation);
+        change.put("updateTime", conversation.getUpdateTime());
+        change.put("deleted", conversation.getDeleted() != null && conversation.getDeleted() == 1);
+        return change;
     }
 }
-
@@ -0,0 +1,126 @@
+package com.hachimi.hachimiagent.service;
+
+import com.hachimi.hachimiagent.chatmemory.MysqlChatMemoryProperties;
+import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
+import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * chat_message 分区维护任务
+ * <p>
+ * chat_message 按 create_time 做 RANGE COLUMNS 分区：p_history 存放历史数据，之后每月一个分区 pYYYYMM，
+ * 最后是兜底的 pmax。启动时和每天定时检查，从 pmax 中拆出未来 monthsAhead 个月的分区，
+ * 保证新写入的行总是落在按月划分的分区里、pmax 始终为空，拆分只修改元数据。
+ * <p>
+ * 表未分区（未执行迁移的旧库）时不做任何操作。开启分库时依次维护每个分片。
+ */
+@Component
+@Slf4j
+public class ChatMessagePartitionJob implements ApplicationRunner {
+
+    private static final String MAXVALUE = "MAXVALUE";
+    private static final DateTimeFormatter PARTITION_NAME = DateTimeFormatter.ofPattern("'p'yyyyMM");
+
+    private final ChatMessageMapper messageMapper;
+    private final ChatConversationMapper conversationMapper;
+    private final MysqlChatMemoryProperties.Partition partition;
+    private final ShardRouter shardRouter;
+
+    public ChatMessagePartitionJob(ChatMessageMapper messageMapper,
+                                   ChatConversationMapper conversationMapper,
+                                   MysqlChatMemoryProperties properties,
+                                   ShardRouter shardRouter) {
+        this.messageMapper = messageMapper;
+        this.conversationMapper = conversationMapper;
+        this.partition = properties.getPartition();
+        this.shardRouter = shardRouter;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (partition.isEnabled()) {
+            ensurePartitions();
+        }
+    }
+
+    @Scheduled(cron = "${chat.memory.mysql.partition.cron:0 0 2 * * *}")
+    public void scheduledEnsurePartitions() {
+        if (partition.isEnabled()) {
+            ensurePartitions();
+        }
+    }
+
+    /**
+     * 在每个分片上补齐到 当前月 + monthsAhead 为止的月分区
+     *
+     * @return 新建的分区数
+     */
+    public int ensurePartitions() {
+        int[] created = new int[1];
+        shardRouter.forEachShard(shard -> created[0] += ensurePartitionsOnShard(shard));
+        return created[0];
+    }
+
+    /**
+     * 补齐当前分片的月分区，失败时记录日志，不影响其他分片
+     */
+    private int ensurePartitionsOnShard(int shard) {
+        try {
+            List<String> bounds = messageMapper.findPartitionBounds();
+            if (bounds.isEmpty()) {
+                log.debug("chat_message 未分区，跳过分区维护: shard={}", shard);
+                return 0;
+            }
+            if (!MAXVALUE.equalsIgnoreCase(bounds.get(bounds.size() - 1))) {
+                log.warn("chat_message 最后一个分区不是 pmax，跳过分区维护: shard={}, bounds={}", shard, bounds);
+                return 0;
+            }
+
+            // 最后一个有界分区的上界，即下一个月分区的起点
+            LocalDate next = bounds.stream()
+                    .filter(bound -> !MAXVALUE.equalsIgnoreCase(bound))
+                    .map(ChatMessagePartitionJob::parseBound)
+                    .max(LocalDate::compareTo)
+                    .orElse(null);
+            LocalDate currentMonth = conversationMapper.currentTime().toLocalDate().withDayOfMonth(1);
+            if (next == null) {
+                next = currentMonth;
+            }
+            LocalDate until = currentMonth.plusMonths(partition.getMonthsAhead() + 1L);
+
+            int created = 0;
+            while (next.isBefore(until)) {
+                LocalDate lessThan = next.plusMonths(1);
+                messageMapper.addPartition(next.format(PARTITION_NAME), lessThan.toString());
+                log.info("新建 chat_message 分区: shard={}, {} < {}", shard, next.format(PARTITION_NAME), lessThan);
+                next = lessThan;
+                created++;
+            }
+            return created;
+        } catch (Exception e) {
+            log.error("chat_message 分区维护失败: shard={}", shard, e);
+            return 0;
+        }
+    }
+
+    /**
+     * 解析 PARTITION_DESCRIPTION，如 '2026-11-01 00:00:00' 或 '2026-11-01'，按月对齐
+     */
+    static LocalDate parseBound(String bound) {
+        String value = bound.replace("'", "").trim();
+        LocalDate date = value.length() > 10
+                ? LocalDateTime.parse(value.replace(' ', 'T')).toLocalDate()
+                : LocalDate.parse(value);
+        return date.getDayOfMonth() == 1 ? date : date.withDayOfMonth(1).plusMonths(1);
+    }
+}
@@ -0,0 +1,208 @@
+package com.hachimi.hachimiagent.service;
+
+import com.hachimi.hachimiagent.chatmemory.MysqlChatMemoryProperties;
+import com.hachimi.hachimiagent.entity.ChatConversation;
+import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
+import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 逻辑删除行清理任务
+ * <p>
+ * 每次保存都会在 chat_message 中留下 deleted = 1 的行，长期累积会让索引和缓冲池被死行占满。
+ * 定期把超过保留期的逻辑删除消息（按创建时间）和对话（按删除时的更新时间）物理删除，
+ * archive 模式下消息先复制到 chat_message_archive。物理删除对话后通知订阅者（如删除对话的长期记忆向量）。
+ * <p>
+ * 每批一个小事务，批间暂停 pauseMillis，单次最多处理 maxBatchesPerRun 批，避免长时间持锁和主从延迟。
+ * 开启分库时依次清理每个分片，批数上限按分片计算。
+ * <p>
+ * 指标：chat.memory.purge.rows{table, action} 回收的行数，chat.memory.purge.duration 每次执行耗时。
+ */
+@Component
+@Slf4j
+public class ChatMessagePurgeJob {
+
+    static final String MODE_ARCHIVE = "archive";
+
+    private final ChatMessageMapper messageMapper;
+    private final ChatConversationMapper conversationMapper;
+    private final MysqlChatMemoryProperties.Purge purge;
+    private final TransactionTemplate transactionTemplate;
+    private final ShardRouter shardRouter;
+
+    private final Counter purgedMessages;
+    private final Counter archivedMessages;
+    private final Counter purgedConversations;
+    private final Timer duration;
+
+    // 上一次执行尚未结束时跳过本次
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    // 物理删除对话后的回调
+    private final List<Consumer<Collection<String>>> purgeListeners = new CopyOnWriteArrayList<>();
+
+    public ChatMessagePurgeJob(ChatMessageMapper messageMapper,
+                               ChatConversationMapper conversationMapper,
+                               MysqlChatMemoryProperties properties,
+                               @Qualifier("primaryTransactionManager") PlatformTransactionManager transactionManager,
+                               MeterRegistry meterRegistry,
+                               ShardRouter shardRouter) {
+        this.messageMapper = messageMapper;
+        this.conversationMapper = conversationMapper;
+        this.purge = properties.getPurge();
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.shardRouter = shardRouter;
+
+        this.purgedMessages = Counter.builder("chat.memory.purge.rows")
+                .description("清理任务回收的逻辑删除行数")
+                .tag("table", "chat_message")
+                .tag("action", "deleted")
+                .register(meterRegistry);
+        this.archivedMessages = Counter.builder("chat.memory.purge.rows")
+                .description("清理任务回收的逻辑删除行数")
+                .tag("table", "chat_message")
+                .tag("action", "archived")
+                .register(meterRegistry);
+        this.purgedConversations = Counter.builder("chat.memory.purge.rows")
+                .description("清理任务回收的逻辑删除行数")
+                .tag("table", "chat_conversation")
+                .tag("action", "deleted")
+                .register(meterRegistry);
+        this.duration = Timer.builder("chat.memory.purge.duration")
+                .description("逻辑删除行清理任务每次执行的耗时")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(cron = "${chat.memory.mysql.purge.cron:0 30 3 * * *}")
+    public void scheduledPurge() {
+        if (!purge.isEnabled()) {
+            return;
+        }
+        purge();
+    }
+
+    /**
+     * 执行一次清理
+     *
+     * @return 回收的行数（消息 + 对话）
+     */
+    public long purge() {
+        if (!running.compareAndSet(false, true)) {
+            log.info("上一次清理尚未结束，跳过");
+            return 0;
+        }
+        long begin = System.nanoTime();
+        try {
+            LocalDateTime before = conversationMapper.currentTime().minusDays(purge.getRetentionDays());
+            boolean archive = MODE_ARCHIVE.equalsIgnoreCase(purge.getMode());
+            // 消息数、对话数、批数
+            long[] totals = new long[3];
+            shardRouter.forEachShard(shard -> purgeShard(before, archive, totals));
+
+            log.info("逻辑删除行清理完成: before={}, mode={}, messages={}, conversations={}, batches={}, cost={}ms",
+                    before, archive ? MODE_ARCHIVE : "delete", totals[0], totals[1], totals[2],
+                    (System.nanoTime() - begin) / 1_000_000);
+            return totals[0] + totals[1];
+        } catch (Exception e) {
+            log.error("逻辑删除行清理失败", e);
+            return 0;
+        } finally {
+            duration.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            running.set(false);
+        }
+    }
+
+    /**
+     * 清理当前分片，回收的消息数、对话数和批数累加到 totals
+     */
+    private void purgeShard(LocalDateTime before, boolean archive, long[] totals) {
+        int batches = 0;
+
+        // 1. 消息：先查主键再按主键删除，归档和删除针对同一批行
+        while (batches < purge.getMaxBatchesPerRun()) {
+            List<Long> ids = messageMapper.findPurgeableIds(before, purge.getBatchSize());
+            if (ids.isEmpty()) {
+                break;
+            }
+            int deleted = transactionTemplate.execute(status -> {
+                if (archive) {
+                    archivedMessages.increment(messageMapper.archiveByIds(ids));
+                }
+                return messageMapper.purgeByIds(ids);
+            });
+            purgedMessages.increment(deleted);
+            totals[0] += deleted;
+            batches++;
+            if (ids.size() < purge.getBatchSize() || !pause()) {
+                break;
+            }
+        }
+
+        // 2. 对话：同样先查主键再删除，删除后按对话ID通知订阅者
+        while (batches < purge.getMaxBatchesPerRun()) {
+            List<ChatConversation> conversations = conversationMapper.findPurgeableConversations(before, purge.getBatchSize());
+            if (conversations.isEmpty()) {
+                break;
+            }
+            int deleted = conversationMapper.purgeByIds(conversations.stream().map(ChatConversation::getId).toList());
+            purgedConversations.increment(deleted);
+            totals[1] += deleted;
+            batches++;
+            notifyPurged(conversations.stream().map(ChatConversation::getConversationId).toList());
+            if (conversations.size() < purge.getBatchSize() || !pause()) {
+                break;
+            }
+        }
+        totals[2] += batches;
+    }
+
+    /**
+     * 订阅对话的物理删除，回调参数为本批删除的对话ID
+     */
+    public void onConversationsPurged(Consumer<Collection<String>> listener) {
+        purgeListeners.add(listener);
+    }
+
+    private void notifyPurged(List<String> conversationIds) {
+        for (Consumer<Collection<String>> listener : purgeListeners) {
+            try {
+                listener.accept(conversationIds);
+            } catch (Exception e) {
+                log.warn("对话清理回调失败: conversations={}", conversationIds.size(), e);
+            }
+        }
+    }
+
+    /**
+     * 批间暂停，线程被中断时返回 false 结束本次清理
+     */
+    private boolean pause() {
+        if (purge.getPauseMillis() <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(purge.getPauseMillis());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.hachimi.hachimiagent.service;
+
+import com.hachimi.hachimiagent.chatmemory.MysqlBasedChatMemoryRepository;
+import com.hachimi.hachimiagent.chatmemory.MysqlChatMemoryProperties;
+import com.hachimi.hachimiagent.entity.ChatConversation;
+import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 冷热分层任务
+ * <p>
+ * 最后消息时间早于 idleDays 天的对话，把消息从 chat_message 移入冷存储文件，会话行保留在 chat_conversation 中，
+ * 会话列表不受影响。对话再次被读取或写入时由 MysqlBasedChatMemoryRepository 自动回迁。
+ * <p>
+ * 候选对话按 (last_message_time, id) 游标分批读取，每个对话一个小事务，批间暂停 pauseMillis，
+ * 单次最多移出 maxConversationsPerRun 个对话。开启分库时依次扫描每个分片，上限为所有分片合计。
+ * <p>
+ * 指标：chat.memory.tiering.conversations 移出的对话数，chat.memory.tiering.duration 每次执行耗时。
+ */
+@Component
+@Slf4j
+public class ChatMessageTieringJob {
+
+    private final MysqlBasedChatMemoryRepository chatMemoryRepository;
+    private final ChatConversationMapper conversationMapper;
+    private final MysqlChatMemoryProperties.Tiering tiering;
+    private final ShardRouter shardRouter;
+
+    private final Counter movedConversations;
+    private final Timer duration;
+
+    // 上一次执行尚未结束时跳过本次
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public ChatMessageTieringJob(MysqlBasedChatMemoryRepository chatMemoryRepository,
+                                 ChatConversationMapper conversationMapper,
+                                 MysqlChatMemoryProperties properties,
+                                 MeterRegistry meterRegistry,
+                                 ShardRouter shardRouter) {
+        this.chatMemoryRepository = chatMemoryRepository;
+        this.conversationMapper = conversationMapper;
+        this.tiering = properties.getTiering();
+        this.shardRouter = shardRouter;
+
+        this.movedConversations = Counter.builder("chat.memory.tiering.conversations")
+                .description("移入冷存储的对话数")
+                .register(meterRegistry);
+        this.duration = Timer.builder("chat.memory.tiering.duration")
+                .description("冷热分层任务每次执行的耗时")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(cron = "${chat.memory.mysql.tiering.cron:0 0 4 * * *}")
+    public void scheduledMove() {
+        if (!tiering.isEnabled()) {
+            return;
+        }
+        moveIdleConversations();
+    }
+
+    /**
+     * 执行一次分层
+     *
+     * @return 移入冷存储的对话数
+     */
+    public int moveIdleConversations() {
+        if (!running.compareAndSet(false, true)) {
+            log.info("上一次分层尚未结束，跳过");
+            return 0;
+        }
+        long begin = System.nanoTime();
+        try {
+            LocalDateTime idleBefore = conversationMapper.currentTime().minusDays(tiering.getIdleDays());
+            // 扫描数、移出数
+            int[] counts = new int[2];
+            shardRouter.forEachShard(shard -> moveIdleConversationsOnShard(idleBefore, counts));
+
+            log.info("冷热分层完成: idleBefore={}, scanned={}, moved={}, cost={}ms",
+                    idleBefore, counts[0], counts[1], (System.nanoTime() - begin) / 1_000_000);
+            return counts[1];
+        } catch (Exception e) {
+            log.error("冷热分层失败", e);
+            return 0;
+        } finally {
+            duration.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            running.set(false);
+        }
+    }
+
+    /**
+     * 扫描当前分片，扫描数和移出数累加到 counts
+     */
+    private void moveIdleConversationsOnShard(LocalDateTime idleBefore, int[] counts) {
+        LocalDateTime lastTime = null;
+        Long lastId = null;
+        while (counts[1] < tiering.getMaxConversationsPerRun()) {
+            List<ChatConversation> candidates = conversationMapper.findIdleHotConversations(
+                    idleBefore, lastTime, lastId, tiering.getBatchSize());
+            if (candidates.isEmpty()) {
+                break;
+            }
+            for (ChatConversation candidate : candidates) {
+                counts[0]++;
+                if (moveOne(candidate.getConversationId(), idleBefore)) {
+                    counts[1]++;
+                }
+                if (counts[1] >= tiering.getMaxConversationsPerRun()) {
+                    break;
+                }
+            }
+            ChatConversation last = candidates.get(candidates.size() - 1);
+            lastTime = last.getLastMessageTime();
+            lastId = last.getId();
+            if (candidates.size() < tiering.getBatchSize() || !pause()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 移出单个对话，失败时记录日志后继续下一个
+     */
+    private boolean moveOne(String conversationId, LocalDateTime idleBefore) {
+        try {
+            if (chatMemoryRepository.moveToColdStorage(conversationId, idleBefore)) {
+                movedConversations.increment();
+                return true;
+            }
+        } catch (Exception e) {
+            log.warn("对话移入冷存储失败: conversationId={}", conversationId, e);
+        }
+        return false;
+    }
+
+    /**
+     * 批间暂停，线程被中断时返回 false 结束本次分层
+     */
+    private boolean pause() {
+        if (tiering.getPauseMillis() <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(tiering.getPauseMillis());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
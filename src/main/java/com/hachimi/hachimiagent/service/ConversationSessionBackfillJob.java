@@ -0,0 +1,72 @@
+package com.hachimi.hachimiagent.service;
+
+import com.hachimi.hachimiagent.chatmemory.MysqlChatMemoryProperties;
+import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+/**
+ * 会话列表字段回填任务
+ * <p>
+ * 对尚未维护 last_message_time 的历史对话，按主键分段根据 chat_message 补齐标题、最后消息和消息数。
+ * 在后台线程中执行，不阻塞启动；已回填的对话会被跳过，可以重复执行。开启分库时依次回填每个分片。
+ */
+@Component
+@Slf4j
+public class ConversationSessionBackfillJob implements ApplicationRunner {
+
+    private final ChatConversationMapper conversationMapper;
+    private final MysqlChatMemoryProperties properties;
+    private final ShardRouter shardRouter;
+
+    public ConversationSessionBackfillJob(ChatConversationMapper conversationMapper, MysqlChatMemoryProperties properties,
+                                          ShardRouter shardRouter) {
+        this.conversationMapper = conversationMapper;
+        this.properties = properties;
+        this.shardRouter = shardRouter;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!properties.isBackfillOnStartup()) {
+            return;
+        }
+        Thread thread = new Thread(this::backfill, "conversation-session-backfill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 在每个分片上按主键分段回填
+     *
+     * @return 回填的对话数
+     */
+    public int backfill() {
+        int[] total = new int[1];
+        shardRouter.forEachShard(shard -> total[0] += backfillShard(shard));
+        return total[0];
+    }
+
+    private int backfillShard(int shard) {
+        try {
+            long maxId = conversationMapper.getMaxId();
+            int batchSize = properties.getBackfillBatchSize();
+            int total = 0;
+            long begin = System.currentTimeMillis();
+            for (long fromId = 0; fromId < maxId; fromId += batchSize) {
+                total += conversationMapper.backfillSessionFields(fromId, Math.min(fromId + batchSize, maxId));
+            }
+            if (total > 0) {
+                log.info("会话列表字段回填完成: shard={}, conversations={}, cost={}ms",
+                        shard, total, System.currentTimeMillis() - begin);
+            }
+            return total;
+        } catch (Exception e) {
+            log.error("会话列表字段回填失败: shard={}", shard, e);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.hachimi.hachimiagent.sharding;
+
+import com.hachimi.hachimiagent.replica.ReadWriteRouter;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * 聊天存储分库路由
+ * <p>
+ * conversation_id 的 CRC32 对分片数取模得到分片号：0 号分片是 spring.datasource，其余按 chat.sharding.shards 的顺序编号。
+ * 当前线程所在的分片保存在 ThreadLocal 中，由 {@link ShardRoutingDataSource} 在取连接时读取。
+ * 事务在开始时就取得连接，因此要先进入分片再开启事务，事务内不能切换到其他分片。
+ * <p>
+ * 跨分片的查询由 {@link #scatter} 在各分片上并发执行，调用方再用 {@link #merge} 按排序键归并。
+ * 未开启分库时只有一个分片，所有方法直接在调用线程中执行，行为与单库相同。
+ */
+@Component
+@Slf4j
+public class ShardRouter {
+
+    // 当前线程所在的分片，未进入任何分片时为 null（路由到 0 号分片）
+    private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<>();
+
+    private final int shardCount;
+
+    // 跨分片查询的线程池，只有一个分片时为 null
+    private final ExecutorService scatterExecutor;
+
+    public ShardRouter(ShardingProperties properties) {
+        this.shardCount = properties.isEnabled() ? 1 + properties.getShards().size() : 1;
+        if (shardCount > 1) {
+            AtomicInteger threadIndex = new AtomicInteger();
+            this.scatterExecutor = Executors.newFixedThreadPool(Math.min(shardCount, properties.getScatterThreads()), r -> {
+                Thread thread = new Thread(r, "chat-shard-scatter-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            log.info("聊天存储分库已开启: shards={}", shardCount);
+        } else {
+            this.scatterExecutor = null;
+        }
+    }
+
+    /**
+     * 当前线程所在的分片，未进入任何分片时为 null
+     */
+    public static Integer currentShard() {
+        return CURRENT.get();
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    /**
+     * 对话所在的分片
+     */
+    public int shardOf(String conversationId) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(conversationId.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % shardCount);
+    }
+
+    /**
+     * 在对话所在的分片上执行
+     */
+    public <T> T route(String conversationId, Supplier<T> action) {
+        return onShard(shardOf(conversationId), action);
+    }
+
+    public void route(String conversationId, Runnable action) {
+        onShard(shardOf(conversationId), action);
+    }
+
+    /**
+     * 在指定分片上执行，结束后恢复原来的分片，可以嵌套
+     *
+     * @throws IllegalStateException 在另一个分片的事务中切换分片
+     */
+    public <T> T onShard(int shard, Supplier<T> action) {
+        if (shard < 0 || shard >= shardCount) {
+            throw new IllegalArgumentException("分片号超出范围: " + shard + ", shards=" + shardCount);
+        }
+        Integer previous = CURRENT.get();
+        if (previous != null && previous != shard && TransactionSynchronizationManager.isActualTransactionActive()) {
+            // 事务连接已绑定在原分片上，继续执行会把数据写到错误的库
+            throw new IllegalStateException("事务中不能切换分片: current=" + previous + ", target=" + shard);
+        }
+        CURRENT.set(shard);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    public void onShard(int shard, Runnable action) {
+        onShard(shard, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * 依次在每个分片上执行，用于维护任务等不需要并发的场景
+     */
+    public void forEachShard(IntConsumer action) {
+        for (int shard = 0; shard < shardCount; shard++) {
+            int current = shard;
+            onShard(current, () -> action.accept(current));
+        }
+    }
+
+    /**
+     * 在所有分片上并发执行同一查询，调用线程的读库偏好（主库或从库）带到执行查询的线程
+     *
+     * @param query 参数为分片号，在该分片上执行
+     * @return 按分片号排列的结果
+     */
+    public <T> List<T> scatter(IntFunction<T> query) {
+        if (scatterExecutor == null) {
+            return Collections.singletonList(onShard(0, () -> query.apply(0)));
+        }
+        Boolean preferReplica = ReadWriteRouter.currentPreference();
+        List<CompletableFuture<T>> futures = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            int current = shard;
+            futures.add(CompletableFuture.supplyAsync(() -> ReadWriteRouter.withPreference(preferReplica,
+                    () -> onShard(current, () -> query.apply(current))), scatterExecutor));
+        }
+        List<T> results = new ArrayList<>(shardCount);
+        for (CompletableFuture<T> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 按分片分组对话ID，分组按分片号排列，组内保持原顺序
+     */
+    public Map<Integer, List<String>> groupByShard(Collection<String> conversationIds) {
+        Map<Integer, List<String>> groups = new TreeMap<>();
+        for (String conversationId : conversationIds) {
+            groups.computeIfAbsent(shardOf(conversationId), shard -> new ArrayList<>()).add(conversationId);
+        }
+        return groups;
+    }
+
+    /**
+     * 归并各分片已排好序的结果
+     *
+     * @param sorted     各分片的结果，每个列表已按 comparator 排序
+     * @param comparator 排序键，与各分片查询的 ORDER BY 一致
+     * @param limit      最多返回的条数
+     */
+    public static <T> List<T> merge(List<List<T>> sorted, Comparator<? super T> comparator, int limit) {
+        if (sorted.size() == 1) {
+            List<T> only = sorted.get(0);
+            return only.size() <= limit ? only : only.subList(0, limit);
+        }
+        // 堆中每项是 (分片下标, 该分片下一条的位置)
+        PriorityQueue<int[]> heads = new PriorityQueue<>(
+                (a, b) -> comparator.compare(sorted.get(a[0]).get(a[1]), sorted.get(b[0]).get(b[1])));
+        for (int i = 0; i < sorted.size(); i++) {
+            if (!sorted.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        List<T> merged = new ArrayList<>();
+        while (merged.size() < limit && !heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<T> rows = sorted.get(head[0]);
+            merged.add(rows.get(head[1]));
+            if (head[1] + 1 < rows.size()) {
+                heads.add(new int[]{head[0], head[1] + 1});
+            }
+        }
+        return merged;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scatterExecutor != null) {
+            scatterExecutor.shutdownNow();
+        }
+    }
+}
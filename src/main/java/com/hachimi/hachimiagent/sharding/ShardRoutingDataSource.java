@@ -0,0 +1,64 @@
+package com.hachimi.hachimiagent.sharding;
+
+import com.hachimi.hachimiagent.replica.ReadWriteRoutingDataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按 {@link ShardRouter#currentShard()} 选择分片的数据源
+ * 未进入任何分片时使用 0 号分片（建表脚本、数据库时间等与对话无关的查询）
+ */
+@Slf4j
+public class ShardRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+
+    private final List<DataSource> shards;
+
+    /**
+     * @param shards 按分片号排列的数据源，0 号分片的连接池由 Spring 管理，其余由本数据源负责关闭
+     */
+    public ShardRoutingDataSource(List<DataSource> shards) {
+        this.shards = List.copyOf(shards);
+        Map<Object, Object> targets = new HashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            targets.put(i, shards.get(i));
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(shards.get(0));
+        // 分片号只会来自 ShardRouter，找不到说明配置与路由不一致，不能静默落到 0 号分片
+        setLenientFallback(false);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return ShardRouter.currentShard();
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    /**
+     * 关闭各分片；0 号分片是 Spring 管理的连接池时跳过，包装了从库时需要关闭从库
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < shards.size(); i++) {
+            if (i == 0 && !(shards.get(0) instanceof ReadWriteRoutingDataSource)) {
+                continue;
+            }
+            if (shards.get(i) instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    log.warn("关闭分片数据源失败: shard={}", i, e);
+                }
+            }
+        }
+    }
+}
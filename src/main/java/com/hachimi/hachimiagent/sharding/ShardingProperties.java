@@ -0,0 +1,35 @@
+package com.hachimi.hachimiagent.sharding;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 聊天存储分库配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "chat.sharding")
+public class ShardingProperties {
+
+    /**
+     * 是否按 conversation_id 分库；关闭时只使用 spring.datasource
+     */
+    private boolean enabled = false;
+
+    /**
+     * 0 号分片（spring.datasource）之外的分片，按顺序编号为 1、2、...
+     * 每项的键与 spring.datasource 相同（url、username、password、Druid 连接池参数），未配置的键沿用 spring.datasource；
+     * 分片数决定对话落在哪个库，上线后不能随意增减
+     */
+    private List<Map<String, String>> shards = new ArrayList<>();
+
+    /**
+     * 跨分片查询（会话列表、统计）并发执行的最大线程数
+     */
+    private int scatterThreads = 8;
+}
@@ -0,0 +1,9 @@
+-- ======================================
+-- 已有库升级：按版本号追加消息
+-- version 记录对话内容的版本，每次写入或删除消息加 1；
+-- 按版本号追加时锁定会话行比较版本号，不一致说明期间有其他节点写入，合并后重试。
+-- 已有对话从 0 开始，无需回填
+-- ======================================
+
+ALTER TABLE chat_conversation
+    ADD COLUMN version BIGINT NOT NULL DEFAULT 0 COMMENT '内容版本号，每次写入或删除消息加 1' AFTER storage_tier;
@@ -0,0 +1,9 @@
+-- ======================================
+-- 已有库升级：增量拉取消息的改写标记
+-- rewrite_count 记录对话历史被改写的次数：截断或替换已有消息、删除对话时加 1，追加和窗口头部滑出不变。
+-- 增量拉取随新增消息一起返回，客户端发现与本地记录的值不同时整体重新拉取。
+-- 已有对话从 0 开始，无需回填
+-- ======================================
+
+ALTER TABLE chat_conversation
+    ADD COLUMN rewrite_count INT NOT NULL DEFAULT 0 COMMENT '历史改写次数，截断或替换已有消息、删除对话时加 1' AFTER version;
@@ -0,0 +1,9 @@
+-- ======================================
+-- 已有库升级：按请求ID识别重复追加
+-- 按版本号追加冲突后，只有对话末尾的消息带着本次的请求ID时才认为同一批消息已由其他节点写入；
+-- 没有请求ID的追加不做去重，内容相同的短消息（如连续两次“好的”）不会被当作重复丢弃。
+-- 历史消息为 NULL，无需回填
+-- ======================================
+
+ALTER TABLE chat_message
+    ADD COLUMN request_id VARCHAR(64) DEFAULT NULL COMMENT '写入该消息的请求ID，按版本号追加冲突时据此识别重复写入' AFTER content_hash;
@@ -0,0 +1,7 @@
+-- ======================================
+-- 已有库升级：chat_message 增加内容哈希列
+-- 用于增量保存时按 顺序/类型/内容哈希 比对，历史数据为 NULL 时由程序根据内容现算
+-- ======================================
+
+ALTER TABLE chat_message
+    ADD COLUMN content_hash BIGINT DEFAULT NULL COMMENT '内容哈希（消息类型 + 内容）' AFTER message_order;
@@ -0,0 +1,8 @@
+-- ======================================
+-- 已有库升级：chat_conversation 增加滚动摘要列
+-- 按 token 预算裁剪对话历史时，较早的消息折叠进摘要，summary_order 之前的消息不再发送给模型
+-- ======================================
+
+ALTER TABLE chat_conversation
+    ADD COLUMN summary TEXT DEFAULT NULL COMMENT '滚动摘要（概括顺序号小于 summary_order 的消息）' AFTER user_id,
+    ADD COLUMN summary_order INT NOT NULL DEFAULT 0 COMMENT '摘要覆盖到的消息顺序号（不包含）' AFTER summary;
@@ -0,0 +1,12 @@
+-- ======================================
+-- 已有库升级：chat_conversation 增加会话列表所需的物化字段
+-- 写入消息时同步维护，会话列表和统计只查询 chat_conversation，不再扫描 chat_message
+-- 已有数据由应用启动时的回填任务补齐（chat.memory.mysql.backfill-on-startup）
+-- ======================================
+
+ALTER TABLE chat_conversation
+    ADD COLUMN title VARCHAR(64) DEFAULT NULL COMMENT '会话标题（第一条用户消息）' AFTER summary_order,
+    ADD COLUMN last_message_preview VARCHAR(255) DEFAULT NULL COMMENT '最后一条消息预览' AFTER title,
+    ADD COLUMN last_message_time DATETIME DEFAULT NULL COMMENT '最后一条消息时间' AFTER last_message_preview,
+    ADD COLUMN message_count INT NOT NULL DEFAULT 0 COMMENT '有效消息数' AFTER last_message_time,
+    ADD INDEX idx_deleted_last_message_time (deleted, last_message_time, message_count);
@@ -0,0 +1,9 @@
+-- ======================================
+-- 已有库升级：会话列表改为游标分页，按 (last_message_time, id) 倒序翻页
+-- 索引中显式加入 id，同一时间的会话也能沿索引顺序读取，不需要 filesort；
+-- message_count 仍在索引末尾，会话统计继续由该索引覆盖
+-- ======================================
+
+ALTER TABLE chat_conversation
+    DROP INDEX idx_deleted_last_message_time,
+    ADD INDEX idx_deleted_last_message_time (deleted, last_message_time, id, message_count);
@@ -0,0 +1,7 @@
+-- ======================================
+-- 已有库升级：会话增量同步按 (update_time, id) 读取变更过的会话
+-- 二级索引末尾隐含主键，单列索引即可按 (update_time, id) 顺序范围扫描
+-- ======================================
+
+ALTER TABLE chat_conversation
+    ADD INDEX idx_update_time (update_time);
@@ -0,0 +1,22 @@
+-- ======================================
+-- 已有库升级：定期清理逻辑删除的消息
+-- 清理任务按 (deleted, create_time) 查找超过保留期的逻辑删除行；
+-- archive 模式下先把这些行复制到 chat_message_archive 再从 chat_message 物理删除
+-- ======================================
+
+ALTER TABLE chat_message
+    ADD INDEX idx_deleted_create_time (deleted, create_time);
+
+CREATE TABLE IF NOT EXISTS chat_message_archive (
+    id BIGINT NOT NULL PRIMARY KEY COMMENT '原消息主键',
+    conversation_id VARCHAR(255) NOT NULL COMMENT '对话ID',
+    message_type VARCHAR(50) NOT NULL COMMENT '消息类型：USER/ASSISTANT/SYSTEM',
+    content TEXT NOT NULL COMMENT '消息内容',
+    message_order INT NOT NULL COMMENT '消息顺序',
+    content_hash BIGINT DEFAULT NULL COMMENT '内容哈希（消息类型 + 内容）',
+    create_time DATETIME DEFAULT NULL COMMENT '创建时间',
+    archive_time DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '归档时间',
+
+    INDEX idx_conversation_id (conversation_id),
+    INDEX idx_archive_time (archive_time)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='聊天消息归档表（清理的逻辑删除消息）';
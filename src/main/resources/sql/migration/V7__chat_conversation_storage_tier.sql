@@ -0,0 +1,10 @@
+-- ======================================
+-- 已有库升级：冷热分层
+-- storage_tier 记录对话消息所在的层级：0 在 chat_message 中，1 已移入冷存储文件；
+-- 分层任务按 (deleted, storage_tier, last_message_time, id) 查找长期不活跃的热对话，
+-- 已移出的对话不在扫描范围内
+-- ======================================
+
+ALTER TABLE chat_conversation
+    ADD COLUMN storage_tier TINYINT NOT NULL DEFAULT 0 COMMENT '消息存储层级：0 chat_message，1 冷存储' AFTER message_count,
+    ADD INDEX idx_deleted_tier_last_message_time (deleted, storage_tier, last_message_time, id);
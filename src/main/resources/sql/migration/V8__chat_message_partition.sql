@@ -0,0 +1,19 @@
+-- ======================================
+-- 已有库升级：chat_message 按 create_time 做 RANGE COLUMNS 分区
+-- 分区表的唯一键必须包含分区列，主键改为 (id, create_time)，id 仍是自增列且在主键首位；
+-- 现有数据全部落在 p_history，之后的月分区 pYYYYMM 由 ChatMessagePartitionJob 从 pmax 中拆出。
+-- 分区会重建整张表，请在低峰期执行
+-- ======================================
+
+UPDATE chat_message SET create_time = NOW() WHERE create_time IS NULL;
+
+ALTER TABLE chat_message
+    MODIFY COLUMN create_time DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    DROP PRIMARY KEY,
+    ADD PRIMARY KEY (id, create_time);
+
+ALTER TABLE chat_message
+    PARTITION BY RANGE COLUMNS (create_time) (
+        PARTITION p_history VALUES LESS THAN ('2026-11-01'),
+        PARTITION pmax VALUES LESS THAN (MAXVALUE)
+    );
@@ -0,0 +1,13 @@
+-- ======================================
+-- 已有库升级：消息内容压缩
+-- 超过阈值的消息内容压缩后写入 content_blob，content 置为空串，content_codec 记录压缩算法；
+-- 已有行 content_codec 为 0，仍直接读取 content，无需回填
+-- ======================================
+
+ALTER TABLE chat_message
+    ADD COLUMN content_codec TINYINT NOT NULL DEFAULT 0 COMMENT '内容压缩算法：0 未压缩，1 LZ4，2 Deflate' AFTER content,
+    ADD COLUMN content_blob MEDIUMBLOB DEFAULT NULL COMMENT '压缩后的消息内容，content_codec 非 0 时有效' AFTER content_codec;
+
+ALTER TABLE chat_message_archive
+    ADD COLUMN content_codec TINYINT NOT NULL DEFAULT 0 COMMENT '内容压缩算法：0 未压缩，1 LZ4，2 Deflate' AFTER content,
+    ADD COLUMN content_blob MEDIUMBLOB DEFAULT NULL COMMENT '压缩后的消息内容，content_codec 非 0 时有效' AFTER content_codec;
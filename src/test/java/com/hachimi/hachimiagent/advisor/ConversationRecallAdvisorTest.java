@@ -0,0 +1,120 @@
+package com.hachimi.hachimiagent.advisor;
+
+import com.hachimi.hachimiagent.common.MessageConverter;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.CallAdvisorChain;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.ai.vectorstore.filter.Filter;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * ConversationRecallAdvisor 测试类
+ * 验证按 chatId 召回、跳过短窗口中已有的轮次以及完成后写入向量表
+ */
+@DisplayName("对话长期记忆召回顾问测试")
+class ConversationRecallAdvisorTest {
+
+    private static final String CONVERSATION_ID = "conversation-recall";
+
+    @Test
+    @DisplayName("召回相关轮次并追加到系统提示，短窗口中已有的轮次不重复注入")
+    void testRecallAndStoreTurn() {
+        VectorStore vectorStore = mock(VectorStore.class);
+        UserMessage recentQuestion = new UserMessage("开头总是写不好怎么办？");
+        when(vectorStore.similaritySearch(any(SearchRequest.class))).thenReturn(List.of(
+                turn("用户：我在写外婆的散文\n助手：可以从外婆的厨房写起。", new UserMessage("我在写外婆的散文")),
+                turn("用户：开头总是写不好怎么办？\n助手：先写最打动你的画面。", recentQuestion)));
+        ConversationRecallAdvisor advisor = new ConversationRecallAdvisor(vectorStore, 4, 0.5, Runnable::run);
+
+        ChatClientRequest request = ChatClientRequest.builder()
+                .prompt(new Prompt(List.of(
+                        new SystemMessage("你是写作导师"),
+                        recentQuestion,
+                        new AssistantMessage("先写最打动你的画面。"),
+                        new UserMessage("结尾要怎么呼应外婆的厨房？"))))
+                .context(Map.of(ChatMemory.CONVERSATION_ID, CONVERSATION_ID))
+                .build();
+        CallAdvisorChain chain = mock(CallAdvisorChain.class);
+        when(chain.nextCall(any())).thenReturn(ChatClientResponse.builder()
+                .chatResponse(new ChatResponse(List.of(new Generation(new AssistantMessage("让结尾回到灶台的烟火气。")))))
+                .build());
+
+        advisor.adviseCall(request, chain);
+
+        ArgumentCaptor<ChatClientRequest> sent = ArgumentCaptor.forClass(ChatClientRequest.class);
+        verify(chain).nextCall(sent.capture());
+        String systemText = sent.getValue().prompt().getSystemMessage().getText();
+        System.out.println(systemText);
+        assertTrue(systemText.startsWith("你是写作导师"));
+        assertTrue(systemText.contains("外婆的厨房写起"));
+        assertFalse(systemText.contains("先写最打动你的画面"));
+
+        ArgumentCaptor<SearchRequest> search = ArgumentCaptor.forClass(SearchRequest.class);
+        verify(vectorStore).similaritySearch(search.capture());
+        assertTrue(search.getValue().getFilterExpression().toString().contains(CONVERSATION_ID));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Document>> stored = ArgumentCaptor.forClass(List.class);
+        verify(vectorStore).add(stored.capture());
+        Document document = stored.getValue().get(0);
+        assertEquals(CONVERSATION_ID, document.getMetadata().get(ConversationRecallAdvisor.CONVERSATION_ID_KEY));
+        assertTrue(document.getText().contains("灶台的烟火气"));
+    }
+
+    @Test
+    @DisplayName("没有 chatId 时不召回也不写入")
+    void testSkipWithoutConversationId() {
+        VectorStore vectorStore = mock(VectorStore.class);
+        ConversationRecallAdvisor advisor = new ConversationRecallAdvisor(vectorStore, 4, 0.5, Runnable::run);
+        CallAdvisorChain chain = mock(CallAdvisorChain.class);
+        when(chain.nextCall(any())).thenReturn(ChatClientResponse.builder()
+                .chatResponse(new ChatResponse(List.of(new Generation(new AssistantMessage("好的")))))
+                .build());
+
+        advisor.adviseCall(ChatClientRequest.builder().prompt(new Prompt(new UserMessage("你好"))).build(), chain);
+
+        verifyNoInteractions(vectorStore);
+    }
+
+    @Test
+    @DisplayName("删除对话时按 conversationId 过滤删除它的全部向量")
+    void testForget() {
+        VectorStore vectorStore = mock(VectorStore.class);
+        ConversationRecallAdvisor advisor = new ConversationRecallAdvisor(vectorStore, 4, 0.5, Runnable::run);
+
+        advisor.forget(List.of(CONVERSATION_ID, "conversation-other"));
+
+        ArgumentCaptor<Filter.Expression> filter = ArgumentCaptor.forClass(Filter.Expression.class);
+        verify(vectorStore).delete(filter.capture());
+        System.out.println(filter.getValue());
+        assertEquals(Filter.ExpressionType.IN, filter.getValue().type());
+        assertTrue(filter.getValue().toString().contains(CONVERSATION_ID));
+        assertTrue(filter.getValue().toString().contains("conversation-other"));
+    }
+
+    private static Document turn(String text, UserMessage question) {
+        return new Document(text, Map.of(
+                ConversationRecallAdvisor.CONVERSATION_ID_KEY, CONVERSATION_ID,
+                ConversationRecallAdvisor.QUESTION_HASH_KEY,
+                String.valueOf(MessageConverter.contentHash(question))));
+    }
+}
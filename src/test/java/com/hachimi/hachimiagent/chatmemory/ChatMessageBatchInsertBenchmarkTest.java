@@ -0,0 +1,105 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import com.hachimi.hachimiagent.common.MessageConverter;
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import jakarta.annotation.Resource;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 聊天消息逐行插入与多行批量插入的对比测试
+ * 需要连接 MySQL，测试数据使用 benchmark- 前缀的对话ID，结束后逻辑删除
+ */
+@SpringBootTest
+@DisplayName("聊天消息批量插入基准测试")
+class ChatMessageBatchInsertBenchmarkTest {
+
+    private static final int ROUNDS = 20;
+
+    @Resource
+    private ChatMessageMapper messageMapper;
+
+    @Resource
+    private MysqlBasedChatMemoryRepository chatMemoryRepository;
+
+    @Test
+    @DisplayName("对比 10/20/100 条消息窗口的逐行与批量插入耗时")
+    void testPerRowVersusBatch() {
+        System.out.println("=== 逐行插入 vs 多行批量插入 ===");
+        for (int windowSize : new int[]{10, 20, 100}) {
+            // 预热
+            perRow(windowSize);
+            batched(windowSize);
+
+            long perRowNanos = 0;
+            long batchedNanos = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                perRowNanos += perRow(windowSize);
+                batchedNanos += batched(windowSize);
+            }
+
+            System.out.printf("window=%d, 逐行 %.2f ms/次, 批量 %.2f ms/次, 提速 %.1fx%n",
+                    windowSize,
+                    perRowNanos / 1_000_000.0 / ROUNDS,
+                    batchedNanos / 1_000_000.0 / ROUNDS,
+                    (double) perRowNanos / batchedNanos);
+        }
+    }
+
+    private long perRow(int windowSize) {
+        String conversationId = "benchmark-" + UUID.randomUUID();
+        List<ChatMessage> entities = entities(conversationId, windowSize);
+
+        long begin = System.nanoTime();
+        for (ChatMessage entity : entities) {
+            messageMapper.insert(entity);
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        verifyAndCleanUp(conversationId, windowSize);
+        return elapsed;
+    }
+
+    private long batched(int windowSize) {
+        String conversationId = "benchmark-" + UUID.randomUUID();
+        List<ChatMessage> entities = entities(conversationId, windowSize);
+
+        long begin = System.nanoTime();
+        messageMapper.insertBatch(entities);
+        long elapsed = System.nanoTime() - begin;
+
+        verifyAndCleanUp(conversationId, windowSize);
+        return elapsed;
+    }
+
+    private void verifyAndCleanUp(String conversationId, int windowSize) {
+        assertEquals(windowSize, chatMemoryRepository.getMessageCount(conversationId));
+        chatMemoryRepository.deleteByConversationId(conversationId);
+    }
+
+    private static List<ChatMessage> entities(String conversationId, int windowSize) {
+        List<ChatMessage> entities = new ArrayList<>();
+        for (int i = 0; i < windowSize; i++) {
+            Message message = i % 2 == 0
+                    ? new UserMessage("第" + i + "条：我想写一篇关于成长的散文，但总是不知道如何开头。")
+                    : new AssistantMessage("第" + i + "条：可以从一个具体的生活场景切入，用细节带出情绪。");
+            ChatMessage entity = MessageConverter.toEntity(message, conversationId, i);
+            entity.setCreateTime(LocalDateTime.now());
+            entity.setDeleted(0);
+            entities.add(entity);
+        }
+        return entities;
+    }
+}
@@ -0,0 +1,148 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ChatMessageKryoCodec 测试类
+ * 验证各类消息的往返编解码、旧格式兼容、新格式不写入类名，并对比新旧格式的体积和吞吐量
+ */
+@DisplayName("聊天消息 Kryo 编解码测试")
+class ChatMessageKryoCodecTest {
+
+    @Test
+    @DisplayName("测试各类消息往返编解码")
+    void testRoundTrip() {
+        List<Message> messages = sampleConversation(1);
+
+        byte[] bytes = ChatMessageKryoCodec.serializeMessages(messages);
+        List<Message> restored = ChatMessageKryoCodec.deserializeMessages(bytes);
+
+        assertEquals(messages.size(), restored.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(messages.get(i).getClass(), restored.get(i).getClass());
+            assertEquals(messages.get(i).getText(), restored.get(i).getText());
+        }
+
+        AssistantMessage assistant = (AssistantMessage) restored.get(2);
+        assertEquals(1, assistant.getToolCalls().size());
+        assertEquals("searchWeb", assistant.getToolCalls().get(0).name());
+        assertEquals("{\"query\":\"写作技巧\"}", assistant.getToolCalls().get(0).arguments());
+
+        ToolResponseMessage toolResponse = (ToolResponseMessage) restored.get(3);
+        assertEquals("call-1", toolResponse.getResponses().get(0).id());
+        assertEquals("搜索结果", toolResponse.getResponses().get(0).responseData());
+
+        assertEquals("web", restored.get(1).getMetadata().get("source"));
+    }
+
+    @Test
+    @DisplayName("测试旧格式数据仍可读取")
+    void testLegacyFormatStillLoads() {
+        List<Message> messages = List.of(new UserMessage("你好"), new AssistantMessage("你好，我是写作导师"));
+
+        byte[] legacy = ChatMessageKryoCodec.serializeLegacyMessages(messages);
+        List<Message> restored = ChatMessageKryoCodec.deserializeMessages(legacy);
+
+        assertEquals(2, restored.size());
+        assertEquals("你好", restored.get(0).getText());
+        assertInstanceOf(AssistantMessage.class, restored.get(1));
+    }
+
+    @Test
+    @DisplayName("新格式不写入类名，体积小于旧格式，多轮对话往返一致")
+    void testCompactAgainstLegacyFormat() {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            messages.addAll(sampleConversation(i));
+        }
+
+        byte[] legacy = ChatMessageKryoCodec.serializeLegacyMessages(messages);
+        byte[] current = ChatMessageKryoCodec.serializeMessages(messages);
+        System.out.printf("%d 条消息: 旧格式 %d bytes, 新格式 %d bytes%n", messages.size(), legacy.length, current.length);
+
+        // 旧格式按类名动态注册，Kryo 会把类名的最后一个字符打上标记位，这里只比对包名
+        String packageName = UserMessage.class.getPackageName();
+        assertTrue(new String(legacy, StandardCharsets.ISO_8859_1).contains(packageName));
+        assertFalse(new String(current, StandardCharsets.ISO_8859_1).contains(packageName), "新格式不应写入类名");
+        assertTrue(current.length < legacy.length, "新格式体积应更小");
+
+        List<Message> restored = ChatMessageKryoCodec.deserializeMessages(current);
+        assertEquals(messages.size(), restored.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(messages.get(i).getClass(), restored.get(i).getClass());
+            assertEquals(messages.get(i).getText(), restored.get(i).getText());
+        }
+    }
+
+    @Test
+    @DisplayName("新旧格式体积与吞吐量对比")
+    void testBenchmarkAgainstLegacyFormat() {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            messages.addAll(sampleConversation(i));
+        }
+        int iterations = 2000;
+
+        byte[] legacy = ChatMessageKryoCodec.serializeLegacyMessages(messages);
+        byte[] current = ChatMessageKryoCodec.serializeMessages(messages);
+
+        // 预热
+        for (int i = 0; i < 200; i++) {
+            ChatMessageKryoCodec.deserializeMessages(ChatMessageKryoCodec.serializeLegacyMessages(messages));
+            ChatMessageKryoCodec.deserializeMessages(ChatMessageKryoCodec.serializeMessages(messages));
+        }
+
+        long legacySer = time(iterations, () -> ChatMessageKryoCodec.serializeLegacyMessages(messages));
+        long legacyDe = time(iterations, () -> ChatMessageKryoCodec.deserializeMessages(legacy));
+        long currentSer = time(iterations, () -> ChatMessageKryoCodec.serializeMessages(messages));
+        long currentDe = time(iterations, () -> ChatMessageKryoCodec.deserializeMessages(current));
+
+        System.out.println("=== Kryo 格式对比（" + messages.size() + " 条消息）===");
+        System.out.printf("旧格式: %d bytes, 序列化 %.0f ops/s, 反序列化 %.0f ops/s%n",
+                legacy.length, opsPerSecond(iterations, legacySer), opsPerSecond(iterations, legacyDe));
+        System.out.printf("新格式: %d bytes, 序列化 %.0f ops/s, 反序列化 %.0f ops/s%n",
+                current.length, opsPerSecond(iterations, currentSer), opsPerSecond(iterations, currentDe));
+
+        // 两种格式都能读回全部消息；吞吐量只打印不断言，避免受机器负载影响
+        assertEquals(messages.size(), ChatMessageKryoCodec.deserializeMessages(legacy).size());
+        assertEquals(messages.size(), ChatMessageKryoCodec.deserializeMessages(current).size());
+        assertTrue(current.length < legacy.length, "新格式不应写入类名，体积应更小");
+    }
+
+    private static List<Message> sampleConversation(int round) {
+        return List.of(
+                new UserMessage("第" + round + "轮：我想写一篇关于成长的散文，但总是不知道如何开头。"),
+                UserMessage.builder().text("补充一下，我希望语言风格偏向抒情。").metadata(Map.of("source", "web")).build(),
+                new AssistantMessage("", Map.of(),
+                        List.of(new AssistantMessage.ToolCall("call-1", "function", "searchWeb", "{\"query\":\"写作技巧\"}"))),
+                new ToolResponseMessage(List.of(new ToolResponseMessage.ToolResponse("call-1", "searchWeb", "搜索结果"))),
+                new AssistantMessage("可以从一个具体的生活场景切入，比如一次搬家、一封旧信，用细节带出情绪。"),
+                new SystemMessage("保持温和、鼓励的语气。")
+        );
+    }
+
+    private static long time(int iterations, Runnable task) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    private static double opsPerSecond(int iterations, long nanos) {
+        return iterations / (nanos / 1_000_000_000.0);
+    }
+}
@@ -0,0 +1,158 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * FileBasedChatMemoryRepository 并发测试
+ * 验证分段锁下不同对话的读写互不阻塞，多线程读写时每个对话的数据完整
+ */
+@DisplayName("文件聊天记忆并发测试")
+class FileBasedChatMemoryRepositoryConcurrencyTest {
+
+    private static final int OPERATIONS_PER_THREAD = 200;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("不同对话的写锁互不阻塞")
+    void testStripesDoNotBlockOtherConversations() throws Exception {
+        StripedReadWriteLock locks = new StripedReadWriteLock(64);
+        String first = "conversation-a";
+        String second = findIdOnOtherStripe(locks, first);
+
+        ReadWriteLock firstLock = locks.get(first);
+        firstLock.writeLock().lock();
+        try {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<Boolean> otherRead = executor.submit(() -> tryRead(locks.get(second)));
+                Future<Boolean> sameRead = executor.submit(() -> tryRead(locks.get(first)));
+
+                assertTrue(otherRead.get(), "其他对话的读取不应被阻塞");
+                assertFalse(sameRead.get(), "同一对话的读取应等待写锁释放");
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            firstLock.writeLock().unlock();
+        }
+    }
+
+    @Test
+    @DisplayName("持有一个对话的写锁时，其他分段的对话仍能保存和读取，同一对话的读取等待")
+    void testRepositoryProgressesWhileStripeHeld() throws Exception {
+        FileBasedChatMemoryRepository repository = new FileBasedChatMemoryRepository(tempDir.toString(), false);
+        StripedReadWriteLock locks = (StripedReadWriteLock) ReflectionTestUtils.getField(repository, "locks");
+        String first = "conversation-a";
+        String second = findIdOnOtherStripe(locks, first);
+        repository.saveAll(first, messages(2));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        ReadWriteLock firstLock = locks.get(first);
+        firstLock.writeLock().lock();
+        boolean held = true;
+        try {
+            Future<Integer> other = executor.submit(() -> {
+                repository.saveAll(second, messages(3));
+                return repository.findByConversationId(second).size();
+            });
+            assertEquals(3, other.get(5, TimeUnit.SECONDS), "其他对话的保存和读取不应被阻塞");
+
+            Future<Integer> same = executor.submit(() -> repository.findByConversationId(first).size());
+            assertThrows(TimeoutException.class, () -> same.get(200, TimeUnit.MILLISECONDS),
+                    "同一对话的读取应等待写锁释放");
+            firstLock.writeLock().unlock();
+            held = false;
+            assertEquals(2, same.get(5, TimeUnit.SECONDS));
+        } finally {
+            if (held) {
+                firstLock.writeLock().unlock();
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("多线程交替读写不同对话，每个对话的数据完整")
+    void testConcurrentConversationsStayConsistent() throws Exception {
+        int threads = 8;
+        FileBasedChatMemoryRepository repository = new FileBasedChatMemoryRepository(tempDir.toString(), false);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+
+        // 每个线程负责一个对话，交替执行 saveAll 和 findByConversationId
+        for (int t = 0; t < threads; t++) {
+            String conversationId = "conversation-" + t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 1; i <= OPERATIONS_PER_THREAD; i++) {
+                    repository.saveAll(conversationId, messages(i));
+                    assertEquals(i, repository.findByConversationId(conversationId).size());
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int t = 0; t < threads; t++) {
+            List<Message> messages = repository.findByConversationId("conversation-" + t);
+            assertEquals(OPERATIONS_PER_THREAD, messages.size());
+            assertEquals("message-" + (OPERATIONS_PER_THREAD - 1), messages.get(messages.size() - 1).getText());
+        }
+        assertEquals(threads, repository.findConversationIds().size());
+    }
+
+    private static List<Message> messages(int size) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            messages.add(i % 2 == 0 ? new UserMessage("message-" + i) : new AssistantMessage("message-" + i));
+        }
+        return messages;
+    }
+
+    private static boolean tryRead(ReadWriteLock lock) throws InterruptedException {
+        if (lock.readLock().tryLock(200, TimeUnit.MILLISECONDS)) {
+            lock.readLock().unlock();
+            return true;
+        }
+        return false;
+    }
+
+    private static String findIdOnOtherStripe(StripedReadWriteLock locks, String conversationId) {
+        int stripe = locks.indexFor(conversationId);
+        for (int i = 0; ; i++) {
+            String candidate = "conversation-" + i;
+            if (locks.indexFor(candidate) != stripe) {
+                return candidate;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import com.hachimi.hachimiagent.chatmemory.FileBasedChatMemoryRepository.StorageMode;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * FileBasedChatMemoryRepository 追加日志模式测试
+ * 验证记录帧的写入与重放、损坏尾部的处理，以及日志压缩
+ */
+@DisplayName("文件聊天记忆追加日志测试")
+class FileBasedChatMemoryRepositoryTest {
+
+    private static final String CONVERSATION_ID = "conversation-log";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("测试追加和窗口滑动只写日志，重新打开后重放结果一致")
+    void testAppendAndReplay() {
+        FileBasedChatMemoryRepository repository = appendLog();
+        List<Message> messages = messages(4);
+        for (int i = 1; i <= 3; i++) {
+            repository.saveAll(CONVERSATION_ID, new ArrayList<>(messages.subList(0, i)));
+        }
+        // 窗口滑动：丢弃 1 条头部消息并追加 1 条
+        repository.saveAll(CONVERSATION_ID, new ArrayList<>(messages.subList(1, 4)));
+
+        assertFalse(Files.exists(snapshotFile()), "新对话不应重写快照");
+        assertTrue(Files.exists(logFile()));
+
+        List<Message> replayed = appendLog().findByConversationId(CONVERSATION_ID);
+        assertEquals(texts(messages.subList(1, 4)), texts(replayed));
+    }
+
+    @Test
+    @DisplayName("测试不完整的尾部记录被忽略，下次写入重写快照")
+    void testTornTail() throws Exception {
+        FileBasedChatMemoryRepository repository = appendLog();
+        List<Message> messages = messages(3);
+        repository.saveAll(CONVERSATION_ID, new ArrayList<>(messages.subList(0, 2)));
+
+        // 模拟写到一半崩溃：帧头声明 100 字节负载，实际只写了 2 字节
+        Files.write(logFile(), new byte[]{3, 0, 0, 0, 100, 1, 2}, StandardOpenOption.APPEND);
+
+        FileBasedChatMemoryRepository reopened = appendLog();
+        assertEquals(texts(messages.subList(0, 2)), texts(reopened.findByConversationId(CONVERSATION_ID)));
+
+        reopened.saveAll(CONVERSATION_ID, new ArrayList<>(messages));
+        assertFalse(Files.exists(logFile()), "损坏的日志应随快照重写删除");
+        assertTrue(Files.exists(snapshotFile()));
+        assertEquals(texts(messages), texts(appendLog().findByConversationId(CONVERSATION_ID)));
+    }
+
+    @Test
+    @DisplayName("测试校验失败的记录及其后的记录不被重放")
+    void testChecksumMismatch() throws Exception {
+        FileBasedChatMemoryRepository repository = appendLog();
+        List<Message> messages = messages(3);
+        for (int i = 1; i <= 3; i++) {
+            repository.saveAll(CONVERSATION_ID, new ArrayList<>(messages.subList(0, i)));
+        }
+
+        // 改写最后一条记录的校验和
+        try (RandomAccessFile file = new RandomAccessFile(logFile().toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        assertEquals(texts(messages.subList(0, 2)), texts(appendLog().findByConversationId(CONVERSATION_ID)));
+    }
+
+    @Test
+    @DisplayName("测试压缩把日志合并进快照")
+    void testCompactNow() {
+        FileBasedChatMemoryRepository repository = appendLog();
+        List<Message> messages = messages(10);
+        for (int i = 1; i <= messages.size(); i++) {
+            repository.saveAll(CONVERSATION_ID, new ArrayList<>(messages.subList(0, i)));
+        }
+
+        repository.compactNow(CONVERSATION_ID);
+
+        assertFalse(Files.exists(logFile()));
+        assertTrue(Files.exists(snapshotFile()));
+        assertEquals(texts(messages), texts(appendLog().findByConversationId(CONVERSATION_ID)));
+    }
+
+    @Test
+    @DisplayName("测试关闭时等待排队的后台压缩完成")
+    void testShutdownWaitsForCompaction() {
+        FileBasedChatMemoryRepository repository = appendLog();
+        // 每次保存写一条记录，第 64 次保存达到阈值并提交后台压缩
+        List<Message> messages = messages(64);
+        for (int i = 1; i <= messages.size(); i++) {
+            repository.saveAll(CONVERSATION_ID, new ArrayList<>(messages.subList(0, i)));
+        }
+
+        repository.shutdown();
+
+        assertFalse(Files.exists(logFile()), "关闭返回前压缩应已完成");
+        assertEquals(texts(messages), texts(appendLog().findByConversationId(CONVERSATION_ID)));
+    }
+
+    private FileBasedChatMemoryRepository appendLog() {
+        return new FileBasedChatMemoryRepository(tempDir.toString(), true, StorageMode.APPEND_LOG);
+    }
+
+    private Path snapshotFile() {
+        return tempDir.resolve(CONVERSATION_ID + ".chat");
+    }
+
+    private Path logFile() {
+        return tempDir.resolve(CONVERSATION_ID + ".chatlog");
+    }
+
+    private static List<Message> messages(int size) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String text = "message-" + i;
+            messages.add(i % 2 == 0 ? new UserMessage(text) : new AssistantMessage(text));
+        }
+        return messages;
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        return messages.stream().map(Message::getText).toList();
+    }
+}
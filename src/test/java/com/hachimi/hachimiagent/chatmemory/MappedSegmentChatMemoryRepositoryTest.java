@@ -0,0 +1,131 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * MappedSegmentChatMemoryRepository 测试类
+ * 验证重新打开、索引损坏后的重建，以及删除后空间复用
+ */
+@DisplayName("内存映射段文件聊天记忆测试")
+class MappedSegmentChatMemoryRepositoryTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("测试重新打开后数据完整")
+    void testReopen() {
+        MappedSegmentChatMemoryRepository repository = new MappedSegmentChatMemoryRepository(tempDir.toString(), SEGMENT_SIZE);
+        for (int c = 0; c < 500; c++) {
+            repository.saveAll("conversation-" + c, conversation(c, 1 + c % 5));
+        }
+        repository.saveAll("conversation-7", conversation(7, 10));
+        repository.deleteByConversationId("conversation-8");
+        repository.close();
+
+        MappedSegmentChatMemoryRepository reopened = new MappedSegmentChatMemoryRepository(tempDir.toString(), SEGMENT_SIZE);
+        assertEquals(499, reopened.findConversationIds().size());
+        assertEquals(10, reopened.findByConversationId("conversation-7").size());
+        assertTrue(reopened.findByConversationId("conversation-8").isEmpty());
+        System.out.println(reopened.getStorageStats());
+    }
+
+    @Test
+    @DisplayName("测试索引损坏后从段文件重建")
+    void testRebuildIndexFromSegments() throws Exception {
+        MappedSegmentChatMemoryRepository repository = new MappedSegmentChatMemoryRepository(tempDir.toString(), SEGMENT_SIZE);
+        repository.saveAll("conversation-a", conversation(1, 3));
+        repository.saveAll("conversation-a", conversation(2, 6));
+        repository.saveAll("conversation-b", conversation(3, 2));
+        repository.saveAll("conversation-c", conversation(4, 2));
+        repository.deleteByConversationId("conversation-c");
+        repository.close();
+
+        try (RandomAccessFile index = new RandomAccessFile(tempDir.resolve("index.idx").toFile(), "rw")) {
+            index.writeInt(0);
+        }
+
+        MappedSegmentChatMemoryRepository rebuilt = new MappedSegmentChatMemoryRepository(tempDir.toString(), SEGMENT_SIZE);
+        List<Message> messages = rebuilt.findByConversationId("conversation-a");
+        assertEquals(6, messages.size());
+        assertEquals("round-2-message-5", messages.get(5).getText());
+        assertEquals(2, rebuilt.findByConversationId("conversation-b").size());
+        assertTrue(rebuilt.findByConversationId("conversation-c").isEmpty());
+    }
+
+    @Test
+    @DisplayName("测试删除后的空间被复用")
+    void testFreeSpaceReuse() {
+        MappedSegmentChatMemoryRepository repository = new MappedSegmentChatMemoryRepository(tempDir.toString(), SEGMENT_SIZE);
+        for (int round = 0; round < 20; round++) {
+            for (int c = 0; c < 100; c++) {
+                repository.saveAll("conversation-" + c, conversation(round, 5));
+            }
+            for (int c = 0; c < 100; c += 2) {
+                repository.deleteByConversationId("conversation-" + c);
+            }
+        }
+        String stats = repository.getStorageStats();
+        System.out.println(stats);
+
+        // 反复覆盖和删除不应持续新增段文件
+        assertTrue(stats.contains(" 1 segments") || stats.contains(" 2 segments"), stats);
+        assertEquals(50, repository.findConversationIds().size());
+    }
+
+    @Test
+    @DisplayName("测试索引扩容期间读取其他对话不会读到空历史")
+    void testReadDuringIndexGrowth() throws Exception {
+        MappedSegmentChatMemoryRepository repository = new MappedSegmentChatMemoryRepository(tempDir.toString(), 4 * SEGMENT_SIZE);
+        repository.saveAll("stable", conversation(0, 3));
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger emptyReads = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                if (repository.findByConversationId("stable").size() != 3) {
+                    emptyReads.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        try {
+            // 初始 1024 个槽位，写入 3000 个新对话会触发多次扩容
+            for (int c = 0; c < 3000; c++) {
+                repository.saveAll("conversation-" + c, conversation(c, 1));
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+
+        System.out.println(repository.getStorageStats());
+        assertEquals(0, emptyReads.get());
+        assertEquals(3001, repository.findConversationIds().size());
+    }
+
+    private static List<Message> conversation(int round, int size) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String text = "round-" + round + "-message-" + i;
+            messages.add(i % 2 == 0 ? new UserMessage(text) : new AssistantMessage(text));
+        }
+        return messages;
+    }
+}
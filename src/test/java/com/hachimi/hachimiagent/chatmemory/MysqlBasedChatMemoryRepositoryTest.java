@@ -0,0 +1,696 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import com.baomidou.mybatisplus.core.MybatisConfiguration;
+import com.baomidou.mybatisplus.core.metadata.TableInfoHelper;
+import com.hachimi.hachimiagent.common.MessageConverter;
+import com.hachimi.hachimiagent.dto.ConversationActivity;
+import com.hachimi.hachimiagent.entity.ChatConversation;
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
+import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.replica.ReadWriteRouter;
+import com.hachimi.hachimiagent.replica.ReplicaProperties;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import com.hachimi.hachimiagent.sharding.ShardingProperties;
+import org.apache.ibatis.builder.MapperBuilderAssistant;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+/**
+ * MysqlBasedChatMemoryRepository 增量保存测试
+ * 使用 Mock 的 Mapper 统计每轮对话实际产生的写操作
+ */
+@DisplayName("MySQL 聊天记忆增量保存测试")
+class MysqlBasedChatMemoryRepositoryTest {
+
+    private static final String CONVERSATION_ID = "conversation-diff";
+
+    private ChatConversationMapper conversationMapper;
+    private ChatMessageMapper messageMapper;
+    private MysqlBasedChatMemoryRepository repository;
+
+    @BeforeAll
+    static void initTableInfo() {
+        // Lambda 条件构造器需要实体的表信息
+        MapperBuilderAssistant assistant = new MapperBuilderAssistant(new MybatisConfiguration(), "");
+        TableInfoHelper.initTableInfo(assistant, ChatMessage.class);
+        TableInfoHelper.initTableInfo(assistant, ChatConversation.class);
+    }
+
+    @BeforeEach
+    void setUp() {
+        conversationMapper = mock(ChatConversationMapper.class);
+        messageMapper = mock(ChatMessageMapper.class);
+        repository = new MysqlBasedChatMemoryRepository(conversationMapper, messageMapper,
+                new MysqlChatMemoryProperties(), mock(PlatformTransactionManager.class),
+                new LocalChatMemoryCacheInvalidationBus(), new ShardRouter(new ShardingProperties()),
+                new ReadWriteRouter(new ReplicaProperties()));
+    }
+
+    @Test
+    @DisplayName("滑动窗口：只删除滑出的头部并插入新增的两条")
+    void testSlidingWindowWritesOnlyTail() {
+        List<Message> history = conversation(0, 20);
+        when(messageMapper.findDigestsByConversationId(CONVERSATION_ID)).thenReturn(storedRows(history, 0));
+        when(messageMapper.getMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(19);
+
+        List<Message> window = new ArrayList<>(history.subList(2, 20));
+        window.addAll(conversation(20, 2));
+        repository.saveAll(CONVERSATION_ID, window);
+
+        List<ChatMessage> inserted = capturedInserts(2);
+        assertEquals(20, inserted.get(0).getMessageOrder());
+        assertEquals(21, inserted.get(1).getMessageOrder());
+        assertEquals("message-20", inserted.get(0).getContent());
+        verify(messageMapper, times(1)).update(isNull(), any());
+    }
+
+    @Test
+    @DisplayName("追加：不删除任何消息")
+    void testAppendOnly() {
+        List<Message> history = conversation(0, 4);
+        when(messageMapper.findDigestsByConversationId(CONVERSATION_ID)).thenReturn(storedRows(history, 10));
+        when(messageMapper.getMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(13);
+
+        List<Message> window = new ArrayList<>(history);
+        window.addAll(conversation(4, 2));
+        repository.saveAll(CONVERSATION_ID, window);
+
+        List<ChatMessage> inserted = capturedInserts(2);
+        assertEquals(14, inserted.get(0).getMessageOrder());
+        verify(messageMapper, never()).update(isNull(), any());
+    }
+
+    @Test
+    @DisplayName("尾部分叉：删除分叉后的消息，重写的消息使用新的顺序号")
+    void testDivergedTail() {
+        List<Message> history = conversation(0, 4);
+        when(messageMapper.findDigestsByConversationId(CONVERSATION_ID)).thenReturn(storedRows(history, 0));
+        // 更早的改写留下了顺序号 4~5 的已删除行
+        when(messageMapper.getMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(5);
+
+        List<Message> window = new ArrayList<>(history.subList(0, 2));
+        window.add(new UserMessage("重新生成的问题"));
+        repository.saveAll(CONVERSATION_ID, window);
+
+        List<ChatMessage> inserted = capturedInserts(1);
+        assertEquals(6, inserted.get(0).getMessageOrder());
+        verify(messageMapper, times(1)).update(isNull(), any());
+        // 分叉的尾部被删除，改写次数加 1
+        verify(conversationMapper).upsertConversationActivity(eq(CONVERSATION_ID), any(), any(),
+                eq(3), eq(true), eq(true), any());
+    }
+
+    @Test
+    @DisplayName("截断后追加：指纹记住用过的最大顺序号，不复用被删除消息的顺序号")
+    void testAppendAfterTruncation() {
+        List<Message> history = conversation(0, 4);
+        when(messageMapper.findDigestsByConversationId(CONVERSATION_ID)).thenReturn(storedRows(history, 0));
+        when(messageMapper.getMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(3);
+
+        // 窗口缩短为前两条，顺序号 2~3 被删除
+        List<Message> truncated = new ArrayList<>(history.subList(0, 2));
+        repository.saveAll(CONVERSATION_ID, truncated);
+        verify(messageMapper, never()).insertBatch(any());
+
+        List<Message> window = new ArrayList<>(truncated);
+        window.add(new UserMessage("新的问题"));
+        repository.saveAll(CONVERSATION_ID, window);
+
+        List<ChatMessage> inserted = capturedInserts(1);
+        assertEquals(4, inserted.get(0).getMessageOrder());
+        verify(messageMapper, times(1)).findDigestsByConversationId(CONVERSATION_ID);
+        verify(messageMapper, times(1)).getMaxUsedMessageOrder(CONVERSATION_ID);
+    }
+
+    @Test
+    @DisplayName("内容一致：不产生任何消息写入")
+    void testUnchangedWindow() {
+        List<Message> history = conversation(0, 6);
+        when(messageMapper.findDigestsByConversationId(CONVERSATION_ID)).thenReturn(storedRows(history, 0));
+
+        repository.saveAll(CONVERSATION_ID, history);
+
+        verify(messageMapper, never()).insertBatch(any());
+        verify(messageMapper, never()).update(isNull(), any());
+    }
+
+    @Test
+    @DisplayName("指纹：后续保存用指纹对齐，不再查询摘要")
+    void testFingerprintReusedAcrossSaves() {
+        List<Message> history = conversation(0, 20);
+        when(messageMapper.findDigestsByConversationId(CONVERSATION_ID)).thenReturn(storedRows(history, 0));
+        when(messageMapper.getMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(19);
+
+        List<Message> window = new ArrayList<>(history.subList(2, 20));
+        window.addAll(conversation(20, 2));
+        repository.saveAll(CONVERSATION_ID, window);
+
+        // 再滑动两条：头部顺序号从 2 开始，新消息接在 21 之后
+        List<Message> next = new ArrayList<>(window.subList(2, 20));
+        next.addAll(conversation(22, 2));
+        repository.saveAll(CONVERSATION_ID, next);
+        // 相同窗口直接跳过
+        repository.saveAll(CONVERSATION_ID, next);
+
+        verify(messageMapper, times(1)).findDigestsByConversationId(CONVERSATION_ID);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ChatMessage>> captor = ArgumentCaptor.forClass(List.class);
+        verify(messageMapper, times(2)).insertBatch(captor.capture());
+        List<ChatMessage> inserted = captor.getAllValues().get(1);
+        assertEquals(22, inserted.get(0).getMessageOrder());
+        assertEquals("message-22", inserted.get(0).getContent());
+        verify(messageMapper, times(2)).update(isNull(), any());
+        repository.printCacheStats();
+    }
+
+    @Test
+    @DisplayName("会话行：消息未变化时去抖窗口内只写一次，删除后重新写入")
+    void testConversationTouchDebounced() {
+        List<Message> history = conversation(0, 4);
+        when(messageMapper.findDigestsByConversationId(CONVERSATION_ID)).thenReturn(storedRows(history, 0));
+
+        for (int i = 0; i < 3; i++) {
+            // 清掉指纹，强制与库中摘要比对
+            repository.clearFingerprintCache();
+            repository.saveAll(CONVERSATION_ID, history);
+        }
+        verify(conversationMapper, times(1)).upsertConversation(eq(CONVERSATION_ID), any());
+        verify(conversationMapper, never()).selectOne(any());
+        verify(conversationMapper, never()).upsertConversationActivity(any(), any(), any(), anyInt(), anyBoolean(), anyBoolean(), any());
+
+        repository.deleteByConversationId(CONVERSATION_ID);
+        repository.saveAll(CONVERSATION_ID, history);
+        verify(conversationMapper, times(2)).upsertConversation(eq(CONVERSATION_ID), any());
+    }
+
+    @Test
+    @DisplayName("会话列表字段：保存时随会话行一起更新，窗口内的追加暂存后累加消息数")
+    void testSessionFieldsMaintained() {
+        List<Message> history = conversation(0, 20);
+        when(messageMapper.findDigestsByConversationId(CONVERSATION_ID)).thenReturn(storedRows(history, 0));
+
+        List<Message> window = new ArrayList<>(history.subList(2, 20));
+        window.addAll(conversation(20, 2));
+        repository.saveAll(CONVERSATION_ID, window);
+        verify(conversationMapper).upsertConversationActivity(eq(CONVERSATION_ID), eq("message-2"), eq("message-21"),
+                eq(20), eq(true), eq(false), any());
+
+        repository.appendMessages(CONVERSATION_ID, conversation(22, 2));
+        verify(conversationMapper, times(1)).upsertConversationActivity(any(), any(), any(), anyInt(), anyBoolean(), anyBoolean(), any());
+        verify(conversationMapper, never()).upsertConversation(any(), any());
+
+        repository.flushPendingActivity();
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ConversationActivity>> captor = ArgumentCaptor.forClass(List.class);
+        verify(conversationMapper).updateConversationActivity(captor.capture(), any());
+        ConversationActivity activity = captor.getValue().get(0);
+        assertEquals("message-23", activity.getPreview());
+        assertNull(activity.getMessageCount());
+        assertEquals(2, activity.getAppendedCount());
+    }
+
+    @Test
+    @DisplayName("追加：去抖窗口内连续追加不读写会话表，顺序号由消息表上的锁定读分配")
+    void testAppendSkipsConversationRowWithinDebounce() {
+        when(messageMapper.lockMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(null, 1, 3, 5, 7);
+
+        // 窗口内第一次追加创建会话行
+        repository.appendMessages(CONVERSATION_ID, conversation(0, 2));
+        verify(conversationMapper).upsertConversationActivity(eq(CONVERSATION_ID), eq("message-0"), eq("message-1"),
+                eq(2), eq(false), eq(false), any());
+
+        clearInvocations(conversationMapper);
+        for (int turn = 1; turn < 5; turn++) {
+            repository.appendMessages(CONVERSATION_ID, conversation(turn * 2, 2));
+        }
+        int statements = mockingDetails(conversationMapper).getInvocations().size();
+        System.out.println("后续 4 轮追加的会话表语句数: " + statements);
+        assertEquals(0, statements);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ChatMessage>> inserts = ArgumentCaptor.forClass(List.class);
+        verify(messageMapper, times(5)).insertBatch(inserts.capture());
+        assertEquals(List.of(0, 2, 4, 6, 8), inserts.getAllValues().stream()
+                .map(rows -> rows.get(0).getMessageOrder())
+                .toList());
+
+        repository.flushPendingActivity();
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ConversationActivity>> captor = ArgumentCaptor.forClass(List.class);
+        verify(conversationMapper, times(1)).updateConversationActivity(captor.capture(), any());
+        ConversationActivity activity = captor.getValue().get(0);
+        assertEquals("message-9", activity.getPreview());
+        assertNull(activity.getMessageCount());
+        assertEquals(8, activity.getAppendedCount());
+    }
+
+    @Test
+    @DisplayName("会话列表字段：去抖窗口内的后续保存立即加版本号，列表字段暂存后批量写入，追加条数累加到保存的消息数上")
+    void testSessionFieldsBatchedWithinDebounce() {
+        List<Message> history = conversation(0, 20);
+        when(messageMapper.findDigestsByConversationId(CONVERSATION_ID)).thenReturn(storedRows(history, 0));
+        when(messageMapper.getMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(19);
+        when(conversationMapper.bumpVersion(eq(CONVERSATION_ID), anyBoolean())).thenReturn(1);
+
+        List<Message> window = new ArrayList<>(history);
+        for (int round = 0; round < 3; round++) {
+            window = new ArrayList<>(window.subList(2, 20));
+            window.addAll(conversation(20 + round * 2, 2));
+            repository.saveAll(CONVERSATION_ID, window);
+        }
+        // 只有窗口内第一次保存立即写会话行，后两次在保存事务中只把版本号加 1
+        verify(conversationMapper, times(1)).upsertConversationActivity(any(), any(), any(), anyInt(), anyBoolean(), anyBoolean(), any());
+        verify(conversationMapper, times(2)).bumpVersion(CONVERSATION_ID, false);
+        verify(conversationMapper, never()).updateConversationActivity(any(), any());
+
+        repository.flushPendingActivity();
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ConversationActivity>> captor = ArgumentCaptor.forClass(List.class);
+        verify(conversationMapper, times(1)).updateConversationActivity(captor.capture(), any());
+        ConversationActivity activity = captor.getValue().get(0);
+        assertEquals("message-25", activity.getPreview());
+        assertEquals(20, activity.getMessageCount());
+
+        // 保存后再追加，两次都暂存，合并后消息数为保存时的 20 条加追加的 2 条
+        window = new ArrayList<>(window.subList(2, 20));
+        window.addAll(conversation(26, 2));
+        repository.saveAll(CONVERSATION_ID, window);
+        repository.appendMessages(CONVERSATION_ID, conversation(28, 2));
+        verify(conversationMapper, times(1)).updateConversationActivity(any(), any());
+        verify(conversationMapper, times(1)).upsertConversationActivity(any(), any(), any(), anyInt(), anyBoolean(), anyBoolean(), any());
+
+        repository.flushPendingActivity();
+        verify(conversationMapper, times(2)).updateConversationActivity(captor.capture(), any());
+        activity = captor.getValue().get(0);
+        assertEquals("message-29", activity.getPreview());
+        assertEquals(20, activity.getMessageCount());
+        assertEquals(2, activity.getAppendedCount());
+    }
+
+    @Test
+    @DisplayName("缓存命中时不查询数据库，保存后直接更新缓存")
+    void testReadThroughCache() {
+        List<Message> history = conversation(0, 4);
+        when(messageMapper.findByConversationIdOrderByOrder(CONVERSATION_ID)).thenReturn(storedRows(history, 0).stream()
+                .peek(row -> row.setContent("message-" + row.getMessageOrder()))
+                .toList());
+        when(messageMapper.findDigestsByConversationId(CONVERSATION_ID)).thenReturn(storedRows(history, 0));
+
+        assertEquals(4, repository.findByConversationId(CONVERSATION_ID).size());
+        assertEquals(4, repository.findByConversationId(CONVERSATION_ID).size());
+        verify(messageMapper, times(1)).findByConversationIdOrderByOrder(CONVERSATION_ID);
+
+        List<Message> window = new ArrayList<>(history);
+        window.addAll(conversation(4, 2));
+        repository.saveAll(CONVERSATION_ID, window);
+
+        List<Message> cached = repository.findByConversationId(CONVERSATION_ID);
+        assertEquals(6, cached.size());
+        assertEquals("message-5", cached.get(5).getText());
+        verify(messageMapper, times(1)).findByConversationIdOrderByOrder(CONVERSATION_ID);
+
+        repository.deleteByConversationId(CONVERSATION_ID);
+        repository.findByConversationId(CONVERSATION_ID);
+        verify(messageMapper, times(2)).findByConversationIdOrderByOrder(CONVERSATION_ID);
+        System.out.println(repository.getCacheStats());
+    }
+
+    @Test
+    @DisplayName("批量删除：去重排序后分批 IN 更新，并一次性失效缓存")
+    void testBulkDelete() {
+        MysqlChatMemoryProperties properties = new MysqlChatMemoryProperties();
+        properties.setDeleteChunkSize(2);
+        repository = new MysqlBasedChatMemoryRepository(conversationMapper, messageMapper, properties,
+                mock(PlatformTransactionManager.class), new LocalChatMemoryCacheInvalidationBus(),
+                new ShardRouter(new ShardingProperties()), new ReadWriteRouter(new ReplicaProperties()));
+        when(messageMapper.findByConversationIdOrderByOrder(CONVERSATION_ID)).thenReturn(storedRows(conversation(0, 2), 0).stream()
+                .peek(row -> row.setContent("message-" + row.getMessageOrder()))
+                .toList());
+        when(conversationMapper.softDeleteByConversationIds(any(), any())).thenAnswer(invocation ->
+                ((List<?>) invocation.getArgument(0)).size());
+
+        repository.findByConversationId(CONVERSATION_ID);
+        int deleted = repository.deleteByConversationIds(List.of("c", CONVERSATION_ID, "a", "", "c"));
+
+        assertEquals(3, deleted);
+        verify(conversationMapper).softDeleteByConversationIds(eq(List.of("a", "c")), any());
+        verify(conversationMapper).softDeleteByConversationIds(eq(List.of(CONVERSATION_ID)), any());
+        verify(messageMapper, times(2)).softDeleteByConversationIds(any());
+        verify(messageMapper, never()).update(isNull(), any());
+
+        repository.findByConversationId(CONVERSATION_ID);
+        verify(messageMapper, times(2)).findByConversationIdOrderByOrder(CONVERSATION_ID);
+    }
+
+    @Test
+    @DisplayName("删除回调：单个删除和批量删除提交后回调被删除的对话ID")
+    void testDeletionListener() {
+        List<String> deleted = new ArrayList<>();
+        repository.onConversationsDeleted(deleted::addAll);
+        when(conversationMapper.softDeleteByConversationIds(any(), any())).thenReturn(2);
+
+        repository.deleteByConversationId(CONVERSATION_ID);
+        repository.deleteByConversationIds(List.of("conversation-b", "conversation-a"));
+
+        assertEquals(List.of(CONVERSATION_ID, "conversation-a", "conversation-b"), deleted);
+    }
+
+    @Test
+    @DisplayName("批量删除：后面的分片失败时，已提交分片上的对话仍失效缓存")
+    void testBulkDeletePartialFailure() {
+        ShardingProperties sharding = new ShardingProperties();
+        sharding.setEnabled(true);
+        sharding.setShards(List.of(Map.of()));
+        ShardRouter shardRouter = new ShardRouter(sharding);
+        repository = new MysqlBasedChatMemoryRepository(conversationMapper, messageMapper,
+                new MysqlChatMemoryProperties(), mock(PlatformTransactionManager.class),
+                new LocalChatMemoryCacheInvalidationBus(), shardRouter, new ReadWriteRouter(new ReplicaProperties()));
+        String first = idOnShard(shardRouter, 0);
+        String second = idOnShard(shardRouter, 1);
+        when(messageMapper.findByConversationIdOrderByOrder(first)).thenReturn(storedRows(conversation(0, 2), 0).stream()
+                .peek(row -> row.setContent("message-" + row.getMessageOrder()))
+                .toList());
+        when(conversationMapper.softDeleteByConversationIds(eq(List.of(first)), any())).thenReturn(1);
+        when(conversationMapper.softDeleteByConversationIds(eq(List.of(second)), any()))
+                .thenThrow(new IllegalStateException("分片 1 不可用"));
+
+        List<String> deleted = new ArrayList<>();
+        repository.onConversationsDeleted(deleted::addAll);
+
+        assertEquals(2, repository.findByConversationId(first).size());
+        assertThrows(IllegalStateException.class, () -> repository.deleteByConversationIds(List.of(first, second)));
+        assertEquals(List.of(first), deleted);
+
+        // 0 号分片已提交，缓存不能再返回删除前的历史
+        repository.findByConversationId(first);
+        verify(messageMapper, times(2)).findByConversationIdOrderByOrder(first);
+    }
+
+    @Test
+    @DisplayName("冷热分层：移出后行被删除，再次读取时按原顺序号和创建时间回迁")
+    void testColdStorageRoundTrip(@TempDir Path coldDir) {
+        MysqlChatMemoryProperties properties = new MysqlChatMemoryProperties();
+        properties.getTiering().setColdStoragePath(coldDir.toString());
+        repository = new MysqlBasedChatMemoryRepository(conversationMapper, messageMapper, properties,
+                mock(PlatformTransactionManager.class), new LocalChatMemoryCacheInvalidationBus(),
+                new ShardRouter(new ShardingProperties()), new ReadWriteRouter(new ReplicaProperties()));
+
+        LocalDateTime lastMessageTime = LocalDateTime.of(2025, 1, 17, 10, 0);
+        AtomicInteger tier = new AtomicInteger(MysqlBasedChatMemoryRepository.STORAGE_TIER_HOT);
+        when(conversationMapper.findStorageTier(CONVERSATION_ID)).thenAnswer(invocation -> tier.get());
+        when(conversationMapper.lockStorageTier(CONVERSATION_ID)).thenAnswer(invocation -> {
+            ChatConversation row = new ChatConversation();
+            row.setStorageTier(tier.get());
+            row.setLastMessageTime(lastMessageTime);
+            return row;
+        });
+        when(conversationMapper.updateStorageTier(eq(CONVERSATION_ID), anyInt())).thenAnswer(invocation -> {
+            tier.set(invocation.getArgument(1));
+            return 1;
+        });
+
+        List<ChatMessage> rows = storedRows(conversation(0, 4), 0).stream()
+                .peek(row -> row.setContent("message-" + row.getMessageOrder()))
+                .peek(row -> row.setCreateTime(lastMessageTime.minusMinutes(4 - row.getMessageOrder())))
+                .toList();
+        when(messageMapper.findByConversationIdOrderByOrder(CONVERSATION_ID)).thenReturn(rows, List.of(), rows);
+        when(messageMapper.deleteActiveByConversationId(CONVERSATION_ID)).thenReturn(4);
+
+        // 最后消息时间不早于 idleBefore 时不移出
+        assertFalse(repository.moveToColdStorage(CONVERSATION_ID, lastMessageTime));
+        assertTrue(repository.moveToColdStorage(CONVERSATION_ID, lastMessageTime.plusDays(90)));
+        assertEquals(MysqlBasedChatMemoryRepository.STORAGE_TIER_COLD, tier.get());
+        verify(messageMapper).deleteActiveByConversationId(CONVERSATION_ID);
+        assertTrue(Files.exists(new ColdChatMessageStore(coldDir.toString()).path(CONVERSATION_ID)));
+
+        List<Message> messages = repository.findByConversationId(CONVERSATION_ID);
+        assertEquals(4, messages.size());
+        assertEquals("message-3", messages.get(3).getText());
+        assertEquals(MysqlBasedChatMemoryRepository.STORAGE_TIER_HOT, tier.get());
+
+        List<ChatMessage> restored = capturedInserts(4);
+        for (int i = 0; i < restored.size(); i++) {
+            assertEquals(rows.get(i).getMessageOrder(), restored.get(i).getMessageOrder());
+            assertEquals(rows.get(i).getMessageType(), restored.get(i).getMessageType());
+            assertEquals(rows.get(i).getContentHash(), restored.get(i).getContentHash());
+            assertEquals(rows.get(i).getCreateTime(), restored.get(i).getCreateTime());
+        }
+        System.out.println("回迁消息: " + restored.stream().map(ChatMessage::getContent).toList());
+    }
+
+    @Test
+    @DisplayName("尾部窗口记忆：只查询最后 N 条，只追加新消息")
+    void testTailWindowChatMemory() {
+        TailWindowChatMemory memory = new TailWindowChatMemory(repository, 20);
+        List<ChatMessage> lastRows = storedRows(conversation(80, 20), 80).stream()
+                .peek(row -> row.setContent("message-" + row.getMessageOrder()))
+                .toList();
+        when(messageMapper.findLastMessages(CONVERSATION_ID, 20)).thenReturn(lastRows);
+        when(messageMapper.getMaxMessageOrder(CONVERSATION_ID)).thenReturn(99);
+        when(messageMapper.lockMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(99);
+
+        List<Message> window = memory.get(CONVERSATION_ID);
+        assertEquals(20, window.size());
+        assertEquals("message-99", window.get(19).getText());
+
+        memory.add(CONVERSATION_ID, conversation(100, 2));
+
+        List<ChatMessage> inserted = capturedInserts(2);
+        assertEquals(100, inserted.get(0).getMessageOrder());
+        assertEquals(101, inserted.get(1).getMessageOrder());
+        verify(messageMapper, never()).findByConversationIdOrderByOrder(any());
+        verify(messageMapper, never()).findDigestsByConversationId(any());
+        verify(messageMapper, never()).update(isNull(), any());
+    }
+
+    @Test
+    @DisplayName("写后模式：不同对话的追加并发执行，一个对话的写库不阻塞另一个对话")
+    void testWriteBehindConcurrentAppends() throws Exception {
+        MysqlChatMemoryProperties properties = new MysqlChatMemoryProperties();
+        properties.getWriteBehind().setEnabled(true);
+        repository = new MysqlBasedChatMemoryRepository(conversationMapper, messageMapper, properties,
+                mock(PlatformTransactionManager.class), new LocalChatMemoryCacheInvalidationBus(),
+                new ShardRouter(new ShardingProperties()), new ReadWriteRouter(new ReplicaProperties()));
+        CountDownLatch firstInserting = new CountDownLatch(1);
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+        when(messageMapper.insertBatch(any())).thenAnswer(invocation -> {
+            List<ChatMessage> rows = invocation.getArgument(0);
+            if ("conversation-a".equals(rows.get(0).getConversationId())) {
+                firstInserting.countDown();
+                releaseFirst.await(5, TimeUnit.SECONDS);
+            }
+            return rows.size();
+        });
+
+        // 对话 B 在缓冲区中有未落库的快照，追加前先落库它
+        repository.saveAll("conversation-b", conversation(0, 2));
+        Thread first = new Thread(() -> repository.appendMessages("conversation-a", conversation(0, 2)));
+        first.start();
+        try {
+            assertTrue(firstInserting.await(5, TimeUnit.SECONDS));
+            // 对话 A 的追加停在写库中，对话 B 的落库和追加不应等待它
+            assertTimeoutPreemptively(Duration.ofSeconds(2),
+                    () -> repository.appendMessages("conversation-b", conversation(2, 2)));
+            assertTrue(first.isAlive());
+        } finally {
+            releaseFirst.countDown();
+            first.join();
+            repository.shutdown();
+        }
+
+        // 对话 B 的快照和追加各一次，对话 A 的追加一次
+        verify(messageMapper, times(3)).insertBatch(any());
+        System.out.println(repository.getWriteBehindStats());
+    }
+
+    @Test
+    @DisplayName("按版本号追加：版本一致时追加并返回新版本号")
+    void testVersionedAppend() {
+        when(conversationMapper.lockVersion(CONVERSATION_ID)).thenReturn(3L);
+        when(messageMapper.getMaxMessageOrder(CONVERSATION_ID)).thenReturn(5);
+        when(messageMapper.lockMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(5);
+
+        long version = repository.appendMessages(CONVERSATION_ID, 3, conversation(6, 2));
+
+        assertEquals(4, version);
+        List<ChatMessage> inserted = capturedInserts(2);
+        assertEquals(6, inserted.get(0).getMessageOrder());
+        verify(conversationMapper).upsertConversationActivity(eq(CONVERSATION_ID), any(), eq("message-7"),
+                eq(2), eq(false), eq(false), any());
+        verify(messageMapper, never()).findLastMessages(any(), anyInt());
+    }
+
+    @Test
+    @DisplayName("按版本号追加：新对话先插入会话行再锁定")
+    void testVersionedAppendNewConversation() {
+        when(conversationMapper.lockVersion(CONVERSATION_ID)).thenReturn(null, 0L);
+        when(messageMapper.getMaxMessageOrder(CONVERSATION_ID)).thenReturn(-1);
+        when(messageMapper.lockMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(null);
+
+        assertEquals(1, repository.appendMessages(CONVERSATION_ID, 0, conversation(0, 2)));
+        verify(conversationMapper).upsertConversation(eq(CONVERSATION_ID), any());
+        assertEquals(0, capturedInserts(2).get(0).getMessageOrder());
+    }
+
+    @Test
+    @DisplayName("按版本号追加：冲突时去掉其他节点按同一请求ID写入的部分，接在最新消息之后重试")
+    void testVersionedAppendConflictMerge() {
+        // 另一个节点已按版本 3 写入了同一请求的 message-6，本次带着同一条用户消息和新的回复重试
+        List<ChatMessage> tail = storedRows(conversation(5, 2), 5);
+        tail.get(1).setRequestId("request-6");
+        when(conversationMapper.lockVersion(CONVERSATION_ID)).thenReturn(4L);
+        when(messageMapper.findLastMessages(CONVERSATION_ID, 2)).thenReturn(tail);
+        when(messageMapper.getMaxMessageOrder(CONVERSATION_ID)).thenReturn(6);
+        when(messageMapper.lockMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(6);
+
+        List<Message> messages = conversation(6, 1);
+        messages.add(new AssistantMessage("本节点生成的回复"));
+        long version = repository.appendMessages(CONVERSATION_ID, 3, messages, "request-6");
+
+        assertEquals(5, version);
+        List<ChatMessage> inserted = capturedInserts(1);
+        assertEquals(7, inserted.get(0).getMessageOrder());
+        assertEquals("本节点生成的回复", inserted.get(0).getContent());
+        assertEquals("request-6", inserted.get(0).getRequestId());
+        verify(conversationMapper, times(2)).lockVersion(CONVERSATION_ID);
+    }
+
+    @Test
+    @DisplayName("按版本号追加：没有请求ID时冲突后不去重，内容相同的短消息照常追加")
+    void testVersionedAppendKeepsRepeatedMessages() {
+        // 对话末尾已有一条“好的”，本次又发了一条“好的”，只是版本号过期
+        when(conversationMapper.lockVersion(CONVERSATION_ID)).thenReturn(4L);
+        when(messageMapper.getMaxMessageOrder(CONVERSATION_ID)).thenReturn(6);
+        when(messageMapper.lockMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(6);
+
+        assertEquals(5, repository.appendMessages(CONVERSATION_ID, 3, List.of(new UserMessage("好的"))));
+
+        List<ChatMessage> inserted = capturedInserts(1);
+        assertEquals("好的", inserted.get(0).getContent());
+        assertEquals(7, inserted.get(0).getMessageOrder());
+        assertNull(inserted.get(0).getRequestId());
+        verify(messageMapper, never()).findLastMessages(any(), anyInt());
+    }
+
+    @Test
+    @DisplayName("按版本号追加：删除后带着查询到的版本号追加，恢复对话且不先写入会话行")
+    void testVersionedAppendAfterDelete() {
+        // 删除使版本号从 4 变为 5，查询和锁定都返回删除时的版本号
+        when(conversationMapper.findVersion(CONVERSATION_ID)).thenReturn(5L);
+        when(conversationMapper.lockVersion(CONVERSATION_ID)).thenReturn(5L);
+        when(messageMapper.getMaxMessageOrder(CONVERSATION_ID)).thenReturn(-1);
+        when(messageMapper.lockMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(3);
+        repository.deleteByConversationId(CONVERSATION_ID);
+
+        long version = repository.getVersion(CONVERSATION_ID);
+        assertEquals(5, version);
+        assertEquals(6, repository.appendMessages(CONVERSATION_ID, version, conversation(0, 2)));
+
+        verify(conversationMapper, times(1)).lockVersion(CONVERSATION_ID);
+        verify(conversationMapper, never()).upsertConversation(any(), any());
+        verify(conversationMapper).upsertConversationActivity(eq(CONVERSATION_ID), any(), eq("message-1"),
+                eq(2), eq(false), eq(false), any());
+        // 已删除的顺序号不复用
+        assertEquals(4, capturedInserts(2).get(0).getMessageOrder());
+    }
+
+    @Test
+    @DisplayName("按版本号追加：会话行不存在而版本号不为 0 时直接冲突，不写入会话行")
+    void testVersionedAppendMissingConversation() {
+        when(conversationMapper.lockVersion(CONVERSATION_ID)).thenReturn(null, null, 0L);
+        when(messageMapper.getMaxMessageOrder(CONVERSATION_ID)).thenReturn(-1);
+        when(messageMapper.lockMaxUsedMessageOrder(CONVERSATION_ID)).thenReturn(null);
+
+        // 会话已被清理，客户端仍带着清理前的版本号
+        assertEquals(1, repository.appendMessages(CONVERSATION_ID, 5, conversation(0, 2)));
+        verify(conversationMapper, times(1)).upsertConversation(eq(CONVERSATION_ID), any());
+        assertEquals(0, capturedInserts(2).get(0).getMessageOrder());
+    }
+
+    @Test
+    @DisplayName("按版本号追加：消息已全部写入时不再写入，持续冲突时抛出异常")
+    void testVersionedAppendGivesUp() {
+        List<ChatMessage> tail = storedRows(conversation(4, 2), 4);
+        tail.forEach(row -> row.setRequestId("request-4"));
+        when(conversationMapper.lockVersion(CONVERSATION_ID)).thenReturn(8L);
+        when(messageMapper.findLastMessages(CONVERSATION_ID, 2)).thenReturn(tail);
+        assertEquals(8, repository.appendMessages(CONVERSATION_ID, 7, conversation(4, 2), "request-4"));
+        verify(messageMapper, never()).insertBatch(any());
+
+        // 每次重试前都有新的写入
+        when(conversationMapper.lockVersion(CONVERSATION_ID)).thenReturn(10L, 11L, 12L, 13L);
+        when(messageMapper.findLastMessages(CONVERSATION_ID, 2)).thenReturn(List.of());
+        assertThrows(OptimisticLockingFailureException.class,
+                () -> repository.appendMessages(CONVERSATION_ID, 9, conversation(6, 2), "request-6"));
+        verify(messageMapper, never()).insertBatch(any());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ChatMessage> capturedInserts(int expected) {
+        ArgumentCaptor<List<ChatMessage>> captor = ArgumentCaptor.forClass(List.class);
+        verify(messageMapper, times(1)).insertBatch(captor.capture());
+        List<ChatMessage> inserted = captor.getValue();
+        assertEquals(expected, inserted.size());
+        verify(messageMapper, never()).insert(any(ChatMessage.class));
+        return inserted;
+    }
+
+    private static List<ChatMessage> storedRows(List<Message> messages, int baseOrder) {
+        List<ChatMessage> rows = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            ChatMessage row = MessageConverter.toEntity(messages.get(i), CONVERSATION_ID, baseOrder + i);
+            row.setId((long) (baseOrder + i + 1));
+            // 摘要查询不返回已有哈希的内容
+            row.setContent(null);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static String idOnShard(ShardRouter shardRouter, int shard) {
+        for (int i = 0; ; i++) {
+            String candidate = "conversation-" + i;
+            if (shardRouter.shardOf(candidate) == shard) {
+                return candidate;
+            }
+        }
+    }
+
+    private static List<Message> conversation(int start, int size) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = start; i < start + size; i++) {
+            String text = "message-" + i;
+            messages.add(i % 2 == 0 ? new UserMessage(text) : new AssistantMessage(text));
+        }
+        return messages;
+    }
+}
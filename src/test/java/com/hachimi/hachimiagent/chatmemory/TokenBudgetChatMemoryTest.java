@@ -0,0 +1,141 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * TokenBudgetChatMemory 测试类
+ * 验证按 token 预算保留最近消息、超出部分提交摘要任务以及节省 token 的统计
+ */
+@DisplayName("按 token 预算裁剪的聊天记忆测试")
+class TokenBudgetChatMemoryTest {
+
+    private static final String CONVERSATION_ID = "conversation-budget";
+    private static final int MAX_CANDIDATES = 50;
+    private static final int BASELINE_MESSAGES = 20;
+
+    private final TokenCountEstimator estimator = new JTokkitTokenCountEstimator();
+
+    private MysqlBasedChatMemoryRepository repository;
+    private ConversationSummarizer summarizer;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        repository = mock(MysqlBasedChatMemoryRepository.class);
+        summarizer = mock(ConversationSummarizer.class);
+        meterRegistry = new SimpleMeterRegistry();
+        when(summarizer.requestSummary(any(), any(), anyInt())).thenReturn(true);
+    }
+
+    @Test
+    @DisplayName("超出预算：保留最近的完整轮次，较早消息提交摘要")
+    void testKeepsNewestWithinBudget() {
+        List<ChatMessage> rows = rows(0, 10);
+        when(repository.findSummary(CONVERSATION_ID)).thenReturn(ConversationSummary.EMPTY);
+        when(repository.findLastMessageRows(CONVERSATION_ID, MAX_CANDIDATES)).thenReturn(rows);
+
+        // 预算刚好容纳最后 4 条
+        int budget = tokens(rows.subList(6, 10)) + 1;
+        TokenBudgetChatMemory memory = memory(budget);
+
+        List<Message> messages = memory.get(CONVERSATION_ID);
+        assertEquals(4, messages.size());
+        assertEquals(rows.get(6).getContent(), messages.get(0).getText());
+        verify(summarizer).requestSummary(CONVERSATION_ID, ConversationSummary.EMPTY, 6);
+
+        double saved = meterRegistry.get("chat.memory.prompt.tokens.saved").summary().totalAmount();
+        assertEquals(tokens(rows.subList(0, 6)), saved);
+        System.out.printf("发送 %.0f tokens，节省 %.0f tokens%n",
+                meterRegistry.get("chat.memory.prompt.tokens").tag("type", "sent").summary().totalAmount(), saved);
+    }
+
+    @Test
+    @DisplayName("已有摘要：摘要放在最前面，已覆盖的消息不再发送")
+    void testSummaryPrepended() {
+        List<ChatMessage> rows = rows(0, 10);
+        ConversationSummary summary = new ConversationSummary("用户在写一篇关于成长的散文。", 4);
+        when(repository.findSummary(CONVERSATION_ID)).thenReturn(summary);
+        when(repository.findLastMessageRows(CONVERSATION_ID, MAX_CANDIDATES)).thenReturn(rows);
+
+        TokenBudgetChatMemory memory = memory(100_000);
+
+        List<Message> messages = memory.get(CONVERSATION_ID);
+        assertEquals(7, messages.size());
+        assertInstanceOf(SystemMessage.class, messages.get(0));
+        assertTrue(messages.get(0).getText().contains("成长的散文"));
+        assertEquals(rows.get(4).getContent(), messages.get(1).getText());
+        verify(summarizer, never()).requestSummary(any(), any(), anyInt());
+    }
+
+    @Test
+    @DisplayName("单条消息超出预算时仍保留最新一条")
+    void testAlwaysKeepsNewest() {
+        List<ChatMessage> rows = rows(0, 3);
+        when(repository.findSummary(CONVERSATION_ID)).thenReturn(ConversationSummary.EMPTY);
+        when(repository.findLastMessageRows(CONVERSATION_ID, MAX_CANDIDATES)).thenReturn(rows);
+
+        List<Message> messages = memory(1).get(CONVERSATION_ID);
+        assertEquals(1, messages.size());
+        assertEquals(rows.get(2).getContent(), messages.get(0).getText());
+        verify(summarizer).requestSummary(eq(CONVERSATION_ID), any(), eq(2));
+    }
+
+    @Test
+    @DisplayName("节省统计以最近 baselineMessages 条为基准，而不是全部候选")
+    void testBaselineUsesReplacedWindow() {
+        List<ChatMessage> rows = rows(0, 30);
+        when(repository.findSummary(CONVERSATION_ID)).thenReturn(ConversationSummary.EMPTY);
+        when(repository.findLastMessageRows(CONVERSATION_ID, MAX_CANDIDATES)).thenReturn(rows);
+
+        // 预算容纳最后 4 条，基准是最后 20 条
+        int budget = tokens(rows.subList(26, 30)) + 1;
+        memory(budget).get(CONVERSATION_ID);
+
+        double baseline = meterRegistry.get("chat.memory.prompt.tokens").tag("type", "baseline").summary().totalAmount();
+        double sent = meterRegistry.get("chat.memory.prompt.tokens").tag("type", "sent").summary().totalAmount();
+        double saved = meterRegistry.get("chat.memory.prompt.tokens.saved").summary().totalAmount();
+        assertEquals(tokens(rows.subList(10, 30)), baseline);
+        assertEquals(tokens(rows.subList(26, 30)), sent);
+        assertEquals(tokens(rows.subList(10, 26)), saved);
+        System.out.printf("基准 %.0f tokens，发送 %.0f tokens，节省 %.0f tokens%n", baseline, sent, saved);
+    }
+
+    private TokenBudgetChatMemory memory(int maxTokens) {
+        return new TokenBudgetChatMemory(repository, summarizer, estimator, meterRegistry, maxTokens, MAX_CANDIDATES,
+                BASELINE_MESSAGES);
+    }
+
+    private int tokens(List<ChatMessage> rows) {
+        return rows.stream().mapToInt(row -> estimator.estimate(row.getContent())).sum();
+    }
+
+    private static List<ChatMessage> rows(int start, int size) {
+        List<ChatMessage> rows = new ArrayList<>();
+        for (int i = start; i < start + size; i++) {
+            ChatMessage row = new ChatMessage();
+            row.setConversationId(CONVERSATION_ID);
+            row.setMessageOrder(i);
+            row.setMessageType(i % 2 == 0 ? "USER" : "ASSISTANT");
+            row.setContent("第" + i + "条：可以从一个具体的生活场景切入，用细节带出情绪，再慢慢展开人物的变化。");
+            rows.add(row);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,91 @@
+package com.hachimi.hachimiagent.chatmemory;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * WriteBehindChatMemoryBuffer 测试类
+ * 验证合并写入、读己之写、背压以及关闭时刷盘
+ */
+@DisplayName("聊天记忆写后缓冲区测试")
+class WriteBehindChatMemoryBufferTest {
+
+    // 后台线程基本不触发，由测试手动刷盘
+    private static final long MANUAL_FLUSH_INTERVAL = 60_000;
+
+    @Test
+    @DisplayName("同一对话多次保存只落库最新快照")
+    void testCoalescing() throws Exception {
+        List<Map<String, List<Message>>> batches = new CopyOnWriteArrayList<>();
+        WriteBehindChatMemoryBuffer buffer = new WriteBehindChatMemoryBuffer(batches::add, 10, 50, MANUAL_FLUSH_INTERVAL, 100);
+
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(buffer.offer("conversation-a", messages(i)));
+        }
+        assertTrue(buffer.offer("conversation-b", messages(2)));
+
+        // 刷盘前可以读到最新快照
+        assertEquals(5, buffer.get("conversation-a").size());
+
+        assertEquals(2, buffer.flush());
+        assertEquals(1, batches.size());
+        assertEquals(5, batches.get(0).get("conversation-a").size());
+        assertNull(buffer.get("conversation-a"));
+        System.out.println(buffer.getStats());
+        buffer.shutdown();
+    }
+
+    @Test
+    @DisplayName("缓冲区满时写入方等待超时")
+    void testBackpressure() throws Exception {
+        WriteBehindChatMemoryBuffer buffer = new WriteBehindChatMemoryBuffer(batch -> { }, 2, 50, MANUAL_FLUSH_INTERVAL, 50);
+
+        assertTrue(buffer.offer("conversation-a", messages(1)));
+        assertTrue(buffer.offer("conversation-b", messages(1)));
+        // 已在缓冲区中的对话仍可合并
+        assertTrue(buffer.offer("conversation-a", messages(2)));
+        assertFalse(buffer.offer("conversation-c", messages(1)));
+
+        buffer.flush();
+        assertTrue(buffer.offer("conversation-c", messages(1)));
+        buffer.shutdown();
+    }
+
+    @Test
+    @DisplayName("刷盘失败后快照放回缓冲区")
+    void testFailedFlushRequeues() throws Exception {
+        List<String> written = new ArrayList<>();
+        boolean[] fail = {true};
+        WriteBehindChatMemoryBuffer buffer = new WriteBehindChatMemoryBuffer(batch -> {
+            if (fail[0]) {
+                throw new IllegalStateException("数据库不可用");
+            }
+            written.addAll(batch.keySet());
+        }, 10, 50, MANUAL_FLUSH_INTERVAL, 100);
+
+        buffer.offer("conversation-a", messages(3));
+        assertThrows(IllegalStateException.class, buffer::flush);
+        assertEquals(3, buffer.get("conversation-a").size());
+
+        fail[0] = false;
+        buffer.shutdown();
+        assertEquals(List.of("conversation-a"), written);
+    }
+
+    private static List<Message> messages(int size) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            messages.add(new UserMessage("message-" + i));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,35 @@
+package com.hachimi.hachimiagent.common;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CursorCodec 测试类
+ */
+@DisplayName("分页游标编解码测试")
+class CursorCodecTest {
+
+    @Test
+    @DisplayName("编码后可以按字段还原")
+    void testRoundTrip() {
+        LocalDateTime time = LocalDateTime.of(2025, 1, 17, 10, 30, 5);
+        String cursor = CursorCodec.encode(time, 42L);
+        System.out.println("游标: " + cursor);
+
+        assertFalse(cursor.contains("/") || cursor.contains("+") || cursor.contains("="));
+        String[] parts = CursorCodec.decode(cursor, 2);
+        assertEquals(time, LocalDateTime.parse(parts[0]));
+        assertEquals(42L, Long.parseLong(parts[1]));
+    }
+
+    @Test
+    @DisplayName("格式不正确或字段数不符时抛出 IllegalArgumentException")
+    void testInvalidCursor() {
+        assertThrows(IllegalArgumentException.class, () -> CursorCodec.decode("不是游标", 1));
+        assertThrows(IllegalArgumentException.class, () -> CursorCodec.decode(CursorCodec.encode(1, 2), 1));
+    }
+}
@@ -0,0 +1,212 @@
+package com.hachimi.hachimiagent.common;
+
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * MessageContentCodec 测试类
+ * 验证压缩往返、阈值、不可压缩内容与历史行兼容，并对比 LZ4 与 Deflate 的压缩率和 CPU 开销
+ */
+@DisplayName("消息内容压缩编解码测试")
+class MessageContentCodecTest {
+
+    @Test
+    @DisplayName("测试 LZ4 与 Deflate 往返编解码")
+    void testRoundTrip() {
+        String content = markdownReply(3);
+        for (int codec : new int[]{MessageContentCodec.CODEC_LZ4, MessageContentCodec.CODEC_DEFLATE}) {
+            ChatMessage entity = entity(content);
+
+            assertTrue(MessageContentCodec.encode(entity, codec, 256));
+            assertEquals(codec, entity.getContentCodec());
+            assertEquals("", entity.getContent());
+            assertTrue(entity.getContentBlob().length < content.getBytes(StandardCharsets.UTF_8).length);
+
+            assertEquals(content, MessageContentCodec.decode(entity));
+        }
+    }
+
+    @Test
+    @DisplayName("测试低于阈值或未开启压缩时保持明文")
+    void testBelowThreshold() {
+        ChatMessage shortMessage = entity("你好，我是写作导师");
+        assertFalse(MessageContentCodec.encode(shortMessage, MessageContentCodec.CODEC_LZ4, 1024));
+        assertNull(shortMessage.getContentBlob());
+        assertEquals("你好，我是写作导师", shortMessage.getContent());
+
+        ChatMessage disabled = entity(markdownReply(3));
+        assertFalse(MessageContentCodec.encode(disabled, MessageContentCodec.CODEC_NONE, 0));
+        assertNull(disabled.getContentCodec());
+    }
+
+    @Test
+    @DisplayName("测试压缩收益不足时保持明文")
+    void testIncompressibleContent() {
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        String content = Base64.getEncoder().encodeToString(random);
+        ChatMessage entity = entity(content);
+
+        assertFalse(MessageContentCodec.encode(entity, MessageContentCodec.CODEC_LZ4, 1024));
+        assertEquals(content, entity.getContent());
+        assertNull(entity.getContentBlob());
+    }
+
+    @Test
+    @DisplayName("测试压缩上线前的历史行仍可读取")
+    void testLegacyRowReadable() {
+        ChatMessage legacy = entity("历史消息");
+        assertEquals("历史消息", MessageContentCodec.decode(legacy));
+
+        legacy.setContentCodec(MessageContentCodec.CODEC_NONE);
+        assertEquals("历史消息", MessageContentCodec.decode(legacy));
+        assertSame(legacy, MessageContentCodec.inflate(legacy));
+        assertEquals("历史消息", legacy.getContent());
+    }
+
+    @Test
+    @DisplayName("测试原地解压")
+    void testInflate() {
+        String content = toolResult(20);
+        ChatMessage entity = entity(content);
+        MessageContentCodec.encode(entity, MessageContentCodec.CODEC_LZ4, 256);
+
+        MessageContentCodec.inflate(entity);
+
+        assertEquals(content, entity.getContent());
+        assertEquals(MessageContentCodec.CODEC_NONE, entity.getContentCodec());
+        assertNull(entity.getContentBlob());
+    }
+
+    @Test
+    @DisplayName("测试损坏数据和未知算法")
+    void testCorruptedData() {
+        byte[] compressed = MessageContentCodec.compress(
+                markdownReply(3).getBytes(StandardCharsets.UTF_8), MessageContentCodec.CODEC_DEFLATE);
+        compressed[3]++;
+
+        assertThrows(IllegalStateException.class,
+                () -> MessageContentCodec.decompress(compressed, MessageContentCodec.CODEC_DEFLATE));
+        assertThrows(IllegalArgumentException.class, () -> MessageContentCodec.codecOf("zstd"));
+        assertEquals(MessageContentCodec.CODEC_LZ4, MessageContentCodec.codecOf("LZ4"));
+    }
+
+    @Test
+    @DisplayName("LZ4 与 Deflate 压缩率和吞吐量对比")
+    void testBenchmark() {
+        Map<String, String> corpus = new LinkedHashMap<>();
+        corpus.put("Markdown 回复", markdownReply(8));
+        corpus.put("JSON 工具结果", toolResult(60));
+        corpus.put("代码片段", codeSnippet(30));
+        corpus.put("中文长文本", chineseProse(40));
+        int iterations = 2000;
+
+        System.out.println("=== 消息内容压缩对比 ===");
+        for (Map.Entry<String, String> sample : corpus.entrySet()) {
+            byte[] raw = sample.getValue().getBytes(StandardCharsets.UTF_8);
+            for (int codec : new int[]{MessageContentCodec.CODEC_LZ4, MessageContentCodec.CODEC_DEFLATE}) {
+                byte[] compressed = MessageContentCodec.compress(raw, codec);
+
+                // 预热
+                for (int i = 0; i < 200; i++) {
+                    MessageContentCodec.decompress(MessageContentCodec.compress(raw, codec), codec);
+                }
+
+                long compressNanos = time(iterations, () -> MessageContentCodec.compress(raw, codec));
+                long decompressNanos = time(iterations, () -> MessageContentCodec.decompress(compressed, codec));
+
+                System.out.printf("%s [%s]: %d -> %d bytes (%.1f%%), 压缩 %.0f MB/s, 解压 %.0f MB/s%n",
+                        sample.getKey(), codec == MessageContentCodec.CODEC_LZ4 ? "lz4" : "deflate",
+                        raw.length, compressed.length, compressed.length * 100.0 / raw.length,
+                        megabytesPerSecond(raw.length, iterations, compressNanos),
+                        megabytesPerSecond(raw.length, iterations, decompressNanos));
+
+                assertTrue(compressed.length < raw.length, sample.getKey() + " 应能被压缩");
+            }
+        }
+    }
+
+    private static ChatMessage entity(String content) {
+        ChatMessage entity = new ChatMessage();
+        entity.setConversationId("conv-1");
+        entity.setMessageType("ASSISTANT");
+        entity.setContent(content);
+        return entity;
+    }
+
+    private static String markdownReply(int sections) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= sections; i++) {
+            sb.append("## 第").append(i).append("步：确定文章的情感基调\n\n")
+                    .append("在动笔之前，先想清楚你希望读者读完之后有什么感受。")
+                    .append("成长类散文常见的基调有**怀念**、**释然**和**感恩**，选定一种作为主线。\n\n")
+                    .append("- 从一个具体的生活场景切入，比如一次搬家、一封旧信\n")
+                    .append("- 用细节带出情绪，而不是直接说出\"我很难过\"\n")
+                    .append("- 结尾回扣开头的意象，形成呼应\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static String toolResult(int items) {
+        StringBuilder sb = new StringBuilder("{\"query\":\"写作技巧\",\"results\":[");
+        for (int i = 0; i < items; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"title\":\"散文写作的十个技巧（").append(i).append("）\",")
+                    .append("\"url\":\"https://example.com/articles/writing-tips-").append(i).append("\",")
+                    .append("\"snippet\":\"好的散文形散而神不散，选材要真实，细节要具体。\",")
+                    .append("\"score\":0.").append(90 - i % 50).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static String codeSnippet(int methods) {
+        StringBuilder sb = new StringBuilder("```java\npublic class ArticleOutline {\n");
+        for (int i = 0; i < methods; i++) {
+            sb.append("    public String section").append(i).append("(String topic) {\n")
+                    .append("        if (topic == null || topic.isBlank()) {\n")
+                    .append("            throw new IllegalArgumentException(\"topic is required\");\n")
+                    .append("        }\n")
+                    .append("        return \"第").append(i).append("部分：\" + topic.trim();\n")
+                    .append("    }\n\n");
+        }
+        return sb.append("}\n```\n").toString();
+    }
+
+    private static String chineseProse(int paragraphs) {
+        String[] sentences = {
+                "那年夏天，我们从老城区搬进了新小区，旧家具一件件被抬上货车。",
+                "母亲把一摞泛黄的信小心地放进纸箱，说这是外婆当年写给她的。",
+                "我在楼道里站了很久，听见风从窗缝里吹进来，像有人在轻声说话。",
+                "后来才明白，所谓成长，就是慢慢学会和告别相处。",
+                "新家的阳台很大，傍晚的光线落在地板上，把影子拉得很长。"
+        };
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < paragraphs; i++) {
+            sb.append(sentences[i % sentences.length]).append(sentences[(i * 3 + 1) % sentences.length]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static long time(int iterations, Runnable task) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    private static double megabytesPerSecond(int bytes, int iterations, long nanos) {
+        return (double) bytes * iterations / (1024 * 1024) / (nanos / 1_000_000_000.0);
+    }
+}
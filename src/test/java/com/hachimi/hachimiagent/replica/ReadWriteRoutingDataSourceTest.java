@@ -0,0 +1,148 @@
+package com.hachimi.hachimiagent.replica;
+
+import com.alibaba.druid.pool.DruidDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ReadWriteRouter 与 ReadWriteRoutingDataSource 测试类
+ * 用 H2 内存库代替 MySQL 主库和从库，每个库的 node 表记录自己的角色，验证各种读写场景落在哪个库
+ */
+@DisplayName("聊天库读写分离测试")
+class ReadWriteRoutingDataSourceTest {
+
+    private DruidDataSource primary;
+    private DruidDataSource replica;
+    private ReadWriteRoutingDataSource routingDataSource;
+    private ReadWriteRouter router;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+
+    @BeforeEach
+    void setUp() {
+        primary = h2("primary");
+        replica = h2("replica");
+        routingDataSource = new ReadWriteRoutingDataSource(0, primary, List.of(replica));
+
+        ReplicaProperties properties = new ReplicaProperties();
+        properties.setEnabled(true);
+        properties.setReadYourWritesSeconds(60);
+        router = new ReadWriteRouter(properties);
+        router.register(routingDataSource);
+
+        LazyRoutingDataSourceProxy dataSource = new LazyRoutingDataSourceProxy(routingDataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    }
+
+    @AfterEach
+    void tearDown() {
+        routingDataSource.close();
+    }
+
+    @Test
+    @DisplayName("测试未标注的查询和写入使用主库，从库可用后标注的查询使用从库")
+    void testRouteByPreference() {
+        assertEquals("primary", node());
+        // 首次延迟检查之前从库不可用，退回主库
+        assertEquals("primary", router.readOnReplica(null, this::node));
+        assertEquals(1, routingDataSource.fallbackRoutes());
+
+        routingDataSource.updateReplica(0, 0, true);
+        assertEquals("replica", router.readOnReplica(null, this::node));
+        assertEquals("primary", node());
+        // 标注的方法内强制主库的步骤（如冷存储回迁）
+        assertEquals("primary", router.readOnReplica(null, () -> router.onPrimary(this::node)));
+        assertNull(ReadWriteRouter.currentPreference());
+        System.out.printf("主库 %d 次，从库 %d 次，退回主库 %d 次%n",
+                routingDataSource.primaryRoutes(), routingDataSource.replicaRoutes(), routingDataSource.fallbackRoutes());
+    }
+
+    @Test
+    @DisplayName("测试只读事务使用从库，读写事务即使在标注的方法内也使用主库")
+    void testTransactions() {
+        routingDataSource.updateReplica(0, 0, true);
+
+        TransactionTemplate readOnly = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        readOnly.setReadOnly(true);
+        assertEquals("replica", readOnly.execute(status -> node()));
+
+        String writeNode = router.readOnReplica(null, () -> transactionTemplate.execute(status -> {
+            jdbcTemplate.update("INSERT INTO chat_message (content) VALUES ('hello')");
+            return node();
+        }));
+        assertEquals("primary", writeNode);
+        assertEquals(1, new JdbcTemplate(primary).queryForObject("SELECT COUNT(*) FROM chat_message", Integer.class));
+        assertEquals(0, new JdbcTemplate(replica).queryForObject("SELECT COUNT(*) FROM chat_message", Integer.class));
+    }
+
+    @Test
+    @DisplayName("测试对话写入后一段时间内读主库")
+    void testReadYourWrites() {
+        routingDataSource.updateReplica(0, 0, true);
+
+        assertEquals("replica", router.readOnReplica("conversation-1", this::node));
+        router.markWritten("conversation-1");
+        assertEquals("primary", router.readOnReplica("conversation-1", this::node));
+        assertEquals("replica", router.readOnReplica("conversation-2", this::node));
+
+        ReadWriteRouter disabled = new ReadWriteRouter(new ReplicaProperties());
+        assertFalse(disabled.preferReplica(null));
+    }
+
+    @Test
+    @DisplayName("测试复制延迟检查失败或延迟过大时从库暂停使用")
+    void testLagCheck() {
+        routingDataSource.updateReplica(0, 0, true);
+        // H2 不支持 SHOW REPLICA STATUS，视为复制状态未知
+        router.checkReplicaLag();
+        assertFalse(routingDataSource.replicaAvailable(0));
+        assertEquals(-1, routingDataSource.replicaLagSeconds(0));
+        assertEquals("primary", router.readOnReplica(null, this::node));
+
+        routingDataSource.updateReplica(0, 3, true);
+        assertEquals("replica", router.readOnReplica(null, this::node));
+        routingDataSource.updateReplica(0, 30, false);
+        assertEquals("primary", router.readOnReplica(null, this::node));
+    }
+
+    @Test
+    @DisplayName("测试按角色注册连接池和路由指标")
+    void testMetrics() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        router.bindTo(registry);
+        routingDataSource.updateReplica(0, 2, true);
+        router.readOnReplica(null, this::node);
+
+        assertNotNull(registry.find("chat.datasource.connections.active").tag("role", "primary").gauge());
+        assertNotNull(registry.find("chat.datasource.connections.active").tag("role", "replica").gauge());
+        assertEquals(2.0, registry.get("chat.datasource.replica.lag").gauge().value());
+        assertEquals(1.0, registry.get("chat.datasource.routes").tag("target", "replica").functionCounter().count());
+        System.out.println(registry.getMetersAsString());
+    }
+
+    private String node() {
+        return jdbcTemplate.queryForObject("SELECT name FROM node", String.class);
+    }
+
+    private static DruidDataSource h2(String name) {
+        DruidDataSource dataSource = new DruidDataSource();
+        dataSource.setUrl("jdbc:h2:mem:chat_" + name + "_" + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+        dataSource.setName("chat-" + name);
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.execute("CREATE TABLE node (name VARCHAR(32))");
+        jdbc.update("INSERT INTO node (name) VALUES (?)", name);
+        jdbc.execute("CREATE TABLE chat_message (id BIGINT AUTO_INCREMENT PRIMARY KEY, content VARCHAR(255))");
+        return dataSource;
+    }
+}
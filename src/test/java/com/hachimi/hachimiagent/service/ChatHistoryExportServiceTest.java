@@ -0,0 +1,108 @@
+package com.hachimi.hachimiagent.service;
+
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import com.hachimi.hachimiagent.sharding.ShardingProperties;
+import org.apache.ibatis.cursor.Cursor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * ChatHistoryExportService 测试类
+ * 验证 NDJSON 输出格式、gzip 压缩以及游标在导出后关闭
+ */
+@DisplayName("聊天历史流式导出测试")
+class ChatHistoryExportServiceTest {
+
+    private static final String CONVERSATION_ID = "conversation-export";
+
+    private ChatMessageMapper messageMapper;
+    private ChatHistoryExportService exportService;
+
+    @BeforeEach
+    void setUp() {
+        messageMapper = mock(ChatMessageMapper.class);
+        exportService = new ChatHistoryExportService(messageMapper, mock(PlatformTransactionManager.class),
+                new ShardRouter(new ShardingProperties()));
+    }
+
+    @Test
+    @DisplayName("每行一条消息的 JSON，内容中的换行和引号被转义")
+    void testExportNdjson() throws Exception {
+        Cursor<ChatMessage> cursor = cursor(messages(3));
+        when(messageMapper.streamMessages(CONVERSATION_ID, null, null)).thenReturn(cursor);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = exportService.exportMessages(CONVERSATION_ID, null, null, false, out);
+
+        String text = out.toString(StandardCharsets.UTF_8);
+        System.out.print(text);
+        String[] lines = text.split("\n");
+        assertEquals(3, rows);
+        assertEquals(3, lines.length);
+        assertTrue(text.endsWith("\n"));
+        assertTrue(lines[1].contains("\"messageOrder\":1"));
+        assertTrue(lines[1].contains("第1条\\n\\\"引用\\\""));
+        verify(cursor).close();
+    }
+
+    @Test
+    @DisplayName("gzip 输出可以解压还原")
+    void testExportGzip() throws Exception {
+        when(messageMapper.streamMessages(any(), any(), any())).thenReturn(cursor(messages(2000)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exportService.exportMessages(null, LocalDateTime.of(2025, 1, 1, 0, 0), null, true, out);
+
+        byte[] unzipped = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())).readAllBytes();
+        String text = new String(unzipped, StandardCharsets.UTF_8);
+        System.out.printf("压缩前 %d 字节，压缩后 %d 字节%n", unzipped.length, out.size());
+        assertEquals(2000, text.split("\n").length);
+    }
+
+    @Test
+    @DisplayName("时间范围无效时不查询数据库")
+    void testInvalidRange() {
+        LocalDateTime time = LocalDateTime.of(2025, 1, 1, 0, 0);
+        assertThrows(IllegalArgumentException.class,
+                () -> exportService.exportMessages(null, time, time, false, new ByteArrayOutputStream()));
+        verifyNoInteractions(messageMapper);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Cursor<ChatMessage> cursor(List<ChatMessage> messages) {
+        Cursor<ChatMessage> cursor = mock(Cursor.class);
+        when(cursor.iterator()).thenReturn(messages.iterator());
+        return cursor;
+    }
+
+    private static List<ChatMessage> messages(int size) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            ChatMessage message = new ChatMessage();
+            message.setId((long) i + 1);
+            message.setConversationId(CONVERSATION_ID);
+            message.setMessageOrder(i);
+            message.setMessageType(i % 2 == 0 ? "USER" : "ASSISTANT");
+            message.setContent("第" + i + "条\n\"引用\"");
+            message.setCreateTime(LocalDateTime.of(2025, 1, 17, 10, 0).plusSeconds(i));
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,245 @@
+package com.hachimi.hachimiagent.service;
+
+import com.hachimi.hachimiagent.common.CursorCodec;
+import com.hachimi.hachimiagent.dto.CursorPage;
+import com.hachimi.hachimiagent.dto.MessageDeltaPage;
+import com.hachimi.hachimiagent.entity.ChatConversation;
+import com.hachimi.hachimiagent.entity.ChatMessage;
+import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
+import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.replica.ReadWriteRouter;
+import com.hachimi.hachimiagent.replica.ReplicaProperties;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import com.hachimi.hachimiagent.sharding.ShardingProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+/**
+ * ChatHistoryService 测试类
+ * 验证会话列表和消息历史的游标分页，以及分库时跨分片归并分页
+ */
+@ExtendWith(MockitoExtension.class)
+@DisplayName("聊天历史游标分页测试")
+class ChatHistoryServiceTest {
+
+    private static final String SESSION_ID = "session-page";
+
+    @Mock
+    private ChatConversationMapper conversationMapper;
+
+    @Mock
+    private ChatMessageMapper messageMapper;
+
+    @Spy
+    private ShardRouter shardRouter = new ShardRouter(new ShardingProperties());
+
+    @Spy
+    private ReadWriteRouter readWriteRouter = new ReadWriteRouter(new ReplicaProperties());
+
+    @InjectMocks
+    private ChatHistoryService chatHistoryService;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(chatHistoryService, "defaultPageSize", 2);
+        ReflectionTestUtils.setField(chatHistoryService, "maxPageSize", 3);
+        ReflectionTestUtils.setField(chatHistoryService, "changeSettleSeconds", 2);
+    }
+
+    @Test
+    @DisplayName("会话列表：多取一条判断 hasMore，游标指向本页最后一个会话")
+    void testSessionsPage() {
+        LocalDateTime time = LocalDateTime.of(2025, 1, 17, 10, 0);
+        when(conversationMapper.findSessionsPage(isNull(), isNull(), eq(3)))
+                .thenReturn(List.of(session(3, time), session(2, time), session(1, time.minusMinutes(1))));
+
+        CursorPage<Map<String, Object>> first = chatHistoryService.getSessionsPage(null, null);
+        assertEquals(2, first.getItems().size());
+        assertTrue(first.getHasMore());
+        System.out.println("下一页游标: " + first.getNextCursor());
+
+        when(conversationMapper.findSessionsPage(time, 2L, 3)).thenReturn(List.of(session(1, time.minusMinutes(1))));
+        CursorPage<Map<String, Object>> second = chatHistoryService.getSessionsPage(first.getNextCursor(), null);
+        assertEquals(1, second.getItems().size());
+        assertEquals("session-1", second.getItems().get(0).get("sessionId"));
+        assertFalse(second.getHasMore());
+        assertNull(second.getNextCursor());
+    }
+
+    @Test
+    @DisplayName("消息历史：游标为上一页最后一条消息的顺序号，每页条数不超过上限")
+    void testMessagesPage() {
+        when(messageMapper.findMessagesPage(eq(SESSION_ID), eq(-1), anyInt())).thenReturn(messages(0, 4));
+
+        CursorPage<ChatMessage> first = chatHistoryService.getSessionMessagesPage(SESSION_ID, null, 100);
+        verify(messageMapper).findMessagesPage(SESSION_ID, -1, 4);
+        assertEquals(3, first.getItems().size());
+        assertTrue(first.getHasMore());
+        assertEquals("2", CursorCodec.decode(first.getNextCursor(), 1)[0]);
+
+        when(messageMapper.findMessagesPage(SESSION_ID, 2, 4)).thenReturn(messages(3, 1));
+        CursorPage<ChatMessage> second = chatHistoryService.getSessionMessagesPage(SESSION_ID, first.getNextCursor(), 100);
+        assertEquals(3, second.getItems().get(0).getMessageOrder());
+        assertFalse(second.getHasMore());
+    }
+
+    @Test
+    @DisplayName("增量消息：带回改写次数，先于消息读取")
+    void testMessagesDelta() {
+        when(conversationMapper.findRewriteCount(SESSION_ID)).thenReturn(2);
+        when(messageMapper.findMessagesPage(SESSION_ID, 5, 3)).thenReturn(messages(8, 2));
+
+        MessageDeltaPage delta = chatHistoryService.getSessionMessagesAfter(SESSION_ID, 5, null);
+        assertEquals(2, delta.getRewriteCount());
+        assertEquals(8, delta.getItems().get(0).getMessageOrder());
+        assertFalse(delta.getHasMore());
+        assertNull(delta.getNextCursor());
+
+        // 改写在读取消息之前发现，期间的改写留到下一次拉取
+        InOrder order = inOrder(conversationMapper, messageMapper);
+        order.verify(conversationMapper).findRewriteCount(SESSION_ID);
+        order.verify(messageMapper).findMessagesPage(SESSION_ID, 5, 3);
+    }
+
+    @Test
+    @DisplayName("变更会话：返回删除标志，游标推进到最后一个变更，没有新变更时游标不变")
+    void testChangedSessions() {
+        LocalDateTime now = LocalDateTime.of(2025, 1, 17, 12, 0);
+        LocalDateTime since = now.minusHours(1);
+        when(conversationMapper.currentTime()).thenReturn(now);
+        ChatConversation updated = session(5, now.minusMinutes(10));
+        updated.setUpdateTime(now.minusMinutes(10));
+        updated.setDeleted(0);
+        ChatConversation deleted = session(3, now.minusMinutes(20));
+        deleted.setUpdateTime(now.minusMinutes(5));
+        deleted.setDeleted(1);
+        when(conversationMapper.findChangedSince(since, 0L, now.minusSeconds(2), 3)).thenReturn(List.of(updated, deleted));
+
+        CursorPage<Map<String, Object>> changes = chatHistoryService.getChangedSessions(since, null, null);
+        assertEquals(2, changes.getItems().size());
+        assertFalse(changes.getHasMore());
+        assertEquals(false, changes.getItems().get(0).get("deleted"));
+        assertEquals(true, changes.getItems().get(1).get("deleted"));
+
+        String[] position = CursorCodec.decode(changes.getNextCursor(), 2);
+        assertEquals(now.minusMinutes(5), LocalDateTime.parse(position[0]));
+        assertEquals("3", position[1]);
+
+        when(conversationMapper.findChangedSince(now.minusMinutes(5), 3L, now.minusSeconds(2), 3)).thenReturn(List.of());
+        CursorPage<Map<String, Object>> none = chatHistoryService.getChangedSessions(null, changes.getNextCursor(), null);
+        assertTrue(none.getItems().isEmpty());
+        assertEquals(changes.getNextCursor(), none.getNextCursor());
+    }
+
+    @Test
+    @DisplayName("分库时会话列表跨分片归并，时间和主键都相同的会话不丢不重")
+    void testShardedSessionsPage() {
+        ShardingProperties properties = new ShardingProperties();
+        properties.setEnabled(true);
+        properties.setShards(List.of(Map.of(), Map.of()));
+        ShardRouter router = new ShardRouter(properties);
+        ReflectionTestUtils.setField(chatHistoryService, "shardRouter", router);
+
+        // 每个分片的主键各自自增，同一时间的会话在不同分片上会出现相同主键
+        LocalDateTime time = LocalDateTime.of(2025, 1, 17, 10, 0);
+        List<List<ChatConversation>> shards = List.of(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        for (int i = 0; i < 12; i++) {
+            String conversationId = "sharded-" + i;
+            List<ChatConversation> shard = shards.get(router.shardOf(conversationId));
+            ChatConversation conversation = session(shard.size() + 1, time.minusMinutes(i / 4));
+            conversation.setConversationId(conversationId);
+            shard.add(conversation);
+        }
+        Comparator<ChatConversation> order = Comparator.comparing(ChatConversation::getLastMessageTime).reversed()
+                .thenComparing(ChatConversation::getId, Comparator.reverseOrder());
+        // 按 findSessionsPage 的 WHERE 和 ORDER BY 模拟各分片的查询
+        when(conversationMapper.findSessionsPage(any(), any(), anyInt())).thenAnswer(invocation -> {
+            LocalDateTime lastTime = invocation.getArgument(0);
+            Long lastId = invocation.getArgument(1);
+            int limit = invocation.getArgument(2);
+            return shards.get(ShardRouter.currentShard()).stream()
+                    .filter(c -> lastTime == null || c.getLastMessageTime().isBefore(lastTime)
+                            || (c.getLastMessageTime().equals(lastTime) && c.getId() < lastId))
+                    .sorted(order)
+                    .limit(limit)
+                    .toList();
+        });
+
+        try {
+            List<String> sessionIds = new ArrayList<>();
+            String cursor = null;
+            do {
+                CursorPage<Map<String, Object>> page = chatHistoryService.getSessionsPage(cursor, 3);
+                page.getItems().forEach(item -> sessionIds.add((String) item.get("sessionId")));
+                cursor = page.getNextCursor();
+                System.out.println("本页: " + page.getItems().size() + " 条, 下一页游标: " + cursor);
+            } while (cursor != null);
+
+            assertEquals(12, sessionIds.size());
+            assertEquals(12, new HashSet<>(sessionIds).size());
+            Map<String, LocalDateTime> times = new HashMap<>();
+            shards.forEach(shard -> shard.forEach(c -> times.put(c.getConversationId(), c.getLastMessageTime())));
+            for (int i = 1; i < sessionIds.size(); i++) {
+                assertFalse(times.get(sessionIds.get(i)).isAfter(times.get(sessionIds.get(i - 1))));
+            }
+        } finally {
+            router.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("无效游标抛出 IllegalArgumentException，不查询数据库")
+    void testInvalidCursor() {
+        assertThrows(IllegalArgumentException.class,
+                () -> chatHistoryService.getSessionsPage(CursorCodec.encode("昨天", 1), null));
+        assertThrows(IllegalArgumentException.class,
+                () -> chatHistoryService.getSessionMessagesPage(SESSION_ID, CursorCodec.encode("abc"), null));
+        verifyNoInteractions(conversationMapper, messageMapper);
+    }
+
+    private static ChatConversation session(long id, LocalDateTime lastMessageTime) {
+        ChatConversation conversation = new ChatConversation();
+        conversation.setId(id);
+        conversation.setConversationId("session-" + id);
+        conversation.setTitle("会话" + id);
+        conversation.setLastMessageTime(lastMessageTime);
+        conversation.setMessageCount(2);
+        return conversation;
+    }
+
+    private static List<ChatMessage> messages(int start, int size) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = start; i < start + size; i++) {
+            ChatMessage message = new ChatMessage();
+            message.setConversationId(SESSION_ID);
+            message.setMessageOrder(i);
+            message.setMessageType(i % 2 == 0 ? "USER" : "ASSISTANT");
+            message.setContent("第" + i + "条消息");
+            messages.add(message);
+        }
+        return messages;
+    }
+}
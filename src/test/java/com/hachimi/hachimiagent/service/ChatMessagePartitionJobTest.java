@@ -0,0 +1,73 @@
+package com.hachimi.hachimiagent.service;
+
+import com.hachimi.hachimiagent.chatmemory.MysqlChatMemoryProperties;
+import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
+import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import com.hachimi.hachimiagent.sharding.ShardingProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * ChatMessagePartitionJob 测试类
+ * 验证从 pmax 中按月补齐分区，以及表未分区时不执行 DDL
+ */
+@DisplayName("chat_message 分区维护任务测试")
+class ChatMessagePartitionJobTest {
+
+    private ChatMessageMapper messageMapper;
+    private ChatConversationMapper conversationMapper;
+    private ChatMessagePartitionJob job;
+
+    @BeforeEach
+    void setUp() {
+        messageMapper = mock(ChatMessageMapper.class);
+        conversationMapper = mock(ChatConversationMapper.class);
+        MysqlChatMemoryProperties properties = new MysqlChatMemoryProperties();
+        properties.getPartition().setMonthsAhead(2);
+        when(conversationMapper.currentTime()).thenReturn(LocalDateTime.of(2026, 12, 15, 2, 0));
+        job = new ChatMessagePartitionJob(messageMapper, conversationMapper, properties,
+                new ShardRouter(new ShardingProperties()));
+    }
+
+    @Test
+    @DisplayName("补齐到当前月之后 monthsAhead 个月，已有的分区不重复创建")
+    void testAddMissingMonths() {
+        when(messageMapper.findPartitionBounds()).thenReturn(List.of(
+                "'2026-11-01 00:00:00'", "'2026-12-01 00:00:00'", "MAXVALUE"));
+
+        assertEquals(3, job.ensurePartitions());
+
+        InOrder inOrder = inOrder(messageMapper);
+        inOrder.verify(messageMapper).addPartition("p202612", "2027-01-01");
+        inOrder.verify(messageMapper).addPartition("p202701", "2027-02-01");
+        inOrder.verify(messageMapper).addPartition("p202702", "2027-03-01");
+        verifyNoMoreInteractions(ignoreStubs(messageMapper));
+    }
+
+    @Test
+    @DisplayName("表未分区时跳过")
+    void testSkipWhenNotPartitioned() {
+        when(messageMapper.findPartitionBounds()).thenReturn(List.of());
+
+        assertEquals(0, job.ensurePartitions());
+        verify(messageMapper, never()).addPartition(any(), any());
+    }
+
+    @Test
+    @DisplayName("解析分区上界")
+    void testParseBound() {
+        assertEquals(LocalDate.of(2026, 11, 1), ChatMessagePartitionJob.parseBound("'2026-11-01 00:00:00'"));
+        assertEquals(LocalDate.of(2026, 11, 1), ChatMessagePartitionJob.parseBound("'2026-11-01'"));
+    }
+}
@@ -0,0 +1,112 @@
+package com.hachimi.hachimiagent.service;
+
+import com.hachimi.hachimiagent.chatmemory.MysqlChatMemoryProperties;
+import com.hachimi.hachimiagent.entity.ChatConversation;
+import com.hachimi.hachimiagent.mapper.ChatConversationMapper;
+import com.hachimi.hachimiagent.mapper.ChatMessageMapper;
+import com.hachimi.hachimiagent.sharding.ShardRouter;
+import com.hachimi.hachimiagent.sharding.ShardingProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * ChatMessagePurgeJob 测试类
+ * 验证按保留期分批清理、归档模式以及回收行数指标
+ */
+@DisplayName("逻辑删除行清理任务测试")
+class ChatMessagePurgeJobTest {
+
+    private static final LocalDateTime NOW = LocalDateTime.of(2025, 1, 17, 3, 30);
+
+    private ChatMessageMapper messageMapper;
+    private ChatConversationMapper conversationMapper;
+    private MysqlChatMemoryProperties properties;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        messageMapper = mock(ChatMessageMapper.class);
+        conversationMapper = mock(ChatConversationMapper.class);
+        properties = new MysqlChatMemoryProperties();
+        properties.getPurge().setBatchSize(2);
+        properties.getPurge().setPauseMillis(0);
+        meterRegistry = new SimpleMeterRegistry();
+        when(conversationMapper.currentTime()).thenReturn(NOW);
+        when(messageMapper.purgeByIds(anyList())).thenAnswer(invocation -> ((List<?>) invocation.getArgument(0)).size());
+        when(messageMapper.archiveByIds(anyList())).thenAnswer(invocation -> ((List<?>) invocation.getArgument(0)).size());
+    }
+
+    @Test
+    @DisplayName("分批删除超过保留期的消息和对话，直到不足一批")
+    void testPurgeInBatches() {
+        LocalDateTime before = NOW.minusDays(7);
+        when(messageMapper.findPurgeableIds(before, 2)).thenReturn(List.of(1L, 2L), List.of(3L, 4L), List.of(5L));
+        when(conversationMapper.findPurgeableConversations(before, 2))
+                .thenReturn(List.of(conversation(1L), conversation(2L)), List.of());
+        when(conversationMapper.purgeByIds(List.of(1L, 2L))).thenReturn(2);
+        List<String> purged = new ArrayList<>();
+        ChatMessagePurgeJob job = job();
+        job.onConversationsPurged(purged::addAll);
+
+        long reclaimed = job.purge();
+
+        assertEquals(7, reclaimed);
+        verify(messageMapper, times(3)).purgeByIds(anyList());
+        verify(messageMapper, never()).archiveByIds(anyList());
+        verify(conversationMapper, times(2)).findPurgeableConversations(before, 2);
+        assertEquals(List.of("conversation-1", "conversation-2"), purged);
+        assertEquals(5.0, meterRegistry.get("chat.memory.purge.rows")
+                .tag("table", "chat_message").tag("action", "deleted").counter().count());
+        System.out.println("回收行数: " + reclaimed);
+    }
+
+    @Test
+    @DisplayName("归档模式：先复制到归档表再删除，单次执行不超过批数上限")
+    void testArchiveModeWithBatchLimit() {
+        properties.getPurge().setMode("archive");
+        properties.getPurge().setMaxBatchesPerRun(2);
+        when(messageMapper.findPurgeableIds(any(), anyInt())).thenReturn(List.of(1L, 2L));
+
+        job().purge();
+
+        verify(messageMapper, times(2)).archiveByIds(eq(List.of(1L, 2L)));
+        verify(messageMapper, times(2)).purgeByIds(eq(List.of(1L, 2L)));
+        verify(conversationMapper, never()).findPurgeableConversations(any(), anyInt());
+        assertEquals(4.0, meterRegistry.get("chat.memory.purge.rows")
+                .tag("table", "chat_message").tag("action", "archived").counter().count());
+    }
+
+    @Test
+    @DisplayName("关闭时定时触发不执行")
+    void testDisabled() {
+        properties.getPurge().setEnabled(false);
+        job().scheduledPurge();
+        verifyNoInteractions(messageMapper);
+    }
+
+    private static ChatConversation conversation(long id) {
+        ChatConversation conversation = new ChatConversation();
+        conversation.setId(id);
+        conversation.setConversationId("conversation-" + id);
+        return conversation;
+    }
+
+    private ChatMessagePurgeJob job() {
+        return new ChatMessagePurgeJob(messageMapper, conversationMapper, properties,
+                mock(PlatformTransactionManager.class), meterRegistry, new ShardRouter(new ShardingProperties()));
+    }
+}
@@ -0,0 +1,167 @@
+package com.hachimi.hachimiagent.sharding;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ShardRouter 与 ShardRoutingDataSource 测试类
+ * 用三个 H2 内存库代替三个 MySQL 实例，验证按对话路由、事务内不能切换分片以及跨分片查询归并
+ */
+@DisplayName("聊天存储分库路由测试")
+class ShardRoutingDataSourceTest {
+
+    private static final int SHARDS = 3;
+
+    private List<DataSource> shardDataSources;
+    private ShardRouter router;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+
+    @BeforeEach
+    void setUp() {
+        shardDataSources = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            JdbcDataSource dataSource = new JdbcDataSource();
+            dataSource.setURL("jdbc:h2:mem:chat_shard_" + i + "_" + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+            shardDataSources.add(dataSource);
+            new JdbcTemplate(dataSource).execute("CREATE TABLE chat_message (id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                    + "conversation_id VARCHAR(255) NOT NULL, content VARCHAR(255))");
+        }
+
+        ShardingProperties properties = new ShardingProperties();
+        properties.setEnabled(true);
+        properties.setShards(List.of(Map.of(), Map.of()));
+        router = new ShardRouter(properties);
+
+        ShardRoutingDataSource routingDataSource = new ShardRoutingDataSource(shardDataSources);
+        jdbcTemplate = new JdbcTemplate(routingDataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(routingDataSource));
+    }
+
+    @AfterEach
+    void tearDown() {
+        router.shutdown();
+        for (DataSource dataSource : shardDataSources) {
+            new JdbcTemplate(dataSource).execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    @DisplayName("测试分片号稳定且在范围内")
+    void testShardOf() {
+        Map<Integer, Integer> distribution = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            String conversationId = "conversation-" + i;
+            int shard = router.shardOf(conversationId);
+            assertTrue(shard >= 0 && shard < SHARDS);
+            assertEquals(shard, router.shardOf(conversationId));
+            distribution.merge(shard, 1, Integer::sum);
+        }
+        System.out.println("3000 个对话的分片分布: " + distribution);
+        distribution.values().forEach(count -> assertTrue(count > 800, "分布过于倾斜: " + distribution));
+
+        assertEquals(0, new ShardRouter(new ShardingProperties()).shardOf("conversation-1"));
+    }
+
+    @Test
+    @DisplayName("测试写入落在对话所在分片，事务内同样生效")
+    void testRouteWrites() {
+        for (int i = 0; i < 30; i++) {
+            String conversationId = "conversation-" + i;
+            if (i % 2 == 0) {
+                router.route(conversationId, () -> insert(conversationId));
+            } else {
+                router.route(conversationId, () -> transactionTemplate.executeWithoutResult(status -> {
+                    insert(conversationId);
+                    insert(conversationId);
+                }));
+            }
+        }
+
+        for (int shard = 0; shard < SHARDS; shard++) {
+            List<String> stored = new JdbcTemplate(shardDataSources.get(shard))
+                    .queryForList("SELECT DISTINCT conversation_id FROM chat_message", String.class);
+            for (String conversationId : stored) {
+                assertEquals(shard, router.shardOf(conversationId), conversationId + " 写到了错误的分片");
+            }
+        }
+        Integer count = router.route("conversation-1", () -> jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM chat_message WHERE conversation_id = ?", Integer.class, "conversation-1"));
+        assertEquals(2, count);
+        // 未进入分片时落到 0 号分片
+        assertNull(ShardRouter.currentShard());
+    }
+
+    @Test
+    @DisplayName("测试事务中切换到其他分片时报错，事务回滚")
+    void testSwitchShardInTransaction() {
+        String first = "conversation-0";
+        int firstShard = router.shardOf(first);
+        int otherShard = (firstShard + 1) % SHARDS;
+
+        assertThrows(IllegalStateException.class, () -> router.onShard(firstShard,
+                () -> transactionTemplate.executeWithoutResult(status -> {
+                    insert(first);
+                    router.onShard(otherShard, () -> insert(first));
+                })));
+
+        assertEquals(0, scatterCount().stream().mapToInt(Integer::intValue).sum());
+        // 同一分片内嵌套进入不受影响
+        router.onShard(firstShard, () -> transactionTemplate.executeWithoutResult(
+                status -> router.onShard(firstShard, () -> insert(first))));
+        assertEquals(1, scatterCount().get(firstShard));
+    }
+
+    @Test
+    @DisplayName("测试跨分片并发查询按分片号返回结果")
+    void testScatter() {
+        for (int i = 0; i < 50; i++) {
+            String conversationId = "conversation-" + i;
+            router.route(conversationId, () -> insert(conversationId));
+        }
+
+        List<Integer> counts = scatterCount();
+        System.out.println("各分片消息数: " + counts);
+        assertEquals(SHARDS, counts.size());
+        assertEquals(50, counts.stream().mapToInt(Integer::intValue).sum());
+        for (int shard = 0; shard < SHARDS; shard++) {
+            assertEquals(new JdbcTemplate(shardDataSources.get(shard))
+                    .queryForObject("SELECT COUNT(*) FROM chat_message", Integer.class), counts.get(shard));
+        }
+
+        Map<Integer, List<String>> groups = router.groupByShard(List.of("conversation-1", "conversation-2", "conversation-3"));
+        groups.forEach((shard, ids) -> ids.forEach(id -> assertEquals(shard, router.shardOf(id))));
+    }
+
+    @Test
+    @DisplayName("测试各分片有序结果的归并")
+    void testMerge() {
+        List<List<Integer>> sorted = List.of(List.of(9, 6, 2), List.of(8, 7, 1), List.of(), List.of(6, 5));
+        assertEquals(List.of(9, 8, 7, 6, 6, 5), ShardRouter.merge(sorted, Comparator.reverseOrder(), 6));
+        assertEquals(List.of(9, 8, 7, 6, 6, 5, 2, 1), ShardRouter.merge(sorted, Comparator.reverseOrder(), 100));
+        assertEquals(List.of(3, 2), ShardRouter.merge(List.of(List.of(3, 2, 1)), Comparator.reverseOrder(), 2));
+    }
+
+    private void insert(String conversationId) {
+        jdbcTemplate.update("INSERT INTO chat_message (conversation_id, content) VALUES (?, ?)", conversationId, "hello");
+    }
+
+    private List<Integer> scatterCount() {
+        return router.scatter(shard -> jdbcTemplate.queryForObject("SELECT COUNT(*) FROM chat_message", Integer.class));
+    }
+}